@@ -0,0 +1,341 @@
+package com.example.imagetest;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A long-lived microphone capture engine. One AudioRecord and one capture thread
+ * are reused for every utterance instead of being created on each tap.
+ *
+ * While armed, the engine keeps the most recent {@code preRollMs} of audio in an
+ * off-heap ring buffer. When an utterance starts, that pre-roll is handed to the
+ * sink first, so the first syllable is not lost even if the user starts speaking
+ * as they tap. All buffers are allocated up front; the steady-state read loop
+ * allocates nothing.
+ *
+ * Audio is 16-bit little-endian mono PCM.
+ */
+public class AudioCaptureEngine {
+
+    private static final String TAG = "Audio";
+
+    /** Receives one utterance of audio, on the capture thread. */
+    public interface PcmSink {
+        /**
+         * A chunk of PCM. The array is reused after this returns, so copy what you keep.
+         */
+        void onPcm(byte[] data, int length);
+
+        /** The utterance has ended; no more audio follows. */
+        void onEnd();
+    }
+
+    private final int sampleRate;
+    private final int chunkMs;
+    private final byte[] readBuffer;
+    private final byte[] preRollScratch;
+    private final ByteBuffer ring;
+
+    private AudioRecord recorder;
+    private Thread captureThread;
+
+    // Ring state, only touched on the capture thread
+    private int ringWritePos = 0;
+    private int ringFilled = 0;
+
+    // Handshake between callers and the capture thread, guarded by "this".
+    // The sinks are called on the capture thread with the lock released.
+    private boolean armed = false;
+    private boolean shutdown = false;
+    // Set on arming, so the capture thread drops audio from before the microphone was last stopped
+    private boolean ringStale = false;
+    private PcmSink pendingSink;
+    private PcmSink activeSink;
+    private boolean stopRequested = false;
+
+    /**
+     * @param sampleRate Sample rate in Hz.
+     * @param chunkMs    Audio delivered per read, in milliseconds.
+     * @param preRollMs  How much audio before the tap to include in each utterance.
+     */
+    public AudioCaptureEngine(int sampleRate, int chunkMs, int preRollMs) {
+        this.sampleRate = sampleRate;
+        this.chunkMs = chunkMs;
+        int bytesPerMs = sampleRate * 2 / 1000;
+        this.readBuffer = new byte[chunkMs * bytesPerMs];
+        this.preRollScratch = new byte[preRollMs * bytesPerMs];
+        this.ring = ByteBuffer.allocateDirect(preRollMs * bytesPerMs);
+    }
+
+    /**
+     * Opens the microphone and starts filling the pre-roll buffer. Requires the
+     * RECORD_AUDIO permission. Does nothing if already armed.
+     *
+     * @return Whether the microphone is armed; false if it could not be opened or the engine is released.
+     */
+    public synchronized boolean arm() {
+        if (armed || shutdown) {
+            return armed;
+        }
+        if (recorder == null) {
+            int channelConfig = AudioFormat.CHANNEL_IN_MONO;
+            int audioFormat = AudioFormat.ENCODING_PCM_16BIT;
+            int minBufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig, audioFormat);
+            recorder = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate, channelConfig, audioFormat,
+                    Math.max(minBufferSize, readBuffer.length * 4));
+        }
+        if (recorder.getState() != AudioRecord.STATE_INITIALIZED) {
+            Log.e(TAG, "AudioRecord failed to initialize");
+            recorder.release();
+            recorder = null;
+            return false;
+        }
+        recorder.startRecording();
+        ringStale = true;
+        armed = true;
+        if (captureThread == null) {
+            captureThread = new Thread(this::captureLoop, "AudioRecorder Thread");
+            captureThread.start();
+        }
+        notifyAll();
+        Log.d(TAG, "Capture engine armed.");
+        return true;
+    }
+
+    /**
+     * Stops the microphone, ending any utterance in progress. The recorder and
+     * thread are kept for the next {@link #arm()}.
+     */
+    public void disarm() {
+        stopUtterance();
+        synchronized (this) {
+            if (!armed) {
+                return;
+            }
+            armed = false;
+            recorder.stop();
+        }
+        Log.d(TAG, "Capture engine disarmed.");
+    }
+
+    /**
+     * Starts delivering audio to the sink, beginning with the buffered pre-roll.
+     * Arms the engine first if needed, in which case there is no pre-roll.
+     *
+     * @throws IOException If the microphone could not be armed. The sink is not
+     *                     used, and its onEnd is not called.
+     */
+    public void startUtterance(PcmSink sink) throws IOException {
+        stopUtterance();
+        synchronized (this) {
+            if (!arm()) {
+                throw new IOException("Microphone unavailable");
+            }
+            pendingSink = sink;
+        }
+    }
+
+    /**
+     * Ends the current utterance and waits until the sink's onEnd has returned.
+     * The sink finishes its file on the way, so don't call this on the UI thread.
+     */
+    public void stopUtterance() {
+        stopUtterance(null);
+    }
+
+    /**
+     * Ends {@code sink}'s utterance and waits until its onEnd has returned. Does
+     * nothing if it has already ended, so a late call can't stop a newer utterance.
+     *
+     * @param sink The sink to end, or null for whichever is current.
+     */
+    public void stopUtterance(PcmSink sink) {
+        PcmSink unstarted = null;
+        synchronized (this) {
+            if (pendingSink != null && (sink == null || pendingSink == sink)) {
+                // The capture thread never picked the sink up, so it is ended here.
+                unstarted = pendingSink;
+                pendingSink = null;
+            } else if (activeSink != null && (sink == null || activeSink == sink)) {
+                PcmSink ending = activeSink;
+                stopRequested = true;
+                notifyAll();
+                while (activeSink == ending && captureThread != null && captureThread.isAlive()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+        if (unstarted != null) {
+            unstarted.onEnd();
+        }
+    }
+
+    public synchronized boolean isCapturing() {
+        return activeSink != null || pendingSink != null;
+    }
+
+    /**
+     * Stops the capture thread and frees the microphone for good.
+     */
+    public void release() {
+        disarm();
+        Thread thread;
+        synchronized (this) {
+            shutdown = true;
+            notifyAll();
+            thread = captureThread;
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (recorder != null) {
+                recorder.release();
+                recorder = null;
+            }
+        }
+    }
+
+    private void captureLoop() {
+        while (true) {
+            AudioRecord source;
+            PcmSink starting = null;
+            PcmSink ending = null;
+            PcmSink sink;
+            boolean clearRing;
+            synchronized (this) {
+                while (!armed && !shutdown) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (shutdown) {
+                    return;
+                }
+                if (stopRequested) {
+                    // Stays active until its onEnd has returned, so stopUtterance waits for it
+                    stopRequested = false;
+                    ending = activeSink;
+                } else if (pendingSink != null) {
+                    activeSink = pendingSink;
+                    pendingSink = null;
+                    starting = activeSink;
+                }
+                sink = ending == null ? activeSink : null;
+                clearRing = ringStale;
+                ringStale = false;
+                source = recorder;
+            }
+
+            if (clearRing) {
+                ringFilled = 0;
+            }
+            if (ending != null) {
+                endUtterance(ending);
+                continue;
+            }
+            if (starting != null) {
+                deliverPreRoll(starting);
+            }
+
+            int read = source.read(readBuffer, 0, readBuffer.length);
+            if (read == AudioRecord.ERROR_DEAD_OBJECT) {
+                recorderDied();
+                continue;
+            }
+            if (read <= 0) {
+                // Stopped underneath us, or a transient error; wait a chunk rather than spin
+                synchronized (this) {
+                    try {
+                        wait(chunkMs);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            writeRing(readBuffer, read);
+            if (sink != null) {
+                sink.onPcm(readBuffer, read);
+            }
+        }
+    }
+
+    private void endUtterance(PcmSink sink) {
+        sink.onEnd();
+        synchronized (this) {
+            if (activeSink == sink) {
+                activeSink = null;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * The recorder is gone (the audio server restarted, or the microphone was
+     * taken away): ends the utterance and disarms, so the next {@link #arm()}
+     * opens a new one.
+     */
+    private void recorderDied() {
+        Log.e(TAG, "AudioRecord died; disarming");
+        PcmSink ending;
+        synchronized (this) {
+            armed = false;
+            stopRequested = false;
+            recorder.release();
+            recorder = null;
+            ending = activeSink;
+        }
+        if (ending != null) {
+            endUtterance(ending);
+        }
+    }
+
+    private void writeRing(byte[] data, int length) {
+        int capacity = ring.capacity();
+        int offset = Math.max(0, length - capacity); // only the newest audio fits
+        int remaining = length - offset;
+        while (remaining > 0) {
+            int n = Math.min(remaining, capacity - ringWritePos);
+            ring.position(ringWritePos);
+            ring.put(data, offset, n);
+            ringWritePos = (ringWritePos + n) % capacity;
+            offset += n;
+            remaining -= n;
+        }
+        ringFilled = Math.min(capacity, ringFilled + length);
+    }
+
+    private void deliverPreRoll(PcmSink sink) {
+        int capacity = ring.capacity();
+        int readPos = (ringWritePos - ringFilled + capacity) % capacity;
+        int copied = 0;
+        while (copied < ringFilled) {
+            int n = Math.min(ringFilled - copied, capacity - readPos);
+            ring.position(readPos);
+            ring.get(preRollScratch, copied, n);
+            readPos = (readPos + n) % capacity;
+            copied += n;
+        }
+        if (copied > 0) {
+            sink.onPcm(preRollScratch, copied);
+        }
+        ringFilled = 0;
+    }
+}
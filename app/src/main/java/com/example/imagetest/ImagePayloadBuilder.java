@@ -0,0 +1,371 @@
+package com.example.imagetest;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ImageFormat;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Turns a camera JPEG into the upload-ready image for the chat request in a
+ * single pass: the JPEG is decoded straight at (roughly) the target size with
+ * a sampled decode, scaled the rest of the way, and compressed once.
+ *
+ * The scaled image is also given a perceptual hash. When a {@link SceneIndex}
+ * is supplied and the capture matches a recent scene, that scene's JPEG is
+ * reused and the compress step is skipped.
+ *
+ * With a {@link RegionOfInterest}, the uploaded image is instead a crop of
+ * the capture decoded at full resolution, tiled with a thumbnail of the whole
+ * frame, in no more pixels than the whole frame would have taken.
+ *
+ * Images are only scaled down: a capture smaller than the requested size, or
+ * a region with fewer pixels than its crop, is sent at the size it is.
+ */
+public final class ImagePayloadBuilder {
+
+    private static final String TAG = "ImagePayload";
+
+    /** An image ready to attach to a request, plus a bitmap for the preview. */
+    public static class PreparedImage {
+        public final byte[] jpeg;
+        /** The size of {@link #jpeg}, in pixels. */
+        public final int width;
+        public final int height;
+        /** The long side of {@link #jpeg}, in pixels. */
+        public final int longSide;
+        /** The long side it was prepared to fit; more than {@link #longSide} if the capture was smaller. */
+        public final int maxSize;
+        /** The camera JPEG it was prepared from, to prepare again at another size. */
+        public final byte[] source;
+        /** The size of {@link #source}, in pixels. */
+        public final int sourceWidth;
+        public final int sourceHeight;
+        public final Bitmap preview;
+        public final long prepareMs;
+        public final long sceneHash;
+        /** The scene this capture matched or started, or null without an index. */
+        @Nullable
+        public final SceneIndex.Scene scene;
+        /** True if {@link #jpeg} is the payload of an earlier capture of the same scene. */
+        public final boolean reused;
+        /** The part of the capture {@link #jpeg} shows close up, or null if it shows the whole frame. */
+        @Nullable
+        public final RegionOfInterest.Region region;
+        /** How {@link #jpeg} is tiled, or null if it is the whole frame. */
+        @Nullable
+        public final RegionOfInterest.Layout layout;
+
+        PreparedImage(byte[] jpeg, int width, int height, int maxSize,
+                      byte[] source, int sourceWidth, int sourceHeight,
+                      Bitmap preview, long prepareMs, long sceneHash,
+                      @Nullable SceneIndex.Scene scene, boolean reused,
+                      @Nullable RegionOfInterest.Region region, @Nullable RegionOfInterest.Layout layout) {
+            this.jpeg = jpeg;
+            this.width = width;
+            this.height = height;
+            this.longSide = Math.max(width, height);
+            this.maxSize = maxSize;
+            this.source = source;
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+            this.preview = preview;
+            this.prepareMs = prepareMs;
+            this.sceneHash = sceneHash;
+            this.scene = scene;
+            this.reused = reused;
+            this.region = region;
+            this.layout = layout;
+        }
+    }
+
+    private ImagePayloadBuilder() {
+    }
+
+    /**
+     * Prepares a camera JPEG for upload. Call on a background thread.
+     *
+     * @param data      The JPEG from the camera.
+     * @param maxWidth  Maximum width of the uploaded image.
+     * @param maxHeight Maximum height of the uploaded image.
+     * @param quality   JPEG quality of the uploaded image (0-100).
+     * @return The prepared image, or null if the data could not be decoded.
+     */
+    public static PreparedImage prepare(byte[] data, int maxWidth, int maxHeight, int quality) {
+        return prepare(data, maxWidth, maxHeight, quality, null, 0, null);
+    }
+
+    /**
+     * Prepares a camera JPEG for upload, reusing the payload of a recent capture
+     * of the same scene when there is one. Call on a background thread.
+     *
+     * @param scenes Recent scenes to match against and add to, or null.
+     * @param nowMs  The current time on the clock {@code scenes} uses.
+     * @param focus  Picks the part of the capture to send close up, or null to send the whole frame.
+     * @return The prepared image, or null if the data could not be decoded.
+     */
+    public static PreparedImage prepare(byte[] data, int maxWidth, int maxHeight, int quality,
+                                        @Nullable SceneIndex scenes, long nowMs,
+                                        @Nullable RegionOfInterest focus) {
+        long start = SystemClock.elapsedRealtime();
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight, maxWidth, maxHeight);
+        Bitmap sampled = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (sampled == null) {
+            return null;
+        }
+
+        Bitmap scaled = scaleToFit(sampled, maxWidth, maxHeight);
+        if (scaled != sampled) {
+            sampled.recycle();
+        }
+
+        // One read of the pixels serves both the hash and the search for the region
+        int width = scaled.getWidth();
+        int height = scaled.getHeight();
+        int[] pixels = new int[width * height];
+        scaled.getPixels(pixels, 0, width, 0, 0, width, height);
+        long hash = PerceptualHash.dHash(pixels, width, height);
+        RegionOfInterest.Region region = focus != null ? focus.locate(pixels, width, height) : null;
+        SceneIndex.Scene scene = scenes != null ? scenes.find(hash, nowMs) : null;
+        if (scene != null) {
+            // The scene may have been prepared at another size, and as a close-up laid out by the
+            // same focus unless that came out larger than the whole frame
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(scene.jpeg, 0, scene.jpeg.length, bounds);
+            int longSide = Math.max(bounds.outWidth, bounds.outHeight);
+            RegionOfInterest.Layout layout = region != null
+                    ? focus.layout(options.outWidth, options.outHeight, region, longSide) : null;
+            if (layout != null && (layout.width != bounds.outWidth || layout.height != bounds.outHeight)) {
+                layout = null;
+            }
+            return new PreparedImage(scene.jpeg, bounds.outWidth, bounds.outHeight, longSide,
+                    data, options.outWidth, options.outHeight, scaled,
+                    SystemClock.elapsedRealtime() - start, hash, scene, true,
+                    layout != null ? region : null, layout);
+        }
+
+        Encoded encoded = encode(data, options.outWidth, options.outHeight, scaled, quality, focus, region);
+        if (scenes != null) {
+            scene = scenes.add(hash, encoded.jpeg, nowMs);
+        }
+        return new PreparedImage(encoded.jpeg, encoded.width, encoded.height, width > height ? maxWidth : maxHeight,
+                data, options.outWidth, options.outHeight, scaled,
+                SystemClock.elapsedRealtime() - start, hash, scene, false,
+                encoded.layout != null ? region : null, encoded.layout);
+    }
+
+    /**
+     * Prepares an image again from its camera JPEG at another size and quality,
+     * keeping its preview, scene and region. Call on a background thread.
+     *
+     * @param focus Lays out the close-up, as when the image was first prepared, or null.
+     * @return The new image, or null if the source could not be decoded.
+     */
+    public static PreparedImage prepareAgain(PreparedImage image, int maxSize, int quality,
+                                             @Nullable RegionOfInterest focus) {
+        long start = SystemClock.elapsedRealtime();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(image.source, 0, image.source.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        RegionOfInterest.Region region = focus != null ? image.region : null;
+        // The whole frame, to send, to shrink into the thumbnail, and as the close-up's byte budget
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight, maxSize, maxSize);
+        Bitmap sampled = BitmapFactory.decodeByteArray(image.source, 0, image.source.length, options);
+        if (sampled == null) {
+            return null;
+        }
+        Bitmap whole = scaleToFit(sampled, maxSize, maxSize);
+        if (whole != sampled) {
+            sampled.recycle();
+        }
+        Encoded encoded = encode(image.source, options.outWidth, options.outHeight, whole, quality, focus, region);
+        whole.recycle(); // the capture's preview is already on screen
+        return new PreparedImage(encoded.jpeg, encoded.width, encoded.height, maxSize,
+                image.source, options.outWidth, options.outHeight, image.preview,
+                SystemClock.elapsedRealtime() - start, image.sceneHash, image.scene, false,
+                encoded.layout != null ? region : null, encoded.layout);
+    }
+
+    /**
+     * Returns the perceptual hash of a bitmap; see {@link PerceptualHash}.
+     */
+    public static long hash(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        return PerceptualHash.dHash(pixels, width, height);
+    }
+
+    /** A compressed upload image and how it was laid out. */
+    private static final class Encoded {
+        final byte[] jpeg;
+        final int width;
+        final int height;
+        @Nullable
+        final RegionOfInterest.Layout layout;
+
+        Encoded(byte[] jpeg, int width, int height, @Nullable RegionOfInterest.Layout layout) {
+            this.jpeg = jpeg;
+            this.width = width;
+            this.height = height;
+            this.layout = layout;
+        }
+    }
+
+    /**
+     * Compresses the close-up of {@code region} tiled with {@code whole} as its thumbnail,
+     * in no more bytes than {@code whole} alone; see {@link RegionOfInterest#fitCloseUp}.
+     * Sends {@code whole} alone without a region, if the close-up does not fit, or if the
+     * crop cannot be decoded.
+     *
+     * @param whole The whole frame at the size to send.
+     */
+    private static Encoded encode(byte[] data, int frameWidth, int frameHeight, Bitmap whole,
+                                  int quality, @Nullable RegionOfInterest focus,
+                                  @Nullable RegionOfInterest.Region region) {
+        byte[] wholeJpeg = compress(whole, quality);
+        if (region != null) {
+            RegionOfInterest.Layout layout = focus.layout(frameWidth, frameHeight, region,
+                    Math.max(whole.getWidth(), whole.getHeight()));
+            Bitmap tiled = tile(data, frameWidth, frameHeight, whole, region, layout);
+            if (tiled != null) {
+                byte[] closeUp = RegionOfInterest.fitCloseUp(wholeJpeg.length, quality, q -> compress(tiled, q));
+                tiled.recycle();
+                if (closeUp != null) {
+                    return new Encoded(closeUp, layout.width, layout.height, layout);
+                }
+                Log.d(TAG, "Close-up of " + region + " is larger than the whole frame's "
+                        + wholeJpeg.length + " bytes; sending the whole frame");
+            }
+        }
+        return new Encoded(wholeJpeg, whole.getWidth(), whole.getHeight(), null);
+    }
+
+    private static byte[] compress(Bitmap bitmap, int quality) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(32 * 1024);
+        bitmap.compress(Bitmap.CompressFormat.JPEG, quality, outputStream);
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Draws the region of the camera JPEG, decoded at no more than the resolution it
+     * is drawn at, and the thumbnail of the whole frame into one bitmap.
+     *
+     * @return The bitmap, or null if the region could not be decoded.
+     */
+    @Nullable
+    private static Bitmap tile(byte[] data, int frameWidth, int frameHeight, Bitmap whole,
+                               RegionOfInterest.Region region, RegionOfInterest.Layout layout) {
+        Rect crop = new Rect(Math.round(region.left * frameWidth), Math.round(region.top * frameHeight),
+                Math.round((region.left + region.width) * frameWidth),
+                Math.round((region.top + region.height) * frameHeight));
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize(crop.width(), crop.height(), layout.cropWidth, layout.cropHeight);
+        Bitmap cropped;
+        try {
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+            try {
+                cropped = decoder.decodeRegion(crop, options);
+            } finally {
+                decoder.recycle();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "Could not decode the region " + region + ", sending the whole frame", e);
+            return null;
+        }
+        if (cropped == null) {
+            return null;
+        }
+
+        Bitmap tiled = Bitmap.createBitmap(layout.width, layout.height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(tiled);
+        canvas.drawColor(Color.GRAY); // the rest of the thumbnail strip; flat, so it costs almost nothing
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        canvas.drawBitmap(cropped, null, new Rect(0, 0, layout.cropWidth, layout.cropHeight), paint);
+        cropped.recycle();
+        if (layout.thumbnailWidth > 0) {
+            canvas.drawBitmap(whole, null, new Rect(layout.thumbnailLeft, layout.thumbnailTop,
+                    layout.thumbnailLeft + layout.thumbnailWidth, layout.thumbnailTop + layout.thumbnailHeight), paint);
+        }
+        return tiled;
+    }
+
+    /**
+     * Compresses an NV21 camera preview frame to JPEG, for captures taken from
+     * the preview stream rather than the shutter.
+     *
+     * @return The JPEG bytes.
+     */
+    public static byte[] nv21ToJpeg(byte[] nv21, int width, int height, int quality) {
+        YuvImage image = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(width * height / 4);
+        image.compressToJpeg(new Rect(0, 0, width, height), quality, outputStream);
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Returns the largest power-of-two sample size that still leaves the decoded
+     * image at least as large as the target, so the final scale only shrinks.
+     */
+    static int sampleSize(int width, int height, int maxWidth, int maxHeight) {
+        // Same fit rule as scaleToFit: the long side is bounded by its limit.
+        int target = width > height ? maxWidth : maxHeight;
+        int longSide = Math.max(width, height);
+        int sampleSize = 1;
+        while (longSide / (sampleSize * 2) >= target) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Scales the bitmap down so its long side matches the limit, keeping the
+     * aspect ratio. A bitmap already within the limit is returned as it is.
+     */
+    private static Bitmap scaleToFit(Bitmap bitmap, int maxWidth, int maxHeight) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+
+        float bitmapRatio = (float) width / height;
+        if (bitmapRatio > 1 ? width <= maxWidth : height <= maxHeight) {
+            return bitmap;
+        }
+        if (bitmapRatio > 1) {
+            width = maxWidth;
+            height = (int) (width / bitmapRatio);
+        } else {
+            height = maxHeight;
+            width = (int) (height * bitmapRatio);
+        }
+        if (width == bitmap.getWidth() && height == bitmap.getHeight()) {
+            return bitmap;
+        }
+        return Bitmap.createScaledBitmap(bitmap, width, height, true);
+    }
+}
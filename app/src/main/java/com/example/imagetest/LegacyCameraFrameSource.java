@@ -0,0 +1,136 @@
+package com.example.imagetest;
+
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera; // Deprecated—but used here for in-app capture
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Preview frames (NV21) from the legacy Camera API, rendered into a dummy
+ * SurfaceTexture so no preview is shown.
+ *
+ * All Camera calls run on one dedicated thread, which also receives the frame callbacks.
+ */
+public class LegacyCameraFrameSource implements FrameSource {
+
+    // Preview frames are used as the captured image, so ask for a decent size.
+    private static final int TARGET_WIDTH = 1280;
+
+    private final HandlerThread cameraThread;
+    private final Handler cameraHandler;
+
+    // Only touched on the camera thread
+    private Camera camera;
+    private SurfaceTexture previewTexture;
+
+    public LegacyCameraFrameSource() {
+        cameraThread = new HandlerThread("Camera");
+        cameraThread.start();
+        cameraHandler = new Handler(cameraThread.getLooper());
+    }
+
+    @Override
+    public void open(FrameSink sink, int bufferCount) throws IOException {
+        FutureTask<Void> task = new FutureTask<>(() -> {
+            openOnCameraThread(sink, bufferCount);
+            return null;
+        });
+        if (!cameraHandler.post(task)) {
+            throw new IOException("Camera thread has stopped");
+        }
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            close();
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new IOException("Interrupted while opening camera", e);
+        }
+    }
+
+    private void openOnCameraThread(FrameSink sink, int bufferCount) throws IOException {
+        try {
+            camera = Camera.open();
+        } catch (RuntimeException e) {
+            throw new IOException("Camera unavailable: " + e.getMessage(), e);
+        }
+        Camera.Parameters parameters = camera.getParameters();
+        Camera.Size size = choosePreviewSize(parameters.getSupportedPreviewSizes());
+        parameters.setPreviewSize(size.width, size.height);
+        parameters.setPreviewFormat(ImageFormat.NV21);
+        camera.setParameters(parameters);
+
+        previewTexture = new SurfaceTexture(10);
+        camera.setPreviewTexture(previewTexture);
+
+        final int width = size.width;
+        final int height = size.height;
+        int frameBytes = width * height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+        for (int i = 0; i < bufferCount; i++) {
+            camera.addCallbackBuffer(new byte[frameBytes]);
+        }
+        camera.setPreviewCallbackWithBuffer((data, cam) ->
+                sink.onFrame(data, width, height, System.nanoTime()));
+        camera.startPreview();
+    }
+
+    /**
+     * Picks the smallest preview size at least TARGET_WIDTH wide, or the largest available.
+     */
+    private static Camera.Size choosePreviewSize(List<Camera.Size> sizes) {
+        Camera.Size best = null;
+        Camera.Size largest = null;
+        for (Camera.Size size : sizes) {
+            if (largest == null || size.width > largest.width) {
+                largest = size;
+            }
+            if (size.width >= TARGET_WIDTH && (best == null || size.width < best.width)) {
+                best = size;
+            }
+        }
+        return best != null ? best : largest;
+    }
+
+    @Override
+    public void recycle(byte[] buffer) {
+        cameraHandler.post(() -> {
+            if (camera != null) {
+                camera.addCallbackBuffer(buffer);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        cameraHandler.post(() -> {
+            if (camera != null) {
+                camera.setPreviewCallbackWithBuffer(null);
+                camera.stopPreview();
+                camera.release();
+                camera = null;
+            }
+            if (previewTexture != null) {
+                previewTexture.release();
+                previewTexture = null;
+            }
+        });
+    }
+
+    /**
+     * Closes the camera and stops the camera thread once that is done. The source
+     * cannot be opened again.
+     */
+    public void shutdown() {
+        close();
+        cameraThread.quitSafely();
+    }
+}
@@ -3,18 +3,12 @@ package com.example.imagetest;
 import android.Manifest;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.SurfaceTexture;
-import android.hardware.Camera; // Deprecated—but used here for in-app capture
-import android.media.AudioFormat;
-import android.media.AudioRecord;
-import android.media.MediaPlayer;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Environment;
-import android.provider.MediaStore;
+import android.os.SystemClock;
 import android.speech.tts.TextToSpeech;
+import android.speech.tts.UtteranceProgressListener;
 import android.util.Log;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
@@ -34,34 +28,126 @@ import androidx.core.content.ContextCompat;
 
 import com.rayneo.arsdk.android.touch.TempleAction;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
-
-import okhttp3.Call;
-import okhttp3.Callback;
-import okhttp3.MediaType;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.RequestBody;
-import okhttp3.Response;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 
 public class MainActivity extends AppCompatActivity {
 
     // API Key defined as a single variable
     private static final String API_KEY = "Bearer API:kmcts32Wtk13XcB6pMpJDYBRLyEmWPIvyuDHBtjkzcywa5boOjh9_YTSf_cyyV1BE31xSXpddzT3BlbkFJRnPcDY0MUHsmJRHua3qC2thvLOJFyPXaSY28B5ogIjPJnjn38VtHnJyM9-YndPlTbOxcRsj5AA";
+    private static final String GOOGLE_API_KEY = "API:BihdiUuVcGYxtwLdC2vbU6uksNRERnBAg";
     private static final int PERMISSION_REQUEST_CODE = 123;
 
+    private static final String STT_URL = "https://speech.googleapis.com/v1/speech:recognize?key=" + GOOGLE_API_KEY;
+    private static final String CHAT_URL = "https://api.openai.com/v1/chat/completions";
+    private static final String TTS_URL = "https://texttospeech.googleapis.com/v1/text:synthesize?key=" + GOOGLE_API_KEY;
+
+    // Recording format, and how much audio from before the tap to include
+    private static final int SAMPLE_RATE = 16000; // 16 kHz
+    private static final int AUDIO_CHUNK_MS = 20;
+    private static final int AUDIO_PRE_ROLL_MS = 500;
+    // FLAC is lossless and about half the size of LINEAR16, so uploads finish sooner
+    private static final PcmEncoder.Codec STT_AUDIO_CODEC = PcmEncoder.Codec.FLAC;
+    private static final int VAD_END_SILENCE_MS = 700; // silence after speech that ends the recording
+
+    // Streaming speech recognizer endpoint (WebSocket). Leave empty to use the
+    // batch Google STT request after recording stops.
+    private static final String STREAMING_STT_URL = "";
+
+    // Stream chat completions token by token instead of waiting for the whole answer
+    private static final boolean STREAM_CHAT_RESPONSES = true;
+    private static final String CHAT_MODEL = "gpt-4o";
+    // Minimum time between streamed text updates on the output box
+    private static final long STREAM_UI_INTERVAL_MS = 50;
+    // How long to wait for the stream's final transcript before sending the recorded file instead
+    private static final long STREAMING_FINAL_WAIT_MS = 3000;
+    // Send the chat request once the interim transcript has held steady this long, and use
+    // its answer if the final transcript matches. Each guess costs a request; 0 turns it off.
+    private static final long SPECULATION_STABLE_MS = 500;
+    private static final int SPECULATIONS_PER_QUERY = 2;
+    // Threads and queue depth for the transcribe and reason stages. Two threads let a new
+    // query start while a cancelled one is still tearing down its connection.
+    private static final int PIPELINE_STAGE_THREADS = 2;
+    private static final int PIPELINE_QUEUE_CAPACITY = 2;
+    // Interactions traced at once; older ones drop out of the trace
+    private static final int TRACE_SLOTS = 8;
+    // Number of TTS synthesis requests allowed in flight while earlier segments play
+    private static final int TTS_MAX_IN_FLIGHT = 2;
+    // The voice; these also key the TTS cache, so changing them never replays stale audio
+    private static final String TTS_LANGUAGE_CODE = "en-CA";
+    private static final String TTS_SSML_GENDER = "FEMALE";
+    private static final String TTS_AUDIO_ENCODING = "LINEAR16";
+    private static final int TTS_SAMPLE_RATE = 24000;
+    // Audio blocks kept for reuse between answers, about 10 s of speech
+    private static final int TTS_POOLED_BLOCKS = 32;
+    private static final long TTS_CACHE_MAX_BYTES = 20L * 1024 * 1024;
+    private static final long TTS_CACHE_MAX_AGE_MS = 30L * 24 * 60 * 60_000;
+    // Captured images and recordings kept on the device; the least recently used go first
+    private static final long CAPTURE_STORE_MAX_BYTES = 100L * 1024 * 1024;
+    private static final long CAPTURE_STORE_MAX_AGE_MS = 7L * 24 * 60 * 60_000;
+    private static final long RECORDING_STORE_MAX_BYTES = 20L * 1024 * 1024;
+    private static final long RECORDING_STORE_MAX_AGE_MS = 24L * 60 * 60_000;
+    // From the end of the question to the first spoken word, and each network stage's
+    // deadline within that; retries and hedged requests have to fit inside them
+    private static final long INTERACTION_BUDGET_MS = 6000;
+    private static final long STT_DEADLINE_MS = 3000;
+    private static final long FIRST_TOKEN_DEADLINE_MS = 4000;
+    private static final long TTS_DEADLINE_MS = 2500;
+    private static final long MIN_STAGE_DEADLINE_MS = 1000;
+    // Spoken instead of an answer while the chat service is failing
+    private static final String CHAT_UNAVAILABLE_ANSWER =
+            "Sorry, I can't reach the assistant right now. Please try again in a moment.";
+
+    // The first-token latency the attached image is sized for, and what to assume
+    // about the link until chat requests have been measured
+    private static final long IMAGE_TARGET_FIRST_TOKEN_MS = 1500;
+    private static final long IMAGE_ASSUMED_UPLOAD_BYTES_PER_SECOND = 100 * 1024;
+    private static final long IMAGE_ASSUMED_SERVICE_MS = 800;
+    // The part of the capture sent close up: its share of each side, how it is placed,
+    // and whether a thumbnail of the whole view goes with it
+    private static final float IMAGE_FOCUS_SIZE = 0.5f;
+    private static final RegionOfInterest.Mode IMAGE_FOCUS_MODE = RegionOfInterest.Mode.AUTO;
+    private static final boolean IMAGE_FOCUS_CONTEXT = true;
+    // Quality used when a preview frame becomes the captured image
+    private static final int CAPTURE_JPEG_QUALITY = 90;
+    // Captures this close to a recent scene reuse its payload and ask a cheaper follow-up
+    private static final int SCENE_INDEX_SIZE = 4;
+    private static final int SCENE_MAX_DISTANCE = 10; // of 64 hash bits
+    private static final long SCENE_MAX_AGE_MS = 5 * 60_000;
+    // Answers to the same question about the same view are reused for a while
+    private static final int RESPONSE_CACHE_SIZE = 64;
+    private static final long RESPONSE_CACHE_TTL_MS = 30 * 60_000;
+    // Earlier turns sent with each question, within a token budget; forgotten after a quiet spell
+    private static final int CONVERSATION_MAX_TOKENS = 3000;
+    // An image may take up to half of that; the rest is for the question and the history
+    private static final int IMAGE_MAX_TOKENS = CONVERSATION_MAX_TOKENS / 2;
+    private static final int CONVERSATION_MAX_TURNS = 20;
+    private static final long CONVERSATION_IDLE_RESET_MS = 10 * 60_000;
+    // Recent preview frames kept by the warm camera, and how long it stays open unused
+    private static final int CAMERA_RING_SIZE = 3;
+    private static final long CAMERA_IDLE_TIMEOUT_MS = 60_000;
+
+    // Hosts to pre-connect to as soon as the user taps, before any request is ready
+    private static final String[] API_ORIGINS = {
+            "https://speech.googleapis.com/",
+            "https://api.openai.com/",
+            "https://texttospeech.googleapis.com/"
+    };
+
     // UI Elements
     private EditText textInput;
     private ImageView imagePreview;
@@ -69,16 +155,74 @@ public class MainActivity extends AppCompatActivity {
     private Button selectImageButton;
     private Button submitButton;
     // This Uri will be used to hold the captured image’s location (if any)
-    private Uri imageUri;
+    private volatile Uri imageUri;
+    // Upload-ready version of the latest capture, prepared in the background
+    private volatile Future<ImagePayloadBuilder.PreparedImage> preparedImage;
+    // Recent scenes with their payloads and last answers, for follow-up questions
+    private final SceneIndex sceneIndex = new SceneIndex(SCENE_INDEX_SIZE, SCENE_MAX_DISTANCE, SCENE_MAX_AGE_MS);
+    private final ExecutorService imageExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "Image Prep"));
+    // Small background writes: the response cache and the latency report
+    private final ExecutorService ioExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "Disk I/O"));
+    // Keeps the camera previewing while we're in the foreground so taps capture instantly
+    private WarmCameraManager cameraManager;
+    private LegacyCameraFrameSource cameraSource;
+    private ScheduledExecutorService cameraExecutor;
 
     private TextToSpeech textToSpeech;
-
-    // For audio recording using AudioRecord (for WAV output)
-    private AudioRecord recorder;
-    private Thread recordingThread;
-    private boolean isRecordingAudio = false;
-    // The output WAV file path
+    // Set once the on-device voice has initialized, and cleared when it is shut down
+    private volatile boolean textToSpeechReady = false;
+
+    // One long-lived microphone engine; keeps a pre-roll while armed
+    private AudioCaptureEngine audioEngine;
+    private volatile boolean isRecordingAudio = false;
+    // The recording in progress, so a late end-of-speech event can't stop a newer one (UI thread only)
+    private RecordingSink currentRecording;
+    // The output audio file path (FLAC or WAV, see STT_AUDIO_CODEC)
     private String audioFilePath;
+    // Streams the recording while it is captured (null when streaming is off)
+    private StreamingRecognizer streamingRecognizer;
+    // Set when the stream fails so we fall back to the batch request
+    private volatile boolean streamingFailed = false;
+    // The stream's final transcript for the current recording (null when streaming is off)
+    private CompletableFuture<String> streamingTranscript;
+    // Answers the current recording's steady interim transcript early (UI thread only)
+    private SpeculativeChat.Attempt<Future<ImagePayloadBuilder.PreparedImage>> speculation;
+
+    // Runs each question from recording to spoken answer; a new recording cancels the last one
+    private QueryPipeline queryPipeline;
+    // Times each query's stages, keyed by query ID; the report is saved when we go to the background
+    private final InteractionTracer tracer = new InteractionTracer(TRACE_SLOTS);
+    // The STT, chat and TTS calls, all over the shared HTTP stack
+    private final BackendClient backend = new BackendClient(
+            HttpTransport.shared(), tracer, STT_URL, CHAT_URL, API_KEY, TTS_URL);
+    private final SpeculativeChat speculativeChat = new SpeculativeChat(SPECULATION_STABLE_MS, SPECULATIONS_PER_QUERY);
+    // Sizes the image for each chat request from the measured link and the question
+    private final ImageQualityController imageQuality = new ImageQualityController(
+            IMAGE_TARGET_FIRST_TOKEN_MS, IMAGE_ASSUMED_UPLOAD_BYTES_PER_SECOND, IMAGE_ASSUMED_SERVICE_MS);
+    private final RegionOfInterest imageFocus =
+            new RegionOfInterest(IMAGE_FOCUS_MODE, IMAGE_FOCUS_SIZE, IMAGE_FOCUS_CONTEXT);
+    private final LatencyBudget latencyBudget = new LatencyBudget(INTERACTION_BUDGET_MS,
+            STT_DEADLINE_MS, FIRST_TOKEN_DEADLINE_MS, TTS_DEADLINE_MS, MIN_STAGE_DEADLINE_MS);
+    // The budget of the latest query, started when its recording stopped
+    private volatile LatencyBudget.Clock budgetClock;
+    // The query being recorded or answered (UI thread only)
+    private QueryPipeline.Query currentQuery;
+
+    // Speaks the current answer; cancelled when the user taps again
+    private QueryPipeline.Speech speech;
+    // Audio for text we've spoken before; the index loads in the background
+    private TtsCache ttsCache;
+    // Saved captures and recordings, within their quotas. Ages are on the wall clock, like file times.
+    private ArtifactStore captureStore;
+    private ArtifactStore recordingStore;
+    // Plays every answer through one AudioTrack, from reused blocks
+    private PcmAudioPlayer audioPlayer;
+    private final BufferPool audioBufferPool = new BufferPool(StreamingAudioBuffer.BLOCK_BYTES, TTS_POOLED_BLOCKS);
+    // The turns so far, so follow-up questions keep their context
+    private final ConversationMemory conversation = new ConversationMemory(
+            CONVERSATION_MAX_TOKENS, CONVERSATION_MAX_TURNS, CONVERSATION_IDLE_RESET_MS);
+    // Recent answers keyed by question and scene; loaded and saved in the background
+    private ResponseCache responseCache;
 
     // GestureDetector to capture single and double tap gestures from the glasses
     private GestureDetector gestureDetector;
@@ -109,19 +253,17 @@ public class MainActivity extends AppCompatActivity {
         selectImageButton = findViewById(R.id.selectImageButton);
         submitButton = findViewById(R.id.submitButton);
 
-        // (Optional) Initialize TextToSpeech here if needed.
-        /*
+        // The on-device voice speaks answers while Google TTS is unavailable
         textToSpeech = new TextToSpeech(getApplicationContext(), status -> {
             if (status == TextToSpeech.SUCCESS) {
                 textToSpeech.setLanguage(Locale.US);
                 textToSpeech.setSpeechRate(0.9f);
+                textToSpeechReady = true;
                 Log.d("TTS", "TextToSpeech initialized successfully.");
             } else {
-                textToSpeech = null;
                 Log.e("TTS", "TextToSpeech initialization failed.");
             }
         });
-        */
 
         // Set up button onClick listeners (in case a user touches the screen directly)
         selectImageButton.setOnClickListener(v -> {
@@ -137,6 +279,90 @@ public class MainActivity extends AppCompatActivity {
 
         // Initialize our gesture detector to listen for glasses tap gestures
         gestureDetector = new GestureDetector(this, new MyGestureListener());
+
+        audioEngine = new AudioCaptureEngine(SAMPLE_RATE, AUDIO_CHUNK_MS, AUDIO_PRE_ROLL_MS);
+
+        cameraSource = new LegacyCameraFrameSource();
+        cameraExecutor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "Camera Manager"));
+        cameraManager = new WarmCameraManager(cameraSource, cameraExecutor, CAMERA_RING_SIZE, CAMERA_IDLE_TIMEOUT_MS);
+
+        backend.setUploadListener(imageQuality);
+        ttsCache = new TtsCache(new ArtifactStore(new File(getCacheDir(), "tts"),
+                TTS_CACHE_MAX_BYTES, TTS_CACHE_MAX_AGE_MS, ioExecutor));
+        captureStore = new ArtifactStore(getExternalFilesDir(Environment.DIRECTORY_PICTURES),
+                CAPTURE_STORE_MAX_BYTES, CAPTURE_STORE_MAX_AGE_MS, ioExecutor);
+        recordingStore = new ArtifactStore(new File(getExternalFilesDir(null), "recordings"),
+                RECORDING_STORE_MAX_BYTES, RECORDING_STORE_MAX_AGE_MS, ioExecutor);
+        audioPlayer = new PcmAudioPlayer(TTS_SAMPLE_RATE);
+        responseCache = new ResponseCache(new File(getFilesDir(), "responses.json"), ioExecutor,
+                RESPONSE_CACHE_SIZE, RESPONSE_CACHE_TTL_MS, SCENE_MAX_DISTANCE);
+        queryPipeline = new QueryPipeline(this::startTtsPipeline, new QueryRenderer(),
+                PIPELINE_STAGE_THREADS, PIPELINE_STAGE_THREADS, PIPELINE_QUEUE_CAPACITY);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // Open the camera ahead of the first tap
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA)
+                == PackageManager.PERMISSION_GRANTED) {
+            cameraManager.warmUp();
+        }
+        // Keep the microphone running so a tap can include what was said just before it
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO)
+                == PackageManager.PERMISSION_GRANTED) {
+            audioEngine.arm();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // Never hold the camera or microphone while in the background
+        cameraManager.release();
+        if (isRecordingAudio) {
+            stopAudioRecordingAndProcess();
+        }
+        audioEngine.disarm();
+        saveLatencyReport();
+        // Files also age out while nothing new is written
+        long now = System.currentTimeMillis();
+        captureStore.trim(now);
+        recordingStore.trim(now);
+    }
+
+    /**
+     * Logs the per-stage latency percentiles and saves them to latency.txt in the app's files.
+     */
+    private void saveLatencyReport() {
+        File file = new File(getFilesDir(), "latency.txt");
+        ioExecutor.execute(() -> {
+            Log.d("Trace", "Latency report:\n" + tracer.report());
+            try {
+                tracer.writeReport(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        queryPipeline.shutdown();
+        speculativeChat.shutdown();
+        audioEngine.release();
+        audioPlayer.release();
+        backend.shutdown();
+        textToSpeechReady = false;
+        textToSpeech.shutdown();
+        // An open still in progress finishes, then closes the camera, before its thread stops
+        cameraManager.release();
+        cameraExecutor.shutdown();
+        cameraSource.shutdown();
+        imageExecutor.shutdownNow();
+        // Let queued writes such as the latency report finish
+        ioExecutor.shutdown();
     }
 
     // Override onTouchEvent so that glasses' TP events can be processed by our gesture detector.
@@ -154,8 +380,10 @@ public class MainActivity extends AppCompatActivity {
      */
     private void toggleAudioRecording() {
         if (!isRecordingAudio) {
-            startAudioRecording();
-            submitButton.setText("Speak and Wait");
+            HttpTransport.shared().warmUp(API_ORIGINS);
+            if (startAudioRecording()) {
+                submitButton.setText("Speak and Wait");
+            }
         } else {
             stopAudioRecordingAndProcess();
             submitButton.setText("Start Recording");
@@ -165,49 +393,27 @@ public class MainActivity extends AppCompatActivity {
     // --- GESTURE DETECTION ---
 
     /**
-     * A custom gesture listener to detect single and double taps.
+     * Starts recording and captures an image from the warm camera at the same time.
      */
     private void captureImageAutomaticallyAndStartRecording() {
-        Camera camera = Camera.open();
-        try {
-            SurfaceTexture dummySurfaceTexture = new SurfaceTexture(10);
-            camera.setPreviewTexture(dummySurfaceTexture);
-            camera.startPreview();
-
-            camera.takePicture(null, null, new Camera.PictureCallback() {
-                @Override
-                public void onPictureTaken(byte[] data, Camera camera) {
-                    Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
-                    runOnUiThread(() -> {
-                        imagePreview.setImageBitmap(bitmap);
-                        imagePreview.setVisibility(View.VISIBLE);
-                    });
-
-                    // Save the bitmap to a file for later use (for GPT)
-                    File imageFile = saveBitmapToFile(bitmap);
-                    if (imageFile != null) {
-                        imageUri = Uri.fromFile(imageFile);
-                    }
-
-                    // Release camera immediately after use
-                    camera.release();
-
-                    // ✅ Immediately start recording after capturing the image
-                    startAudioRecording();
-                    submitButton.setText("Speak and Wait");
-                }
-            });
-        } catch (IOException e) {
-            e.printStackTrace();
-            camera.release();
-            Toast.makeText(this, "Error capturing image: " + e.getMessage(), Toast.LENGTH_LONG).show();
+        // ✅ Start recording right away; the capture doesn't need to finish first
+        if (!startAudioRecording()) {
+            return;
         }
+        submitButton.setText("Speak and Wait");
+        queryPipeline.enter(currentQuery, QueryPipeline.Stage.CAPTURE);
+        captureImage(currentQuery.id);
     }
 
+    /**
+     * A custom gesture listener to detect single and double taps.
+     */
     private class MyGestureListener extends GestureDetector.SimpleOnGestureListener {
         @Override
         public boolean onSingleTapConfirmed(MotionEvent e) {
-            if (imageUri == null) {
+            // Starting a new recording cancels the previous query, including its speech
+            HttpTransport.shared().warmUp(API_ORIGINS);
+            if (preparedImage == null) {
                 // Capture image first, then start recording after it's done
                 captureImageAutomaticallyAndStartRecording();
             } else {
@@ -219,7 +425,10 @@ public class MainActivity extends AppCompatActivity {
 
         @Override
         public boolean onDoubleTap(MotionEvent e) {
+            HttpTransport.shared().warmUp(API_ORIGINS);
             if (!isRecordingAudio) {
+                // A new picture interrupts the answer being spoken
+                queryPipeline.cancel();
                 captureImageAutomatically();
             } else {
                 Toast.makeText(MainActivity.this, "Stop recording before capturing an image", Toast.LENGTH_SHORT).show();
@@ -229,527 +438,734 @@ public class MainActivity extends AppCompatActivity {
     }
 
 
-    // --- IMAGE CAPTURE (in‑app) using deprecated Camera API ---
+    // --- IMAGE CAPTURE (in‑app) from the warm camera session ---
 
     /**
      * Captures an image automatically within the app.
-     * Uses a dummy SurfaceTexture so no preview is shown.
+     * Frames come from a warm preview session, so no shutter or preview is shown.
      */
     private void captureImageAutomatically() {
-        Camera camera = Camera.open();
-        try {
-            SurfaceTexture dummySurfaceTexture = new SurfaceTexture(10);
-            camera.setPreviewTexture(dummySurfaceTexture);
-            camera.startPreview();
-            // Capture image immediately
-            camera.takePicture(null, null, new Camera.PictureCallback() {
-                @Override
-                public void onPictureTaken(byte[] data, Camera camera) {
-                    // Decode JPEG data to Bitmap
-                    Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
-                    runOnUiThread(() -> {
-                        imagePreview.setImageBitmap(bitmap);
-                        imagePreview.setVisibility(View.VISIBLE);
-                    });
-                    // Save the bitmap to a file for later use (e.g., when sending to ChatGPT)
-                    File imageFile = saveBitmapToFile(bitmap);
-                    if (imageFile != null) {
-                        imageUri = Uri.fromFile(imageFile);
-                    }
-                    camera.release();
+        captureImage(InteractionTracer.NO_TRACE);
+    }
+
+    /**
+     * Takes the newest frame from the warm camera session. When the camera is
+     * already running this returns a frame immediately; otherwise the camera is
+     * opened once and the first settled frame is used.
+     *
+     * @param traceId The interaction the capture belongs to, or {@link InteractionTracer#NO_TRACE}.
+     */
+    private void captureImage(long traceId) {
+        final boolean cold = !cameraManager.isWarm();
+        tracer.mark(traceId, InteractionTracer.Mark.CAPTURE_REQUEST);
+        cameraManager.grabLatestFrame(new WarmCameraManager.FrameListener() {
+            @Override
+            public void onFrame(WarmCameraManager.Frame frame) {
+                if (cold) {
+                    tracer.mark(traceId, InteractionTracer.Mark.CAMERA_OPENED);
+                }
+                tracer.mark(traceId, InteractionTracer.Mark.FRAME_CAPTURED);
+                onImageCaptured(() -> ImagePayloadBuilder.nv21ToJpeg(
+                        frame.data, frame.width, frame.height, CAPTURE_JPEG_QUALITY));
+            }
+
+            @Override
+            public void onError(Exception e) {
+                e.printStackTrace();
+                runOnUiThread(() -> Toast.makeText(MainActivity.this,
+                        "Error capturing image: " + e.getMessage(), Toast.LENGTH_LONG).show());
+            }
+        });
+    }
+
+    /**
+     * Hands a fresh capture to the image thread, which encodes it, decodes it once
+     * at the upload size the link currently allows, matches it against recent scenes,
+     * keeps the upload-ready payload until the question arrives, and saves the original.
+     *
+     * @param jpegSource Produces the captured JPEG; called on the image thread.
+     */
+    private void onImageCaptured(Callable<byte[]> jpegSource) {
+        preparedImage = imageExecutor.submit(() -> {
+            byte[] data = jpegSource.call();
+            // Sized for a general question; the question may call for another size
+            ImageQualityController.Tier tier = imageQuality.choose(false);
+            ImagePayloadBuilder.PreparedImage image = ImagePayloadBuilder.prepare(
+                    data, tier.maxSize, tier.maxSize, tier.quality, sceneIndex, SystemClock.elapsedRealtime(),
+                    imageFocus);
+            if (image != null) {
+                if (!image.reused) {
+                    imageQuality.onEncoded(tier, image.jpeg.length);
+                }
+                Log.d("Image", "Upload payload ready at " + tier + ": " + image.jpeg.length + " bytes in " + image.prepareMs + "ms"
+                        + (image.region != null ? ", close-up of " + image.region : "")
+                        + (image.reused ? " (same scene as before)" : "") + ", scenes " + sceneIndex.statsSummary());
+                runOnUiThread(() -> {
+                    imagePreview.setImageBitmap(image.preview);
+                    imagePreview.setVisibility(View.VISIBLE);
+                });
+            }
+            imageExecutor.execute(() -> {
+                // Save the original for later reference; no re-encoding needed
+                File imageFile = saveJpegToFile(data);
+                if (imageFile != null) {
+                    runOnUiThread(() -> imageUri = Uri.fromFile(imageFile));
                 }
             });
-        } catch (IOException e) {
-            e.printStackTrace();
-            camera.release();
-            Toast.makeText(this, "Error capturing image: " + e.getMessage(), Toast.LENGTH_LONG).show();
-        }
+            return image;
+        });
     }
 
     /**
-     * Saves a Bitmap as a JPEG file in the app's external pictures directory.
+     * Saves camera JPEG bytes as-is in the capture store, in the app's external pictures directory.
      *
-     * @param bitmap The Bitmap to save.
+     * @param data The JPEG to save.
      * @return The saved File, or null if there was an error.
      */
-    private File saveBitmapToFile(Bitmap bitmap) {
-        File storageDir = getExternalFilesDir(Environment.DIRECTORY_PICTURES);
-        String fileName = "captured_" + System.currentTimeMillis() + ".jpg";
-        File imageFile = new File(storageDir, fileName);
-        try (FileOutputStream fos = new FileOutputStream(imageFile)) {
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 100, fos);
-            fos.flush();
-            return imageFile;
+    private File saveJpegToFile(byte[] data) {
+        ArtifactStore.Pending pending = captureStore.create("captured_" + System.currentTimeMillis() + ".jpg");
+        try {
+            try (FileOutputStream fos = new FileOutputStream(pending.file())) {
+                fos.write(data);
+                fos.getFD().sync();
+            }
+            return pending.commit(System.currentTimeMillis());
         } catch (IOException e) {
+            pending.abort();
             e.printStackTrace();
             return null;
         }
     }
 
-    // --- AUDIO RECORDING using AudioRecord (WAV output) ---
+    // --- AUDIO RECORDING using AudioRecord (encoded as it is captured) ---
 
     /**
-     * Starts audio recording using AudioRecord.
-     * The recorded raw PCM data is written to a .wav file in a background thread.
+     * Starts audio recording on the shared capture engine.
+     * The recorded PCM, starting with the pre-roll from just before the tap, is
+     * encoded to the upload file on the capture thread as it arrives.
      */
-    private void startAudioRecording() {
-        int sampleRate = 16000; // 16 kHz
-        int channelConfig = AudioFormat.CHANNEL_IN_MONO;
-        int audioFormat = AudioFormat.ENCODING_PCM_16BIT;
-        int bufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig, audioFormat);
-
-        recorder = new AudioRecord(android.media.MediaRecorder.AudioSource.MIC, sampleRate, channelConfig, audioFormat, bufferSize);
-        recorder.startRecording();
+    private boolean startAudioRecording() {
         isRecordingAudio = true;
-        audioFilePath = getExternalFilesDir(null).getAbsolutePath() + "/audio.wav";
+        String recordingName = "audio_" + System.currentTimeMillis() + STT_AUDIO_CODEC.fileExtension;
+        audioFilePath = recordingStore.file(recordingName).getAbsolutePath();
 
-        recordingThread = new Thread(() -> writeAudioDataToFile(audioFilePath, bufferSize), "AudioRecorder Thread");
-        recordingThread.start();
+        currentQuery = queryPipeline.begin();
+        tracer.begin(currentQuery.id);
+        queryPipeline.enter(currentQuery, QueryPipeline.Stage.RECORD);
+        startStreamingRecognition(currentQuery, SAMPLE_RATE);
+
+        RecordingSink recording = null;
+        try {
+            recording = new RecordingSink(currentQuery.id, recordingStore.create(recordingName));
+            audioEngine.startUtterance(recording);
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (recording != null) {
+                recording.abort();
+            }
+            // Nothing is recording, so nothing will end this query; drop it and its streaming session
+            isRecordingAudio = false;
+            currentRecording = null;
+            queryPipeline.cancel();
+            Toast.makeText(this, "Error starting recording: " + e.getMessage(), Toast.LENGTH_LONG).show();
+            return false;
+        }
+        currentRecording = recording;
+        tracer.mark(currentQuery.id, InteractionTracer.Mark.RECORD_START);
         Log.d("Audio", "Recording started.");
+        return true;
     }
 
     /**
-     * Writes the raw audio data to a file and later updates the WAV header.
-     *
-     * @param filePath   The path of the file to write.
-     * @param bufferSize The size of the audio buffer.
+     * Encodes one utterance to the upload file, feeds the streaming recognizer and
+     * runs voice activity detection to find where the user stopped speaking.
+     * Runs on the capture thread.
      */
-    private void writeAudioDataToFile(String filePath, int bufferSize) {
-        byte[] data = new byte[bufferSize];
-        File file = new File(filePath);
-        RandomAccessFile raf = null;
-        long totalAudioLen = 0;
+    private class RecordingSink implements AudioCaptureEngine.PcmSink, VoiceActivityDetector.Listener {
+        private final long traceId;
+        private final ArtifactStore.Pending file;
+        private final PcmEncoder encoder;
+        private final VoiceActivityDetector vad;
+
+        /**
+         * @param file Receives the encoded recording, committed when the utterance ends.
+         */
+        RecordingSink(long traceId, ArtifactStore.Pending file) throws IOException {
+            this.traceId = traceId;
+            this.file = file;
+            try {
+                encoder = STT_AUDIO_CODEC.open(file.file(), SAMPLE_RATE);
+            } catch (IOException e) {
+                file.abort();
+                throw e;
+            }
 
-        final int silenceThreshold = 200; // Adjust this threshold as necessary
-        final int silenceLimit = 1000; // milliseconds of silence to detect stop speaking
-        long silenceStart = -1;
+            VoiceActivityDetector.Config config = new VoiceActivityDetector.Config();
+            config.endSilenceMs = VAD_END_SILENCE_MS;
+            vad = new VoiceActivityDetector(SAMPLE_RATE, config, this);
+        }
 
-        try {
-            raf = new RandomAccessFile(file, "rw");
-            byte[] placeholder = new byte[44];
-            raf.write(placeholder);
-
-            while (isRecordingAudio) {
-                int read = recorder.read(data, 0, bufferSize);
-                if (read > 0) {
-                    raf.write(data, 0, read);
-                    totalAudioLen += read;
-
-                    // Check amplitude to detect silence
-                    boolean silent = isSilent(data, read, silenceThreshold);
-                    if (silent) {
-                        if (silenceStart == -1) {
-                            silenceStart = System.currentTimeMillis();
-                        } else {
-                            long silenceDuration = System.currentTimeMillis() - silenceStart;
-                            if (silenceDuration >= silenceLimit) {
-                                // Stop recording after sustained silence
-                                runOnUiThread(this::stopAudioRecordingAndProcess);
-                            }
-                        }
-                    } else {
-                        silenceStart = -1; // reset silence timer if voice detected again
-                    }
+        @Override
+        public void onSpeechStart(long speechStartMs) {
+            Log.d("Audio", "Speech started at " + speechStartMs + " ms (noise floor "
+                    + Math.round(vad.getNoiseFloorDb()) + " dB)");
+        }
+
+        @Override
+        public void onEndOfUtterance(long speechEndMs, long detectedMs) {
+            Log.d("Audio", speechEndMs < 0
+                    ? "No speech within " + detectedMs + " ms"
+                    : "Speech ended at " + speechEndMs + " ms, endpoint after " + (detectedMs - speechEndMs) + " ms");
+            if (speechEndMs >= 0) {
+                tracer.record(traceId, InteractionTracer.Span.VAD_ENDPOINT, (detectedMs - speechEndMs) * 1000);
+            }
+            // Fires once per recording; ignore it if a newer recording has started since.
+            runOnUiThread(() -> {
+                if (currentRecording == this) {
+                    stopAudioRecordingAndProcess();
                 }
+            });
+        }
+
+        @Override
+        public void onPcm(byte[] data, int read) {
+            try {
+                encoder.write(data, 0, read);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
 
-            long totalDataLen = totalAudioLen + 36;
-            int sampleRate = 16000;
-            int channels = 1;
-            int byteRate = sampleRate * channels * 16 / 8;
-            raf.seek(0);
-            writeWavHeader(raf, totalAudioLen, totalDataLen, sampleRate, channels, byteRate);
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (raf != null) {
-                try {
-                    raf.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            StreamingRecognizer recognizer = streamingRecognizer;
+            if (recognizer != null && !streamingFailed) {
+                recognizer.sendAudio(data, 0, read);
+            }
+
+            vad.process(data, 0, read);
+        }
+
+        @Override
+        public void onEnd() {
+            try {
+                encoder.finish();
+                // Under its real name before stopUtterance returns, for the batch STT request
+                file.commit(System.currentTimeMillis());
+            } catch (IOException e) {
+                file.abort();
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Discards the recording, for one the engine never started.
+         */
+        void abort() {
+            try {
+                encoder.finish();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
+            file.abort();
         }
     }
 
     /**
-     * Simple function to check if audio chunk is silent based on amplitude
+     * Ends the current utterance and hands the query to the pipeline, which waits
+     * for the audio file to be finished before it transcribes and answers. The
+     * microphone stays armed.
      */
-    private boolean isSilent(byte[] audioData, int readBytes, int silenceThreshold) {
-        for (int i = 0; i < readBytes; i += 2) {
-            short amplitude = (short) ((audioData[i] & 0xff) | (audioData[i + 1] << 8));
-            if (Math.abs(amplitude) > silenceThreshold) {
-                return false; // Detected sound above threshold
-            }
+    private void stopAudioRecordingAndProcess() {
+        if (!isRecordingAudio) {
+            return;
         }
-        return true; // Detected silence
+        isRecordingAudio = false;
+        tracer.mark(currentQuery.id, InteractionTracer.Mark.RECORD_STOP);
+        Log.d("Audio", "Recording stopped.");
+
+        final RecordingSink recording = currentRecording;
+        final StreamingRecognizer recognizer = streamingRecognizer;
+        final CompletableFuture<String> streamed = streamingTranscript;
+        final SpeculativeChat.Attempt<Future<ImagePayloadBuilder.PreparedImage>> speculative = speculation;
+        final File audioFile = new File(audioFilePath);
+        final Future<ImagePayloadBuilder.PreparedImage> pendingImage = pendingImage();
+        final LatencyBudget.Clock budget = latencyBudget.start();
+        budgetClock = budget;
+        queryPipeline.transcribe(currentQuery,
+                query -> {
+                    // Waits for the encoder to finish the file, off the UI thread
+                    audioEngine.stopUtterance(recording);
+                    if (recognizer != null && !streamingFailed) {
+                        // The stream already has the audio; the final transcript follows shortly.
+                        recognizer.finish();
+                    }
+                    return transcribe(query, budget, streamed, speculative, audioFile);
+                },
+                (query, question, out) -> answerQuestion(query, budget, question, pendingImage, speculative, out));
     }
 
     /**
-     * Writes the WAV file header to the given RandomAccessFile.
-     *
-     * @param raf           The RandomAccessFile (positioned at the start).
-     * @param totalAudioLen Total length of the audio data.
-     * @param totalDataLen  Total data length (audio + header).
-     * @param sampleRate    The sample rate (e.g., 16000).
-     * @param channels      Number of channels (e.g., 1 for mono).
-     * @param byteRate      Byte rate (sampleRate * channels * bitsPerSample/8).
-     * @throws IOException If an I/O error occurs.
+     * The capture to attach to the question being recorded, or null for a
+     * text-only question. Safe to call from any thread.
      */
-    private void writeWavHeader(RandomAccessFile raf, long totalAudioLen, long totalDataLen, int sampleRate, int channels, int byteRate) throws IOException {
-        byte[] header = new byte[44];
-        header[0] = 'R';  // RIFF/WAVE header
-        header[1] = 'I';
-        header[2] = 'F';
-        header[3] = 'F';
-        header[4] = (byte) (totalDataLen & 0xff);
-        header[5] = (byte) ((totalDataLen >> 8) & 0xff);
-        header[6] = (byte) ((totalDataLen >> 16) & 0xff);
-        header[7] = (byte) ((totalDataLen >> 24) & 0xff);
-        header[8] = 'W';
-        header[9] = 'A';
-        header[10] = 'V';
-        header[11] = 'E';
-        header[12] = 'f'; // "fmt " chunk
-        header[13] = 'm';
-        header[14] = 't';
-        header[15] = ' ';
-        header[16] = 16;  // Subchunk1Size for PCM
-        header[17] = 0;
-        header[18] = 0;
-        header[19] = 0;
-        header[20] = 1;   // PCM format
-        header[21] = 0;
-        header[22] = (byte) channels;
-        header[23] = 0;
-        header[24] = (byte) (sampleRate & 0xff);
-        header[25] = (byte) ((sampleRate >> 8) & 0xff);
-        header[26] = (byte) ((sampleRate >> 16) & 0xff);
-        header[27] = (byte) ((sampleRate >> 24) & 0xff);
-        header[28] = (byte) (byteRate & 0xff);
-        header[29] = (byte) ((byteRate >> 8) & 0xff);
-        header[30] = (byte) ((byteRate >> 16) & 0xff);
-        header[31] = (byte) ((byteRate >> 24) & 0xff);
-        header[32] = (byte) (channels * 16 / 8);  // Block align
-        header[33] = 0;
-        header[34] = 16; // Bits per sample
-        header[35] = 0;
-        header[36] = 'd';
-        header[37] = 'a';
-        header[38] = 't';
-        header[39] = 'a';
-        header[40] = (byte) (totalAudioLen & 0xff);
-        header[41] = (byte) ((totalAudioLen >> 8) & 0xff);
-        header[42] = (byte) ((totalAudioLen >> 16) & 0xff);
-        header[43] = (byte) ((totalAudioLen >> 24) & 0xff);
-        raf.write(header, 0, 44);
+    @Nullable
+    private Future<ImagePayloadBuilder.PreparedImage> pendingImage() {
+        // The latest capture, whether or not its original has been saved yet
+        return preparedImage;
     }
 
     /**
-     * Stops the audio recording, waits for the recording thread to finish,
-     * and then sends the WAV file to Google STT.
+     * Opens a streaming recognition session so audio can be transcribed while the
+     * user is still speaking, and asks the question early once its interim
+     * transcript holds steady. Does nothing when no streaming endpoint is configured.
      */
-    private void stopAudioRecordingAndProcess() {
-        if (recorder != null) {
-            isRecordingAudio = false;
-            recorder.stop();
-            recorder.release();
-            recorder = null;
-            try {
-                recordingThread.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            Log.d("Audio", "Recording stopped.");
-            // Now send the .wav file to Google STT
-            sendAudioToGoogleSTT(audioFilePath);
+    private void startStreamingRecognition(QueryPipeline.Query query, int sampleRate) {
+        if (streamingRecognizer != null) {
+            streamingRecognizer.cancel();
+            streamingRecognizer = null;
         }
-    }
+        streamingFailed = false;
+        streamingTranscript = null;
+        // A guess is sent like the final question, but only the first token is urgent once it's taken
+        final SpeculativeChat.Attempt<Future<ImagePayloadBuilder.PreparedImage>> speculative =
+                speculativeChat.begin(query.token, this::pendingImage,
+                        (token, traceId, question, pendingImage, out) -> requestAnswer(token, traceId,
+                                latencyBudget.stageMs(HttpTransport.Endpoint.CHAT), question,
+                                awaitImage(pendingImage), out));
+        speculation = speculative;
+        if (STREAMING_STT_URL.isEmpty()) {
+            return;
+        }
+        final StreamingRecognizer recognizer = new WebSocketSpeechRecognizer(
+                HttpTransport.shared().client(HttpTransport.Endpoint.STT), STREAMING_STT_URL, "en-CA", sampleRate);
+        final CompletableFuture<String> transcript = new CompletableFuture<>();
+        streamingRecognizer = recognizer;
+        streamingTranscript = transcript;
+        query.token.onCancel(() -> {
+            recognizer.cancel();
+            transcript.cancel(true);
+        });
+        recognizer.start(new StreamingRecognizer.Listener() {
+            @Override
+            public void onPartial(String partial) {
+                speculative.onPartial(partial);
+                render(query, () -> textInput.setText(partial));
+            }
 
-    // --- GOOGLE STT, CHATGPT, TTS, and OTHER METHODS (unchanged) ---
+            @Override
+            public void onFinal(String result) {
+                transcript.complete(result);
+            }
 
-    private void sendAudioToGoogleSTT(String audioFilePath) {
-        final String apiKey = "API:BihdiUuVcGYxtwLdC2vbU6uksNRERnBAg";
-        final String url = "https://speech.googleapis.com/v1/speech:recognize?key=" + apiKey;
+            @Override
+            public void onError(Exception e) {
+                Log.e("Audio", "Streaming STT failed", e);
+                streamingFailed = true;
+                transcript.completeExceptionally(e);
+            }
+        });
+    }
 
+    /**
+     * Gets the transcript of a recording: the streaming recognizer's final result
+     * if it delivers one in time, otherwise a batch request with the recorded file.
+     * Runs on a pipeline transcribe thread.
+     *
+     * @param streamed    The streaming recognizer's final transcript, or null when not streaming.
+     * @param speculative Dropped if there turns out to be no question to answer.
+     * @return The transcript, or null if no speech was recognized.
+     */
+    @Nullable
+    private String transcribe(QueryPipeline.Query query, LatencyBudget.Clock budget,
+                              @Nullable CompletableFuture<String> streamed,
+                              SpeculativeChat.Attempt<?> speculative, File audioFile) throws Exception {
+        tracer.mark(query.id, InteractionTracer.Mark.STT_REQUEST);
+        String transcript;
         try {
-            File audioFile = new File(audioFilePath);
-            byte[] audioBytes = new byte[(int) audioFile.length()];
-            FileInputStream fis = new FileInputStream(audioFile);
-            fis.read(audioBytes);
-            fis.close();
-
-            String base64Audio = android.util.Base64.encodeToString(audioBytes, android.util.Base64.NO_WRAP);
-
-            JSONObject config = new JSONObject();
-            config.put("languageCode", "en-CA");
-            // For WAV (LINEAR16) files, use "LINEAR16" as the encoding
-            config.put("encoding", "LINEAR16");
-            config.put("sampleRateHertz", 16000);
-
-            JSONObject audio = new JSONObject();
-            audio.put("content", base64Audio);
-
-            JSONObject requestJson = new JSONObject();
-            requestJson.put("config", config);
-            requestJson.put("audio", audio);
-
-            RequestBody requestBody = RequestBody.create(
-                    MediaType.parse("application/json; charset=utf-8"),
-                    requestJson.toString()
-            );
-
-            OkHttpClient client = new OkHttpClient();
-            Request request = new Request.Builder()
-                    .url(url)
-                    .post(requestBody)
-                    .build();
-
-            client.newCall(request).enqueue(new Callback() {
-                @Override
-                public void onFailure(Call call, IOException e) {
-                    runOnUiThread(() ->
-                            outputTextBox.setText("Error (Google STT): " + e.getMessage()));
-                }
-
-                @Override
-                public void onResponse(Call call, Response response) throws IOException {
-                    String responseBody = response.body().string();
-                    if (response.isSuccessful()) {
-                        try {
-                            JSONObject jsonResponse = new JSONObject(responseBody);
-                            JSONArray resultsArray = jsonResponse.optJSONArray("results");
-                            if (resultsArray != null && resultsArray.length() > 0) {
-                                JSONObject firstResult = resultsArray.getJSONObject(0);
-                                JSONArray alternatives = firstResult.getJSONArray("alternatives");
-                                JSONObject firstAlternative = alternatives.getJSONObject(0);
-                                final String recognizedText = firstAlternative.getString("transcript");
-
-                                runOnUiThread(() -> {
-                                    textInput.setText(recognizedText);
-                                    sendToChatGPT(recognizedText, imageUri);
-                                });
-                            } else {
-                                runOnUiThread(() -> outputTextBox.setText("No speech recognized."));
-                            }
-                        } catch (JSONException e) {
-                            runOnUiThread(() ->
-                                    outputTextBox.setText("Error parsing Google STT response: " + e.getMessage()));
-                        }
-                    } else {
-                        runOnUiThread(() ->
-                                outputTextBox.setText("Google STT Error: " + response.code() + "\n" + responseBody));
-                    }
+            transcript = StreamingRecognizer.finalOrBatch(streamed, STREAMING_FINAL_WAIT_MS, () -> {
+                if (streamed != null) {
+                    Log.d("Audio", "No streaming transcript, falling back to batch request");
                 }
+                return recognizeFile(query.token, budget.timeoutMs(HttpTransport.Endpoint.STT), audioFile);
             });
         } catch (Exception e) {
-            runOnUiThread(() ->
-                    outputTextBox.setText("Error (Google STT): " + e.getMessage()));
+            speculative.cancel();
+            throw e;
+        }
+        if (transcript == null || transcript.trim().isEmpty()) {
+            speculative.cancel();
         }
+        tracer.mark(query.id, InteractionTracer.Mark.STT_RESPONSE);
+        return transcript;
+    }
+
+    // --- GOOGLE STT, CHATGPT, TTS, and OTHER METHODS ---
+
+    /**
+     * Transcribes a recorded file with Google STT. Runs on a pipeline transcribe
+     * thread; cancelling {@code token} aborts the request.
+     *
+     * @param timeoutMs How long the transcript may take, retries included.
+     * @return The transcript, or null if no speech was recognized.
+     */
+    @Nullable
+    private String recognizeFile(CancellationToken token, long timeoutMs, File audioFile)
+            throws IOException, JSONException {
+        // The audio is base64-encoded straight from the file while the request is written
+        String requestJson = ApiPayloads.speechRecognizeRequest("en-CA", STT_AUDIO_CODEC.name(), SAMPLE_RATE);
+        return backend.recognize(token, timeoutMs, Base64JsonRequestBody.ofFile(requestJson, audioFile));
     }
 
-    private void sendJsonToChatGPT(JSONObject jsonBody) {
-        OkHttpClient client = new OkHttpClient();
-        Request request = new Request.Builder()
-                .url("https://api.openai.com/v1/chat/completions")
-                .post(RequestBody.create(
-                        MediaType.parse("application/json"),
-                        jsonBody.toString())
-                )
-                .addHeader("Authorization", "Bearer API:kmcts32Wtk13XcB6pMpJDYBRLyEmWPIvyuDHBtjkzcywa5boOjh9_YTSf_cyyV1BE31xSXpddzT3BlbkFJRnPcDY0MUHsmJRHua3qC2thvLOJFyPXaSY28B5ogIjPJnjn38VtHnJyM9-YndPlTbOxcRsj5AA")
-                .addHeader("Content-Type", "application/json")
-                .build();
+    /**
+     * Stops whatever is being spoken and returns a fresh pipeline for the query's
+     * answer, or the on-device voice while Google TTS is failing.
+     */
+    private synchronized QueryPipeline.Speech startTtsPipeline(QueryPipeline.Query query) {
+        stopSpeaking();
+        tracer.mark(query.id, InteractionTracer.Mark.TTS_REQUEST);
+        if (!backend.isAvailable(HttpTransport.Endpoint.TTS) && textToSpeechReady) {
+            Log.w("TTS", "Google TTS unavailable, speaking on device");
+            speech = new OnDeviceSpeech(query);
+            return speech;
+        }
+        // Only the first segment is on the critical path; later ones just have to beat playback
+        final LatencyBudget.Clock budget = budgetClock;
+        TtsPipeline.Synthesizer synthesizer = (text, index, out) -> synthesizeSegment(query,
+                index == 0 && budget != null
+                        ? budget.timeoutMs(HttpTransport.Endpoint.TTS)
+                        : latencyBudget.stageMs(HttpTransport.Endpoint.TTS),
+                text, out);
+        speech = new TtsPipeline(synthesizer, TTS_MAX_IN_FLIGHT, audioPlayer, audioBufferPool, new TtsPipeline.Listener() {
+            @Override
+            public void onFirstAudio(long startNanos) {
+                tracer.markAt(query.id, InteractionTracer.Mark.PLAYBACK_START, startNanos);
+                queryPipeline.enter(query, QueryPipeline.Stage.PLAY);
+            }
 
-        client.newCall(request).enqueue(new Callback() {
             @Override
-            public void onFailure(Call call, IOException e) {
-                runOnUiThread(() -> outputTextBox.setText("Error: " + e.getMessage()));
+            public void onError(Exception e) {
+                render(query, () -> outputTextBox.setText("TTS Error: " + e.getMessage()));
             }
 
             @Override
-            public void onResponse(Call call, Response response) throws IOException {
-                String responseBody = response.body().string();
-                if (response.isSuccessful()) {
-                    try {
-                        JSONObject jsonResponse = new JSONObject(responseBody);
-                        String content = jsonResponse.getJSONArray("choices")
-                                .getJSONObject(0)
-                                .getJSONObject("message")
-                                .getString("content");
-                        runOnUiThread(() -> {
-                            outputTextBox.setText(content);
-                            speakWithGoogleCloudTTS(content);
-                        });
-                    } catch (JSONException e) {
-                        runOnUiThread(() -> outputTextBox.setText("JSON parse error: " + e.getMessage()));
-                    }
-                } else {
-                    runOnUiThread(() -> outputTextBox.setText("Error: " + response.code() + "\n" + responseBody));
-                }
+            public void onDone(TtsPipeline.Metrics metrics) {
+                Log.d("TTS", "Playback finished: " + metrics);
+                Log.d("Trace", tracer.describe(query.id));
+                Log.d("Http", "Transport: " + HttpTransport.shared().statsSummary());
+                Log.d("Http", "Backends: " + backend.statsSummary());
+                Log.d("Chat", "Speculation: " + speculativeChat.statsSummary());
+                Log.d("Image", "Quality: " + imageQuality.statsSummary());
+                Log.d("TTS", "Cache: " + ttsCache.statsSummary());
+                Log.d("Storage", "Captures: " + captureStore.statsSummary()
+                        + ", recordings: " + recordingStore.statsSummary());
+                Log.d("TTS", "Audio buffers: " + audioBufferPool.statsSummary());
             }
         });
+        return speech;
     }
 
-    private void speakWithGoogleCloudTTS(String text) {
-        final String googleTtsApiKey = "API:BihdiUuVcGYxtwLdC2vbU6uksNRERnBAg";
-        final String ttsEndpoint = "https://texttospeech.googleapis.com/v1/text:synthesize?key=" + googleTtsApiKey;
-
-        try {
-            JSONObject inputObj = new JSONObject();
-            inputObj.put("text", text);
-
-            JSONObject voiceObj = new JSONObject();
-            voiceObj.put("languageCode", "en-CA");
-            voiceObj.put("ssmlGender", "FEMALE");
-
-            JSONObject audioConfigObj = new JSONObject();
-            audioConfigObj.put("audioEncoding", "MP3");
-
-            JSONObject requestBodyJson = new JSONObject();
-            requestBodyJson.put("input", inputObj);
-            requestBodyJson.put("voice", voiceObj);
-            requestBodyJson.put("audioConfig", audioConfigObj);
-
-            RequestBody requestBody = RequestBody.create(
-                    MediaType.parse("application/json; charset=utf-8"),
-                    requestBodyJson.toString()
-            );
+    /**
+     * Cancels any answer that is still being synthesized or played.
+     */
+    private synchronized void stopSpeaking() {
+        if (speech != null) {
+            speech.cancel();
+            speech = null;
+        }
+    }
 
-            OkHttpClient client = new OkHttpClient();
-            Request request = new Request.Builder()
-                    .url(ttsEndpoint)
-                    .post(requestBody)
-                    .build();
+    /**
+     * Speaks an answer with the on-device voice, for when Google TTS is unavailable.
+     */
+    private class OnDeviceSpeech implements QueryPipeline.Speech {
+        private final QueryPipeline.Query query;
+        private final String firstUtteranceId;
+        private int utterances; // reason thread only
+        private volatile boolean cancelled;
+
+        OnDeviceSpeech(QueryPipeline.Query query) {
+            this.query = query;
+            firstUtteranceId = query.id + ":0";
+            textToSpeech.setOnUtteranceProgressListener(new UtteranceProgressListener() {
+                @Override
+                public void onStart(String utteranceId) {
+                    if (!cancelled && firstUtteranceId.equals(utteranceId)) {
+                        tracer.mark(query.id, InteractionTracer.Mark.PLAYBACK_START);
+                        queryPipeline.enter(query, QueryPipeline.Stage.PLAY);
+                    }
+                }
 
-            client.newCall(request).enqueue(new Callback() {
                 @Override
-                public void onFailure(Call call, IOException e) {
-                    runOnUiThread(() -> outputTextBox.setText("TTS Error: " + e.getMessage()));
+                public void onDone(String utteranceId) {
                 }
 
                 @Override
-                public void onResponse(Call call, Response response) throws IOException {
-                    String respBody = response.body().string();
-                    if (response.isSuccessful()) {
-                        try {
-                            JSONObject respJson = new JSONObject(respBody);
-                            String audioContent = respJson.optString("audioContent");
-                            if (audioContent == null || audioContent.isEmpty()) {
-                                runOnUiThread(() -> outputTextBox.setText("No audioContent in TTS response."));
-                                return;
-                            }
-                            byte[] audioData = android.util.Base64.decode(audioContent, android.util.Base64.DEFAULT);
-                            File tempAudioFile = new File(getCacheDir(), "ttsOutput.mp3");
-                            try (FileOutputStream fos = new FileOutputStream(tempAudioFile)) {
-                                fos.write(audioData);
-                                fos.flush();
-                            }
-                            runOnUiThread(() -> playMp3File(tempAudioFile));
-                        } catch (JSONException e) {
-                            runOnUiThread(() -> outputTextBox.setText("JSON parse error in TTS: " + e.getMessage()));
-                        }
-                    } else {
-                        runOnUiThread(() -> outputTextBox.setText("TTS Error: " + response.code() + "\n" + respBody));
-                    }
+                public void onError(String utteranceId) {
+                    Log.e("TTS", "On-device TTS failed for " + utteranceId);
                 }
             });
-        } catch (JSONException e) {
-            runOnUiThread(() -> outputTextBox.setText("TTS JSON error: " + e.getMessage()));
+        }
+
+        @Override
+        public void enqueue(String text) {
+            if (!cancelled) {
+                textToSpeech.speak(text, TextToSpeech.QUEUE_ADD, null, query.id + ":" + utterances++);
+            }
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            textToSpeech.stop();
         }
     }
 
-    private void playMp3File(File mp3File) {
+    /**
+     * Synthesizes one segment, from the TTS cache when we have said it before and
+     * otherwise with Google Cloud TTS, caching the audio as it downloads.
+     * Runs on a TTS pipeline worker thread.
+     *
+     * @param query     The query the answer belongs to; cancelling it aborts the request.
+     * @param timeoutMs How long the audio may take to start arriving, retries included.
+     */
+    private void synthesizeSegment(QueryPipeline.Query query, long timeoutMs, String text,
+                                   StreamingAudioBuffer out) throws IOException {
+        String cacheKey = TtsCache.key(text, TTS_LANGUAGE_CODE, TTS_SSML_GENDER, TTS_AUDIO_ENCODING,
+                String.valueOf(TTS_SAMPLE_RATE));
+        if (ttsCache.get(cacheKey, out)) {
+            tracer.mark(query.id, InteractionTracer.Mark.TTS_FIRST_BYTE);
+            return;
+        }
+        TtsCache.Editor editor = ttsCache.edit(cacheKey, out);
         try {
-            MediaPlayer mediaPlayer = new MediaPlayer();
-            mediaPlayer.setDataSource(mp3File.getAbsolutePath());
-            mediaPlayer.prepare();
-            mediaPlayer.start();
-        } catch (IOException e) {
-            e.printStackTrace();
-            outputTextBox.setText("Error playing TTS audio: " + e.getMessage());
+            fetchSpeech(query, timeoutMs, text, editor);
+            editor.commit();
+        } finally {
+            editor.abort(); // no-op once committed
         }
     }
 
-    private void sendToChatGPT(String text, Uri imageUri) {
+    /**
+     * Synthesizes one segment with Google Cloud TTS, decoding the audio into
+     * {@code out} while the response is still downloading.
+     */
+    private void fetchSpeech(QueryPipeline.Query query, long timeoutMs, String text, OutputStream out)
+            throws IOException {
+        String requestJson;
         try {
-            if (imageUri == null) {
-                // Construct JSON for text only
-                JSONObject textContent = new JSONObject();
-                textContent.put("type", "text");
-                textContent.put("text", text);
-
-                JSONArray contentArray = new JSONArray();
-                contentArray.put(textContent);
-
-                JSONObject messageObject = new JSONObject();
-                messageObject.put("role", "user");
-                messageObject.put("content", contentArray);
-
-                JSONArray messages = new JSONArray();
-                messages.put(messageObject);
+            requestJson = ApiPayloads.speechSynthesisRequest(text, TTS_LANGUAGE_CODE, TTS_SSML_GENDER,
+                    TTS_AUDIO_ENCODING, TTS_SAMPLE_RATE);
+        } catch (JSONException e) {
+            throw new IOException("TTS JSON error: " + e.getMessage(), e);
+        }
+        backend.synthesize(query.token, query.id, timeoutMs, requestJson, out);
+    }
 
-                JSONObject jsonBody = new JSONObject();
-                jsonBody.put("model", "gpt-4o");
-                jsonBody.put("messages", messages);
+    /**
+     * Answers a question, from the response cache when the same question was
+     * asked about the same view, and otherwise with a chat request carrying the
+     * conversation so far and the image prepared at capture time. The answer to
+     * a steady interim transcript is used if it was for the same question.
+     * Runs on a pipeline reason thread.
+     *
+     * @param budget       The query's latency budget, which sets the first-token deadline.
+     * @param pendingImage The capture to attach, or null for a text-only question.
+     * @param speculative  The query's speculative request, if any.
+     */
+    private String answerQuestion(QueryPipeline.Query query, LatencyBudget.Clock budget, String question,
+                                  @Nullable Future<ImagePayloadBuilder.PreparedImage> pendingImage,
+                                  SpeculativeChat.Attempt<Future<ImagePayloadBuilder.PreparedImage>> speculative,
+                                  ChatCompletionStream.Listener out) throws Exception {
+        final long requestStart = SystemClock.elapsedRealtime();
+        // A text-only follow-up depends on what came before, so those answers are
+        // only cached and reused at the start of a conversation.
+        final boolean freshConversation = !conversation.resetIfIdle(requestStart);
+
+        ImagePayloadBuilder.PreparedImage image = awaitImage(pendingImage);
+        final Long imageHash = image != null ? image.sceneHash : null;
+        final boolean cacheable = image != null || freshConversation;
+
+        ResponseCache.Hit cached = cacheable
+                ? responseCache.get(question, imageHash, System.currentTimeMillis()) : null;
+        if (cached != null) {
+            speculative.cancel();
+            conversation.addTurn(question, image != null, cached.answer, SystemClock.elapsedRealtime());
+            Log.d("Chat", "Answered from cache, saved ~" + cached.latencyMs + "ms; " + responseCache.statsSummary());
+            out.onDelta(cached.answer);
+            return cached.answer;
+        }
 
-                sendJsonToChatGPT(jsonBody);
-                return;
+        String answer;
+        try {
+            answer = speculative.take(question, pendingImage, out);
+            if (answer == null) {
+                answer = requestAnswer(query.token, query.id, budget.timeoutMs(HttpTransport.Endpoint.CHAT),
+                        question, image, out);
             }
+        } catch (CircuitBreaker.OpenException e) {
+            // Say so straight away rather than waiting on a failing service; nothing to remember
+            Log.w("Chat", e.getMessage());
+            out.onDelta(CHAT_UNAVAILABLE_ANSWER);
+            return CHAT_UNAVAILABLE_ANSWER;
+        }
 
-            // Otherwise, process the image as well as text.
-            Bitmap bitmap = MediaStore.Images.Media.getBitmap(this.getContentResolver(), imageUri);
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            Bitmap resizedBitmap = resizeImage(bitmap, 400, 400);
-            resizedBitmap.compress(Bitmap.CompressFormat.JPEG, 50, outputStream);
+        SceneIndex.Scene scene = image != null ? image.scene : null;
+        if (scene != null) {
+            scene.setExchange(question, answer);
+        }
+        conversation.addTurn(question, image != null, answer, SystemClock.elapsedRealtime());
+        if (cacheable) {
+            responseCache.put(question, imageHash, answer,
+                    System.currentTimeMillis(), SystemClock.elapsedRealtime() - requestStart);
+        }
+        return answer;
+    }
 
-            String base64Image = android.util.Base64.encodeToString(outputStream.toByteArray(), android.util.Base64.NO_WRAP);
+    /**
+     * Waits for the image prepared at capture time.
+     *
+     * @param pendingImage The capture to attach, or null for a text-only question.
+     * @return The prepared image, or null for a text-only question.
+     */
+    @Nullable
+    private static ImagePayloadBuilder.PreparedImage awaitImage(
+            @Nullable Future<ImagePayloadBuilder.PreparedImage> pendingImage) throws Exception {
+        if (pendingImage == null) {
+            return null;
+        }
+        // Prepared on the image thread while the user was speaking; normally done by now
+        ImagePayloadBuilder.PreparedImage image = pendingImage.get();
+        if (image == null) {
+            throw new IOException("could not decode the captured image");
+        }
+        return image;
+    }
 
-            JSONObject imageObject = new JSONObject();
-            imageObject.put("url", "data:image/jpeg;base64," + base64Image);
+    /**
+     * Sends a chat request carrying the conversation so far and the image, and
+     * passes the answer to {@code out} as it arrives. Remembers nothing, so it
+     * can also answer a guess at the question.
+     *
+     * @param timeoutMs Deadline for the first token, retries included.
+     * @param captured  The image prepared at capture time, or null for a text-only question.
+     */
+    private String requestAnswer(CancellationToken token, long traceId, long timeoutMs, String question,
+                                 @Nullable ImagePayloadBuilder.PreparedImage captured,
+                                 ChatCompletionStream.Listener out) throws IOException, JSONException {
+        ImagePayloadBuilder.PreparedImage image = fitToQuestion(question, captured);
+        SceneIndex.Scene scene = image != null ? image.scene : null;
+        // Same scene as a recent question, whose answer is in the history:
+        // low detail is enough and costs far fewer tokens.
+        boolean lowDetail = image != null && image.reused && scene != null && scene.getAnswer() != null;
+        String detail = image == null ? null : lowDetail ? "low" : ImageQualityController.detailFor(image.longSide);
+        // A tiled close-up needs explaining, or the model may take the thumbnail for part of the scene
+        String text = image != null && image.layout != null ? question + "\n\n" + image.layout.describe() : question;
+        // The JPEG is base64-encoded into the request body as it is sent
+        JSONObject messageObject = ApiPayloads.chatUserMessage(text, image != null, detail);
+
+        int imageTokens = image != null ? ConversationMemory.imageTokens(image.width, image.height, detail) : 0;
+        String requestJson = conversation.buildRequest(
+                ApiPayloads.chatRequestHead(CHAT_MODEL, STREAM_CHAT_RESPONSES), messageObject, imageTokens);
+        return backend.chat(token, traceId, timeoutMs,
+                requestJson, image != null ? image.jpeg : null, STREAM_CHAT_RESPONSES, out);
+    }
 
-            JSONArray contentArray = new JSONArray();
-            JSONObject textContent = new JSONObject();
-            textContent.put("type", "text");
-            textContent.put("text", text);
+    /**
+     * Prepares the capture again if the question or the link now calls for
+     * another size: larger to read text, smaller once the link has slowed.
+     *
+     * @return The image to attach, or null for a text-only question.
+     */
+    @Nullable
+    private ImagePayloadBuilder.PreparedImage fitToQuestion(String question,
+                                                            @Nullable ImagePayloadBuilder.PreparedImage image) {
+        if (image == null) {
+            return null;
+        }
+        ImageQualityController.Tier tier = imageQuality.choose(ImageQualityController.readsText(question),
+                image.sourceWidth, image.sourceHeight, IMAGE_MAX_TOKENS);
+        if (tier.maxSize == image.maxSize) {
+            return image;
+        }
+        ImagePayloadBuilder.PreparedImage refit = ImagePayloadBuilder.prepareAgain(
+                image, tier.maxSize, tier.quality, imageFocus);
+        if (refit == null) {
+            return image;
+        }
+        imageQuality.onEncoded(tier, refit.jpeg.length);
+        imageQuality.onReworked();
+        Log.d("Image", "Prepared again at " + tier + " for \"" + question + "\": "
+                + refit.jpeg.length + " bytes in " + refit.prepareMs + "ms");
+        return refit;
+    }
 
-            JSONObject imageContent = new JSONObject();
-            imageContent.put("type", "image_url");
-            imageContent.put("image_url", imageObject);
+    /**
+     * Runs a view update on the UI thread, unless its query has been cancelled by then.
+     */
+    private void render(QueryPipeline.Query query, Runnable update) {
+        runOnUiThread(() -> {
+            if (!query.isCancelled()) {
+                update.run();
+            }
+        });
+    }
 
-            contentArray.put(textContent);
-            contentArray.put(imageContent);
+    /**
+     * Shows the live query's progress. Views are only touched on the UI thread.
+     */
+    private class QueryRenderer implements QueryPipeline.Listener {
+        // Shows the answer being streamed; replaced for each query
+        private volatile UiTextBatcher batcher;
 
-            JSONObject messageObject = new JSONObject();
-            messageObject.put("role", "user");
-            messageObject.put("content", contentArray);
+        @Override
+        public void onStage(QueryPipeline.Query query, QueryPipeline.Stage stage) {
+            Log.d("Pipeline", "Query " + query.id + ": " + stage);
+            if (stage == QueryPipeline.Stage.REASON) {
+                stopBatcher();
+                batcher = new UiTextBatcher(outputTextBox, STREAM_UI_INTERVAL_MS);
+                render(query, () -> outputTextBox.setText(""));
+            }
+        }
 
-            JSONArray messages = new JSONArray();
-            messages.put(messageObject);
+        @Override
+        public void onTranscript(QueryPipeline.Query query, String transcript) {
+            render(query, () -> textInput.setText(transcript));
+        }
 
-            JSONObject jsonBody = new JSONObject();
-            jsonBody.put("model", "gpt-4o");
-            jsonBody.put("messages", messages);
+        @Override
+        public void onNoSpeech(QueryPipeline.Query query) {
+            render(query, () -> outputTextBox.setText("No speech recognized."));
+        }
 
-            sendJsonToChatGPT(jsonBody);
+        @Override
+        public void onAnswerDelta(QueryPipeline.Query query, String text) {
+            UiTextBatcher current = batcher;
+            if (current != null) {
+                current.append(text);
+            }
+        }
 
-        } catch (IOException | JSONException e) {
-            runOnUiThread(() -> outputTextBox.setText("Error: " + e.getMessage()));
+        @Override
+        public void onAnswer(QueryPipeline.Query query, String answer) {
+            stopBatcher();
+            render(query, () -> outputTextBox.setText(answer));
         }
-    }
 
-    private Bitmap resizeImage(Bitmap bitmap, int maxWidth, int maxHeight) {
-        int width = bitmap.getWidth();
-        int height = bitmap.getHeight();
+        @Override
+        public void onError(QueryPipeline.Query query, QueryPipeline.Stage stage, Exception e) {
+            stopBatcher();
+            String prefix = stage == QueryPipeline.Stage.TRANSCRIBE ? "Error (Google STT): " : "Error: ";
+            render(query, () -> outputTextBox.setText(prefix + e.getMessage()));
+        }
 
-        float bitmapRatio = (float) width / height;
-        if (bitmapRatio > 1) {
-            width = maxWidth;
-            height = (int) (width / bitmapRatio);
-        } else {
-            height = maxHeight;
-            width = (int) (height * bitmapRatio);
+        private void stopBatcher() {
+            UiTextBatcher current = batcher;
+            if (current != null) {
+                current.cancel();
+            }
         }
-        return Bitmap.createScaledBitmap(bitmap, width, height, true);
     }
 
     // --- PERMISSION CHECKING ---
@@ -0,0 +1,459 @@
+package com.example.imagetest;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays 16-bit mono PCM segments, one after another, through a single
+ * long-lived streaming {@link AudioTrack}.
+ *
+ * Segments are queued as {@link StreamingAudioBuffer}s that may still be
+ * downloading; a writer thread copies each into the track in small chunks as
+ * its bytes arrive, so the first words play while the rest is synthesized and
+ * consecutive segments play without a gap. A WAV header at the start of a
+ * segment, as Google TTS sends with LINEAR16, is skipped. Once a segment has
+ * been written its buffer is recycled.
+ *
+ * Each segment's start and end are reported with the time they were actually
+ * heard, from the track's presentation timestamps rather than the time the
+ * bytes were written. {@link #stop()} silences the track at once and drops
+ * everything queued.
+ *
+ * Thread-safe. Segment callbacks run on the player's event thread.
+ */
+public class PcmAudioPlayer {
+
+    private static final String TAG = "TTS";
+
+    // Written per call, so a stop never waits on more than this much audio
+    private static final int CHUNK_MS = 20;
+    // The track is paused after this long with nothing to play, so the audio path can sleep
+    private static final long IDLE_PAUSE_MS = 3000;
+    private static final int RIFF = 0x46464952;
+    private static final int WAVE = 0x45564157;
+    private static final int FMT = 0x20746d66;
+    private static final int DATA = 0x61746164;
+
+    /** Progress of one segment. */
+    public interface SegmentListener {
+        /**
+         * The segment's first frame was heard.
+         *
+         * @param startNanos When, as a {@link System#nanoTime()} reading.
+         */
+        void onStart(long startNanos);
+
+        /** The segment's last frame was heard. */
+        void onEnd(long endNanos);
+
+        /** The segment's audio could not be read or was not 16-bit mono PCM at our rate. */
+        void onError(IOException e);
+    }
+
+    /** A queued segment, tagged with the stop it belongs before. */
+    private static final class Segment {
+        final StreamingAudioBuffer audio;
+        final SegmentListener listener;
+        final long generation;
+
+        Segment(StreamingAudioBuffer audio, SegmentListener listener, long generation) {
+            this.audio = audio;
+            this.listener = listener;
+            this.generation = generation;
+        }
+    }
+
+    /** A segment boundary waiting to be heard. */
+    private static final class Boundary {
+        final long frame;
+        final Segment segment;
+        final boolean start;
+        // The head position at which it has been heard: past a segment's first
+        // frame, or up to the end of its last. Never 0, which means no marker.
+        final long heardAtHead;
+
+        Boundary(long frame, Segment segment, boolean start) {
+            this.frame = frame;
+            this.segment = segment;
+            this.start = start;
+            this.heardAtHead = start ? frame + 1 : frame;
+        }
+    }
+
+    private final int sampleRate;
+    private final AudioTrack track;
+    private final LinkedBlockingQueue<Segment> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final HandlerThread eventThread;
+    private final Handler eventHandler;
+    private final AudioTimestamp timestamp = new AudioTimestamp(); // event thread only
+
+    // Guarded by "this"
+    private long generation;
+    private boolean needsFlush;
+    private final List<Boundary> boundaries = new ArrayList<>();
+    private volatile boolean released;
+
+    // Writer thread only
+    private long framesWritten;
+
+    /**
+     * @param sampleRate The rate every segment is synthesized at.
+     */
+    public PcmAudioPlayer(int sampleRate) {
+        this.sampleRate = sampleRate;
+        int minBufferBytes = AudioTrack.getMinBufferSize(
+                sampleRate, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        track = new AudioTrack.Builder()
+                .setAudioAttributes(new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_ASSISTANT)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
+                        .build())
+                .setAudioFormat(new AudioFormat.Builder()
+                        .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                        .setSampleRate(sampleRate)
+                        .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
+                        .build())
+                .setTransferMode(AudioTrack.MODE_STREAM)
+                .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+                .setBufferSizeInBytes(Math.max(minBufferBytes, sampleRate * 2 * CHUNK_MS * 4 / 1000))
+                .build();
+
+        eventThread = new HandlerThread("TTS Playback Events");
+        eventThread.start();
+        eventHandler = new Handler(eventThread.getLooper());
+        track.setPlaybackPositionUpdateListener(new AudioTrack.OnPlaybackPositionUpdateListener() {
+            @Override
+            public void onMarkerReached(AudioTrack audioTrack) {
+                deliverBoundaries();
+            }
+
+            @Override
+            public void onPeriodicNotification(AudioTrack audioTrack) {
+            }
+        }, eventHandler);
+
+        writer = new Thread(this::writeLoop, "TTS Playback");
+        writer.start();
+    }
+
+    /**
+     * Queues a segment to play after everything queued before it. The buffer
+     * is recycled once played, skipped or dropped.
+     */
+    public void play(StreamingAudioBuffer audio, SegmentListener listener) {
+        synchronized (this) {
+            if (!released) {
+                queue.add(new Segment(audio, listener, generation));
+                return;
+            }
+        }
+        audio.recycle();
+    }
+
+    /**
+     * Silences playback immediately and drops every queued segment. Their
+     * listeners hear nothing more.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+            generation++;
+            needsFlush = true;
+            boundaries.clear();
+        }
+        List<Segment> dropped = new ArrayList<>();
+        queue.drainTo(dropped);
+        for (Segment segment : dropped) {
+            segment.audio.recycle();
+        }
+        track.pause();
+        // Unblocks a write into a full buffer; the writer flushes again before the next segment
+        track.flush();
+        // Wakes the writer if it is waiting for audio that will no longer be played
+        writer.interrupt();
+    }
+
+    /**
+     * Stops playback and frees the track. The player can't be used afterwards.
+     */
+    public void release() {
+        stop();
+        synchronized (this) {
+            released = true;
+        }
+        writer.interrupt();
+        eventThread.quitSafely();
+        try {
+            writer.join(1000);
+            eventThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        track.release();
+    }
+
+    private synchronized boolean isCurrent(Segment segment) {
+        return segment.generation == generation;
+    }
+
+    private void writeLoop() {
+        byte[] chunk = new byte[sampleRate * 2 * CHUNK_MS / 1000];
+        while (!released) {
+            Segment segment;
+            try {
+                segment = queue.poll(IDLE_PAUSE_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                continue; // a stop; nothing was being played
+            }
+            if (segment == null) {
+                pauseIfDrained();
+                continue;
+            }
+            try {
+                if (isCurrent(segment)) {
+                    write(segment, chunk);
+                }
+            } finally {
+                segment.audio.recycle();
+                Thread.interrupted(); // a stop during this segment is handled; don't carry it into the next
+            }
+        }
+    }
+
+    /**
+     * Copies one segment into the track as its bytes arrive.
+     */
+    private void write(Segment segment, byte[] chunk) {
+        StreamingAudioBuffer audio = segment.audio;
+        long position;
+        try {
+            position = pcmOffset(audio);
+        } catch (IOException e) {
+            reportError(segment, e);
+            return;
+        }
+        prepareTrack();
+
+        boolean started = false;
+        int carry = 0; // an odd byte left over, as the track takes whole samples
+        while (true) {
+            int read;
+            try {
+                read = audio.readAt(position, chunk, carry, chunk.length - carry);
+            } catch (IOException e) {
+                reportError(segment, e);
+                return;
+            }
+            if (read < 0) {
+                break;
+            }
+            position += read;
+            int length = carry + read;
+            int whole = length & ~1;
+            carry = length - whole;
+            if (whole == 0) {
+                continue;
+            }
+            if (!started) {
+                started = true;
+                addBoundary(new Boundary(framesWritten, segment, true));
+            }
+            int offset = 0;
+            while (offset < whole) {
+                int written = track.write(chunk, offset, whole - offset, AudioTrack.WRITE_BLOCKING);
+                if (written < 0) {
+                    reportError(segment, new IOException("AudioTrack write failed: " + written));
+                    return;
+                }
+                if (!isCurrent(segment)) {
+                    return; // stopped; what was written is flushed
+                }
+                offset += written;
+            }
+            framesWritten += whole / 2;
+            if (carry != 0) {
+                chunk[0] = chunk[whole];
+            }
+        }
+        if (started) {
+            addBoundary(new Boundary(framesWritten, segment, false));
+        } else {
+            // Nothing to hear; report the segment as played at once
+            long now = System.nanoTime();
+            eventHandler.post(() -> {
+                if (isCurrent(segment)) {
+                    segment.listener.onStart(now);
+                    segment.listener.onEnd(now);
+                }
+            });
+        }
+    }
+
+    /**
+     * Flushes what a stop left in the track and makes sure it is playing.
+     */
+    private void prepareTrack() {
+        boolean flush;
+        synchronized (this) {
+            flush = needsFlush;
+            needsFlush = false;
+        }
+        if (flush) {
+            track.pause();
+            track.flush();
+            framesWritten = 0; // the head position starts again from 0 after a flush
+        }
+        if (track.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
+            track.play();
+        }
+    }
+
+    private void pauseIfDrained() {
+        if (track.getPlayState() == AudioTrack.PLAYSTATE_PLAYING
+                && (track.getPlaybackHeadPosition() & 0xFFFFFFFFL) >= framesWritten) {
+            track.pause();
+            Log.d(TAG, "Playback idle; underruns so far " + track.getUnderrunCount());
+        }
+    }
+
+    /**
+     * Skips the WAV header at the start of a segment, if there is one.
+     *
+     * @return The offset of the first PCM byte.
+     * @throws IOException If the header describes anything other than 16-bit mono PCM at our rate.
+     */
+    private long pcmOffset(StreamingAudioBuffer audio) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        if (readFully(audio, 0, header.array(), 12) < 12 || header.getInt(0) != RIFF || header.getInt(8) != WAVE) {
+            return 0;
+        }
+        long position = 12;
+        while (true) {
+            header.clear();
+            if (readFully(audio, position, header.array(), 8) < 8) {
+                throw new IOException("WAV audio has no data chunk");
+            }
+            int chunkId = header.getInt(0);
+            long chunkSize = header.getInt(4) & 0xFFFFFFFFL;
+            position += 8;
+            if (chunkId == DATA) {
+                return position;
+            }
+            if (chunkId == FMT) {
+                ByteBuffer format = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+                if (readFully(audio, position, format.array(), 16) < 16) {
+                    throw new IOException("WAV format chunk is truncated");
+                }
+                int encoding = format.getShort(0);
+                int channels = format.getShort(2);
+                int rate = format.getInt(4);
+                int bits = format.getShort(14);
+                if (encoding != 1 || channels != 1 || rate != sampleRate || bits != 16) {
+                    throw new IOException("Expected 16-bit mono PCM at " + sampleRate + " Hz, got format "
+                            + encoding + ", " + channels + " channels, " + rate + " Hz, " + bits + " bits");
+                }
+            }
+            position += chunkSize + (chunkSize & 1);
+        }
+    }
+
+    private static int readFully(StreamingAudioBuffer audio, long position, byte[] dst, int length)
+            throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = audio.readAt(position + total, dst, total, length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private void reportError(Segment segment, IOException e) {
+        eventHandler.post(() -> {
+            if (isCurrent(segment)) {
+                segment.listener.onError(e);
+            }
+        });
+    }
+
+    private void addBoundary(Boundary boundary) {
+        boolean first;
+        synchronized (this) {
+            if (!isCurrent(boundary.segment)) {
+                return;
+            }
+            boundaries.add(boundary);
+            first = boundaries.size() == 1;
+        }
+        if (first) {
+            // The marker may already have passed; deliverBoundaries re-arms it
+            eventHandler.post(this::deliverBoundaries);
+        }
+    }
+
+    /**
+     * Reports every boundary the playback head has passed, each with the time
+     * its frame was heard, and sets the marker for the next one.
+     */
+    private void deliverBoundaries() {
+        if (released) {
+            return;
+        }
+        long head = track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+        long nowNanos = System.nanoTime();
+        boolean haveTimestamp = track.getTimestamp(timestamp)
+                // Not every device restarts the timestamp's frame count on a flush
+                && Math.abs(timestamp.framePosition - head) < sampleRate;
+        List<Boundary> passed = new ArrayList<>();
+        Boundary next = null;
+        synchronized (this) {
+            for (Iterator<Boundary> it = boundaries.iterator(); it.hasNext(); ) {
+                Boundary boundary = it.next();
+                if (boundary.heardAtHead <= head) {
+                    passed.add(boundary);
+                    it.remove();
+                } else if (next == null) {
+                    next = boundary;
+                }
+            }
+        }
+        for (Boundary boundary : passed) {
+            long heardNanos = haveTimestamp
+                    ? timestamp.nanoTime + (boundary.frame - timestamp.framePosition) * 1_000_000_000L / sampleRate
+                    : nowNanos - (head - boundary.frame) * 1_000_000_000L / sampleRate;
+            if (!isCurrent(boundary.segment)) {
+                continue;
+            }
+            if (boundary.start) {
+                boundary.segment.listener.onStart(heardNanos);
+            } else {
+                boundary.segment.listener.onEnd(heardNanos);
+            }
+        }
+        if (next != null) {
+            track.setNotificationMarkerPosition((int) next.heardAtHead);
+            if ((track.getPlaybackHeadPosition() & 0xFFFFFFFFL) >= next.heardAtHead) {
+                eventHandler.post(this::deliverBoundaries); // passed while we were setting it
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.example.imagetest;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Speaks an answer segment by segment: segment N+1 is synthesized while
+ * segment N plays, so the first words are heard as soon as the first
+ * sentence is ready instead of after the whole answer is synthesized.
+ *
+ * At most {@code maxInFlight} synthesis requests run at once. Each segment's
+ * PCM is decoded into a pooled {@link StreamingAudioBuffer} as it downloads,
+ * and the buffer is queued on the shared {@link PcmAudioPlayer} in order as
+ * soon as the segment is enqueued, so it starts playing with its first bytes
+ * and follows the previous segment without a gap. One pipeline speaks one
+ * answer; {@link #cancel()} stops it immediately.
+ */
+public class TtsPipeline implements QueryPipeline.Speech {
+
+    private static final String TAG = "TTS";
+
+    // Long sentences are split at clause boundaries to keep each request short.
+    private static final int MAX_SEGMENT_CHARS = 160;
+
+    /** Turns one segment of text into audio. */
+    public interface Synthesizer {
+        /**
+         * Called on a pipeline worker thread. Audio should be written to {@code out}
+         * as it arrives; the pipeline completes the buffer when this returns.
+         *
+         * @param text  The segment to synthesize.
+         * @param index The segment's position in the answer.
+         * @param out   Receives 16-bit mono PCM at the player's rate, optionally after a WAV header.
+         */
+        void synthesize(String text, int index, StreamingAudioBuffer out) throws IOException;
+    }
+
+    /** Callbacks run on the player's event thread, or a worker thread for synthesis errors. */
+    public interface Listener {
+        /**
+         * The first segment has started playing.
+         *
+         * @param startNanos When it was heard, as a {@link System#nanoTime()} reading.
+         */
+        void onFirstAudio(long startNanos);
+
+        void onError(Exception e);
+
+        void onDone(Metrics metrics);
+    }
+
+    /** Latency figures for one spoken answer, in milliseconds. */
+    public static class Metrics {
+        public long timeToFirstAudioMs = -1;
+        public int segmentsPlayed;
+        public long totalGapMs;
+        public long maxGapMs;
+
+        @Override
+        public String toString() {
+            long averageGap = segmentsPlayed > 1 ? totalGapMs / (segmentsPlayed - 1) : 0;
+            return "timeToFirstAudio=" + timeToFirstAudioMs + "ms segments=" + segmentsPlayed
+                    + " avgGap=" + averageGap + "ms maxGap=" + maxGapMs + "ms";
+        }
+    }
+
+    private final Synthesizer synthesizer;
+    private final Listener listener;
+    private final PcmAudioPlayer player;
+    private final BufferPool pool;
+    private final ExecutorService synthExecutor;
+    private final long createdAtNanos = System.nanoTime();
+
+    private volatile boolean cancelled = false;
+    // Guarded by "this"
+    private int segmentsQueued = 0;
+    private final List<StreamingAudioBuffer> buffers = new ArrayList<>();
+    private final Metrics metrics = new Metrics();
+    private int segmentsEnded = 0;
+    private int totalSegments = -1; // known once finish() is called
+    private long lastEndNanos = -1;
+    private boolean done = false;
+
+    /**
+     * @param maxInFlight Synthesis requests allowed at once.
+     * @param player      Plays the segments; shared by every answer.
+     * @param pool        Supplies the segments' audio blocks.
+     */
+    public TtsPipeline(Synthesizer synthesizer, int maxInFlight, PcmAudioPlayer player, BufferPool pool,
+                       Listener listener) {
+        this.synthesizer = synthesizer;
+        this.listener = listener;
+        this.player = player;
+        this.pool = pool;
+        this.synthExecutor = Executors.newFixedThreadPool(maxInFlight, r -> new Thread(r, "TTS Synth"));
+    }
+
+    /**
+     * Queues text to be spoken after everything queued before it. Safe to call from any thread.
+     */
+    @Override
+    public void enqueue(String text) {
+        List<String> pieces = SentenceSplitter.splitClauses(text, MAX_SEGMENT_CHARS);
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            for (String piece : pieces) {
+                final int index = segmentsQueued++;
+                final StreamingAudioBuffer buffer = new StreamingAudioBuffer(pool);
+                buffers.add(buffer);
+                // Queued in order now; playback waits on the buffer until its audio arrives
+                player.play(buffer, new SegmentProgress());
+                synthExecutor.execute(() -> synthesize(piece, index, buffer));
+            }
+        }
+    }
+
+    /**
+     * Marks the end of the answer; the listener's onDone fires after the last segment plays.
+     */
+    @Override
+    public void finish() {
+        synchronized (this) {
+            totalSegments = segmentsQueued;
+        }
+        synthExecutor.shutdown();
+        checkDone();
+    }
+
+    /**
+     * Stops playback and abandons any segments not yet spoken.
+     */
+    @Override
+    public void cancel() {
+        synchronized (this) {
+            if (cancelled) {
+                return; // never stop the player again, it may be speaking a newer answer
+            }
+            cancelled = true;
+            // Stop synthesis requests that are still writing
+            for (StreamingAudioBuffer buffer : buffers) {
+                buffer.fail(new IOException("TTS cancelled"));
+            }
+        }
+        synthExecutor.shutdownNow();
+        player.stop();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    private void synthesize(String text, int index, StreamingAudioBuffer buffer) {
+        if (cancelled) {
+            return;
+        }
+        try {
+            synthesizer.synthesize(text, index, buffer);
+            buffer.complete();
+        } catch (IOException e) {
+            buffer.fail(e);
+            fail(e);
+        }
+    }
+
+    /** Follows one segment through the player. */
+    private class SegmentProgress implements PcmAudioPlayer.SegmentListener {
+        @Override
+        public void onStart(long startNanos) {
+            boolean first;
+            synchronized (TtsPipeline.this) {
+                if (cancelled) {
+                    return;
+                }
+                first = metrics.segmentsPlayed == 0;
+                if (first) {
+                    metrics.timeToFirstAudioMs = TimeUnit.NANOSECONDS.toMillis(startNanos - createdAtNanos);
+                } else if (lastEndNanos >= 0) {
+                    long gap = Math.max(0, TimeUnit.NANOSECONDS.toMillis(startNanos - lastEndNanos));
+                    metrics.totalGapMs += gap;
+                    metrics.maxGapMs = Math.max(metrics.maxGapMs, gap);
+                }
+                metrics.segmentsPlayed++;
+            }
+            if (first) {
+                Log.d(TAG, "Time to first audio: " + metrics.timeToFirstAudioMs + "ms");
+                listener.onFirstAudio(startNanos);
+            }
+        }
+
+        @Override
+        public void onEnd(long endNanos) {
+            synchronized (TtsPipeline.this) {
+                lastEndNanos = endNanos;
+                segmentsEnded++;
+            }
+            checkDone();
+        }
+
+        @Override
+        public void onError(IOException e) {
+            fail(e);
+        }
+    }
+
+    private void checkDone() {
+        synchronized (this) {
+            if (cancelled || done || totalSegments < 0 || segmentsEnded < totalSegments) {
+                return;
+            }
+            done = true;
+        }
+        Log.d(TAG, "Answer spoken: " + metrics);
+        listener.onDone(metrics);
+    }
+
+    private void fail(Exception e) {
+        if (cancelled) {
+            return;
+        }
+        cancel();
+        listener.onError(e);
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.imagetest;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.widget.TextView;
+
+/**
+ * Appends streamed text to a TextView without posting one UI message per token.
+ *
+ * Text appended from any thread is buffered and pushed to the view at most once
+ * per {@code intervalMs}; tokens that arrive in between ride along with the next update.
+ */
+public class UiTextBatcher {
+
+    private final TextView view;
+    private final long intervalMs;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by "this"
+    private final StringBuilder shown = new StringBuilder();
+    private boolean updatePosted = false;
+    private long lastUpdateMs = 0;
+
+    private final Runnable update = this::publish;
+
+    public UiTextBatcher(TextView view, long intervalMs) {
+        this.view = view;
+        this.intervalMs = intervalMs;
+    }
+
+    /**
+     * Adds text to the display. Safe to call from any thread.
+     */
+    public synchronized void append(String text) {
+        shown.append(text);
+        if (updatePosted) {
+            return;
+        }
+        updatePosted = true;
+        long wait = Math.max(0, lastUpdateMs + intervalMs - SystemClock.uptimeMillis());
+        mainHandler.postDelayed(update, wait);
+    }
+
+    /**
+     * Drops any pending update, e.g. when the final text is set directly.
+     */
+    public synchronized void cancel() {
+        mainHandler.removeCallbacks(update);
+        updatePosted = false;
+    }
+
+    private void publish() {
+        String text;
+        synchronized (this) {
+            updatePosted = false;
+            lastUpdateMs = SystemClock.uptimeMillis();
+            text = shown.toString();
+        }
+        view.setText(text);
+    }
+}
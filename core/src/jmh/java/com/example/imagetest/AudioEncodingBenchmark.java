@@ -0,0 +1,116 @@
+package com.example.imagetest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding one second of recorded audio for upload, written in 20 ms chunks as
+ * the capture thread does. The FLAC run also reports how much smaller the
+ * upload is on a corpus of recorded and synthetic questions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AudioEncodingBenchmark {
+
+    private static final String[] RECORDED = {
+            "vad/quiet_question.wav", "vad/noise_during_speech.wav", "vad/noise_after_speech.wav"};
+    private static final int WAV_HEADER_BYTES = 44;
+
+    private byte[] pcm;
+    private File file;
+
+    @Setup
+    public void setUp(BenchmarkParams params) throws IOException {
+        pcm = Fixtures.speechPcm(1, 2);
+        file = File.createTempFile("bench", ".wav");
+        if (params.getBenchmark().endsWith(".flac")) {
+            reportCorpus();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    /** WAV framing: raw samples to a file with the header patched on finish. */
+    @Benchmark
+    public long wav() throws IOException {
+        WavEncoder encoder = new WavEncoder(file, Fixtures.SAMPLE_RATE);
+        writeInFrames(encoder);
+        encoder.finish();
+        return file.length();
+    }
+
+    /** FLAC, to memory so only the encoder is measured. */
+    @Benchmark
+    public long flac() throws IOException {
+        FlacEncoder encoder = new FlacEncoder(Fixtures.NULL_OUTPUT, Fixtures.SAMPLE_RATE);
+        writeInFrames(encoder);
+        encoder.finish();
+        return encoder.getBytesWritten();
+    }
+
+    /**
+     * Prints the WAV and FLAC size of each clip in the corpus, and the bytes
+     * the base64 upload saves.
+     */
+    private static void reportCorpus() throws IOException {
+        System.out.printf(Locale.ROOT, "%n%-28s %7s %9s %9s %7s %14s%n",
+                "clip", "seconds", "WAV", "FLAC", "ratio", "upload saved");
+        long wavTotal = 0;
+        long flacTotal = 0;
+        double secondsTotal = 0;
+        for (int i = 0; i < RECORDED.length + 2; i++) {
+            String name;
+            byte[] clip;
+            if (i < RECORDED.length) {
+                name = RECORDED[i];
+                clip = Fixtures.wavPcm(name);
+            } else {
+                // Longer synthetic questions, for the sizes a real query reaches
+                int length = i == RECORDED.length ? 5 : 15;
+                name = "synthetic " + length + " s";
+                clip = Fixtures.speechPcm(length, i);
+            }
+            double seconds = clip.length / 2.0 / Fixtures.SAMPLE_RATE;
+            long wavBytes = clip.length + WAV_HEADER_BYTES;
+            long flacBytes = Fixtures.flac(clip).length;
+            printRow(name, seconds, wavBytes, flacBytes);
+            wavTotal += wavBytes;
+            flacTotal += flacBytes;
+            secondsTotal += seconds;
+        }
+        printRow("corpus", secondsTotal, wavTotal, flacTotal);
+    }
+
+    private static void printRow(String name, double seconds, long wavBytes, long flacBytes) {
+        // Both are sent as base64 inside the JSON request
+        long uploadSaved = base64Length(wavBytes) - base64Length(flacBytes);
+        System.out.printf(Locale.ROOT, "%-28s %7.1f %9d %9d %6.0f%% %14d%n",
+                name, seconds, wavBytes, flacBytes, 100.0 * flacBytes / wavBytes, uploadSaved);
+    }
+
+    private static long base64Length(long bytes) {
+        return (bytes + 2) / 3 * 4;
+    }
+
+    private void writeInFrames(PcmEncoder encoder) throws IOException {
+        for (int offset = 0; offset < pcm.length; offset += Fixtures.FRAME_BYTES) {
+            encoder.write(pcm, offset, Math.min(Fixtures.FRAME_BYTES, pcm.length - offset));
+        }
+    }
+}
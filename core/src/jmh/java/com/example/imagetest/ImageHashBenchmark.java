@@ -0,0 +1,49 @@
+package com.example.imagetest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recognising a repeat capture: hashing the upload-sized image and matching it
+ * against the recent scenes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ImageHashBenchmark {
+
+    private static final int SIZE = 400;
+
+    private int[] pixels;
+    private SceneIndex scenes;
+    private long hash;
+
+    @Setup
+    public void setUp() {
+        pixels = Fixtures.scenePixels(SIZE, SIZE, 6);
+        hash = PerceptualHash.dHash(pixels, SIZE, SIZE);
+        scenes = new SceneIndex(4, 10, Long.MAX_VALUE);
+        for (int i = 0; i < 3; i++) {
+            int[] other = Fixtures.scenePixels(SIZE, SIZE, 100 + i);
+            scenes.add(PerceptualHash.dHash(other, SIZE, SIZE), new byte[0], 0);
+        }
+        scenes.add(hash, new byte[0], 0);
+    }
+
+    @Benchmark
+    public long dHash() {
+        return PerceptualHash.dHash(pixels, SIZE, SIZE);
+    }
+
+    @Benchmark
+    public SceneIndex.Scene findScene() {
+        return scenes.find(hash ^ 0b101, 1);
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.imagetest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Turning a camera JPEG into the upload image, the way the app used to and the
+ * way it does now. ImageIO stands in for BitmapFactory and Bitmap.compress;
+ * source subsampling stands in for {@code inSampleSize}.
+ *
+ * The old path decoded the capture at full resolution for the preview, saved
+ * it again at quality 100, decoded that file at full resolution once more when
+ * the question arrived, scaled it to 400 px and compressed it at quality 50.
+ * The new path decodes once with a power-of-two sample size close to 400 px,
+ * scales the rest of the way and compresses once. Run with {@code -prof gc}
+ * for the allocation per image; the decoded bitmaps the app holds at once on
+ * each path are printed at the end of each trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ImagePreparationBenchmark {
+
+    private static final int MAX_SIZE = 400;
+    private static final int QUALITY = 50;
+
+    /** A preview-frame capture, and a full-sensor shutter capture. */
+    @Param({"1280x960", "4032x3024"})
+    public String capture;
+
+    private byte[] jpeg;
+    private int width;
+    private int height;
+
+    @Setup
+    public void setUp() throws IOException {
+        String[] size = capture.split("x");
+        width = Integer.parseInt(size[0]);
+        height = Integer.parseInt(size[1]);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, width, height, Fixtures.labelledScenePixels(width, height, 8), 0, width);
+        jpeg = encode(image, 90);
+    }
+
+    @TearDown
+    public void tearDown() {
+        // ARGB_8888, as the app's bitmaps are
+        long full = 4L * width * height;
+        int sample = sampleSize(width, height);
+        long sampled = 4L * (width / sample) * (height / sample);
+        long scaled = 4L * MAX_SIZE * (MAX_SIZE * height / width);
+        System.out.printf(Locale.ROOT, "%ncapture %s (%d bytes): bitmaps held at once, old %d bytes "
+                        + "(preview + reload + scaled), new %d bytes (sampled 1/%d + scaled)%n",
+                capture, jpeg.length, 2 * full + scaled, sampled + scaled, sample);
+    }
+
+    @Benchmark
+    public int oldPath() throws IOException {
+        BufferedImage preview = ImageIO.read(new ByteArrayInputStream(jpeg));
+        byte[] saved = encode(preview, 100);
+        BufferedImage reloaded = ImageIO.read(new ByteArrayInputStream(saved));
+        return encode(scale(reloaded), QUALITY).length;
+    }
+
+    @Benchmark
+    public int newPath() throws IOException {
+        int sample = sampleSize(width, height);
+        BufferedImage sampled;
+        ImageReader reader = ImageIO.getImageReadersByFormatName("jpg").next();
+        try (ImageInputStream stream = ImageIO.createImageInputStream(new ByteArrayInputStream(jpeg))) {
+            reader.setInput(stream);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(sample, sample, 0, 0);
+            sampled = reader.read(0, param);
+        } finally {
+            reader.dispose();
+        }
+        return encode(scale(sampled), QUALITY).length;
+    }
+
+    /** As ImagePayloadBuilder.sampleSize: the largest power of two that keeps the long side at or above the limit. */
+    private static int sampleSize(int width, int height) {
+        int longSide = Math.max(width, height);
+        int sampleSize = 1;
+        while (longSide / (sampleSize * 2) >= MAX_SIZE) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static BufferedImage scale(BufferedImage source) {
+        int width = source.getWidth() >= source.getHeight()
+                ? MAX_SIZE : MAX_SIZE * source.getWidth() / source.getHeight();
+        int height = source.getWidth() >= source.getHeight()
+                ? MAX_SIZE * source.getHeight() / source.getWidth() : MAX_SIZE;
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(source, 0, 0, width, height, null);
+        graphics.dispose();
+        return scaled;
+    }
+
+    private static byte[] encode(BufferedImage image, int quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality / 100f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.imagetest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.Okio;
+
+/**
+ * Base64-encoding the image and audio payloads into request bodies, as they
+ * are written to the connection, against the old way of building them: the
+ * payload read into a byte[], base64-encoded into a String, put in a
+ * JSONObject, turned into the JSON String and wrapped with RequestBody.create.
+ * Run with {@code -prof gc} for the allocation per request; the old path's
+ * grows with the clip, the streaming body's does not.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PayloadEncodingBenchmark {
+
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    private byte[] jpeg;
+    private byte[] encoded;
+    private String chatJson;
+    // The connection: written in segments and discarded, as a socket would take them
+    private final BufferedSink sink = Okio.buffer(Okio.blackhole());
+
+    /** A recorded question as 16 kHz 16-bit WAV, as the app recorded it before FLAC. */
+    @State(Scope.Thread)
+    public static class Clip {
+
+        /** Seconds of speech: a short question, a long one, and the longest a recording may run. */
+        @Param({"5", "30", "60"})
+        public int seconds;
+
+        File wav;
+        String sttJson;
+
+        @Setup
+        public void setUp() throws IOException, JSONException {
+            wav = File.createTempFile("bench", ".wav");
+            WavEncoder encoder = new WavEncoder(wav, Fixtures.SAMPLE_RATE);
+            byte[] pcm = Fixtures.speechPcm(seconds, 4);
+            encoder.write(pcm, 0, pcm.length);
+            encoder.finish();
+            sttJson = ApiPayloads.speechRecognizeRequest("en-CA", "LINEAR16", Fixtures.SAMPLE_RATE);
+        }
+
+        @TearDown
+        public void tearDown() {
+            wav.delete();
+        }
+    }
+
+    @Setup
+    public void setUp() throws JSONException {
+        jpeg = Fixtures.jpegLikeBytes(40 * 1024, 3);
+        encoded = new byte[(int) Base64Encoder.encodedLength(jpeg.length)];
+        chatJson = new ConversationMemory(3000, 20, 60_000).buildRequest(
+                ApiPayloads.chatRequestHead("gpt-4o", true),
+                ApiPayloads.chatUserMessage(Fixtures.QUESTION, true, null),
+                ConversationMemory.imageTokens(512, 384, null));
+    }
+
+    /** The encoder alone, 40 KB into a reused array. */
+    @Benchmark
+    public int base64() {
+        return Base64Encoder.encode(jpeg, 0, jpeg.length, encoded, 0);
+    }
+
+    /** A chat request body with a 40 KB image. */
+    @Benchmark
+    public long imageRequestBody() throws IOException {
+        return send(Base64JsonRequestBody.ofBytes(chatJson, jpeg));
+    }
+
+    /** The same request as sendToChatGPT built it. */
+    @Benchmark
+    public long imageRequestBodyOld() throws IOException, JSONException {
+        JSONObject imageUrl = new JSONObject();
+        imageUrl.put("url", "data:image/jpeg;base64," + Base64.getEncoder().encodeToString(jpeg));
+        JSONObject image = new JSONObject();
+        image.put("type", "image_url");
+        image.put("image_url", imageUrl);
+        JSONObject text = new JSONObject();
+        text.put("type", "text");
+        text.put("text", Fixtures.QUESTION);
+        JSONObject message = new JSONObject();
+        message.put("role", "user");
+        message.put("content", new JSONArray().put(text).put(image));
+        JSONObject request = ApiPayloads.chatRequestHead("gpt-4o", true);
+        request.put("messages", new JSONArray().put(message));
+
+        return send(RequestBody.create(request.toString(), JSON));
+    }
+
+    /** An STT request body streamed from the recording. */
+    @Benchmark
+    public long audioRequestBody(Clip clip) throws IOException {
+        return send(Base64JsonRequestBody.ofFile(clip.sttJson, clip.wav));
+    }
+
+    /** The same request as the app built it before: four full copies of the audio. */
+    @Benchmark
+    public long audioRequestBodyOld(Clip clip) throws IOException, JSONException {
+        byte[] audio = Files.readAllBytes(clip.wav.toPath());
+        JSONObject config = new JSONObject();
+        config.put("languageCode", "en-CA");
+        config.put("encoding", "LINEAR16");
+        config.put("sampleRateHertz", Fixtures.SAMPLE_RATE);
+        JSONObject content = new JSONObject();
+        content.put("content", Base64.getEncoder().encodeToString(audio));
+        JSONObject request = new JSONObject();
+        request.put("config", config);
+        request.put("audio", content);
+
+        return send(RequestBody.create(request.toString(), JSON));
+    }
+
+    private long send(RequestBody body) throws IOException {
+        body.writeTo(sink);
+        sink.flush();
+        return body.contentLength();
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.imagetest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Voice activity detection, which runs on the capture thread for every 20 ms of audio.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PcmAnalysisBenchmark {
+
+    private byte[] pcm;
+    private VoiceActivityDetector vad;
+    private int frameOffset;
+
+    @Setup
+    public void setUp() {
+        pcm = Fixtures.speechPcm(4, 1);
+        vad = new VoiceActivityDetector(Fixtures.SAMPLE_RATE, new VoiceActivityDetector.Config(),
+                new VoiceActivityDetector.Listener() {
+                    @Override
+                    public void onSpeechStart(long speechStartMs) {
+                    }
+
+                    @Override
+                    public void onEndOfUtterance(long speechEndMs, long detectedMs) {
+                    }
+                });
+    }
+
+    /** One 20 ms frame, cycling through an utterance. */
+    @Benchmark
+    public boolean vadFrame() {
+        if (frameOffset + Fixtures.FRAME_BYTES > pcm.length) {
+            frameOffset = 0;
+            vad.reset();
+        }
+        vad.process(pcm, frameOffset, Fixtures.FRAME_BYTES);
+        frameOffset += Fixtures.FRAME_BYTES;
+        return vad.isInSpeech();
+    }
+
+    /** A whole 4 s utterance, from silence through speech to the endpoint. */
+    @Benchmark
+    public boolean vadUtterance() {
+        vad.reset();
+        for (int offset = 0; offset + Fixtures.FRAME_BYTES <= pcm.length; offset += Fixtures.FRAME_BYTES) {
+            vad.process(pcm, offset, Fixtures.FRAME_BYTES);
+        }
+        return vad.hasEnded();
+    }
+}
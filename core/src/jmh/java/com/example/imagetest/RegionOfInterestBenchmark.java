@@ -0,0 +1,143 @@
+package com.example.imagetest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Choosing the close-up region of a capture, and preparing the upload image
+ * with it against sending the whole frame, at the 512 px tier. ImageIO stands
+ * in for the app's bitmap scaling and JPEG compression. The close-up is held
+ * to the whole frame's bytes as the app does; the payload sizes are printed at
+ * the end of each trial, which fails if the close-up is over that budget.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RegionOfInterestBenchmark {
+
+    private static final int CAPTURE_WIDTH = 1280;
+    private static final int CAPTURE_HEIGHT = 960;
+    private static final int MAX_SIZE = 512;
+    private static final int QUALITY = 70;
+
+    private final RegionOfInterest centre = new RegionOfInterest(RegionOfInterest.Mode.CENTRE, 0.5f, true);
+    private final RegionOfInterest auto = new RegionOfInterest(RegionOfInterest.Mode.AUTO, 0.5f, true);
+    private BufferedImage capture;
+    private BufferedImage whole;
+    private int[] wholePixels;
+    private int wholeBytes;
+    private int closeUpBytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        capture = new BufferedImage(CAPTURE_WIDTH, CAPTURE_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        capture.setRGB(0, 0, CAPTURE_WIDTH, CAPTURE_HEIGHT,
+                Fixtures.labelledScenePixels(CAPTURE_WIDTH, CAPTURE_HEIGHT, 8), 0, CAPTURE_WIDTH);
+        whole = scale(capture, MAX_SIZE, MAX_SIZE * CAPTURE_HEIGHT / CAPTURE_WIDTH);
+        wholePixels = whole.getRGB(0, 0, whole.getWidth(), whole.getHeight(), null, 0, whole.getWidth());
+        // Both sizes, whichever benchmark the trial runs
+        wholeFrame();
+        closeUp();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.printf(Locale.ROOT, "%npayload bytes: whole frame %d, close-up with thumbnail %d, region %s%n",
+                wholeBytes, closeUpBytes, auto.locate(wholePixels, whole.getWidth(), whole.getHeight()));
+        if (closeUpBytes > wholeBytes) {
+            throw new IllegalStateException("Close-up of " + closeUpBytes + " bytes is over the whole frame's "
+                    + wholeBytes);
+        }
+    }
+
+    /** Placing the region by edge density, on the upload-sized frame. */
+    @Benchmark
+    public RegionOfInterest.Region locateAuto() {
+        return auto.locate(wholePixels, whole.getWidth(), whole.getHeight());
+    }
+
+    @Benchmark
+    public RegionOfInterest.Region locateCentre() {
+        return centre.locate(wholePixels, whole.getWidth(), whole.getHeight());
+    }
+
+    /** Today's payload: the whole capture scaled to the tier and compressed. */
+    @Benchmark
+    public int wholeFrame() throws IOException {
+        BufferedImage scaled = scale(capture, MAX_SIZE, MAX_SIZE * CAPTURE_HEIGHT / CAPTURE_WIDTH);
+        wholeBytes = encode(scaled, QUALITY).length;
+        return wholeBytes;
+    }
+
+    /**
+     * The region from the full-resolution capture tiled with a thumbnail, then compressed
+     * within the whole frame's bytes, or the whole frame if it does not fit.
+     */
+    @Benchmark
+    public int closeUp() throws IOException {
+        RegionOfInterest.Region region = auto.locate(wholePixels, whole.getWidth(), whole.getHeight());
+        RegionOfInterest.Layout layout = auto.layout(CAPTURE_WIDTH, CAPTURE_HEIGHT, MAX_SIZE);
+        BufferedImage tiled = new BufferedImage(layout.width, layout.height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = tiled.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.setColor(Color.GRAY);
+        graphics.fillRect(0, 0, layout.width, layout.height);
+        int left = Math.round(region.left * CAPTURE_WIDTH);
+        int top = Math.round(region.top * CAPTURE_HEIGHT);
+        graphics.drawImage(capture, 0, 0, layout.cropWidth, layout.cropHeight,
+                left, top, left + Math.round(region.width * CAPTURE_WIDTH),
+                top + Math.round(region.height * CAPTURE_HEIGHT), null);
+        graphics.drawImage(whole, layout.thumbnailLeft, layout.thumbnailTop,
+                layout.thumbnailWidth, layout.thumbnailHeight, null);
+        graphics.dispose();
+        byte[] wholeJpeg = encode(whole, QUALITY);
+        byte[] closeUp = RegionOfInterest.fitCloseUp(wholeJpeg.length, QUALITY, quality -> encode(tiled, quality));
+        closeUpBytes = closeUp != null ? closeUp.length : wholeJpeg.length;
+        return closeUpBytes;
+    }
+
+    private static BufferedImage scale(BufferedImage source, int width, int height) {
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(source, 0, 0, width, height, null);
+        graphics.dispose();
+        return scaled;
+    }
+
+    private static byte[] encode(BufferedImage image, int quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality / 100f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32 * 1024);
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+}
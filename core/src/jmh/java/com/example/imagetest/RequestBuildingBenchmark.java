@@ -0,0 +1,62 @@
+package com.example.imagetest;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the JSON of each request, including a chat request that carries
+ * the conversation so far.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RequestBuildingBenchmark {
+
+    /** A conversation of a given length. */
+    @State(Scope.Thread)
+    public static class History {
+        @Param({"0", "10", "50"})
+        public int turns;
+
+        ConversationMemory conversation;
+        JSONObject head;
+
+        @Setup
+        public void setUp() throws JSONException {
+            // A budget big enough that nothing is trimmed, so the history size is what varies
+            conversation = new ConversationMemory(1_000_000, 1000, Long.MAX_VALUE);
+            for (int i = 0; i < turns; i++) {
+                conversation.addTurn(Fixtures.QUESTION + " (" + i + ")", i % 3 == 0, Fixtures.ANSWER, i);
+            }
+            head = ApiPayloads.chatRequestHead("gpt-4o", true);
+        }
+    }
+
+    @Benchmark
+    public String chatRequest(History history) throws JSONException {
+        JSONObject message = ApiPayloads.chatUserMessage(Fixtures.QUESTION, true, null);
+        return history.conversation.buildRequest(history.head, message,
+                ConversationMemory.imageTokens(512, 384, null));
+    }
+
+    @Benchmark
+    public String sttRequest() throws JSONException {
+        return ApiPayloads.speechRecognizeRequest("en-CA", "FLAC", Fixtures.SAMPLE_RATE);
+    }
+
+    @Benchmark
+    public String ttsRequest() throws JSONException {
+        return ApiPayloads.speechSynthesisRequest(
+                "That's a stop sign mounted on a metal pole at a street corner.", "en-CA", "FEMALE", "LINEAR16", 24000);
+    }
+}
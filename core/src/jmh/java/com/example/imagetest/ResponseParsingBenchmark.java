@@ -0,0 +1,75 @@
+package com.example.imagetest;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import okio.Buffer;
+
+/**
+ * Parsing each service's response: the streamed chat answer with sentence
+ * splitting, the TTS audio decoded out of its JSON, and the STT and non-streamed chat bodies.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResponseParsingBenchmark {
+
+    private byte[] chatStream;
+    private String chatResponse;
+    private byte[] ttsResponse;
+    private String sttResponse;
+    private final Buffer source = new Buffer();
+
+    @Setup
+    public void setUp() {
+        chatStream = Fixtures.chatStream(Fixtures.ANSWER);
+        chatResponse = Fixtures.chatResponse(Fixtures.ANSWER);
+        // About 3 s of 32 kbps MP3, a typical sentence
+        ttsResponse = Fixtures.ttsResponse(Fixtures.jpegLikeBytes(12 * 1024, 5));
+        sttResponse = Fixtures.sttResponse(Fixtures.QUESTION);
+    }
+
+    @Benchmark
+    public String chatStream(Blackhole blackhole) throws IOException, JSONException {
+        source.clear();
+        source.write(chatStream);
+        return ChatCompletionStream.read(source, new ChatCompletionStream.Listener() {
+            @Override
+            public void onDelta(String text) {
+                blackhole.consume(text);
+            }
+
+            @Override
+            public void onSentence(String sentence) {
+                blackhole.consume(sentence);
+            }
+        });
+    }
+
+    @Benchmark
+    public long ttsAudioContent() throws IOException {
+        source.clear();
+        source.write(ttsResponse);
+        return AudioContentExtractor.extract(source, Fixtures.NULL_OUTPUT);
+    }
+
+    @Benchmark
+    public String sttTranscript() throws JSONException {
+        return ApiPayloads.parseTranscript(sttResponse);
+    }
+
+    @Benchmark
+    public String chatContent() throws JSONException {
+        return ApiPayloads.parseChatContent(chatResponse);
+    }
+}
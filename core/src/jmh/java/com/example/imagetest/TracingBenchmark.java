@@ -0,0 +1,56 @@
+package com.example.imagetest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of latency tracing, which runs inline on every stage.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TracingBenchmark {
+
+    private static final InteractionTracer.Mark[] MARKS = InteractionTracer.Mark.values();
+
+    private final InteractionTracer tracer = new InteractionTracer(8);
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private long nextId = 1;
+    private long value = 1;
+
+    @Setup
+    public void setUp() {
+        tracer.begin(nextId);
+        tracer.mark(nextId, InteractionTracer.Mark.LLM_FIRST_TOKEN);
+        nextId++;
+    }
+
+    /** A whole interaction: begin plus every mark, each closing its spans. */
+    @Benchmark
+    public void interaction() {
+        long id = nextId++;
+        tracer.begin(id);
+        for (InteractionTracer.Mark mark : MARKS) {
+            tracer.mark(id, mark);
+        }
+    }
+
+    /** A mark that was already set, as for every streamed token after the first. */
+    @Benchmark
+    public void repeatedMark() {
+        tracer.mark(1, InteractionTracer.Mark.LLM_FIRST_TOKEN);
+    }
+
+    @Benchmark
+    public void histogramRecord() {
+        value = value * 6364136223846793005L + 1442695040888963407L;
+        histogram.record((value >>> 40) & 0xFFFFF);
+    }
+}
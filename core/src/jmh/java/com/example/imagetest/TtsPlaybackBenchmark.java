@@ -0,0 +1,209 @@
+package com.example.imagetest;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.ref.Reference;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * Playing a Google TTS answer fetched from a local mock TTS server that sends
+ * the response at a steady link rate, the way the app used to and the way it
+ * does now. The old path read the body as a String, parsed it into a
+ * JSONObject and base64-decoded the whole audioContent before the player got
+ * a byte; the new path decodes audioContent with {@link AudioContentExtractor}
+ * into the player as the body arrives.
+ *
+ * The score is the time to play the whole answer, and {@code -prof gc} gives
+ * the allocation per answer. Before each trial the path is run on its own to
+ * print the time to the first byte played, against the time the server takes
+ * to send the body, and the peak live heap above the idle heap while playing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TtsPlaybackBenchmark {
+
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+    // 24 kHz 16-bit LINEAR16, as the app asks for
+    private static final int AUDIO_BYTES_PER_SECOND = 48_000;
+    // About 5 Mbit/s
+    private static final int LINK_BYTES_PER_PERIOD = 32 * 1024;
+    private static final long LINK_PERIOD_MS = 50;
+    private static final int TIMING_RUNS = 5;
+
+    /** Seconds of speech in the answer: a short sentence, and a long paragraph. */
+    @Param({"3", "15"})
+    public int seconds;
+
+    private MockWebServer server;
+    private OkHttpClient client;
+    private Request request;
+    private byte[] ttsResponse;
+    private final Buffer ttsBody = new Buffer();
+    private int audioBytes;
+
+    /** The playback buffer: records when audio first reaches it, and the live heap if asked. */
+    private static final class Player extends OutputStream {
+        private final long startNanos = System.nanoTime();
+        private final boolean sampleHeap;
+        long firstByteNanos = -1;
+        long bytes;
+        long peakHeapBytes;
+
+        Player(boolean sampleHeap) {
+            this.sampleHeap = sampleHeap;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (firstByteNanos < 0) {
+                firstByteNanos = System.nanoTime() - startNanos;
+            }
+            bytes += len;
+            if (sampleHeap) {
+                peakHeapBytes = Math.max(peakHeapBytes, liveHeapBytes());
+                // Compiled code would otherwise let the audio go before the sample
+                Reference.reachabilityFence(b);
+            }
+        }
+    }
+
+    @Setup
+    public void setUp(BenchmarkParams params) throws IOException, JSONException {
+        byte[] audio = Fixtures.jpegLikeBytes(seconds * AUDIO_BYTES_PER_SECOND, 5);
+        audioBytes = audio.length;
+        ttsResponse = Fixtures.ttsResponse(audio);
+        ttsBody.write(ttsResponse);
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest recorded) {
+                // A copy shares the body's segments, so the server adds nothing to the heap being measured
+                return new MockResponse()
+                        .setBody(ttsBody.copy())
+                        .throttleBody(LINK_BYTES_PER_PERIOD, LINK_PERIOD_MS, TimeUnit.MILLISECONDS);
+            }
+        });
+        server.start();
+        client = new OkHttpClient();
+        request = new Request.Builder()
+                .url(server.url("/v1/text:synthesize"))
+                .post(RequestBody.create(ApiPayloads.speechSynthesisRequest(
+                        "Hello.", "en-US", "FEMALE", "LINEAR16", 24000), JSON))
+                .build();
+        // Before the first iteration, so none of it counts towards the gc profiler's figures
+        printFirstByteAndPeakHeap(params.getBenchmark().endsWith("oldPath"));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+        server.shutdown();
+    }
+
+    @Benchmark
+    public long oldPath() throws IOException, JSONException {
+        return play(true, false).bytes;
+    }
+
+    @Benchmark
+    public long newPath() throws IOException, JSONException {
+        return play(false, false).bytes;
+    }
+
+    private Player play(boolean old, boolean sampleHeap) throws IOException, JSONException {
+        Player player = new Player(sampleHeap);
+        try (Response response = client.newCall(request).execute()) {
+            if (old) {
+                // As speakWithGoogleCloudTTS did, with java.util.Base64 for android.util.Base64
+                String body = response.body().string();
+                JSONObject json = new JSONObject(body);
+                byte[] audio = Base64.getDecoder().decode(json.getString("audioContent"));
+                player.write(audio, 0, audio.length);
+                // It kept the body and the parsed JSON in scope while it wrote the audio out
+                Reference.reachabilityFence(body);
+                Reference.reachabilityFence(json);
+            } else {
+                AudioContentExtractor.extract(response.body().source(), player);
+            }
+        }
+        if (player.bytes != audioBytes) {
+            throw new IllegalStateException("Played " + player.bytes + " of " + audioBytes + " bytes");
+        }
+        return player;
+    }
+
+    private void printFirstByteAndPeakHeap(boolean old) throws IOException, JSONException {
+        long[] firstByteNanos = new long[TIMING_RUNS];
+        for (int i = 0; i < TIMING_RUNS; i++) {
+            firstByteNanos[i] = play(old, false).firstByteNanos;
+        }
+        Arrays.sort(firstByteNanos);
+        long bodyNanos = (long) Math.ceil((double) ttsResponse.length / LINK_BYTES_PER_PERIOD)
+                * TimeUnit.MILLISECONDS.toNanos(LINK_PERIOD_MS);
+
+        long idleHeapBytes = liveHeapBytes();
+        Player player = play(old, true);
+        System.out.printf(Locale.ROOT, "%n%s, %d s of speech (%d bytes of JSON): first byte played after %.0f ms "
+                        + "(median of %d), body sent over %.0f ms; peak live heap %d KB above idle%n",
+                old ? "old path" : "new path", seconds, ttsResponse.length,
+                firstByteNanos[TIMING_RUNS / 2] / 1e6, TIMING_RUNS, bodyNanos / 1e6,
+                (player.peakHeapBytes - idleHeapBytes) / 1024);
+    }
+
+    private static long liveHeapBytes() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        // Until it stops falling: what a closed socket held is only freed once its cleaner has run
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long now = memory.getHeapMemoryUsage().getUsed();
+            if (now >= used) {
+                break;
+            }
+            used = now;
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return used;
+    }
+}
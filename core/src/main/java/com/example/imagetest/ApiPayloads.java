@@ -0,0 +1,140 @@
+package com.example.imagetest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Builds the JSON bodies of the speech, chat and TTS requests and parses the
+ * responses that are not streamed.
+ *
+ * Binary payloads are never put in the JSON here: requests that carry audio or
+ * an image hold {@link Base64JsonRequestBody#PLACEHOLDER} instead, and the bytes
+ * are base64-encoded into the body as it is sent.
+ */
+public final class ApiPayloads {
+
+    private ApiPayloads() {
+    }
+
+    /**
+     * A Google STT recognize request for a recorded file.
+     *
+     * @param encoding   The STT encoding name, e.g. "FLAC".
+     * @param sampleRate The recording's sample rate in Hz.
+     */
+    public static String speechRecognizeRequest(String languageCode, String encoding, int sampleRate)
+            throws JSONException {
+        JSONObject config = new JSONObject();
+        config.put("languageCode", languageCode);
+        config.put("encoding", encoding);
+        config.put("sampleRateHertz", sampleRate);
+
+        JSONObject audio = new JSONObject();
+        audio.put("content", Base64JsonRequestBody.PLACEHOLDER);
+
+        JSONObject request = new JSONObject();
+        request.put("config", config);
+        request.put("audio", audio);
+        return request.toString();
+    }
+
+    /**
+     * Reads the best transcript from a Google STT recognize response.
+     *
+     * @return The transcript, or null if no speech was recognized.
+     */
+    public static String parseTranscript(String responseBody) throws JSONException {
+        JSONArray results = new JSONObject(responseBody).optJSONArray("results");
+        if (results == null || results.length() == 0) {
+            return null;
+        }
+        return results.getJSONObject(0)
+                .getJSONArray("alternatives")
+                .getJSONObject(0)
+                .getString("transcript");
+    }
+
+    /**
+     * The top-level fields of a chat request, without the messages.
+     */
+    public static JSONObject chatRequestHead(String model, boolean stream) throws JSONException {
+        JSONObject head = new JSONObject();
+        head.put("model", model);
+        if (stream) {
+            head.put("stream", true);
+        }
+        return head;
+    }
+
+    /**
+     * A user message for a chat request.
+     *
+     * @param withImage True to attach a JPEG, whose data URL holds the placeholder.
+     * @param detail    The image's detail hint, "low" or "high", or null for the service's choice.
+     *                  Low detail costs far fewer tokens.
+     */
+    public static JSONObject chatUserMessage(String question, boolean withImage, String detail)
+            throws JSONException {
+        JSONArray content = new JSONArray();
+        JSONObject text = new JSONObject();
+        text.put("type", "text");
+        text.put("text", question);
+        content.put(text);
+
+        if (withImage) {
+            JSONObject imageUrl = new JSONObject();
+            imageUrl.put("url", "data:image/jpeg;base64," + Base64JsonRequestBody.PLACEHOLDER);
+            if (detail != null) {
+                imageUrl.put("detail", detail);
+            }
+            JSONObject image = new JSONObject();
+            image.put("type", "image_url");
+            image.put("image_url", imageUrl);
+            content.put(image);
+        }
+
+        JSONObject message = new JSONObject();
+        message.put("role", "user");
+        message.put("content", content);
+        return message;
+    }
+
+    /**
+     * Reads the answer from a chat completion response that was not streamed.
+     */
+    public static String parseChatContent(String responseBody) throws JSONException {
+        return new JSONObject(responseBody)
+                .getJSONArray("choices")
+                .getJSONObject(0)
+                .getJSONObject("message")
+                .getString("content");
+    }
+
+    /**
+     * A Google Cloud TTS synthesize request.
+     *
+     * @param sampleRateHertz The sample rate to synthesize at, or 0 for the voice's own.
+     */
+    public static String speechSynthesisRequest(String text, String languageCode, String ssmlGender,
+                                                String audioEncoding, int sampleRateHertz) throws JSONException {
+        JSONObject input = new JSONObject();
+        input.put("text", text);
+
+        JSONObject voice = new JSONObject();
+        voice.put("languageCode", languageCode);
+        voice.put("ssmlGender", ssmlGender);
+
+        JSONObject audioConfig = new JSONObject();
+        audioConfig.put("audioEncoding", audioEncoding);
+        if (sampleRateHertz > 0) {
+            audioConfig.put("sampleRateHertz", sampleRateHertz);
+        }
+
+        JSONObject request = new JSONObject();
+        request.put("input", input);
+        request.put("voice", voice);
+        request.put("audioConfig", audioConfig);
+        return request.toString();
+    }
+}
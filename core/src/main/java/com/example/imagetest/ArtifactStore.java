@@ -0,0 +1,325 @@
+package com.example.imagetest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * A directory of files the app writes and may read back (captured images,
+ * recordings, synthesized speech), kept within a total size and a maximum age.
+ *
+ * Each file is written under a temporary name and renamed into place when
+ * committed, so a crash mid-write never leaves a truncated file under its
+ * real name; leftovers are deleted when the store loads. The index of
+ * committed files lives in memory, least recently used first, so lookups and
+ * commits never list the directory. It is rebuilt from the listing once, on
+ * the I/O executor, ordered by modification time; a file's modification time
+ * is set to when it was last committed or used, so the order and the ages
+ * survive restarts. Until loading finishes, files from earlier runs are
+ * simply not found.
+ *
+ * After each commit, files unused for longer than the maximum age are deleted
+ * on the I/O executor, then the least recently used until the total fits.
+ * Times are passed in by the caller, on a clock comparable with file
+ * modification times, so a test can drive the store with a simulated clock
+ * and a direct executor.
+ *
+ * Thread-safe.
+ */
+public class ArtifactStore {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final class Entry {
+        final long size;
+        long usedAtMs;
+
+        Entry(long size, long usedAtMs) {
+            this.size = size;
+            this.usedAtMs = usedAtMs;
+        }
+    }
+
+    private final File directory;
+    private final long maxBytes;
+    private final long maxAgeMs;
+    private final Executor ioExecutor;
+
+    // Guarded by "this"; name -> entry, least recently used first
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(64, 0.75f, true);
+    // Temporary files being written, which loading must not mistake for leftovers
+    private final Set<String> writing = new HashSet<>();
+    private long totalBytes = 0;
+    private long tempCounter = 0;
+    private boolean loaded = false;
+    private long evictedForAge = 0;
+    private long evictedForSize = 0;
+
+    /**
+     * @param directory  Where the files are kept; created if missing.
+     * @param maxBytes   Total size the files may take up.
+     * @param maxAgeMs   How long a file may go unused before it is deleted.
+     * @param ioExecutor Runs loading and eviction.
+     */
+    public ArtifactStore(File directory, long maxBytes, long maxAgeMs, Executor ioExecutor) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxAgeMs = maxAgeMs;
+        this.ioExecutor = ioExecutor;
+        ioExecutor.execute(this::load);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Where the file called {@code name} is kept once committed. Does no I/O.
+     */
+    public File file(String name) {
+        return new File(directory, name);
+    }
+
+    /**
+     * Whether a file called {@code name} is committed, as far as the index knows.
+     */
+    public synchronized boolean contains(String name) {
+        return index.containsKey(name);
+    }
+
+    /**
+     * Starts writing a file. Write to {@link Pending#file()}, then commit it to
+     * publish it under {@code name}, replacing any file of that name, or abort it.
+     */
+    public Pending create(String name) {
+        File temp;
+        synchronized (this) {
+            temp = new File(directory, name + "." + (tempCounter++) + TEMP_SUFFIX);
+            writing.add(temp.getName());
+        }
+        // Created here rather than at load, which may not have run yet
+        if (!directory.isDirectory()) {
+            directory.mkdirs();
+        }
+        return new Pending(name, temp);
+    }
+
+    /**
+     * Marks a file as used now, so it is evicted after files used less recently.
+     */
+    public void touch(String name, long nowMs) {
+        synchronized (this) {
+            Entry entry = index.get(name);
+            if (entry == null) {
+                return;
+            }
+            entry.usedAtMs = nowMs;
+        }
+        ioExecutor.execute(() -> file(name).setLastModified(nowMs));
+    }
+
+    /**
+     * Forgets a file, for one found missing, and deletes it if it is still there.
+     */
+    public void remove(String name) {
+        synchronized (this) {
+            Entry entry = index.remove(name);
+            if (entry == null) {
+                return;
+            }
+            totalBytes -= entry.size;
+        }
+        ioExecutor.execute(() -> {
+            synchronized (this) {
+                if (!index.containsKey(name)) { // unless committed again since
+                    file(name).delete();
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes, on the I/O executor, files unused for longer than the maximum age
+     * and then the least recently used until the total size fits.
+     */
+    public void trim(long nowMs) {
+        ioExecutor.execute(() -> evict(nowMs));
+    }
+
+    /**
+     * Returns a one-line summary of the store, for logging.
+     */
+    public synchronized String statsSummary() {
+        return "files=" + index.size()
+                + " size=" + totalBytes
+                + " evictedForAge=" + evictedForAge
+                + " evictedForSize=" + evictedForSize
+                + (loaded ? "" : " (loading)");
+    }
+
+    private void load() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            synchronized (this) {
+                loaded = true;
+            }
+            return;
+        }
+        File[] files = directory.listFiles();
+        List<File> found = new ArrayList<>();
+        List<File> leftovers = new ArrayList<>();
+        synchronized (this) {
+            for (File file : files != null ? files : new File[0]) {
+                String name = file.getName();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    if (!writing.contains(name)) {
+                        leftovers.add(file); // from a write that never finished
+                    }
+                } else if (!index.containsKey(name) && file.isFile()) {
+                    found.add(file);
+                }
+            }
+        }
+        for (File leftover : leftovers) {
+            leftover.delete();
+        }
+        long[] modified = new long[found.size()];
+        long[] sizes = new long[found.size()];
+        Integer[] order = new Integer[found.size()];
+        for (int i = 0; i < order.length; i++) {
+            modified[i] = found.get(i).lastModified();
+            sizes[i] = found.get(i).length();
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> modified[i]));
+        synchronized (this) {
+            // Files committed since startup were used more recently than any found here
+            LinkedHashMap<String, Entry> recent = new LinkedHashMap<>(index);
+            index.clear();
+            for (Integer i : order) {
+                String name = found.get(i).getName();
+                if (!recent.containsKey(name)) { // unless committed again while listing
+                    index.put(name, new Entry(sizes[i], modified[i]));
+                    totalBytes += sizes[i];
+                }
+            }
+            index.putAll(recent);
+            loaded = true;
+        }
+        // Ages wait for the next trim, which knows the time
+        evict(Long.MIN_VALUE);
+    }
+
+    private void commitEntry(String name, File temp, long nowMs) throws IOException {
+        long size = temp.length();
+        File target = file(name);
+        try {
+            if (size > maxBytes) {
+                temp.delete();
+                throw new IOException("Artifact " + name + " is larger than the store: " + size + " bytes");
+            }
+            synchronized (this) {
+                // Renamed under the lock, so a concurrent eviction of the old file can't delete the new one
+                if (!temp.renameTo(target)) {
+                    temp.delete();
+                    throw new IOException("Could not commit artifact " + name);
+                }
+                target.setLastModified(nowMs);
+                Entry previous = index.put(name, new Entry(size, nowMs));
+                if (previous != null) {
+                    totalBytes -= previous.size;
+                }
+                totalBytes += size;
+            }
+        } finally {
+            synchronized (this) {
+                writing.remove(temp.getName());
+            }
+        }
+        trim(nowMs);
+    }
+
+    private void evict(long nowMs) {
+        List<String> victims = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Map.Entry<String, Entry>> it = index.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Entry> eldest = it.next();
+                boolean expired = nowMs != Long.MIN_VALUE && nowMs - eldest.getValue().usedAtMs > maxAgeMs;
+                if (!expired && totalBytes <= maxBytes) {
+                    break; // in use order, so the rest are newer
+                }
+                if (expired) {
+                    evictedForAge++;
+                } else {
+                    evictedForSize++;
+                }
+                victims.add(eldest.getKey());
+                totalBytes -= eldest.getValue().size;
+                it.remove();
+            }
+            for (String victim : victims) {
+                // Deleted under the lock, so a commit can't rename a new file into place in between
+                file(victim).delete();
+            }
+        }
+    }
+
+    /**
+     * A file being written. Commit or abort it exactly once.
+     */
+    public final class Pending {
+        private final String name;
+        private final File temp;
+        private boolean done = false;
+
+        private Pending(String name, File temp) {
+            this.name = name;
+            this.temp = temp;
+        }
+
+        /** The temporary file to write to. */
+        public File file() {
+            return temp;
+        }
+
+        /**
+         * Publishes the file under its name. Close the file first, and sync it
+         * if it must survive a power loss.
+         *
+         * @return Where the file is now.
+         * @throws IOException If it could not be renamed into place or is larger than the store;
+         *                     the temporary file is deleted.
+         */
+        public File commit(long nowMs) throws IOException {
+            if (done) {
+                throw new IllegalStateException("Artifact " + name + " already committed or aborted");
+            }
+            done = true;
+            commitEntry(name, temp, nowMs);
+            return ArtifactStore.this.file(name);
+        }
+
+        /**
+         * Discards the file, e.g. because writing it failed part way.
+         */
+        public void abort() {
+            if (done) {
+                return;
+            }
+            done = true;
+            temp.delete();
+            synchronized (ArtifactStore.this) {
+                writing.remove(temp.getName());
+            }
+        }
+    }
+}
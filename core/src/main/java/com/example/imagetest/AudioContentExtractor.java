@@ -0,0 +1,85 @@
+package com.example.imagetest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+
+/**
+ * Pulls the base64 "audioContent" field out of a Google TTS synthesize response
+ * while it is still downloading, decoding it into an output stream as bytes
+ * arrive. The response is never held as text.
+ */
+public final class AudioContentExtractor {
+
+    private static final ByteString FIELD = ByteString.encodeUtf8("\"audioContent\"");
+    private static final int CHUNK_BYTES = 8192;
+
+    private AudioContentExtractor() {
+    }
+
+    /**
+     * Decodes the audioContent field of the response into {@code out}.
+     *
+     * @param source The response body.
+     * @param out    Receives the decoded audio, in pieces, as it arrives.
+     * @return The number of audio bytes written, or 0 if there was no audioContent field.
+     * @throws IOException If reading the response or writing the audio fails.
+     */
+    public static long extract(BufferedSource source, OutputStream out) throws IOException {
+        long fieldAt = source.indexOf(FIELD);
+        if (fieldAt < 0) {
+            return 0;
+        }
+        source.skip(fieldAt + FIELD.size());
+        // Skip the ':' and any whitespace up to the opening quote of the value.
+        long quoteAt = source.indexOf((byte) '"');
+        if (quoteAt < 0) {
+            return 0;
+        }
+        source.skip(quoteAt + 1);
+
+        Buffer buffer = source.getBuffer();
+        Base64Decoder decoder = new Base64Decoder();
+        byte[] chunk = new byte[CHUNK_BYTES];
+        byte[] decoded = new byte[Base64Decoder.maxDecodedLength(CHUNK_BYTES)];
+        long total = 0;
+        boolean escaped = false;
+        while (true) {
+            if (buffer.size() == 0 && !source.request(1)) {
+                throw new IOException("TTS response ended inside audioContent");
+            }
+            int available = (int) Math.min(buffer.size(), CHUNK_BYTES);
+            // Find the closing quote, ignoring an escaped one.
+            int end = -1;
+            for (int i = 0; i < available; i++) {
+                byte b = buffer.getByte(i);
+                if (escaped) {
+                    escaped = false;
+                } else if (b == '\\') {
+                    escaped = true;
+                } else if (b == '"') {
+                    end = i;
+                    break;
+                }
+            }
+            int take = end >= 0 ? end : available;
+            for (int read = 0; read < take; ) {
+                read += buffer.read(chunk, read, take - read);
+            }
+            int n = decoder.decode(chunk, 0, take, decoded, 0);
+            if (end >= 0) {
+                n += decoder.finish(decoded, n);
+            }
+            if (n > 0) {
+                out.write(decoded, 0, n);
+                total += n;
+            }
+            if (end >= 0) {
+                return total;
+            }
+        }
+    }
+}
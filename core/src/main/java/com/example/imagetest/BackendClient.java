@@ -0,0 +1,595 @@
+package com.example.imagetest;
+
+import org.json.JSONException;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * The STT, chat and TTS calls the assistant makes, against configurable
+ * endpoints. The app points it at the real services; the session simulator
+ * points the same code at local stand-in servers.
+ *
+ * Every call has a deadline, normally from a {@link LatencyBudget}, and
+ * failures from a degraded endpoint (network errors, timeouts, 5xx, 429) are
+ * retried with jittered backoff while the deadline allows. STT and TTS
+ * requests are idempotent, so one still unanswered after a high percentile
+ * of recent latencies is sent again and the first good response wins. Each
+ * endpoint has a {@link CircuitBreaker}; while it is open calls throw
+ * {@link CircuitBreaker.OpenException} at once, so the caller can fall back.
+ *
+ * Calls are synchronous and meant for pipeline threads. Each one is aborted
+ * when its {@link CancellationToken} is cancelled, and marks its progress on
+ * the tracer under the given trace id.
+ */
+public class BackendClient {
+
+    /** Retry, hedging and circuit breaker tuning; the defaults suit the app's backends. */
+    public static class Resilience {
+        /** Attempts per call, counting the first. */
+        public int maxAttempts = 3;
+        /** Backoff ceiling before the first retry, doubling each time; the wait is random up to it. */
+        public long retryBaseMs = 200;
+        public long retryMaxMs = 2000;
+        /** A hedged request is sent again once it has waited this percentile (0 to 100) of recent latencies. */
+        public double hedgePercentile = 95;
+        /** Latencies needed before the percentile is trusted; until then {@link #hedgeDefaultDelayMs} is used. */
+        public int hedgeMinSamples = 20;
+        public long hedgeDefaultDelayMs = 1500;
+        public long hedgeMinDelayMs = 50;
+        /** Consecutive failures that open an endpoint's circuit breaker. */
+        public int breakerFailureThreshold = 5;
+        public long breakerOpenMs = 15_000;
+    }
+
+    /** A response with an error status. */
+    public static final class HttpException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final int code;
+
+        HttpException(int code, String body) {
+            super(code + "\n" + body);
+            this.code = code;
+        }
+    }
+
+    /** Told how each chat request with an image went, to adapt the next image to the link. */
+    public interface UploadListener {
+        /**
+         * Called on the calling thread after an attempt that got its first token or missed its deadline.
+         *
+         * @param bodyBytes       The request body's size.
+         * @param uploadNanos     From the first body byte to the response headers; see {@link HttpTransport.UploadTiming}.
+         * @param firstTokenNanos From sending the request to the first token, or to the missed deadline.
+         * @param answered        False if the deadline passed first.
+         */
+        void onImageRequest(long bodyBytes, long uploadNanos, long firstTokenNanos, boolean answered);
+    }
+
+    private interface Attempt<T> {
+        T run(long timeoutMs) throws IOException, JSONException;
+    }
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    // Hedge delays follow this many recent latencies, so they adapt when the network changes
+    private static final int HEDGE_WINDOW = 500;
+
+    private final HttpTransport transport;
+    private final InteractionTracer tracer;
+    private final String sttUrl;
+    private final String chatUrl;
+    private final String chatAuthorization;
+    private final String ttsUrl;
+    private final Resilience resilience;
+
+    private final Map<HttpTransport.Endpoint, CircuitBreaker> breakers = new EnumMap<>(HttpTransport.Endpoint.class);
+    // Time to response headers of successful STT and TTS requests, in microseconds
+    private final Map<HttpTransport.Endpoint, LatencyHistogram> latencies = new EnumMap<>(HttpTransport.Endpoint.class);
+    // Cancels chat calls that miss their first-token deadline
+    private final ScheduledThreadPoolExecutor deadlines;
+
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong deadlinesMissed = new AtomicLong();
+    private volatile UploadListener uploadListener;
+
+    /**
+     * @param sttUrl            Google STT recognize URL, including the API key.
+     * @param chatUrl           Chat completions URL.
+     * @param chatAuthorization Authorization header for chat requests.
+     * @param ttsUrl            Google TTS synthesize URL, including the API key.
+     */
+    public BackendClient(HttpTransport transport, InteractionTracer tracer,
+                         String sttUrl, String chatUrl, String chatAuthorization, String ttsUrl) {
+        this(transport, tracer, sttUrl, chatUrl, chatAuthorization, ttsUrl, new Resilience());
+    }
+
+    public BackendClient(HttpTransport transport, InteractionTracer tracer,
+                         String sttUrl, String chatUrl, String chatAuthorization, String ttsUrl,
+                         Resilience resilience) {
+        this.transport = transport;
+        this.tracer = tracer;
+        this.sttUrl = sttUrl;
+        this.chatUrl = chatUrl;
+        this.chatAuthorization = chatAuthorization;
+        this.ttsUrl = ttsUrl;
+        this.resilience = resilience;
+        for (HttpTransport.Endpoint endpoint : HttpTransport.Endpoint.values()) {
+            breakers.put(endpoint, new CircuitBreaker(endpoint.name(),
+                    resilience.breakerFailureThreshold, resilience.breakerOpenMs));
+            latencies.put(endpoint, new LatencyHistogram());
+        }
+        deadlines = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "Backend Deadlines");
+            thread.setDaemon(true);
+            return thread;
+        });
+        deadlines.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Sets the listener told about each chat request that carries an image, or null for none.
+     */
+    public void setUploadListener(UploadListener listener) {
+        uploadListener = listener;
+    }
+
+    /**
+     * Whether calls to the endpoint would be made right now, rather than
+     * failing fast because its circuit breaker is open.
+     */
+    public boolean isAvailable(HttpTransport.Endpoint endpoint) {
+        return breakers.get(endpoint).isAvailable();
+    }
+
+    /**
+     * Transcribes a recording with Google STT.
+     *
+     * @param timeoutMs   Deadline for the transcript, across retries and hedges.
+     * @param requestBody A recognize request, usually a {@link Base64JsonRequestBody}
+     *                    around {@link ApiPayloads#speechRecognizeRequest}. It is sent
+     *                    more than once when retried or hedged.
+     * @return The transcript, or null if no speech was recognized.
+     */
+    public String recognize(CancellationToken token, long timeoutMs, RequestBody requestBody)
+            throws IOException, JSONException {
+        Request request = new Request.Builder()
+                .url(sttUrl)
+                .post(requestBody)
+                .build();
+
+        String responseBody = withRetries(HttpTransport.Endpoint.STT, token, timeoutMs, () -> true, remainingMs -> {
+            try (Response response = executeHedged(HttpTransport.Endpoint.STT, token, request, remainingMs)) {
+                return response.body().string();
+            }
+        });
+        return ApiPayloads.parseTranscript(responseBody);
+    }
+
+    /**
+     * Sends a chat completion request and passes the answer to {@code out} as it
+     * arrives. The request is retried only until the first token arrives.
+     *
+     * @param firstTokenTimeoutMs Deadline for the first token, across retries.
+     * @param requestJson         The request JSON.
+     * @param jpegBytes           Image bytes to base64-encode into the request in place of
+     *                            {@link Base64JsonRequestBody#PLACEHOLDER}, or null for none.
+     * @param stream              Whether the request asked for a streamed response.
+     * @return The complete answer.
+     */
+    public String chat(CancellationToken token, long traceId, long firstTokenTimeoutMs, String requestJson,
+                       byte[] jpegBytes, boolean stream, ChatCompletionStream.Listener out)
+            throws IOException, JSONException {
+        Request request = new Request.Builder()
+                .url(chatUrl)
+                .post(jpegBytes != null
+                        ? Base64JsonRequestBody.ofBytes(requestJson, jpegBytes)
+                        : RequestBody.create(requestJson, JSON)
+                )
+                .addHeader("Authorization", chatAuthorization)
+                .addHeader("Content-Type", "application/json")
+                .build();
+
+        long bodyBytes = request.body().contentLength();
+        AtomicBoolean answering = new AtomicBoolean();
+        AtomicLong firstTokenNanos = new AtomicLong();
+        ChatCompletionStream.Listener traced = new ChatCompletionStream.Listener() {
+            @Override
+            public void onDelta(String text) {
+                if (answering.compareAndSet(false, true)) {
+                    firstTokenNanos.set(System.nanoTime());
+                }
+                tracer.mark(traceId, InteractionTracer.Mark.LLM_FIRST_TOKEN); // only the first counts
+                out.onDelta(text);
+            }
+
+            @Override
+            public void onSentence(String sentence) {
+                out.onSentence(sentence);
+            }
+        };
+
+        // Once part of the answer has been shown and spoken, a retry would repeat it
+        return withRetries(HttpTransport.Endpoint.CHAT, token, firstTokenTimeoutMs, () -> !answering.get(), remainingMs -> {
+            UploadListener listener = jpegBytes != null ? uploadListener : null;
+            HttpTransport.UploadTiming upload = listener != null ? new HttpTransport.UploadTiming() : null;
+            Call call = transport.client(HttpTransport.Endpoint.CHAT).newCall(upload != null
+                    ? request.newBuilder().tag(HttpTransport.UploadTiming.class, upload).build()
+                    : request);
+            long sentNanos = System.nanoTime();
+            token.onCancel(call::cancel);
+            AtomicBoolean timedOut = new AtomicBoolean();
+            ScheduledFuture<?> deadline = deadlines.schedule(() -> {
+                if (!answering.get()) {
+                    timedOut.set(true);
+                    call.cancel();
+                }
+            }, remainingMs, TimeUnit.MILLISECONDS);
+            tracer.mark(traceId, InteractionTracer.Mark.LLM_REQUEST);
+            try (Response response = call.execute()) {
+                if (!response.isSuccessful()) {
+                    throw new HttpException(response.code(), response.body().string());
+                }
+                String content;
+                if (stream) {
+                    // Sentences can be spoken while the rest of the answer is still streaming in
+                    content = ChatCompletionStream.read(response.body().source(), traced);
+                } else {
+                    content = ApiPayloads.parseChatContent(response.body().string());
+                    traced.onDelta(content);
+                }
+                tracer.mark(traceId, InteractionTracer.Mark.LLM_COMPLETE);
+                return content;
+            } catch (IOException e) {
+                if (timedOut.get()) {
+                    if (upload != null) {
+                        listener.onImageRequest(bodyBytes, upload.uploadNanos(),
+                                System.nanoTime() - sentNanos, false);
+                    }
+                    throw deadlineMissed(HttpTransport.Endpoint.CHAT, remainingMs);
+                }
+                throw e;
+            } finally {
+                deadline.cancel(false);
+                if (upload != null && answering.get()) {
+                    listener.onImageRequest(bodyBytes, upload.uploadNanos(),
+                            firstTokenNanos.get() - sentNanos, true);
+                }
+            }
+        });
+    }
+
+    /**
+     * Synthesizes one segment with Google Cloud TTS, decoding the audio into
+     * {@code out} while the response is still downloading. The request is
+     * retried only until audio has been written.
+     *
+     * @param timeoutMs   Deadline for the response, across retries and hedges.
+     * @param requestJson A synthesize request from {@link ApiPayloads#speechSynthesisRequest}.
+     */
+    public void synthesize(CancellationToken token, long traceId, long timeoutMs, String requestJson,
+                           OutputStream out) throws IOException {
+        Request request = new Request.Builder()
+                .url(ttsUrl)
+                .post(RequestBody.create(requestJson, JSON))
+                .build();
+
+        AtomicBoolean written = new AtomicBoolean();
+        OutputStream audio = new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                written.set(true);
+                out.write(b, off, len);
+            }
+        };
+        try {
+            withRetries(HttpTransport.Endpoint.TTS, token, timeoutMs, () -> !written.get(), remainingMs -> {
+                try (Response response = executeHedged(HttpTransport.Endpoint.TTS, token, request, remainingMs)) {
+                    tracer.mark(traceId, InteractionTracer.Mark.TTS_FIRST_BYTE); // only the first response counts
+                    if (AudioContentExtractor.extract(response.body().source(), audio) == 0) {
+                        throw new IOException("No audioContent in TTS response.");
+                    }
+                    return null;
+                }
+            });
+        } catch (JSONException e) {
+            throw new AssertionError(e); // the attempt never parses JSON
+        }
+    }
+
+    /**
+     * Stops the deadline thread. Calls still waiting for their first token are no longer cut off.
+     */
+    public void shutdown() {
+        deadlines.shutdownNow();
+    }
+
+    /**
+     * Returns a one-line summary of retries, hedging, deadlines and the circuit breakers.
+     */
+    public String statsSummary() {
+        StringBuilder summary = new StringBuilder()
+                .append("attempts=").append(attempts.get())
+                .append(" retries=").append(retries.get())
+                .append(" hedges=").append(hedges.get())
+                .append(" hedgeWins=").append(hedgeWins.get())
+                .append(" deadlinesMissed=").append(deadlinesMissed.get());
+        for (CircuitBreaker breaker : breakers.values()) {
+            summary.append(' ').append(breaker.statsSummary());
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Runs attempts through the endpoint's circuit breaker until one succeeds,
+     * the failure is not worth retrying, or the deadline leaves no room for another.
+     *
+     * @param mayRetry Whether a failed attempt can still be repeated safely.
+     */
+    private <T> T withRetries(HttpTransport.Endpoint endpoint, CancellationToken token, long timeoutMs,
+                              BooleanSupplier mayRetry, Attempt<T> attempt)
+            throws IOException, JSONException {
+        CircuitBreaker breaker = breakers.get(endpoint);
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        for (int attemptNumber = 1; ; attemptNumber++) {
+            breaker.acquire();
+            attempts.incrementAndGet();
+            T result;
+            try {
+                result = attempt.run(Math.max(1, remainingMs(deadlineNanos)));
+            } catch (IOException e) {
+                if (token.isCancelled()) {
+                    breaker.onAbandoned();
+                    throw e;
+                }
+                boolean degraded = isDegraded(e);
+                if (degraded) {
+                    breaker.onFailure();
+                } else {
+                    breaker.onSuccess(); // the endpoint answered; the request was at fault
+                }
+                long backoffMs = backoffMs(attemptNumber);
+                if (!degraded || attemptNumber >= resilience.maxAttempts || !mayRetry.getAsBoolean()
+                        || remainingMs(deadlineNanos) <= backoffMs) {
+                    throw e;
+                }
+                retries.incrementAndGet();
+                if (!sleep(token, backoffMs)) {
+                    throw e;
+                }
+                continue;
+            } catch (JSONException e) {
+                breaker.onSuccess(); // the endpoint answered, just not in a form we understood
+                throw e;
+            } catch (RuntimeException e) {
+                breaker.onAbandoned();
+                throw e;
+            }
+            breaker.onSuccess();
+            return result;
+        }
+    }
+
+    /**
+     * Sends the request, and again if no response has arrived by the hedge
+     * delay. Returns the first successful response, cancelling the other.
+     *
+     * @throws HttpException If every request got an error status.
+     */
+    private Response executeHedged(HttpTransport.Endpoint endpoint, CancellationToken token, Request request,
+                                   long timeoutMs) throws IOException {
+        // Don't add load to an endpoint that is already struggling
+        long hedgeDelayMs = breakers.get(endpoint).getState() == CircuitBreaker.State.CLOSED
+                ? hedgeDelayMs(endpoint) : Long.MAX_VALUE;
+        HedgedCall hedged = new HedgedCall(endpoint, transport.client(endpoint), request);
+        token.onCancel(hedged::cancel);
+        return hedged.execute(timeoutMs, hedgeDelayMs);
+    }
+
+    private long hedgeDelayMs(HttpTransport.Endpoint endpoint) {
+        LatencyHistogram histogram = latencies.get(endpoint);
+        if (histogram.getCount() < resilience.hedgeMinSamples) {
+            return resilience.hedgeDefaultDelayMs;
+        }
+        return Math.max(resilience.hedgeMinDelayMs,
+                TimeUnit.MICROSECONDS.toMillis(histogram.getPercentile(resilience.hedgePercentile)));
+    }
+
+    /** One request and its hedge, if one is sent. */
+    private final class HedgedCall implements Callback {
+        private final HttpTransport.Endpoint endpoint;
+        private final OkHttpClient client;
+        private final Request request;
+
+        // Guarded by "this"
+        private final List<Call> calls = new ArrayList<>(2);
+        private final List<Long> startNanos = new ArrayList<>(2);
+        private int outstanding;
+        private Response winner;
+        private Call winningCall;
+        private IOException failure;
+        private boolean finished;
+        private boolean cancelled;
+
+        HedgedCall(HttpTransport.Endpoint endpoint, OkHttpClient client, Request request) {
+            this.endpoint = endpoint;
+            this.client = client;
+            this.request = request;
+        }
+
+        synchronized Response execute(long timeoutMs, long hedgeDelayMs) throws IOException {
+            long now = System.nanoTime();
+            long deadlineNanos = now + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            long hedgeAtNanos = hedgeDelayMs < timeoutMs
+                    ? now + TimeUnit.MILLISECONDS.toNanos(hedgeDelayMs) : Long.MAX_VALUE;
+            send();
+            try {
+                while (winner == null && outstanding > 0 && !cancelled) {
+                    now = System.nanoTime();
+                    if (now - deadlineNanos >= 0) {
+                        break;
+                    }
+                    if (calls.size() == 1 && now - hedgeAtNanos >= 0) {
+                        hedges.incrementAndGet();
+                        send();
+                        continue;
+                    }
+                    long wakeNanos = calls.size() == 1 ? Math.min(deadlineNanos, hedgeAtNanos) : deadlineNanos;
+                    TimeUnit.NANOSECONDS.timedWait(this, wakeNanos - now);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted");
+            } finally {
+                finished = true;
+                for (Call call : calls) {
+                    if (winner == null || call != winningCall) {
+                        call.cancel();
+                    }
+                }
+            }
+            if (winner != null) {
+                return winner;
+            }
+            if (cancelled) {
+                throw new IOException("Canceled");
+            }
+            if (outstanding == 0 && failure != null) {
+                throw failure;
+            }
+            throw deadlineMissed(endpoint, timeoutMs);
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            for (Call call : calls) {
+                call.cancel();
+            }
+            notifyAll();
+        }
+
+        // Holding the lock
+        private void send() {
+            Call call = client.newCall(request);
+            calls.add(call);
+            startNanos.add(System.nanoTime());
+            outstanding++;
+            call.enqueue(this);
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) {
+            IOException error = null;
+            if (!response.isSuccessful()) {
+                try (Response failed = response) {
+                    error = new HttpException(failed.code(), failed.body().string());
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            synchronized (this) {
+                outstanding--;
+                if (error == null && winner == null && !finished) {
+                    winner = response;
+                    winningCall = call;
+                    int index = calls.indexOf(call);
+                    if (index > 0) {
+                        hedgeWins.incrementAndGet();
+                    }
+                    record(endpoint, System.nanoTime() - startNanos.get(index));
+                    notifyAll();
+                    return;
+                }
+                if (error != null) {
+                    failure = error;
+                }
+                notifyAll();
+            }
+            if (error == null) {
+                response.close(); // lost the race
+            }
+        }
+
+        @Override
+        public void onFailure(Call call, IOException e) {
+            synchronized (this) {
+                outstanding--;
+                failure = e;
+                notifyAll();
+            }
+        }
+    }
+
+    private void record(HttpTransport.Endpoint endpoint, long nanos) {
+        LatencyHistogram histogram = latencies.get(endpoint);
+        if (histogram.getCount() >= HEDGE_WINDOW) {
+            histogram.reset();
+        }
+        histogram.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    private InterruptedIOException deadlineMissed(HttpTransport.Endpoint endpoint, long timeoutMs) {
+        deadlinesMissed.incrementAndGet();
+        return new InterruptedIOException(
+                endpoint.name() + " deadline of " + timeoutMs + "ms exceeded");
+    }
+
+    /** Network errors, timeouts and overload say the endpoint is degraded; other statuses don't. */
+    private static boolean isDegraded(IOException e) {
+        if (e instanceof HttpException) {
+            int code = ((HttpException) e).code;
+            return code >= 500 || code == 408 || code == 429;
+        }
+        return true;
+    }
+
+    private long backoffMs(int attemptNumber) {
+        long ceiling = Math.min(resilience.retryMaxMs, resilience.retryBaseMs << Math.min(attemptNumber - 1, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private static long remainingMs(long deadlineNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+    }
+
+    /**
+     * Waits before a retry.
+     *
+     * @return False if the query was cancelled meanwhile.
+     */
+    private static boolean sleep(CancellationToken token, long ms) throws InterruptedIOException {
+        CountDownLatch cancelled = new CountDownLatch(1);
+        token.onCancel(cancelled::countDown);
+        try {
+            return !cancelled.await(ms, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted");
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.imagetest;
+
+import java.util.Arrays;
+
+/**
+ * Incremental base64 decoder for text that arrives in arbitrary pieces, such as
+ * a JSON string field read straight off the socket.
+ *
+ * Input may be split anywhere, including inside a 4-character group or a JSON
+ * escape. JSON escapes are undone, so an escaped '/', whether written as a
+ * single-character or a unicode escape, is still a '/'. Whitespace, padding and
+ * escaped line breaks are skipped.
+ */
+public class Base64Decoder {
+
+    private static final int[] VALUES = new int[256];
+
+    static {
+        Arrays.fill(VALUES, -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            VALUES[alphabet.charAt(i)] = i;
+        }
+        // URL-safe variants decode to the same values.
+        VALUES['-'] = 62;
+        VALUES['_'] = 63;
+    }
+
+    private int bits;
+    private int count;
+    private boolean inEscape;
+    // Hex digits of a unicode escape still to come, and the character so far
+    private int unicodeDigits;
+    private int unicode;
+
+    /**
+     * Returns a safe output buffer size for decoding {@code len} input bytes.
+     */
+    public static int maxDecodedLength(int len) {
+        return len / 4 * 3 + 3;
+    }
+
+    /**
+     * Decodes the next piece of input.
+     *
+     * @return The number of bytes written to {@code dst}.
+     */
+    public int decode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        int d = dstOff;
+        int end = off + len;
+        for (int s = off; s < end; s++) {
+            int c = src[s] & 0xff;
+            if (unicodeDigits > 0) {
+                unicode = unicode << 4 | Character.digit(c, 16);
+                if (--unicodeDigits > 0) {
+                    continue;
+                }
+                c = unicode;
+                if (c < 0 || c > 0xff) {
+                    continue; // not a base64 character, or not hex
+                }
+            } else if (inEscape) {
+                inEscape = false;
+                if (c == 'u') {
+                    unicodeDigits = 4;
+                    unicode = 0;
+                    continue;
+                }
+                if (c != '/') {
+                    continue; // \n, \r and friends carry no data
+                }
+            } else if (c == '\\') {
+                inEscape = true;
+                continue;
+            }
+            int value = VALUES[c];
+            if (value < 0) {
+                continue; // whitespace or '=' padding
+            }
+            bits = bits << 6 | value;
+            if (++count == 4) {
+                dst[d++] = (byte) (bits >>> 16);
+                dst[d++] = (byte) (bits >>> 8);
+                dst[d++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        return d - dstOff;
+    }
+
+    /**
+     * Flushes a final group that arrived without padding.
+     *
+     * @return The number of bytes written to {@code dst}.
+     */
+    public int finish(byte[] dst, int dstOff) {
+        int d = dstOff;
+        if (count == 2) {
+            dst[d++] = (byte) (bits >>> 4);
+        } else if (count == 3) {
+            dst[d++] = (byte) (bits >>> 10);
+            dst[d++] = (byte) (bits >>> 2);
+        }
+        bits = 0;
+        count = 0;
+        return d - dstOff;
+    }
+}
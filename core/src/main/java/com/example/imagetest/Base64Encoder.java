@@ -0,0 +1,57 @@
+package com.example.imagetest;
+
+/**
+ * Standard (RFC 4648, padded, no line breaks) base64 encoding into caller-owned
+ * buffers, so large payloads can be encoded chunk by chunk without allocating.
+ */
+public final class Base64Encoder {
+
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+    private Base64Encoder() {
+    }
+
+    /**
+     * Returns the encoded length of {@code length} input bytes.
+     */
+    public static long encodedLength(long length) {
+        return (length + 2) / 3 * 4;
+    }
+
+    /**
+     * Encodes {@code len} bytes of {@code src} into {@code dst}.
+     * Only the final chunk of a stream may have a length that is not a multiple
+     * of 3; earlier chunks must be, or padding would appear mid-stream.
+     *
+     * @return The number of bytes written to {@code dst}.
+     */
+    public static int encode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        int end = off + len;
+        int fullEnd = off + len / 3 * 3;
+        int d = dstOff;
+        int s = off;
+        while (s < fullEnd) {
+            int bits = (src[s++] & 0xff) << 16 | (src[s++] & 0xff) << 8 | (src[s++] & 0xff);
+            dst[d++] = ALPHABET[(bits >>> 18) & 0x3f];
+            dst[d++] = ALPHABET[(bits >>> 12) & 0x3f];
+            dst[d++] = ALPHABET[(bits >>> 6) & 0x3f];
+            dst[d++] = ALPHABET[bits & 0x3f];
+        }
+        int remaining = end - s;
+        if (remaining == 1) {
+            int bits = (src[s] & 0xff) << 16;
+            dst[d++] = ALPHABET[(bits >>> 18) & 0x3f];
+            dst[d++] = ALPHABET[(bits >>> 12) & 0x3f];
+            dst[d++] = '=';
+            dst[d++] = '=';
+        } else if (remaining == 2) {
+            int bits = (src[s] & 0xff) << 16 | (src[s + 1] & 0xff) << 8;
+            dst[d++] = ALPHABET[(bits >>> 18) & 0x3f];
+            dst[d++] = ALPHABET[(bits >>> 12) & 0x3f];
+            dst[d++] = ALPHABET[(bits >>> 6) & 0x3f];
+            dst[d++] = '=';
+        }
+        return d - dstOff;
+    }
+}
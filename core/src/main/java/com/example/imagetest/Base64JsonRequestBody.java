@@ -0,0 +1,112 @@
+package com.example.imagetest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * A JSON request body with one large binary field (audio or an image) that is
+ * base64-encoded straight into the socket.
+ *
+ * The caller builds the small JSON envelope as usual with a placeholder string
+ * where the base64 text belongs. The envelope is split around the placeholder
+ * once, and the payload is streamed through fixed-size buffers, so memory use
+ * does not grow with the payload size and no String copy of the payload is
+ * ever made.
+ */
+public class Base64JsonRequestBody extends RequestBody {
+
+    /** Put this string in the JSON where the base64 payload should go. */
+    public static final String PLACEHOLDER = "@@BASE64_PAYLOAD@@";
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    // Must be a multiple of 3 so only the last chunk is padded.
+    private static final int CHUNK_BYTES = 3 * 4096;
+
+    private final byte[] prefix;
+    private final byte[] suffix;
+    private final File file;
+    private final byte[] bytes;
+    private final long payloadLength;
+
+    private Base64JsonRequestBody(String json, File file, byte[] bytes, long payloadLength) {
+        int at = json.indexOf(PLACEHOLDER);
+        if (at < 0) {
+            throw new IllegalArgumentException("JSON has no " + PLACEHOLDER + " placeholder");
+        }
+        this.prefix = json.substring(0, at).getBytes(StandardCharsets.UTF_8);
+        this.suffix = json.substring(at + PLACEHOLDER.length()).getBytes(StandardCharsets.UTF_8);
+        this.file = file;
+        this.bytes = bytes;
+        this.payloadLength = payloadLength;
+    }
+
+    /**
+     * Creates a body whose payload is read from a file each time it is written.
+     */
+    public static Base64JsonRequestBody ofFile(String json, File file) {
+        return new Base64JsonRequestBody(json, file, null, file.length());
+    }
+
+    /**
+     * Creates a body whose payload is an in-memory array. The array is not copied.
+     */
+    public static Base64JsonRequestBody ofBytes(String json, byte[] bytes) {
+        return new Base64JsonRequestBody(json, null, bytes, bytes.length);
+    }
+
+    @Override
+    public MediaType contentType() {
+        return JSON;
+    }
+
+    @Override
+    public long contentLength() {
+        return prefix.length + Base64Encoder.encodedLength(payloadLength) + suffix.length;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        sink.write(prefix);
+        byte[] encoded = new byte[CHUNK_BYTES / 3 * 4];
+        if (bytes != null) {
+            for (int off = 0; off < bytes.length; off += CHUNK_BYTES) {
+                int len = Math.min(CHUNK_BYTES, bytes.length - off);
+                sink.write(encoded, 0, Base64Encoder.encode(bytes, off, len, encoded, 0));
+            }
+        } else {
+            byte[] chunk = new byte[CHUNK_BYTES];
+            try (InputStream in = new FileInputStream(file)) {
+                long remaining = payloadLength;
+                while (remaining > 0) {
+                    int len = readFully(in, chunk, (int) Math.min(CHUNK_BYTES, remaining));
+                    sink.write(encoded, 0, Base64Encoder.encode(chunk, 0, len, encoded, 0));
+                    remaining -= len;
+                }
+            }
+        }
+        sink.write(suffix);
+    }
+
+    /**
+     * Fills the first {@code len} bytes of the buffer, so every chunk but the last is a multiple of 3.
+     */
+    private static int readFully(InputStream in, byte[] buffer, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int read = in.read(buffer, total, len - total);
+            if (read < 0) {
+                throw new IOException("Payload file shrank while uploading");
+            }
+            total += read;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.imagetest;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Equal-sized byte arrays handed out and taken back, so audio that streams
+ * through memory one answer after another reuses the same blocks instead of
+ * allocating fresh ones for every segment.
+ *
+ * At most {@code maxPooled} free arrays are kept; beyond that, returned ones
+ * are left to the garbage collector.
+ *
+ * Thread-safe.
+ */
+public final class BufferPool {
+
+    private final int bufferBytes;
+    private final int maxPooled;
+
+    // Guarded by "this"
+    private final ArrayDeque<byte[]> free = new ArrayDeque<>();
+    private long allocated;
+    private long reused;
+
+    /**
+     * @param bufferBytes The size of every array.
+     * @param maxPooled   Free arrays kept for reuse.
+     */
+    public BufferPool(int bufferBytes, int maxPooled) {
+        this.bufferBytes = bufferBytes;
+        this.maxPooled = maxPooled;
+    }
+
+    public int bufferBytes() {
+        return bufferBytes;
+    }
+
+    /**
+     * Returns a free array, or a new one if none is free. Its contents are undefined.
+     */
+    public synchronized byte[] acquire() {
+        byte[] buffer = free.pollFirst();
+        if (buffer != null) {
+            reused++;
+            return buffer;
+        }
+        allocated++;
+        return new byte[bufferBytes];
+    }
+
+    /**
+     * Takes back an array from {@link #acquire()}. The caller must not use it afterwards.
+     */
+    public synchronized void release(byte[] buffer) {
+        if (buffer.length == bufferBytes && free.size() < maxPooled) {
+            free.addFirst(buffer);
+        }
+    }
+
+    /**
+     * Returns a one-line summary of allocations and reuse.
+     */
+    public synchronized String statsSummary() {
+        return String.format(Locale.ROOT, "allocated=%d reused=%d free=%d (%dKiB each)",
+                allocated, reused, free.size(), bufferBytes / 1024);
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.imagetest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Cancels one query. Work that can be interrupted (HTTP calls, playback, the
+ * recognizer) registers a callback, and long-running loops check
+ * {@link #isCancelled()} between steps.
+ *
+ * Thread-safe. Callbacks run once, on the thread that cancels.
+ */
+public final class CancellationToken {
+
+    // Guarded by "this"
+    private boolean cancelled = false;
+    private List<Runnable> callbacks = new ArrayList<>();
+
+    /**
+     * Cancels, running every registered callback. Later calls do nothing.
+     */
+    public void cancel() {
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            toRun = callbacks;
+            callbacks = null;
+        }
+        for (Runnable callback : toRun) {
+            callback.run();
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Runs {@code callback} when this token is cancelled, or right away if it already is.
+     */
+    public void onCancel(Runnable callback) {
+        synchronized (this) {
+            if (!cancelled) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    /**
+     * @throws CancellationException If this token has been cancelled.
+     */
+    public void throwIfCancelled() {
+        if (isCancelled()) {
+            throw new CancellationException("Query cancelled");
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.imagetest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+import okio.BufferedSource;
+
+/**
+ * Reads a streamed chat completion ("stream": true) as server-sent events and
+ * reports the content deltas as they arrive.
+ *
+ * Each event is a "data: {json}" line holding choices[0].delta.content;
+ * the stream ends with "data: [DONE]" or when the server closes the body.
+ */
+public class ChatCompletionStream {
+
+    /** Callbacks run on the thread that calls {@link #read}. */
+    public interface Listener {
+        /** A new piece of the answer, in order. */
+        void onDelta(String text);
+
+        /** A complete sentence of the answer. */
+        void onSentence(String sentence);
+    }
+
+    private ChatCompletionStream() {
+    }
+
+    /**
+     * Consumes the event stream until it ends.
+     *
+     * @param source   The response body source.
+     * @param listener Receives deltas and finished sentences.
+     * @return The full answer text.
+     * @throws IOException   If the connection fails mid-stream.
+     * @throws JSONException If an event is not valid JSON.
+     */
+    public static String read(BufferedSource source, Listener listener) throws IOException, JSONException {
+        StringBuilder fullText = new StringBuilder();
+        SentenceSplitter splitter = new SentenceSplitter(listener::onSentence);
+
+        String line;
+        while ((line = source.readUtf8Line()) != null) {
+            if (!line.startsWith("data:")) {
+                continue; // blank separators, comments and other SSE fields
+            }
+            String data = line.substring(5).trim();
+            if (data.equals("[DONE]")) {
+                break;
+            }
+            JSONArray choices = new JSONObject(data).optJSONArray("choices");
+            if (choices == null || choices.length() == 0) {
+                continue;
+            }
+            JSONObject delta = choices.getJSONObject(0).optJSONObject("delta");
+            if (delta == null || delta.isNull("content")) {
+                continue;
+            }
+            String content = delta.getString("content");
+            if (content.isEmpty()) {
+                continue;
+            }
+            fullText.append(content);
+            listener.onDelta(content);
+            splitter.append(content);
+        }
+        splitter.flush();
+        return fullText.toString();
+    }
+}
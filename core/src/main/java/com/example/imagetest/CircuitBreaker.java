@@ -0,0 +1,125 @@
+package com.example.imagetest;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops calling an endpoint that keeps failing, so queries fail fast to a
+ * fallback instead of each waiting out its own timeouts.
+ *
+ * After {@code failureThreshold} consecutive failures the breaker opens and
+ * every {@link #acquire()} throws {@link OpenException}. Once {@code openMs}
+ * has passed it lets a single probe request through: if that succeeds the
+ * breaker closes again, and if it fails the breaker stays open for another
+ * {@code openMs}.
+ *
+ * Thread-safe.
+ */
+public final class CircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        /** Open, with one probe request allowed through. */
+        HALF_OPEN
+    }
+
+    /** Thrown instead of making a request while the breaker is open. */
+    public static final class OpenException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        OpenException(String name, long retryInMs) {
+            super(name + " is unavailable, retrying in " + TimeUnit.MILLISECONDS.toSeconds(retryInMs + 999) + "s");
+        }
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openNanos;
+
+    // Guarded by "this"
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAtNanos;
+    private boolean probeInFlight;
+    private long timesOpened;
+    private long rejected;
+
+    /**
+     * @param name             The endpoint, for messages.
+     * @param failureThreshold Consecutive failures that open the breaker.
+     * @param openMs           How long it stays open before probing.
+     */
+    public CircuitBreaker(String name, int failureThreshold, long openMs) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMs);
+    }
+
+    /**
+     * Call before each request, then report how it went with exactly one of
+     * {@link #onSuccess()}, {@link #onFailure()} or {@link #onAbandoned()}.
+     *
+     * @throws OpenException If the endpoint is degraded and the request should not be made.
+     */
+    public synchronized void acquire() throws OpenException {
+        if (state == State.CLOSED) {
+            return;
+        }
+        long waitedNanos = System.nanoTime() - openedAtNanos;
+        if (state == State.OPEN && waitedNanos >= openNanos) {
+            state = State.HALF_OPEN;
+        }
+        if (state == State.HALF_OPEN && !probeInFlight) {
+            probeInFlight = true;
+            return;
+        }
+        rejected++;
+        throw new OpenException(name, TimeUnit.NANOSECONDS.toMillis(Math.max(0, openNanos - waitedNanos)));
+    }
+
+    public synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        probeInFlight = false;
+        state = State.CLOSED;
+    }
+
+    public synchronized void onFailure() {
+        consecutiveFailures++;
+        probeInFlight = false;
+        if (state == State.HALF_OPEN || state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            if (state == State.CLOSED) {
+                timesOpened++;
+            }
+            state = State.OPEN;
+            openedAtNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * The request was cancelled before it said anything about the endpoint.
+     */
+    public synchronized void onAbandoned() {
+        probeInFlight = false;
+    }
+
+    /**
+     * Whether a request made now would be let through, without claiming the probe.
+     */
+    public synchronized boolean isAvailable() {
+        return state == State.CLOSED
+                || !probeInFlight && System.nanoTime() - openedAtNanos >= openNanos;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Returns a one-line summary of the breaker's state and history.
+     */
+    public synchronized String statsSummary() {
+        return name + "=" + state.name().toLowerCase(Locale.ROOT) + " opened=" + timesOpened + " rejected=" + rejected;
+    }
+}
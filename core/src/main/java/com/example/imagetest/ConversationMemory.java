@@ -0,0 +1,199 @@
+package com.example.imagetest;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+
+/**
+ * The recent turns of the conversation, attached to each chat request so
+ * follow-up questions keep their context.
+ *
+ * Each turn is serialised to JSON once, when it is added, and requests are
+ * assembled by concatenating those strings, so building a request never
+ * re-serialises the history. Images are never kept: a turn that had a photo is
+ * stored as text with a short "[photo]" note, and the assistant's reply that
+ * follows carries what was seen.
+ *
+ * A running token estimate is kept as turns are added and dropped. The oldest
+ * turns are dropped as soon as the history passes its budget, and a request
+ * leaves out further old turns if the new message would not fit alongside
+ * them. The conversation starts over after a period of silence.
+ *
+ * Thread-safe.
+ */
+public class ConversationMemory {
+
+    // Rough per-message overhead of the chat format, in tokens.
+    private static final int MESSAGE_OVERHEAD_TOKENS = 4;
+
+    // How the chat API prices an image: a flat base, plus a share per 512 px tile
+    // at high detail once the image is scaled to fit 2048 px and then to 768 px
+    // on its short side.
+    private static final int IMAGE_BASE_TOKENS = 85;
+    private static final int IMAGE_TILE_TOKENS = 170;
+    private static final int IMAGE_TILE_SIZE = 512;
+    private static final int IMAGE_MAX_SIZE = 2048;
+    private static final int IMAGE_SHORT_SIDE = 768;
+
+    private static final String PHOTO_NOTE = " [photo]";
+
+    private static final class Turn {
+        final String json; // the user and assistant messages, comma-separated
+        final int tokens;
+
+        Turn(String json, int tokens) {
+            this.json = json;
+            this.tokens = tokens;
+        }
+    }
+
+    private final int maxTokens;
+    private final int maxTurns;
+    private final long idleResetMs;
+
+    // Guarded by "this"; oldest first
+    private final ArrayDeque<Turn> turns = new ArrayDeque<>();
+    private int historyTokens = 0;
+    private long lastTurnMs = 0;
+
+    /**
+     * @param maxTokens   Token budget for the history plus the new message.
+     * @param maxTurns    Most turns to keep, whatever their size.
+     * @param idleResetMs Start a new conversation after this long without a turn.
+     */
+    public ConversationMemory(int maxTokens, int maxTurns, long idleResetMs) {
+        this.maxTokens = maxTokens;
+        this.maxTurns = maxTurns;
+        this.idleResetMs = idleResetMs;
+    }
+
+    /**
+     * A rough token count for English text: about four characters per token.
+     */
+    public static int estimateTokens(String text) {
+        return (text.length() + 3) / 4;
+    }
+
+    /**
+     * What an attached image costs, in tokens.
+     *
+     * @param detail The image's detail hint: "low", or "high" (or null, which
+     *               the API may treat as high) to be billed by the tile.
+     */
+    public static int imageTokens(int width, int height, String detail) {
+        if ("low".equals(detail)) {
+            return IMAGE_BASE_TOKENS;
+        }
+        double scale = Math.min(1, (double) IMAGE_MAX_SIZE / Math.max(width, height));
+        double shortSide = Math.min(width, height) * scale;
+        if (shortSide > IMAGE_SHORT_SIDE) {
+            scale *= IMAGE_SHORT_SIDE / shortSide;
+        }
+        int tilesWide = (int) Math.ceil(width * scale / IMAGE_TILE_SIZE);
+        int tilesHigh = (int) Math.ceil(height * scale / IMAGE_TILE_SIZE);
+        return IMAGE_BASE_TOKENS + IMAGE_TILE_TOKENS * tilesWide * tilesHigh;
+    }
+
+    /**
+     * Forgets the conversation if it has been idle too long.
+     *
+     * @return True if there is still history to send.
+     */
+    public synchronized boolean resetIfIdle(long nowMs) {
+        if (!turns.isEmpty() && nowMs - lastTurnMs > idleResetMs) {
+            clear();
+        }
+        return !turns.isEmpty();
+    }
+
+    /**
+     * Builds a chat request: {@code head} (model, options) with a "messages"
+     * array of the history that fits followed by {@code userMessage}.
+     *
+     * @param head        Top-level request fields; must not contain "messages".
+     * @param userMessage The new user message.
+     * @param imageTokens What the image in {@code userMessage} costs, from
+     *                    {@link #imageTokens}; 0 for a text-only message.
+     * @return The request JSON.
+     */
+    public String buildRequest(JSONObject head, JSONObject userMessage, int imageTokens) {
+        String headJson = head.toString();
+        String userJson = userMessage.toString();
+        int newTokens = estimateTokens(userJson) + MESSAGE_OVERHEAD_TOKENS + imageTokens;
+
+        synchronized (this) {
+            // Skip the oldest turns that don't fit next to the new message.
+            int available = maxTokens - newTokens;
+            int tokens = historyTokens;
+            int skip = 0;
+            for (Turn turn : turns) {
+                if (tokens <= available) {
+                    break;
+                }
+                tokens -= turn.tokens;
+                skip++;
+            }
+
+            StringBuilder json = new StringBuilder(headJson.length() + userJson.length() + tokens * 4 + 32);
+            json.append(headJson, 0, headJson.length() - 1); // drop the closing brace
+            if (headJson.length() > 2) {
+                json.append(',');
+            }
+            json.append("\"messages\":[");
+            int index = 0;
+            for (Turn turn : turns) {
+                if (index++ < skip) {
+                    continue;
+                }
+                json.append(turn.json).append(',');
+            }
+            json.append(userJson).append("]}");
+            return json.toString();
+        }
+    }
+
+    /**
+     * Records a finished exchange and drops the oldest turns beyond the budget.
+     *
+     * @param hadImage True if the question came with a photo; only a note of it is kept.
+     */
+    public void addTurn(String question, boolean hadImage, String answer, long nowMs) {
+        String json;
+        try {
+            JSONObject user = new JSONObject();
+            user.put("role", "user");
+            user.put("content", hadImage ? question + PHOTO_NOTE : question);
+            JSONObject assistant = new JSONObject();
+            assistant.put("role", "assistant");
+            assistant.put("content", answer);
+            json = user.toString() + "," + assistant.toString();
+        } catch (JSONException e) {
+            return; // only thrown for non-finite numbers, which we never put
+        }
+        Turn turn = new Turn(json, estimateTokens(json) + 2 * MESSAGE_OVERHEAD_TOKENS);
+
+        synchronized (this) {
+            turns.addLast(turn);
+            historyTokens += turn.tokens;
+            lastTurnMs = nowMs;
+            while (turns.size() > 1 && (historyTokens > maxTokens || turns.size() > maxTurns)) {
+                historyTokens -= turns.removeFirst().tokens;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        turns.clear();
+        historyTokens = 0;
+    }
+
+    public synchronized int getTurnCount() {
+        return turns.size();
+    }
+
+    /** The estimated size of the stored history, in tokens. */
+    public synchronized int getEstimatedTokens() {
+        return historyTokens;
+    }
+}
@@ -0,0 +1,447 @@
+package com.example.imagetest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A small streaming FLAC encoder for 16-bit mono PCM, fast enough to run on the
+ * capture thread as audio arrives.
+ *
+ * Each block of 4096 samples is coded with the best of the fixed polynomial
+ * predictors (orders 0-4) and partitioned Rice coding of the residual, falling
+ * back to a verbatim or constant subframe when that is smaller. This is the same
+ * approach as the reference encoder's fastest settings; LPC is not attempted.
+ *
+ * The stream is written front to back, so STREAMINFO leaves the total sample
+ * count, frame sizes and MD5 as "unknown", which the format allows. All buffers
+ * are allocated up front.
+ */
+public class FlacEncoder implements PcmEncoder {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_PARTITION_ORDER = 6;
+    // Rice parameter 15 is reserved as the escape code in RICE (4-bit) coding.
+    private static final int MAX_RICE_PARAMETER = 14;
+
+    private static final int[] CRC8_TABLE = new int[256];
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8_TABLE[i] = crc8 & 0xff;
+            CRC16_TABLE[i] = crc16 & 0xffff;
+        }
+    }
+
+    private final OutputStream out;
+    private final int sampleRate;
+    private final int[] samples = new int[BLOCK_SIZE];
+    private final int[][] residuals = new int[MAX_FIXED_ORDER + 1][BLOCK_SIZE];
+    private final long[] partitionSums = new long[1 << MAX_PARTITION_ORDER];
+    private final int[] riceParameters = new int[1 << MAX_PARTITION_ORDER];
+    private final long[] orderTotals = new long[MAX_FIXED_ORDER + 1];
+    private final BitWriter bits;
+
+    private int sampleCount = 0;
+    private int pendingByte = -1;
+    private long frameNumber = 0;
+    private long bytesWritten = 0;
+
+    public FlacEncoder(OutputStream out, int sampleRate) throws IOException {
+        this.out = out;
+        this.sampleRate = sampleRate;
+        // Worst case is a verbatim subframe plus header and footer; Rice coding
+        // is only kept when it comes out smaller, but may overshoot while trying.
+        this.bits = new BitWriter(BLOCK_SIZE * 8 + 64);
+        writeStreamHeader();
+    }
+
+    @Override
+    public Codec getCodec() {
+        return Codec.FLAC;
+    }
+
+    @Override
+    public void write(byte[] pcm, int offset, int length) throws IOException {
+        int end = offset + length;
+        int i = offset;
+        if (pendingByte >= 0 && i < end) {
+            addSample((short) (pendingByte | (pcm[i++] << 8)));
+            pendingByte = -1;
+        }
+        for (; i + 1 < end; i += 2) {
+            addSample((short) ((pcm[i] & 0xff) | (pcm[i + 1] << 8)));
+        }
+        if (i < end) {
+            pendingByte = pcm[i] & 0xff;
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        try {
+            if (sampleCount > 0) {
+                writeFrame(sampleCount);
+                sampleCount = 0;
+            }
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Bytes of FLAC written so far, including the stream header. */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    private void addSample(short sample) throws IOException {
+        samples[sampleCount++] = sample;
+        if (sampleCount == BLOCK_SIZE) {
+            writeFrame(BLOCK_SIZE);
+            sampleCount = 0;
+        }
+    }
+
+    private void writeStreamHeader() throws IOException {
+        bits.reset();
+        bits.write(0x664C6143L, 32); // "fLaC"
+        bits.write(1, 1);            // last metadata block
+        bits.write(0, 7);            // STREAMINFO
+        bits.write(34, 24);          // its length
+        bits.write(BLOCK_SIZE, 16);  // min block size
+        bits.write(BLOCK_SIZE, 16);  // max block size
+        bits.write(0, 24);           // min frame size, unknown
+        bits.write(0, 24);           // max frame size, unknown
+        bits.write(sampleRate, 20);
+        bits.write(0, 3);            // channels - 1
+        bits.write(15, 5);           // bits per sample - 1
+        bits.write(0, 36);           // total samples, unknown
+        for (int i = 0; i < 4; i++) {
+            bits.write(0, 32);       // MD5, unknown
+        }
+        flushBits();
+    }
+
+    private void writeFrame(int blockSize) throws IOException {
+        bits.reset();
+
+        // Frame header
+        bits.write(0x3FFE, 14);      // sync code
+        bits.write(0, 1);            // reserved
+        bits.write(0, 1);            // fixed block size
+        boolean standardBlock = blockSize == BLOCK_SIZE;
+        bits.write(standardBlock ? 12 : 7, 4); // 4096, or 16-bit size at end of header
+        bits.write(sampleRateCode(sampleRate), 4);
+        bits.write(0, 4);            // mono
+        bits.write(4, 3);            // 16 bits per sample
+        bits.write(0, 1);            // reserved
+        writeUtf8Number(frameNumber++);
+        if (!standardBlock) {
+            bits.write(blockSize - 1, 16);
+        }
+        bits.write(bits.crc8(), 8);
+
+        writeSubframe(blockSize);
+
+        bits.alignToByte();
+        bits.write(bits.crc16(), 16);
+        flushBits();
+    }
+
+    private void writeSubframe(int blockSize) {
+        boolean constant = true;
+        for (int i = 1; i < blockSize && constant; i++) {
+            constant = samples[i] == samples[0];
+        }
+        if (constant) {
+            bits.write(0, 8);        // CONSTANT
+            bits.write(samples[0], 16);
+            return;
+        }
+
+        int order = chooseFixedOrder(blockSize);
+        long verbatimBits = 8L + 16L * blockSize;
+        long start = bits.bitPosition();
+        if (order >= 0) {
+            writeFixedSubframe(order, blockSize);
+            if (bits.bitPosition() - start < verbatimBits) {
+                return;
+            }
+            bits.rewind(start);
+        }
+        bits.write(1 << 1, 8);       // VERBATIM
+        for (int i = 0; i < blockSize; i++) {
+            bits.write(samples[i], 16);
+        }
+    }
+
+    /**
+     * Computes the residual of each fixed predictor and returns the order with the
+     * smallest total magnitude, or -1 if the block is too short to predict.
+     */
+    private int chooseFixedOrder(int blockSize) {
+        int maxOrder = Math.min(MAX_FIXED_ORDER, blockSize - 1);
+        if (maxOrder < 0) {
+            return -1;
+        }
+        int[] r0 = residuals[0];
+        int[] r1 = residuals[1];
+        int[] r2 = residuals[2];
+        int[] r3 = residuals[3];
+        int[] r4 = residuals[4];
+        for (int i = 0; i < blockSize; i++) {
+            int s = samples[i];
+            r0[i] = s;
+            r1[i] = i >= 1 ? s - samples[i - 1] : 0;
+            r2[i] = i >= 2 ? r1[i] - r1[i - 1] : 0;
+            r3[i] = i >= 3 ? r2[i] - r2[i - 1] : 0;
+            r4[i] = i >= 4 ? r3[i] - r3[i - 1] : 0;
+        }
+        for (int order = 0; order <= maxOrder; order++) {
+            int[] r = residuals[order];
+            long total = 0;
+            for (int i = order; i < blockSize; i++) {
+                total += Math.abs(r[i]);
+            }
+            orderTotals[order] = total;
+        }
+        int best = 0;
+        for (int order = 1; order <= maxOrder; order++) {
+            if (orderTotals[order] < orderTotals[best]) {
+                best = order;
+            }
+        }
+        return best;
+    }
+
+    private void writeFixedSubframe(int order, int blockSize) {
+        bits.write(0, 1);            // padding
+        bits.write(0x08 | order, 6); // FIXED, 001xxx
+        bits.write(0, 1);            // no wasted bits
+        for (int i = 0; i < order; i++) {
+            bits.write(samples[i], 16);
+        }
+        int[] residual = residuals[order];
+        int partitionOrder = choosePartitionOrder(residual, order, blockSize);
+        int partitions = 1 << partitionOrder;
+        int partitionSize = blockSize >> partitionOrder;
+
+        bits.write(0, 2);            // RICE, 4-bit parameters
+        bits.write(partitionOrder, 4);
+        int i = order;
+        for (int p = 0; p < partitions; p++) {
+            int k = riceParameters[p];
+            bits.write(k, 4);
+            int end = (p + 1) * partitionSize;
+            for (; i < end; i++) {
+                int value = residual[i];
+                bits.writeRice((value << 1) ^ (value >> 31), k);
+            }
+        }
+    }
+
+    /**
+     * Picks the partition order with the smallest estimated size and leaves the
+     * matching Rice parameter of each partition in {@link #riceParameters}.
+     */
+    private int choosePartitionOrder(int[] residual, int order, int blockSize) {
+        int maxOrder = 0;
+        while (maxOrder < MAX_PARTITION_ORDER
+                && blockSize % (1 << (maxOrder + 1)) == 0
+                && (blockSize >> (maxOrder + 1)) > order) {
+            maxOrder++;
+        }
+
+        // Sums of the zigzag-coded residual at the finest partitioning.
+        int finest = 1 << maxOrder;
+        int finestSize = blockSize >> maxOrder;
+        for (int p = 0; p < finest; p++) {
+            long sum = 0;
+            for (int i = Math.max(p * finestSize, order); i < (p + 1) * finestSize; i++) {
+                int value = residual[i];
+                sum += (value << 1) ^ (value >> 31);
+            }
+            partitionSums[p] = sum;
+        }
+
+        int bestOrder = maxOrder;
+        long bestBits = Long.MAX_VALUE;
+        for (int po = maxOrder; po >= 0; po--) {
+            int partitions = 1 << po;
+            int size = blockSize >> po;
+            if (po < maxOrder) {
+                // Merge pairs of finer partitions in place.
+                for (int p = 0; p < partitions; p++) {
+                    partitionSums[p] = partitionSums[2 * p] + partitionSums[2 * p + 1];
+                }
+            }
+            long estimate = 0;
+            for (int p = 0; p < partitions; p++) {
+                int count = p == 0 ? size - order : size;
+                estimate += 4 + riceBits(partitionSums[p], count, riceParameter(partitionSums[p], count));
+            }
+            if (estimate < bestBits) {
+                bestBits = estimate;
+                bestOrder = po;
+            }
+        }
+
+        // The merge overwrote the sums; recompute the chosen partitioning's parameters.
+        int partitions = 1 << bestOrder;
+        int size = blockSize >> bestOrder;
+        for (int p = 0; p < partitions; p++) {
+            long sum = 0;
+            for (int i = Math.max(p * size, order); i < (p + 1) * size; i++) {
+                int value = residual[i];
+                sum += (value << 1) ^ (value >> 31);
+            }
+            riceParameters[p] = riceParameter(sum, p == 0 ? size - order : size);
+        }
+        return bestOrder;
+    }
+
+    /** The Rice parameter closest to optimal for values with the given mean. */
+    static int riceParameter(long sum, int count) {
+        int k = 0;
+        while (k < MAX_RICE_PARAMETER && ((long) count << (k + 1)) < sum) {
+            k++;
+        }
+        return k;
+    }
+
+    private static long riceBits(long sum, int count, int k) {
+        return (long) count * (k + 1) + (sum >> k);
+    }
+
+    private void writeUtf8Number(long value) {
+        if (value < 0x80) {
+            bits.write(value, 8);
+            return;
+        }
+        int extraBytes = value < 0x800 ? 1 : value < 0x10000 ? 2 : value < 0x200000 ? 3 : value < 0x4000000 ? 4 : 5;
+        int leading = (0xFF00 >> (extraBytes + 1)) & 0xFF;
+        bits.write(leading | (value >> (6 * extraBytes)), 8);
+        for (int i = extraBytes - 1; i >= 0; i--) {
+            bits.write(0x80 | ((value >> (6 * i)) & 0x3F), 8);
+        }
+    }
+
+    private static int sampleRateCode(int sampleRate) {
+        switch (sampleRate) {
+            case 8000: return 4;
+            case 16000: return 5;
+            case 22050: return 6;
+            case 24000: return 7;
+            case 32000: return 8;
+            case 44100: return 9;
+            case 48000: return 10;
+            default: return 0; // take it from STREAMINFO
+        }
+    }
+
+    private void flushBits() throws IOException {
+        int length = bits.byteLength();
+        out.write(bits.buffer(), 0, length);
+        bytesWritten += length;
+    }
+
+    /**
+     * A big-endian bit writer over a fixed buffer that can also checksum what it
+     * holds. Writes past the end only advance the position, so an oversized
+     * attempt can be measured and rewound.
+     */
+    private static final class BitWriter {
+        private final byte[] buffer;
+        private final long capacityBits;
+        private long position; // in bits
+
+        BitWriter(int capacity) {
+            buffer = new byte[capacity];
+            capacityBits = (long) capacity * 8;
+        }
+
+        void reset() {
+            position = 0;
+        }
+
+        long bitPosition() {
+            return position;
+        }
+
+        void rewind(long bitPosition) {
+            position = bitPosition;
+        }
+
+        byte[] buffer() {
+            return buffer;
+        }
+
+        int byteLength() {
+            return (int) ((position + 7) >> 3);
+        }
+
+        /** Writes the low {@code count} bits of value, most significant first. */
+        void write(long value, int count) {
+            if (position + count > capacityBits) {
+                position += count;
+                return;
+            }
+            while (count > 0) {
+                int index = (int) (position >> 3);
+                int used = (int) (position & 7);
+                int free = 8 - used;
+                int n = Math.min(free, count);
+                int chunk = (int) (value >>> (count - n)) & ((1 << n) - 1);
+                // Keep the bits already written to this byte; clear anything after them.
+                int kept = used == 0 ? 0 : buffer[index] & (0xFF00 >> used);
+                buffer[index] = (byte) (kept | (chunk << (free - n)));
+                position += n;
+                count -= n;
+            }
+        }
+
+        /** Writes value as a unary quotient and k-bit remainder. */
+        void writeRice(int value, int k) {
+            long quotient = (value & 0xFFFFFFFFL) >>> k;
+            if (position + quotient + 1 + k > capacityBits) {
+                position += quotient + 1 + k;
+                return;
+            }
+            while (quotient > 0) {
+                int n = (int) Math.min(quotient, 32);
+                write(0, n);
+                quotient -= n;
+            }
+            write(1, 1);
+            write(value, k);
+        }
+
+        void alignToByte() {
+            write(0, (int) (-position & 7));
+        }
+
+        int crc8() {
+            int crc = 0;
+            for (int i = 0, n = (int) (position >> 3); i < n; i++) {
+                crc = CRC8_TABLE[(crc ^ buffer[i]) & 0xff];
+            }
+            return crc;
+        }
+
+        int crc16() {
+            int crc = 0;
+            for (int i = 0, n = (int) (position >> 3); i < n; i++) {
+                crc = ((crc << 8) ^ CRC16_TABLE[((crc >> 8) ^ buffer[i]) & 0xff]) & 0xffff;
+            }
+            return crc;
+        }
+    }
+}
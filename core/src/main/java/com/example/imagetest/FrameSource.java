@@ -0,0 +1,39 @@
+package com.example.imagetest;
+
+import java.io.IOException;
+
+/**
+ * A stream of preview frames from a camera. Implemented by the real camera and
+ * by fakes, so the warm-session logic in {@link WarmCameraManager} can run
+ * without hardware.
+ */
+public interface FrameSource {
+
+    /** Receives frames on the source's own thread. */
+    interface FrameSink {
+        /**
+         * A new frame. The buffer belongs to the source again once it is passed to
+         * {@link FrameSource#recycle}; until then the source will not overwrite it.
+         */
+        void onFrame(byte[] data, int width, int height, long timestampNanos);
+    }
+
+    /**
+     * Opens the camera and starts delivering frames. Blocks until the preview is running.
+     *
+     * @param sink        Receives each frame.
+     * @param bufferCount How many frame buffers to cycle through.
+     * @throws IOException If the camera cannot be opened.
+     */
+    void open(FrameSink sink, int bufferCount) throws IOException;
+
+    /**
+     * Returns a frame buffer so the source can fill it again.
+     */
+    void recycle(byte[] buffer);
+
+    /**
+     * Stops the preview and releases the camera. Safe to call when not open.
+     */
+    void close();
+}
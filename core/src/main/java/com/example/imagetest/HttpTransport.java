@@ -0,0 +1,253 @@
+package com.example.imagetest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * The app's single HTTP stack. All STT, chat and TTS calls share one connection
+ * pool and dispatcher, so a query reuses warm HTTP/2 connections instead of paying
+ * for DNS and a TLS handshake at every stage.
+ *
+ * Each endpoint gets its own timeouts through {@link #client(Endpoint)}; the
+ * clients returned are cheap views over the same pool.
+ */
+public final class HttpTransport {
+
+    /** The backends we talk to, with the timeouts each one needs. */
+    public enum Endpoint {
+        STT(5, 20, 30),
+        CHAT(5, 30, 90), // streamed answers can be slow to finish
+        TTS(5, 15, 30);
+
+        final long connectTimeoutSec;
+        final long readTimeoutSec;
+        final long callTimeoutSec;
+
+        Endpoint(long connectTimeoutSec, long readTimeoutSec, long callTimeoutSec) {
+            this.connectTimeoutSec = connectTimeoutSec;
+            this.readTimeoutSec = readTimeoutSec;
+            this.callTimeoutSec = callTimeoutSec;
+        }
+    }
+
+    /**
+     * How long a request's body took to go out, for requests tagged with one.
+     * The upload is timed from the first body byte to the response headers,
+     * since bytes written into the socket's buffers have not been sent yet;
+     * the server's time to start responding is counted with it.
+     */
+    public static final class UploadTiming {
+        private volatile long bodyStartNanos;
+        private volatile long headersNanos;
+
+        /**
+         * Nanoseconds from the start of the body to the response headers, or
+         * to now if they haven't arrived; -1 if the body was never started.
+         */
+        public long uploadNanos() {
+            long start = bodyStartNanos;
+            if (start == 0) {
+                return -1;
+            }
+            long end = headersNanos;
+            return (end != 0 ? end : System.nanoTime()) - start;
+        }
+    }
+
+    // Don't re-warm an origin more often than this; idle connections live longer.
+    private static final long WARM_UP_INTERVAL_MS = 30_000;
+
+    /** Tags warm-up requests, which open connections but are not calls of their own. */
+    private static final class WarmUp {
+    }
+
+    private static final WarmUp WARM_UP = new WarmUp();
+
+    private static HttpTransport shared;
+
+    private final OkHttpClient base;
+    private final Map<Endpoint, OkHttpClient> endpointClients = new EnumMap<>(Endpoint.class);
+    private final Map<String, Long> lastWarmUpMs = new ConcurrentHashMap<>();
+
+    // Counters, updated from OkHttp's event callbacks
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong connectionsReused = new AtomicLong();
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong handshakeNanos = new AtomicLong();
+
+    /**
+     * Returns the transport shared by the whole app.
+     */
+    public static synchronized HttpTransport shared() {
+        if (shared == null) {
+            shared = new HttpTransport(new OkHttpClient.Builder());
+        }
+        return shared;
+    }
+
+    /**
+     * Builds a transport on top of the given builder, e.g. one trusting a local test certificate.
+     */
+    public HttpTransport(OkHttpClient.Builder builder) {
+        base = builder
+                .connectionPool(new ConnectionPool(5, 5, TimeUnit.MINUTES))
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .eventListenerFactory(call -> new StatsListener())
+                .build();
+        for (Endpoint endpoint : Endpoint.values()) {
+            endpointClients.put(endpoint, base.newBuilder()
+                    .connectTimeout(endpoint.connectTimeoutSec, TimeUnit.SECONDS)
+                    .readTimeout(endpoint.readTimeoutSec, TimeUnit.SECONDS)
+                    .writeTimeout(endpoint.readTimeoutSec, TimeUnit.SECONDS)
+                    .callTimeout(endpoint.callTimeoutSec, TimeUnit.SECONDS)
+                    .build());
+        }
+    }
+
+    /**
+     * Returns the client to use for calls to the given endpoint.
+     */
+    public OkHttpClient client(Endpoint endpoint) {
+        return endpointClients.get(endpoint);
+    }
+
+    /**
+     * Opens connections to the given origins in the background so the real
+     * requests find a connected, TLS-ready socket in the pool.
+     *
+     * @param origins Origin URLs such as "https://api.openai.com/".
+     */
+    public void warmUp(String... origins) {
+        long now = System.currentTimeMillis();
+        for (String origin : origins) {
+            Long last = lastWarmUpMs.get(origin);
+            if (last != null && now - last < WARM_UP_INTERVAL_MS) {
+                continue;
+            }
+            lastWarmUpMs.put(origin, now);
+            Request request = new Request.Builder().url(origin).head().tag(WarmUp.class, WARM_UP).build();
+            base.newCall(request).enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    // Next warm-up may try again; the real request will connect on its own.
+                    lastWarmUpMs.remove(origin);
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    // Any status will do; we only wanted the connection.
+                    response.close();
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns a one-line summary of connection reuse and handshake cost. Calls
+     * and reuse count only real requests; connections and handshakes include
+     * the ones warm-ups opened.
+     */
+    public String statsSummary() {
+        long handshakeCount = handshakes.get();
+        long averageHandshakeMs = handshakeCount == 0 ? 0
+                : TimeUnit.NANOSECONDS.toMillis(handshakeNanos.get() / handshakeCount);
+        return "calls=" + calls.get()
+                + " connectionsOpened=" + connectionsOpened.get()
+                + " connectionsReused=" + connectionsReused.get()
+                + " handshakes=" + handshakeCount
+                + " avgHandshake=" + averageHandshakeMs + "ms";
+    }
+
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    public long getConnectionsReused() {
+        return connectionsReused.get();
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    public long getHandshakeNanos() {
+        return handshakeNanos.get();
+    }
+
+    private class StatsListener extends EventListener {
+        private long handshakeStart;
+        // Whether this call connected a socket of its own, rather than taking one from the pool
+        private boolean connected;
+
+        @Override
+        public void callStart(Call call) {
+            if (call.request().tag(WarmUp.class) == null) {
+                calls.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+            // Counted once connected, so attempts that fail to connect are not
+            connectionsOpened.incrementAndGet();
+            connected = true;
+        }
+
+        @Override
+        public void secureConnectStart(Call call) {
+            handshakeStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectEnd(Call call, Handshake handshake) {
+            handshakes.incrementAndGet();
+            handshakeNanos.addAndGet(System.nanoTime() - handshakeStart);
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            if (!connected && call.request().tag(WarmUp.class) == null) {
+                connectionsReused.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void requestBodyStart(Call call) {
+            UploadTiming upload = call.request().tag(UploadTiming.class);
+            if (upload != null) {
+                upload.bodyStartNanos = System.nanoTime();
+            }
+        }
+
+        @Override
+        public void responseHeadersStart(Call call) {
+            UploadTiming upload = call.request().tag(UploadTiming.class);
+            if (upload != null && upload.headersNanos == 0) {
+                upload.headersNanos = System.nanoTime();
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.example.imagetest;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the size and JPEG quality of the image attached to each chat request
+ * so the first token arrives within a target, given how the link has been
+ * behaving.
+ *
+ * Every chat request with an image reports how long its body took to upload
+ * and how long the first token took. From those the controller keeps
+ * exponentially weighted averages of upload throughput and of the time the
+ * service takes once it has the request, and predicts each tier's first-token
+ * latency as that service time plus the tier's expected body size over the
+ * throughput. The largest tier predicted to make the target is chosen; when
+ * the link degrades, the predictions grow and smaller tiers win, down to the
+ * smallest, which is used even when it is predicted to miss.
+ *
+ * Questions about text ("what does this say?") may use the larger tiers,
+ * sent at high detail; others stop at the size the service's low-detail mode
+ * looks at anyway. Images are only ever scaled down, so once the capture's
+ * size is known no tier beyond the first that holds it is chosen, nor one
+ * whose image would take more of the conversation's tokens than allowed.
+ * Until requests have been measured, the assumed throughput and service time
+ * given to the constructor stand in.
+ *
+ * Thread-safe.
+ */
+public final class ImageQualityController implements BackendClient.UploadListener {
+
+    /** One size and quality an image can be sent at. */
+    public static final class Tier {
+        /** The long side of the uploaded image, in pixels. */
+        public final int maxSize;
+        /** JPEG quality, 0 to 100. */
+        public final int quality;
+        /** True if only questions about text may use this tier. */
+        public final boolean forText;
+        // Guarded by the controller; seeded with a typical camera scene's JPEG size
+        private double payloadBytes;
+        private long chosen;
+
+        Tier(int maxSize, int quality, boolean forText, int typicalBytes) {
+            this.maxSize = maxSize;
+            this.quality = quality;
+            this.forText = forText;
+            this.payloadBytes = typicalBytes;
+        }
+
+        @Override
+        public String toString() {
+            return maxSize + "px q" + quality;
+        }
+    }
+
+    // The service scales low-detail images to fit this square, so a larger one gains nothing there
+    private static final int LOW_DETAIL_MAX_SIZE = 512;
+    // Weight of each new sample in the averages
+    private static final double ALPHA = 0.3;
+    // The JSON around the base64 image: the question, the conversation so far
+    private static final int REQUEST_OVERHEAD_BYTES = 4 * 1024;
+    // Uploads quicker than this are timed as this long: below it the round trip dominates,
+    // so a small body can only show that the link is at least this fast
+    private static final long MIN_UPLOAD_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    // Words that make a question about reading text
+    private static final Set<String> TEXT_WORDS = new HashSet<>(Arrays.asList(
+            "read", "reading", "say", "says", "said", "text", "written", "writing", "word", "words",
+            "label", "labels", "sign", "menu", "price", "prices", "number", "numbers", "title",
+            "page", "spell", "ingredients", "instructions", "screen"));
+
+    private final long targetMs;
+    private final List<Tier> tiers; // smallest first
+
+    // Guarded by "this"
+    private double bytesPerMs;
+    private double serviceMs;
+    private double firstTokenMs = -1;
+    private long samples;
+    private long timeouts;
+    private long reworked;
+
+    /**
+     * @param targetMs              The first-token latency to aim for.
+     * @param assumedBytesPerSecond Upload throughput to assume before any request is measured.
+     * @param assumedServiceMs      Time from a complete upload to the first token, likewise.
+     */
+    public ImageQualityController(long targetMs, long assumedBytesPerSecond, long assumedServiceMs) {
+        this.targetMs = targetMs;
+        this.bytesPerMs = assumedBytesPerSecond / 1000.0;
+        this.serviceMs = assumedServiceMs;
+        this.tiers = Collections.unmodifiableList(Arrays.asList(
+                new Tier(256, 40, false, 8 * 1024),
+                new Tier(400, 50, false, 18 * 1024),
+                new Tier(512, 70, false, 40 * 1024),
+                new Tier(768, 75, true, 80 * 1024),
+                new Tier(1024, 80, true, 140 * 1024)));
+    }
+
+    /**
+     * The {@code detail} hint for an image whose long side is {@code longSide}:
+     * "low" up to the size low detail covers, "high" beyond it.
+     */
+    public static String detailFor(int longSide) {
+        return longSide <= LOW_DETAIL_MAX_SIZE ? "low" : "high";
+    }
+
+    /**
+     * Whether a question is about reading text, which needs a sharper image.
+     */
+    public static boolean readsText(String question) {
+        for (String word : ResponseCache.normalize(question).split(" ")) {
+            if (TEXT_WORDS.contains(word)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the tier to send an image at now, before the capture's size is known.
+     *
+     * @param readsText True to allow the tiers meant for reading text.
+     */
+    public Tier choose(boolean readsText) {
+        return choose(readsText, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the tier to send a capture of the given size at now.
+     *
+     * @param readsText      True to allow the tiers meant for reading text.
+     * @param maxImageTokens The most the image may cost in the request, as
+     *                       {@link ConversationMemory#imageTokens} counts it.
+     *                       The smallest tier is chosen even if it costs more.
+     */
+    public synchronized Tier choose(boolean readsText, int sourceWidth, int sourceHeight, int maxImageTokens) {
+        Tier choice = tiers.get(0);
+        for (Tier tier : tiers) {
+            if (tier.forText && !readsText
+                    || tier != tiers.get(0) && imageTokens(tier, sourceWidth, sourceHeight) > maxImageTokens) {
+                break;
+            }
+            if (predictedMs(tier) <= targetMs) {
+                choice = tier;
+            }
+            if (tier.maxSize >= Math.max(sourceWidth, sourceHeight)) {
+                break; // the capture as it is; larger tiers would send the same image
+            }
+        }
+        choice.chosen++;
+        return choice;
+    }
+
+    /**
+     * What a capture of the given size costs in a request once scaled down to {@code tier}.
+     */
+    static int imageTokens(Tier tier, int sourceWidth, int sourceHeight) {
+        double scale = Math.min(1, (double) tier.maxSize / Math.max(sourceWidth, sourceHeight));
+        int width = (int) Math.round(sourceWidth * scale);
+        int height = (int) Math.round(sourceHeight * scale);
+        return ConversationMemory.imageTokens(width, height, detailFor(Math.max(width, height)));
+    }
+
+    /**
+     * The first-token latency a request with an image of {@code tier} is expected to have.
+     */
+    public synchronized long predictedMs(Tier tier) {
+        double bodyBytes = tier.payloadBytes * 4 / 3 + REQUEST_OVERHEAD_BYTES;
+        return Math.round(serviceMs + bodyBytes / bytesPerMs);
+    }
+
+    /**
+     * Reports the size of a JPEG freshly encoded at {@code tier}, so its expected upload follows the scenes seen.
+     */
+    public synchronized void onEncoded(Tier tier, int jpegBytes) {
+        tier.payloadBytes += ALPHA * (jpegBytes - tier.payloadBytes);
+    }
+
+    /**
+     * Counts an image prepared at one tier and prepared again at another, once the question was known.
+     */
+    public synchronized void onReworked() {
+        reworked++;
+    }
+
+    @Override
+    public synchronized void onImageRequest(long bodyBytes, long uploadNanos, long firstTokenNanos, boolean answered) {
+        if (!answered) {
+            timeouts++;
+        }
+        samples++;
+        double totalMs = firstTokenNanos / 1e6;
+        firstTokenMs = firstTokenMs < 0 ? totalMs : firstTokenMs + ALPHA * (totalMs - firstTokenMs);
+        if (uploadNanos >= 0) {
+            bytesPerMs += ALPHA * (bodyBytes / (Math.max(uploadNanos, MIN_UPLOAD_NANOS) / 1e6) - bytesPerMs);
+        }
+        if (answered) {
+            // A missed deadline says nothing about the service once the upload was done
+            double afterUploadMs = Math.max(0, totalMs - uploadNanos / 1e6);
+            serviceMs += ALPHA * (afterUploadMs - serviceMs);
+        }
+    }
+
+    /**
+     * Returns a one-line summary: the link estimates, the predicted latency of each tier and how often it was chosen.
+     */
+    public synchronized String statsSummary() {
+        StringBuilder summary = new StringBuilder(String.format(Locale.ROOT,
+                "target=%dms samples=%d timeouts=%d throughput=%.0fKiB/s service=%.0fms firstToken=%.0fms reworked=%d tiers:",
+                targetMs, samples, timeouts, bytesPerMs * 1000 / 1024, serviceMs, Math.max(0, firstTokenMs), reworked));
+        for (Tier tier : tiers) {
+            summary.append(String.format(Locale.ROOT, " %s(%dKiB, %dms)=%d",
+                    tier, Math.round(tier.payloadBytes / 1024), predictedMs(tier), tier.chosen));
+        }
+        return summary.toString();
+    }
+}
@@ -0,0 +1,269 @@
+package com.example.imagetest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Traces where the time goes in each interaction, from the tap to the first
+ * word heard.
+ *
+ * An interaction is identified by its query ID. Code along the way calls
+ * {@link #mark} as it reaches each {@link Mark}. Times come from the monotonic
+ * clock, and only the first time a mark is reached counts. Each {@link Span}
+ * runs between two marks; when both are set, the span's duration goes into
+ * that span's {@link LatencyHistogram}, which holds p50/p95/p99 across all
+ * interactions.
+ *
+ * Everything is allocated up front. The most recent interactions live in a
+ * fixed ring of slots; marks for an interaction that has fallen out of the ring
+ * are ignored. Marking takes one uncontended lock and never allocates. Its own
+ * cost is measured too and reported as the tracer's overhead.
+ *
+ * Thread-safe.
+ */
+public class InteractionTracer {
+
+    /** An ID that is never traced, for work outside any interaction. */
+    public static final long NO_TRACE = 0;
+
+    /** A point an interaction reaches. */
+    public enum Mark {
+        TAP,
+        CAPTURE_REQUEST,
+        CAMERA_OPENED,
+        FRAME_CAPTURED,
+        RECORD_START,
+        RECORD_STOP,
+        STT_REQUEST,
+        STT_RESPONSE,
+        LLM_REQUEST,
+        LLM_FIRST_TOKEN,
+        LLM_COMPLETE,
+        TTS_REQUEST,
+        TTS_FIRST_BYTE,
+        PLAYBACK_START
+    }
+
+    /** A timed stretch of an interaction. */
+    public enum Span {
+        /** Opening a cold camera until its first settled frame. */
+        CAMERA_OPEN(Mark.CAPTURE_REQUEST, Mark.CAMERA_OPENED),
+        SHUTTER(Mark.CAPTURE_REQUEST, Mark.FRAME_CAPTURED),
+        RECORD(Mark.RECORD_START, Mark.RECORD_STOP),
+        /** End of speech to the VAD's endpoint, in audio time; reported with {@link #record}. */
+        VAD_ENDPOINT(null, null),
+        STT(Mark.STT_REQUEST, Mark.STT_RESPONSE),
+        LLM_FIRST_TOKEN(Mark.LLM_REQUEST, Mark.LLM_FIRST_TOKEN),
+        LLM_COMPLETE(Mark.LLM_REQUEST, Mark.LLM_COMPLETE),
+        TTS_FIRST_BYTE(Mark.TTS_REQUEST, Mark.TTS_FIRST_BYTE),
+        PLAYBACK_START(Mark.TTS_REQUEST, Mark.PLAYBACK_START),
+        RECORD_STOP_TO_AUDIO(Mark.RECORD_STOP, Mark.PLAYBACK_START),
+        TAP_TO_AUDIO(Mark.TAP, Mark.PLAYBACK_START);
+
+        final Mark from;
+        final Mark to;
+
+        Span(Mark from, Mark to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private static final Mark[] MARKS = Mark.values();
+    private static final Span[] SPANS = Span.values();
+    // For each mark, the spans that end there
+    private static final Span[][] SPANS_ENDING_AT = new Span[MARKS.length][];
+
+    static {
+        for (Mark mark : MARKS) {
+            List<Span> ending = new ArrayList<>();
+            for (Span span : SPANS) {
+                if (span.to == mark) {
+                    ending.add(span);
+                }
+            }
+            SPANS_ENDING_AT[mark.ordinal()] = ending.toArray(new Span[0]);
+        }
+    }
+
+    private static final class Trace {
+        long id = NO_TRACE;
+        final long[] markNanos = new long[MARKS.length]; // 0 = not reached
+        final long[] spanMicros = new long[SPANS.length]; // -1 = not measured
+    }
+
+    private final Trace[] slots;
+    private final LatencyHistogram[] histograms = new LatencyHistogram[SPANS.length];
+    private final LatencyHistogram overheadNanos = new LatencyHistogram();
+
+    /**
+     * @param capacity How many interactions can be in progress at once.
+     */
+    public InteractionTracer(int capacity) {
+        slots = new Trace[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Trace();
+        }
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Starts tracing an interaction and marks its {@link Mark#TAP}. Replaces
+     * the oldest interaction if every slot is in use.
+     *
+     * @param id A positive ID, unique per interaction, e.g. the query ID.
+     */
+    public void begin(long id) {
+        if (id == NO_TRACE) {
+            return;
+        }
+        Trace trace = slotOf(id);
+        synchronized (trace) {
+            trace.id = id;
+            Arrays.fill(trace.markNanos, 0);
+            Arrays.fill(trace.spanMicros, -1);
+        }
+        mark(id, Mark.TAP);
+    }
+
+    /**
+     * Records that interaction {@code id} reached {@code mark} now. Later
+     * calls for the same mark are ignored, so this can be called for every
+     * streamed token to catch the first one. Does nothing for {@link #NO_TRACE}
+     * or an interaction no longer traced.
+     */
+    public void mark(long id, Mark mark) {
+        long now = System.nanoTime();
+        setMark(id, mark, now, now);
+    }
+
+    /**
+     * Like {@link #mark}, for a mark reached at {@code atNanos}, a
+     * {@link System#nanoTime()} reading, when it is only known afterwards;
+     * for example when audio handed to the hardware was actually heard.
+     */
+    public void markAt(long id, Mark mark, long atNanos) {
+        setMark(id, mark, atNanos, System.nanoTime());
+    }
+
+    private void setMark(long id, Mark mark, long atNanos, long callNanos) {
+        if (id == NO_TRACE) {
+            return;
+        }
+        Trace trace = slotOf(id);
+        synchronized (trace) {
+            if (trace.id != id || trace.markNanos[mark.ordinal()] != 0) {
+                return;
+            }
+            trace.markNanos[mark.ordinal()] = atNanos;
+            for (Span span : SPANS_ENDING_AT[mark.ordinal()]) {
+                long from = trace.markNanos[span.from.ordinal()];
+                if (from != 0) {
+                    long micros = (atNanos - from) / 1000;
+                    trace.spanMicros[span.ordinal()] = micros;
+                    histograms[span.ordinal()].record(micros);
+                }
+            }
+        }
+        overheadNanos.record(System.nanoTime() - callNanos);
+    }
+
+    /**
+     * Records a span measured some other way, such as in audio time.
+     */
+    public void record(long id, Span span, long micros) {
+        if (id == NO_TRACE) {
+            return;
+        }
+        Trace trace = slotOf(id);
+        synchronized (trace) {
+            if (trace.id != id || trace.spanMicros[span.ordinal()] >= 0) {
+                return;
+            }
+            trace.spanMicros[span.ordinal()] = micros;
+        }
+        histograms[span.ordinal()].record(micros);
+    }
+
+    /**
+     * The distribution of one span across interactions, in microseconds.
+     */
+    public LatencyHistogram getHistogram(Span span) {
+        return histograms[span.ordinal()];
+    }
+
+    /**
+     * The cost of each {@link #mark} call, in nanoseconds.
+     */
+    public LatencyHistogram getOverheadHistogram() {
+        return overheadNanos;
+    }
+
+    /**
+     * One interaction's spans in milliseconds, for a log line. Allocates; not for hot paths.
+     */
+    public String describe(long id) {
+        StringBuilder line = new StringBuilder("#").append(id);
+        Trace trace = slotOf(id);
+        synchronized (trace) {
+            if (trace.id != id) {
+                return line.append(" (no longer traced)").toString();
+            }
+            for (Span span : SPANS) {
+                long micros = trace.spanMicros[span.ordinal()];
+                if (micros >= 0) {
+                    line.append(' ').append(span.name().toLowerCase(Locale.ROOT)).append('=')
+                            .append(String.format(Locale.ROOT, "%.1f", micros / 1000.0)).append("ms");
+                }
+            }
+        }
+        return line.toString();
+    }
+
+    /**
+     * Per-span percentiles in milliseconds and the tracer's own overhead, one
+     * line each. Allocates; not for hot paths.
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        for (Span span : SPANS) {
+            LatencyHistogram histogram = histograms[span.ordinal()];
+            if (histogram.getCount() > 0) {
+                report.append(span.name().toLowerCase(Locale.ROOT)).append(" ms: ")
+                        .append(histogram.summary(1000)).append('\n');
+            }
+        }
+        report.append("tracer overhead ns/mark: ").append(overheadNanos.summary(1)).append('\n');
+        return report.toString();
+    }
+
+    /**
+     * Writes {@link #report()} to a file, replacing it atomically.
+     */
+    public void writeReport(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(report().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    private Trace slotOf(long id) {
+        return slots[(int) Math.floorMod(id, (long) slots.length)];
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.imagetest;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long the user should wait between the end of their question and the
+ * start of the spoken answer, split into deadlines for the network stages on
+ * the way: the transcript, the first chat token and the first TTS audio.
+ *
+ * Each stage gets its own allowance, capped by what is left of the overall
+ * budget when it starts, so a slow transcript leaves less time for the rest
+ * instead of pushing the answer further out. A stage always gets at least
+ * the minimum, so a spent budget still allows one quick attempt.
+ */
+public final class LatencyBudget {
+
+    private final long totalMs;
+    private final long minStageMs;
+    private final Map<HttpTransport.Endpoint, Long> stageMs = new EnumMap<>(HttpTransport.Endpoint.class);
+
+    /**
+     * @param totalMs        From the end of recording to the first audio.
+     * @param sttMs          Allowance for the transcript.
+     * @param firstTokenMs   Allowance for the first token of the answer.
+     * @param ttsFirstByteMs Allowance for each TTS segment's audio.
+     * @param minStageMs     The least any stage is given.
+     */
+    public LatencyBudget(long totalMs, long sttMs, long firstTokenMs, long ttsFirstByteMs, long minStageMs) {
+        this.totalMs = totalMs;
+        this.minStageMs = minStageMs;
+        stageMs.put(HttpTransport.Endpoint.STT, sttMs);
+        stageMs.put(HttpTransport.Endpoint.CHAT, firstTokenMs);
+        stageMs.put(HttpTransport.Endpoint.TTS, ttsFirstByteMs);
+    }
+
+    /**
+     * The stage's own allowance, for work that is off the critical path, such
+     * as the segments spoken after the first.
+     */
+    public long stageMs(HttpTransport.Endpoint stage) {
+        return stageMs.get(stage);
+    }
+
+    /**
+     * Starts the clock for one interaction; call when recording stops.
+     */
+    public Clock start() {
+        return new Clock(System.nanoTime());
+    }
+
+    /** One interaction's budget. Thread-safe. */
+    public final class Clock {
+        private final long startNanos;
+
+        private Clock(long startNanos) {
+            this.startNanos = startNanos;
+        }
+
+        /**
+         * How long a stage starting now may take.
+         */
+        public long timeoutMs(HttpTransport.Endpoint stage) {
+            return Math.max(minStageMs, Math.min(stageMs.get(stage), remainingMs()));
+        }
+
+        /**
+         * What is left of the overall budget; negative once it is spent.
+         */
+        public long remainingMs() {
+            return totalMs - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.imagetest;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Encodes 16-bit little-endian mono PCM into an upload-ready audio file while it
+ * is being recorded, so the file is complete as soon as the recording stops.
+ */
+public interface PcmEncoder {
+
+    /** The supported codecs, named as the Speech-to-Text API names them. */
+    enum Codec {
+        /** Uncompressed WAV. */
+        LINEAR16(".wav"),
+        /** Lossless FLAC, typically around half the size of LINEAR16 for speech. */
+        FLAC(".flac");
+
+        public final String fileExtension;
+
+        Codec(String fileExtension) {
+            this.fileExtension = fileExtension;
+        }
+
+        /**
+         * Creates an encoder that writes to the given file, replacing its contents.
+         */
+        public PcmEncoder open(File file, int sampleRate) throws IOException {
+            switch (this) {
+                case FLAC:
+                    return new FlacEncoder(new BufferedOutputStream(new FileOutputStream(file), 16 * 1024), sampleRate);
+                case LINEAR16:
+                default:
+                    return new WavEncoder(file, sampleRate);
+            }
+        }
+    }
+
+    /** The value for the "encoding" field of a recognition config. */
+    Codec getCodec();
+
+    /**
+     * Encodes a chunk of PCM. Chunks may be any length.
+     */
+    void write(byte[] pcm, int offset, int length) throws IOException;
+
+    /**
+     * Encodes whatever is buffered, completes the file and closes it.
+     */
+    void finish() throws IOException;
+}
@@ -0,0 +1,81 @@
+package com.example.imagetest;
+
+/**
+ * A 64-bit difference hash (dHash) of an image, for spotting captures of the
+ * same scene. Small changes in exposure, noise or framing move only a few bits,
+ * so two captures of the same thing are a short Hamming distance apart.
+ *
+ * The image is box-averaged down to a 9x8 grid of luminance, and each bit says
+ * whether a cell is brighter than its right-hand neighbour. Large images are
+ * sampled on a stride rather than read in full, which keeps a 400x400 hash to
+ * a few tens of microseconds.
+ */
+public final class PerceptualHash {
+
+    private static final int GRID_WIDTH = 9;
+    private static final int GRID_HEIGHT = 8;
+    private static final int SAMPLES_PER_CELL = 12;
+
+    private PerceptualHash() {
+    }
+
+    /**
+     * Hashes ARGB pixels, as returned by {@code Bitmap.getPixels}.
+     *
+     * @param pixels Row-major ARGB pixels.
+     * @param width  Image width.
+     * @param height Image height.
+     */
+    public static long dHash(int[] pixels, int width, int height) {
+        if (width < GRID_WIDTH || height < GRID_HEIGHT) {
+            throw new IllegalArgumentException("Image too small to hash: " + width + "x" + height);
+        }
+        // Averaging every pixel is wasted work at this grid size: sample on a stride
+        // that still leaves at least SAMPLES_PER_CELL points along each cell side.
+        int step = Math.max(1, Math.min(width / (GRID_WIDTH * SAMPLES_PER_CELL),
+                height / (GRID_HEIGHT * SAMPLES_PER_CELL)));
+
+        long[] sums = new long[GRID_WIDTH * GRID_HEIGHT];
+        int[] columnsInCell = new int[GRID_WIDTH];
+        int sampledColumns = (width + step - 1) / step;
+        int[] cellOfColumn = new int[sampledColumns];
+        for (int i = 0; i < sampledColumns; i++) {
+            int cell = i * step * GRID_WIDTH / width;
+            cellOfColumn[i] = cell;
+            columnsInCell[cell]++;
+        }
+        for (int y = 0; y < height; y += step) {
+            int rowBase = (y * GRID_HEIGHT / height) * GRID_WIDTH;
+            int offset = y * width;
+            for (int i = 0; i < sampledColumns; i++) {
+                int p = pixels[offset + i * step];
+                // Integer BT.601 luma
+                int luma = (((p >> 16) & 0xff) * 77 + ((p >> 8) & 0xff) * 150 + (p & 0xff) * 29) >> 8;
+                sums[rowBase + cellOfColumn[i]] += luma;
+            }
+        }
+
+        // Neighbouring cells can differ in width by a column, so compare means:
+        // left / leftWidth > right / rightWidth, cross-multiplied.
+        long hash = 0;
+        int bit = 0;
+        for (int gy = 0; gy < GRID_HEIGHT; gy++) {
+            for (int gx = 0; gx < GRID_WIDTH - 1; gx++) {
+                long left = sums[gy * GRID_WIDTH + gx] * columnsInCell[gx + 1];
+                long right = sums[gy * GRID_WIDTH + gx + 1] * columnsInCell[gx];
+                if (left > right) {
+                    hash |= 1L << bit;
+                }
+                bit++;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Returns how many bits differ between two hashes (0-64).
+     */
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+}
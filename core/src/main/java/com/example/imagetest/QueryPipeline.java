@@ -0,0 +1,304 @@
+package com.example.imagetest;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs each spoken query through its stages: capture, record, transcribe,
+ * reason, synthesize, play.
+ *
+ * Capture and recording run on the camera and microphone threads, which report
+ * them with {@link #enter}. Transcription and reasoning each have their own
+ * small thread pool with a bounded queue; a query that finds its stage's queue
+ * full is rejected with an error rather than piling up behind slow requests.
+ * Synthesis and playback belong to the {@link Speech} the {@link Speaker}
+ * returns, which has its own threads.
+ *
+ * Only one query is live at a time: {@link #begin()} cancels the previous one.
+ * Cancelling a query's token aborts whatever it is doing: queued stage work is
+ * dropped, HTTP calls registered with the token are cancelled and its speech
+ * stops. Events from a cancelled query are never reported.
+ *
+ * Stages are plain interfaces that block until done, so a test can drive the
+ * whole pipeline with fakes. Listener callbacks arrive on stage threads.
+ */
+public class QueryPipeline {
+
+    public enum Stage {
+        CAPTURE, RECORD, TRANSCRIBE, REASON, SYNTHESIZE, PLAY
+    }
+
+    /** One question, from the tap to the end of the spoken answer. */
+    public static final class Query {
+        public final long id;
+        public final CancellationToken token = new CancellationToken();
+
+        Query(long id) {
+            this.id = id;
+        }
+
+        public boolean isCancelled() {
+            return token.isCancelled();
+        }
+    }
+
+    /** Turns the recorded audio into text. */
+    public interface Transcriber {
+        /**
+         * Called on a transcribe thread.
+         *
+         * @return The transcript, or null or blank if nothing was said.
+         */
+        String transcribe(Query query) throws Exception;
+    }
+
+    /** Answers a question. */
+    public interface Reasoner {
+        /**
+         * Called on a reason thread. The answer should be passed to {@code out}
+         * as it arrives; complete sentences given to {@link ChatCompletionStream.Listener#onSentence}
+         * are spoken straight away.
+         *
+         * @return The full answer. If no sentences were given to {@code out}, all of it is spoken.
+         */
+        String answer(Query query, String question, ChatCompletionStream.Listener out) throws Exception;
+    }
+
+    /** Speaks one answer. */
+    public interface Speech {
+        /** Queues text to be spoken after everything queued before it. */
+        void enqueue(String text);
+
+        /** Marks the end of the answer. */
+        void finish();
+
+        /** Stops speaking immediately. */
+        void cancel();
+    }
+
+    /** Starts speaking answers. */
+    public interface Speaker {
+        /**
+         * Starts a new answer for {@code query}, which should report
+         * {@link Stage#PLAY} through {@link #enter} when it is first heard.
+         */
+        Speech start(Query query);
+    }
+
+    /** Progress of the live query, for display. */
+    public interface Listener {
+        void onStage(Query query, Stage stage);
+
+        void onTranscript(Query query, String transcript);
+
+        /** Nothing was said. */
+        void onNoSpeech(Query query);
+
+        /** A new piece of the answer, in order. */
+        void onAnswerDelta(Query query, String text);
+
+        void onAnswer(Query query, String answer);
+
+        void onError(Query query, Stage stage, Exception e);
+    }
+
+    private interface StageTask {
+        void run() throws Exception;
+    }
+
+    private final Speaker speaker;
+    private final Listener listener;
+    private final ThreadPoolExecutor transcribeExecutor;
+    private final ThreadPoolExecutor reasonExecutor;
+    private final AtomicLong nextId = new AtomicLong();
+
+    // Guarded by "this"
+    private Query current;
+
+    /**
+     * @param speaker            Speaks answers.
+     * @param listener           Receives progress.
+     * @param transcribeThreads  Transcriptions that may run at once.
+     * @param reasonThreads      Chat requests that may run at once.
+     * @param queueCapacity      Work each stage will queue before rejecting more.
+     */
+    public QueryPipeline(Speaker speaker, Listener listener,
+                         int transcribeThreads, int reasonThreads, int queueCapacity) {
+        this.speaker = speaker;
+        this.listener = listener;
+        this.transcribeExecutor = newStageExecutor("Transcribe", transcribeThreads, queueCapacity);
+        this.reasonExecutor = newStageExecutor("Reason", reasonThreads, queueCapacity);
+    }
+
+    private static ThreadPoolExecutor newStageExecutor(String name, int threads, int queueCapacity) {
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> new Thread(r, "Pipeline " + name),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Starts a new query, cancelling the one before it.
+     */
+    public Query begin() {
+        Query query = new Query(nextId.incrementAndGet());
+        Query previous;
+        synchronized (this) {
+            previous = current;
+            current = query;
+        }
+        if (previous != null) {
+            previous.token.cancel();
+        }
+        return query;
+    }
+
+    /**
+     * Cancels the live query, if any.
+     */
+    public void cancel() {
+        Query previous;
+        synchronized (this) {
+            previous = current;
+            current = null;
+        }
+        if (previous != null) {
+            previous.token.cancel();
+        }
+    }
+
+    /**
+     * Reports that {@code query} has reached a stage that runs outside the
+     * pipeline's own threads. Safe to call from any thread.
+     */
+    public void enter(Query query, Stage stage) {
+        if (!query.isCancelled()) {
+            listener.onStage(query, stage);
+        }
+    }
+
+    /**
+     * Transcribes the query's recording, then answers it.
+     *
+     * @param reasoner Answers the transcript.
+     */
+    public void transcribe(Query query, Transcriber transcriber, Reasoner reasoner) {
+        run(transcribeExecutor, query, Stage.TRANSCRIBE, () -> {
+            String transcript = transcriber.transcribe(query);
+            if (query.isCancelled()) {
+                return;
+            }
+            if (transcript == null || transcript.trim().isEmpty()) {
+                listener.onNoSpeech(query);
+                return;
+            }
+            listener.onTranscript(query, transcript);
+            ask(query, transcript, reasoner);
+        });
+    }
+
+    /**
+     * Answers a question that is already text.
+     */
+    public void ask(Query query, String question, Reasoner reasoner) {
+        run(reasonExecutor, query, Stage.REASON, () -> answer(query, question, reasoner));
+    }
+
+    /**
+     * Stops the stage threads. Work in progress is interrupted.
+     */
+    public void shutdown() {
+        cancel();
+        transcribeExecutor.shutdownNow();
+        reasonExecutor.shutdownNow();
+    }
+
+    private void run(ThreadPoolExecutor executor, Query query, Stage stage, StageTask task) {
+        if (query.isCancelled()) {
+            return;
+        }
+        Runnable work = () -> {
+            if (query.isCancelled()) {
+                return;
+            }
+            listener.onStage(query, stage);
+            try {
+                task.run();
+            } catch (Exception e) {
+                // Cancelled calls fail with whatever the aborted I/O throws; that isn't an error.
+                if (!query.isCancelled()) {
+                    listener.onError(query, stage, e);
+                }
+            }
+        };
+        try {
+            executor.execute(work);
+        } catch (RejectedExecutionException e) {
+            listener.onError(query, stage, new RejectedExecutionException(
+                    "Too busy to " + stage.name().toLowerCase(Locale.ROOT), e));
+            return;
+        }
+        // Don't let a cancelled query hold a queue slot.
+        query.token.onCancel(() -> executor.remove(work));
+    }
+
+    private void answer(Query query, String question, Reasoner reasoner) throws Exception {
+        AnswerOutput out = new AnswerOutput(query);
+        String answer;
+        try {
+            answer = reasoner.answer(query, question, out);
+            query.token.throwIfCancelled();
+            if (out.speech == null) {
+                // Nothing was streamed as sentences, e.g. a cached answer; speak it all.
+                SentenceSplitter splitter = new SentenceSplitter(out::onSentence);
+                splitter.append(answer);
+                splitter.flush();
+            }
+        } catch (Exception e) {
+            if (out.speech != null && !query.isCancelled()) {
+                out.speech.cancel();
+            }
+            throw e;
+        }
+        if (out.speech != null) {
+            out.speech.finish();
+        }
+        listener.onAnswer(query, answer);
+    }
+
+    /**
+     * Forwards the answer to the listener as it arrives and starts speaking with the first sentence.
+     */
+    private class AnswerOutput implements ChatCompletionStream.Listener {
+        private final Query query;
+        Speech speech;
+
+        AnswerOutput(Query query) {
+            this.query = query;
+        }
+
+        @Override
+        public void onDelta(String text) {
+            if (!query.isCancelled()) {
+                listener.onAnswerDelta(query, text);
+            }
+        }
+
+        @Override
+        public void onSentence(String sentence) {
+            if (query.isCancelled()) {
+                return;
+            }
+            if (speech == null) {
+                listener.onStage(query, Stage.SYNTHESIZE);
+                Speech started = speaker.start(query);
+                query.token.onCancel(started::cancel);
+                speech = started;
+            }
+            speech.enqueue(sentence);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.example.imagetest;
+
+import java.util.Locale;
+
+/**
+ * Chooses the part of a capture to send at high resolution, and lays it out
+ * with an optional low-resolution thumbnail of the whole frame for context.
+ *
+ * Questions are mostly about what is in front of the user: a label, a line of
+ * text. Sending that region sharper instead of downsampling the whole frame
+ * puts the payload's pixels where the detail is. The region is a fixed share
+ * of each side of the frame, placed either at the centre, around a gaze
+ * point, or automatically: the frame is split into a grid, each cell scores
+ * the strong luminance edges in it (text and labels are dense with them), and
+ * the window with the most, pulled towards the centre, wins.
+ *
+ * The crop and the thumbnail are tiled into one image whose long side is the
+ * upload size, so the payload is never larger in pixels than the whole frame
+ * sent at that size. Detailed regions can still compress worse than the whole
+ * frame, so {@link #fitCloseUp} holds the close-up to the whole frame's bytes
+ * at the same size, lowering its quality a little if it must, and otherwise
+ * the whole frame is sent.
+ */
+public final class RegionOfInterest {
+
+    /** How the region is placed. */
+    public enum Mode {
+        /** Always the centre of the frame. */
+        CENTRE,
+        /** Where the edges are densest, preferring the centre. */
+        AUTO
+    }
+
+    /** A rectangle as fractions of the frame's width and height, 0 to 1. */
+    public static final class Region {
+        public final float left;
+        public final float top;
+        public final float width;
+        public final float height;
+
+        Region(float left, float top, float width, float height) {
+            this.left = left;
+            this.top = top;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "(%.2f,%.2f %.2fx%.2f)", left, top, width, height);
+        }
+    }
+
+    /** Where the crop and thumbnail go in the uploaded image, in pixels. */
+    public static final class Layout {
+        public final int width;
+        public final int height;
+        public final int cropWidth;
+        public final int cropHeight;
+        /** The thumbnail's position and size; 0 wide without one. */
+        public final int thumbnailLeft;
+        public final int thumbnailTop;
+        public final int thumbnailWidth;
+        public final int thumbnailHeight;
+
+        Layout(int width, int height, int cropWidth, int cropHeight,
+               int thumbnailLeft, int thumbnailTop, int thumbnailWidth, int thumbnailHeight) {
+            this.width = width;
+            this.height = height;
+            this.cropWidth = cropWidth;
+            this.cropHeight = cropHeight;
+            this.thumbnailLeft = thumbnailLeft;
+            this.thumbnailTop = thumbnailTop;
+            this.thumbnailWidth = thumbnailWidth;
+            this.thumbnailHeight = thumbnailHeight;
+        }
+
+        /**
+         * A sentence telling the model what it is looking at, to send with the image.
+         */
+        public String describe() {
+            if (thumbnailWidth == 0) {
+                return "The image is a close-up of part of the camera's view.";
+            }
+            return "The image is a close-up of part of the camera's view; the small picture at the "
+                    + (thumbnailTop == 0 ? "top right" : "bottom left") + " shows the whole view.";
+        }
+    }
+
+    /** Compresses an image at a JPEG quality, 0 to 100. */
+    public interface Encoder<E extends Exception> {
+        byte[] encode(int quality) throws E;
+    }
+
+    // The thumbnail strip's share of the image's long side
+    private static final float CONTEXT_SHARE = 0.25f;
+    private static final int GRID = 16; // cells along the long side
+    // A luminance step larger than this between neighbouring samples counts as an edge
+    private static final int EDGE_THRESHOLD = 24;
+    // How much a window at the frame's corner is discounted against one at the centre
+    private static final float CENTRE_PULL = 0.5f;
+    // Fewer edge samples than this in the best window and the frame is too flat to judge
+    private static final int MIN_EDGES = 16;
+    // A close-up over its budget is compressed again this much lower in quality, at most this many times
+    private static final int QUALITY_STEP = 10;
+    private static final int QUALITY_STEPS = 2;
+
+    private final Mode mode;
+    private final float size;
+    private final boolean withContext;
+
+    /**
+     * @param mode        How the region is placed when no gaze point is known.
+     * @param size        The region's share of each side of the frame, 0 to 1.
+     * @param withContext Whether to tile a thumbnail of the whole frame beside the crop.
+     */
+    public RegionOfInterest(Mode mode, float size, boolean withContext) {
+        if (size <= 0 || size > 1) {
+            throw new IllegalArgumentException("Region size must be in (0, 1]: " + size);
+        }
+        this.mode = mode;
+        this.size = size;
+        this.withContext = withContext;
+    }
+
+    public boolean withContext() {
+        return withContext;
+    }
+
+    /**
+     * Chooses the region of a frame, from an image of it at any size.
+     *
+     * @param pixels Row-major ARGB pixels, as returned by {@code Bitmap.getPixels}.
+     */
+    public Region locate(int[] pixels, int width, int height) {
+        if (mode == Mode.CENTRE) {
+            return locateAround(0.5f, 0.5f);
+        }
+        int columns = width >= height ? GRID : Math.max(1, GRID * width / height);
+        int rows = width >= height ? Math.max(1, GRID * height / width) : GRID;
+        int[] edges = edgeCounts(pixels, width, height, columns, rows);
+
+        // Summed-area table, so each window is scored in constant time
+        int[] sums = new int[(columns + 1) * (rows + 1)];
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                sums[(row + 1) * (columns + 1) + column + 1] = edges[row * columns + column]
+                        + sums[row * (columns + 1) + column + 1]
+                        + sums[(row + 1) * (columns + 1) + column]
+                        - sums[row * (columns + 1) + column];
+            }
+        }
+        int windowColumns = Math.max(1, Math.round(size * columns));
+        int windowRows = Math.max(1, Math.round(size * rows));
+        float bestScore = -1;
+        int bestEdges = 0;
+        int bestColumn = 0;
+        int bestRow = 0;
+        for (int row = 0; row + windowRows <= rows; row++) {
+            for (int column = 0; column + windowColumns <= columns; column++) {
+                int count = sums[(row + windowRows) * (columns + 1) + column + windowColumns]
+                        - sums[row * (columns + 1) + column + windowColumns]
+                        - sums[(row + windowRows) * (columns + 1) + column]
+                        + sums[row * (columns + 1) + column];
+                float dx = ((column + windowColumns / 2f) / columns - 0.5f) * 2;
+                float dy = ((row + windowRows / 2f) / rows - 0.5f) * 2;
+                float score = count * (1 - CENTRE_PULL * (dx * dx + dy * dy) / 2);
+                if (score > bestScore) {
+                    bestScore = score;
+                    bestEdges = count;
+                    bestColumn = column;
+                    bestRow = row;
+                }
+            }
+        }
+        if (bestEdges < MIN_EDGES) {
+            return locateAround(0.5f, 0.5f);
+        }
+        return locateAround((bestColumn + windowColumns / 2f) / columns, (bestRow + windowRows / 2f) / rows);
+    }
+
+    /**
+     * The region centred on a point, such as where the user is looking, moved
+     * inside the frame where it would cross an edge.
+     *
+     * @param x The point's share of the frame's width, 0 to 1.
+     * @param y The point's share of the frame's height, 0 to 1.
+     */
+    public Region locateAround(float x, float y) {
+        float left = Math.max(0, Math.min(1 - size, x - size / 2));
+        float top = Math.max(0, Math.min(1 - size, y - size / 2));
+        return new Region(left, top, size, size);
+    }
+
+    /**
+     * Lays out the upload image for a frame of the given shape, with its long side at {@code maxSize}.
+     */
+    public Layout layout(int frameWidth, int frameHeight, int maxSize) {
+        boolean landscape = frameWidth >= frameHeight;
+        // The crop keeps the frame's shape; the thumbnail strip runs along the far end of the long side
+        int stripLong = withContext ? Math.round(maxSize * CONTEXT_SHARE) : 0;
+        int cropLong = maxSize - stripLong;
+        int cropShort = Math.max(1, Math.round((float) cropLong * Math.min(frameWidth, frameHeight)
+                / Math.max(frameWidth, frameHeight)));
+        int thumbnailShort = Math.round((float) stripLong * Math.min(frameWidth, frameHeight)
+                / Math.max(frameWidth, frameHeight));
+        if (landscape) {
+            return new Layout(maxSize, cropShort, cropLong, cropShort, cropLong, 0, stripLong, thumbnailShort);
+        }
+        return new Layout(cropShort, maxSize, cropShort, cropLong, 0, cropLong, thumbnailShort, stripLong);
+    }
+
+    /**
+     * Lays out the close-up of {@code region} with its long side at {@code maxSize},
+     * or smaller if the crop would need more pixels than the region has in the frame:
+     * a small frame's region is never scaled up.
+     */
+    public Layout layout(int frameWidth, int frameHeight, Region region, int maxSize) {
+        Layout layout = layout(frameWidth, frameHeight, maxSize);
+        int regionLong = Math.round(frameWidth >= frameHeight
+                ? region.width * frameWidth : region.height * frameHeight);
+        int cropLong = Math.max(layout.cropWidth, layout.cropHeight);
+        if (cropLong <= regionLong) {
+            return layout;
+        }
+        return layout(frameWidth, frameHeight, Math.max(1, maxSize * regionLong / cropLong));
+    }
+
+    /**
+     * Compresses a close-up in no more bytes than the whole frame at the same
+     * size and quality, stepping its quality down if it comes out larger.
+     *
+     * @param wholeBytes The size of the whole frame compressed at {@code quality}.
+     * @return The close-up, or null if it does not fit even at the lowest step,
+     *         in which case the whole frame should be sent.
+     */
+    public static <E extends Exception> byte[] fitCloseUp(int wholeBytes, int quality, Encoder<E> closeUp) throws E {
+        for (int step = 0; step <= QUALITY_STEPS; step++) {
+            int stepQuality = quality - step * QUALITY_STEP;
+            if (step > 0 && stepQuality < 1) {
+                break;
+            }
+            byte[] jpeg = closeUp.encode(Math.max(1, stepQuality));
+            if (jpeg.length <= wholeBytes) {
+                return jpeg;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Counts edge samples per grid cell: points where luminance steps sharply to the right or below.
+     */
+    private static int[] edgeCounts(int[] pixels, int width, int height, int columns, int rows) {
+        int[] counts = new int[columns * rows];
+        // About 16 samples along each cell side is plenty to tell text from sky
+        int step = Math.max(1, Math.min(width / (columns * 16), height / (rows * 16)));
+        for (int y = 0; y + step < height; y += step) {
+            int rowBase = (y * rows / height) * columns;
+            int offset = y * width;
+            for (int x = 0; x + step < width; x += step) {
+                int luma = luma(pixels[offset + x]);
+                if (Math.abs(luma - luma(pixels[offset + x + step])) > EDGE_THRESHOLD
+                        || Math.abs(luma - luma(pixels[offset + step * width + x])) > EDGE_THRESHOLD) {
+                    counts[rowBase + x * columns / width]++;
+                }
+            }
+        }
+        return counts;
+    }
+
+    private static int luma(int argb) {
+        // Integer BT.601 luma, as in PerceptualHash
+        return (((argb >> 16) & 0xff) * 77 + ((argb >> 8) & 0xff) * 150 + (argb & 0xff) * 29) >> 8;
+    }
+}
@@ -0,0 +1,309 @@
+package com.example.imagetest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers recent answers so the same question about the same view is answered
+ * from memory instead of another chat round trip.
+ *
+ * An entry is keyed by the normalised question (lower case, punctuation and
+ * filler words removed, so "What does this sign say?" and "what does the sign
+ * say" match) plus the perceptual hash of the image it was asked about. Image
+ * hashes match within a Hamming distance, so a fresh capture of the same scene
+ * still hits. Entries expire after a TTL and the least recently used are evicted
+ * beyond the capacity.
+ *
+ * Lookups only touch memory and never block on I/O. The entries are loaded from
+ * and saved to a JSON file on the given executor, with the file replaced
+ * atomically; until loading finishes every lookup is simply a miss.
+ *
+ * Thread-safe.
+ */
+public class ResponseCache {
+
+    /** A cached answer. */
+    public static final class Hit {
+        public final String answer;
+        /** How long the original request took, which this hit saved. */
+        public final long latencyMs;
+
+        Hit(String answer, long latencyMs) {
+            this.answer = answer;
+            this.latencyMs = latencyMs;
+        }
+    }
+
+    private static final Set<String> FILLER_WORDS = new HashSet<>(Arrays.asList(
+            "a", "an", "the", "this", "that", "these", "those", "please", "um", "uh", "hey", "so", "okay", "ok"));
+
+    private static final class Entry {
+        final String question;
+        final boolean hasImage;
+        final long imageHash;
+        final String answer;
+        final long createdAtMs;
+        final long latencyMs;
+
+        Entry(String question, boolean hasImage, long imageHash, String answer, long createdAtMs, long latencyMs) {
+            this.question = question;
+            this.hasImage = hasImage;
+            this.imageHash = imageHash;
+            this.answer = answer;
+            this.createdAtMs = createdAtMs;
+            this.latencyMs = latencyMs;
+        }
+    }
+
+    private final File file;
+    private final Executor ioExecutor;
+    private final int capacity;
+    private final long ttlMs;
+    private final int maxImageDistance;
+
+    // Guarded by "this"; least recently used first. Keyed by question and exact hash.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(32, 0.75f, true);
+    private boolean saveScheduled = false;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong latencySavedMs = new AtomicLong();
+
+    /**
+     * @param file             Where entries persist between runs.
+     * @param ioExecutor       Runs loading and saving.
+     * @param capacity         How many answers to keep.
+     * @param ttlMs            How long an answer stays valid.
+     * @param maxImageDistance Largest perceptual hash distance that still counts as the same image.
+     */
+    public ResponseCache(File file, Executor ioExecutor, int capacity, long ttlMs, int maxImageDistance) {
+        this.file = file;
+        this.ioExecutor = ioExecutor;
+        this.capacity = capacity;
+        this.ttlMs = ttlMs;
+        this.maxImageDistance = maxImageDistance;
+        ioExecutor.execute(this::load);
+    }
+
+    /**
+     * Normalises a transcript for matching: lower case, letters and digits only,
+     * filler words dropped.
+     */
+    public static String normalize(String text) {
+        String[] words = text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}']+");
+        StringBuilder normalized = new StringBuilder(text.length());
+        for (String word : words) {
+            word = word.replace("'", "");
+            if (word.isEmpty() || FILLER_WORDS.contains(word)) {
+                continue;
+            }
+            if (normalized.length() > 0) {
+                normalized.append(' ');
+            }
+            normalized.append(word);
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * Looks up an answer. Never blocks.
+     *
+     * @param question  The transcript as recognised.
+     * @param imageHash The perceptual hash of the attached image, or null for a text-only question.
+     * @param nowMs     The current wall-clock time, in milliseconds.
+     * @return The cached answer, or null on a miss.
+     */
+    public Hit get(String question, Long imageHash, long nowMs) {
+        String normalized = normalize(question);
+        Entry best = null;
+        synchronized (this) {
+            int bestDistance = Integer.MAX_VALUE;
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+                Entry entry = it.next();
+                if (nowMs - entry.createdAtMs > ttlMs) {
+                    it.remove();
+                    continue;
+                }
+                if (!entry.question.equals(normalized) || entry.hasImage != (imageHash != null)) {
+                    continue;
+                }
+                int distance = imageHash == null ? 0 : PerceptualHash.distance(imageHash, entry.imageHash);
+                if (distance <= maxImageDistance && distance < bestDistance) {
+                    best = entry;
+                    bestDistance = distance;
+                }
+            }
+            if (best != null) {
+                entries.get(keyOf(best)); // mark as recently used
+            }
+        }
+        if (best == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        latencySavedMs.addAndGet(best.latencyMs);
+        return new Hit(best.answer, best.latencyMs);
+    }
+
+    /**
+     * Stores an answer and schedules a save.
+     *
+     * @param latencyMs How long it took to get the answer the slow way.
+     */
+    public void put(String question, Long imageHash, String answer, long nowMs, long latencyMs) {
+        Entry entry = new Entry(normalize(question), imageHash != null, imageHash != null ? imageHash : 0,
+                answer, nowMs, latencyMs);
+        synchronized (this) {
+            entries.put(keyOf(entry), entry);
+            trimLocked();
+            if (saveScheduled) {
+                return;
+            }
+            saveScheduled = true;
+        }
+        ioExecutor.execute(this::save);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** The summed latency of the original requests that hits replaced. */
+    public long getLatencySavedMs() {
+        return latencySavedMs.get();
+    }
+
+    /**
+     * A one-line summary of the counters, for logging.
+     */
+    public synchronized String statsSummary() {
+        long lookups = hits.get() + misses.get();
+        long hitRate = lookups == 0 ? 0 : hits.get() * 100 / lookups;
+        return "hits=" + hits.get()
+                + " misses=" + misses.get()
+                + " hitRate=" + hitRate + "%"
+                + " latencySaved=" + latencySavedMs.get() + "ms"
+                + " entries=" + entries.size();
+    }
+
+    private static String keyOf(Entry entry) {
+        return entry.question + "\n" + (entry.hasImage ? Long.toHexString(entry.imageHash) : "-");
+    }
+
+    private void trimLocked() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > capacity && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private void load() {
+        if (!file.isFile()) {
+            return;
+        }
+        List<Entry> loaded = new ArrayList<>();
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            JSONArray array = new JSONArray(new String(data, 0, read, StandardCharsets.UTF_8));
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject json = array.getJSONObject(i);
+                Entry entry = new Entry(
+                        json.getString("question"),
+                        json.has("imageHash"),
+                        json.has("imageHash") ? Long.parseUnsignedLong(json.getString("imageHash"), 16) : 0,
+                        json.getString("answer"),
+                        json.getLong("createdAt"),
+                        json.optLong("latencyMs"));
+                if (now - entry.createdAtMs <= ttlMs) {
+                    loaded.add(entry);
+                }
+            }
+        } catch (IOException | JSONException | NumberFormatException e) {
+            // A damaged file only costs us the cache; start empty.
+            e.printStackTrace();
+            return;
+        }
+        synchronized (this) {
+            // Saved least recently used first; anything added meanwhile stays newer.
+            LinkedHashMap<String, Entry> added = new LinkedHashMap<>(entries);
+            entries.clear();
+            for (Entry entry : loaded) {
+                entries.put(keyOf(entry), entry);
+            }
+            for (Map.Entry<String, Entry> e : added.entrySet()) {
+                entries.put(e.getKey(), e.getValue());
+            }
+            trimLocked();
+        }
+    }
+
+    private void save() {
+        JSONArray array = new JSONArray();
+        synchronized (this) {
+            saveScheduled = false;
+            try {
+                for (Entry entry : entries.values()) {
+                    JSONObject json = new JSONObject();
+                    json.put("question", entry.question);
+                    if (entry.hasImage) {
+                        json.put("imageHash", Long.toHexString(entry.imageHash));
+                    }
+                    json.put("answer", entry.answer);
+                    json.put("createdAt", entry.createdAtMs);
+                    json.put("latencyMs", entry.latencyMs);
+                    array.put(json);
+                }
+            } catch (JSONException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(array.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.imagetest;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Remembers the last few scenes the user asked about: each one's perceptual
+ * hash, the upload-ready JPEG already encoded for it, and the last question and
+ * answer about it. A new capture of the same scene can then reuse the payload
+ * and ask a cheaper follow-up instead of starting from scratch.
+ *
+ * Thread-safe. Times are supplied by the caller so the index can be driven by
+ * any clock.
+ */
+public class SceneIndex {
+
+    /** One remembered scene. */
+    public static final class Scene {
+        public final long hash;
+        public final byte[] jpeg;
+        private long lastSeenMs;
+        private String question;
+        private String answer;
+
+        Scene(long hash, byte[] jpeg, long nowMs) {
+            this.hash = hash;
+            this.jpeg = jpeg;
+            this.lastSeenMs = nowMs;
+        }
+
+        /** The last question asked about this scene, or null. */
+        public synchronized String getQuestion() {
+            return question;
+        }
+
+        /** The answer to {@link #getQuestion()}, or null. */
+        public synchronized String getAnswer() {
+            return answer;
+        }
+
+        /**
+         * Stores the latest exchange about this scene.
+         */
+        public synchronized void setExchange(String question, String answer) {
+            this.question = question;
+            this.answer = answer;
+        }
+    }
+
+    private final int capacity;
+    private final int maxDistance;
+    private final long maxAgeMs;
+
+    // Guarded by "this"; most recently seen last
+    private final ArrayDeque<Scene> scenes = new ArrayDeque<>();
+    private long lookups = 0;
+    private long matches = 0;
+
+    /**
+     * @param capacity    How many scenes to remember.
+     * @param maxDistance Largest Hamming distance between hashes of the same scene.
+     * @param maxAgeMs    Forget a scene this long after it was last seen.
+     */
+    public SceneIndex(int capacity, int maxDistance, long maxAgeMs) {
+        this.capacity = capacity;
+        this.maxDistance = maxDistance;
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    /**
+     * Returns the remembered scene closest to {@code hash}, if it is within the
+     * distance threshold, and marks it as seen.
+     *
+     * @return The matching scene, or null.
+     */
+    public synchronized Scene find(long hash, long nowMs) {
+        lookups++;
+        Scene best = null;
+        int bestDistance = Integer.MAX_VALUE;
+        for (Iterator<Scene> it = scenes.iterator(); it.hasNext(); ) {
+            Scene scene = it.next();
+            if (nowMs - scene.lastSeenMs > maxAgeMs) {
+                it.remove();
+                continue;
+            }
+            int distance = PerceptualHash.distance(hash, scene.hash);
+            if (distance <= maxDistance && distance < bestDistance) {
+                best = scene;
+                bestDistance = distance;
+            }
+        }
+        if (best != null) {
+            matches++;
+            best.lastSeenMs = nowMs;
+            scenes.remove(best);
+            scenes.addLast(best);
+        }
+        return best;
+    }
+
+    /**
+     * Remembers a new scene, forgetting the least recently seen one if full.
+     */
+    public synchronized Scene add(long hash, byte[] jpeg, long nowMs) {
+        Scene scene = new Scene(hash, jpeg, nowMs);
+        scenes.addLast(scene);
+        while (scenes.size() > capacity) {
+            scenes.removeFirst();
+        }
+        return scene;
+    }
+
+    public synchronized void clear() {
+        scenes.clear();
+    }
+
+    /**
+     * A one-line summary of the counters, for logging.
+     */
+    public synchronized String statsSummary() {
+        return "lookups=" + lookups + " matches=" + matches + " scenes=" + scenes.size();
+    }
+}
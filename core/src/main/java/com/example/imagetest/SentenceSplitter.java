@@ -0,0 +1,103 @@
+package com.example.imagetest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Accumulates streamed text and emits each sentence as soon as it is complete.
+ *
+ * A sentence ends at '.', '!' or '?' followed by whitespace, or at a newline.
+ * Punctuation that is not followed by whitespace ("3.5", "e.g.x") does not end
+ * a sentence, so a boundary is only confirmed once the next character arrives.
+ */
+public class SentenceSplitter {
+
+    /** Receives each finished sentence, trimmed and non-empty. */
+    public interface SentenceListener {
+        void onSentence(String sentence);
+    }
+
+    private final SentenceListener listener;
+    private final StringBuilder pending = new StringBuilder();
+
+    public SentenceSplitter(SentenceListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Appends a chunk of text, emitting any sentences it completes.
+     */
+    public void append(CharSequence text) {
+        pending.append(text);
+        int start = 0;
+        int length = pending.length();
+        for (int i = 0; i < length; i++) {
+            char c = pending.charAt(i);
+            boolean boundary;
+            if (c == '\n') {
+                boundary = true;
+            } else if ((c == '.' || c == '!' || c == '?') && i + 1 < length) {
+                boundary = Character.isWhitespace(pending.charAt(i + 1));
+            } else {
+                boundary = false;
+            }
+            if (boundary) {
+                emit(start, i + 1);
+                start = i + 1;
+            }
+        }
+        if (start > 0) {
+            pending.delete(0, start);
+        }
+    }
+
+    /**
+     * Emits whatever text remains as the last sentence.
+     */
+    public void flush() {
+        emit(0, pending.length());
+        pending.setLength(0);
+    }
+
+    /**
+     * Splits a sentence that is too long to synthesize quickly into clauses.
+     * Breaks at the last ',', ';' or ':' that fits, then at the last space.
+     *
+     * @param sentence The sentence to split.
+     * @param maxChars Maximum length of each piece.
+     * @return The pieces in order; a single element if the sentence already fits.
+     */
+    public static List<String> splitClauses(String sentence, int maxChars) {
+        List<String> pieces = new ArrayList<>();
+        String rest = sentence.trim();
+        while (rest.length() > maxChars) {
+            int cut = -1;
+            for (int i = maxChars - 1; i > 0; i--) {
+                char c = rest.charAt(i);
+                if ((c == ',' || c == ';' || c == ':') && Character.isWhitespace(rest.charAt(i + 1))) {
+                    cut = i + 1;
+                    break;
+                }
+            }
+            if (cut == -1) {
+                cut = rest.lastIndexOf(' ', maxChars);
+            }
+            if (cut <= 0) {
+                cut = maxChars; // one very long word
+            }
+            pieces.add(rest.substring(0, cut).trim());
+            rest = rest.substring(cut).trim();
+        }
+        if (!rest.isEmpty()) {
+            pieces.add(rest);
+        }
+        return pieces;
+    }
+
+    private void emit(int start, int end) {
+        String sentence = pending.substring(start, end).trim();
+        if (!sentence.isEmpty()) {
+            listener.onSentence(sentence);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.example.imagetest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Sends the chat request for a question before its transcript is final.
+ *
+ * While the user speaks, a streaming recognizer reports interim transcripts.
+ * Once one has stayed the same (after {@link ResponseCache#normalize}) for
+ * {@code stableMs}, it is sent as a speculative request and its answer is held
+ * back. When the final transcript arrives, {@link Attempt#take} compares it:
+ * if it matches, the held answer is replayed and the rest streams straight
+ * through, so the answer starts up to {@code stableMs} plus the endpointing
+ * delay sooner. If it doesn't, the speculative request is cancelled and the
+ * caller sends the question as usual.
+ *
+ * Besides the question, a request depends on inputs such as the attached
+ * image, which may change while the user speaks; they are read when the
+ * request is sent and must be equal when it is taken.
+ *
+ * A speculative request has no lasting effects until it is taken: the
+ * caller remembers the exchange only for the answer it returns.
+ *
+ * Every speculative request costs a chat call, so the hit rate and the
+ * requests and answer text thrown away are counted; see {@link #statsSummary()}.
+ *
+ * Thread-safe.
+ */
+public final class SpeculativeChat {
+
+    /**
+     * Sends one chat request.
+     *
+     * @param <I> The request's inputs besides the question.
+     */
+    public interface Fetcher<I> {
+        /**
+         * Asks {@code question}, passing the answer to {@code out} as it arrives.
+         * Called on a speculation thread; cancelling {@code token} aborts the request.
+         *
+         * @param traceId {@link InteractionTracer#NO_TRACE}, as a guess is not part of the query's trace.
+         * @return The full answer.
+         */
+        String fetch(CancellationToken token, long traceId, String question, I inputs,
+                     ChatCompletionStream.Listener out) throws Exception;
+    }
+
+    private final long stableMs;
+    private final int maxPerQuery;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Speculation Timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService requests = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "Speculative Chat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong mismatched = new AtomicLong();
+    private final AtomicLong superseded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+    private final AtomicLong wastedAnswerChars = new AtomicLong();
+    private final AtomicLong headStartMs = new AtomicLong();
+
+    /**
+     * @param stableMs    How long an interim transcript must stay unchanged before it is sent.
+     * @param maxPerQuery Speculative requests allowed per query; 0 turns speculation off.
+     */
+    public SpeculativeChat(long stableMs, int maxPerQuery) {
+        this.stableMs = stableMs;
+        this.maxPerQuery = maxPerQuery;
+    }
+
+    /**
+     * Starts watching one query's interim transcripts. Cancelling the query's
+     * token cancels any speculative request it has made.
+     *
+     * @param inputs  Reads the request's other inputs; called when a speculative request is sent.
+     * @param fetcher Sends a question the same way the final transcript would be sent.
+     */
+    public <I> Attempt<I> begin(CancellationToken queryToken, Supplier<I> inputs, Fetcher<I> fetcher) {
+        Attempt<I> attempt = new Attempt<>(queryToken, inputs, fetcher);
+        queryToken.onCancel(attempt::cancel);
+        return attempt;
+    }
+
+    /**
+     * Stops the timer and speculation threads; requests in progress are interrupted.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+        requests.shutdownNow();
+    }
+
+    /**
+     * Returns a one-line summary: requests sent, how many were used, and the cost of the rest.
+     */
+    public String statsSummary() {
+        long sent = started.get();
+        long used = hits.get();
+        long wasted = mismatched.get() + superseded.get() + failed.get() + abandoned.get();
+        return String.format(Locale.ROOT,
+                "speculated=%d hits=%d (%.0f%%) avgHeadStart=%dms wasted=%d (mismatched=%d superseded=%d failed=%d abandoned=%d) wastedAnswerChars=%d",
+                sent, used, sent > 0 ? 100.0 * used / sent : 0, used > 0 ? headStartMs.get() / used : 0,
+                wasted, mismatched.get(), superseded.get(), failed.get(), abandoned.get(), wastedAnswerChars.get());
+    }
+
+    /** One query's speculation. */
+    public final class Attempt<I> {
+        private final CancellationToken queryToken;
+        private final Supplier<I> inputs;
+        private final Fetcher<I> fetcher;
+
+        // Guarded by "this"
+        private String latestNormalized;
+        private ScheduledFuture<?> stableCheck;
+        private Speculation<I> speculation;
+        private int speculations;
+        private boolean closed;
+
+        private Attempt(CancellationToken queryToken, Supplier<I> inputs, Fetcher<I> fetcher) {
+            this.queryToken = queryToken;
+            this.inputs = inputs;
+            this.fetcher = fetcher;
+        }
+
+        /**
+         * Reports an interim transcript. Safe to call from any thread.
+         */
+        public synchronized void onPartial(String transcript) {
+            if (closed || speculations >= maxPerQuery) {
+                return;
+            }
+            String normalized = ResponseCache.normalize(transcript);
+            if (normalized.isEmpty() || normalized.equals(latestNormalized)) {
+                return;
+            }
+            latestNormalized = normalized;
+            if (stableCheck != null) {
+                stableCheck.cancel(false);
+            }
+            stableCheck = timer.schedule(() -> onStable(transcript, normalized), stableMs, TimeUnit.MILLISECONDS);
+        }
+
+        private void onStable(String transcript, String normalized) {
+            Speculation<I> previous;
+            Speculation<I> next;
+            synchronized (this) {
+                if (closed || !normalized.equals(latestNormalized)
+                        || speculation != null && speculation.question.equals(normalized)
+                        || speculations >= maxPerQuery) {
+                    return;
+                }
+                previous = speculation;
+                next = new Speculation<>(normalized, inputs.get());
+                speculation = next;
+                speculations++;
+            }
+            if (previous != null) {
+                previous.discard(superseded);
+            }
+            start(next, transcript);
+        }
+
+        private void start(Speculation<I> next, String question) {
+            started.incrementAndGet();
+            queryToken.onCancel(next.token::cancel);
+            requests.execute(() -> {
+                try {
+                    next.result.complete(fetcher.fetch(next.token, InteractionTracer.NO_TRACE, question, next.inputs, next));
+                } catch (Exception e) {
+                    next.result.completeExceptionally(e);
+                }
+            });
+        }
+
+        /**
+         * Settles the speculation against the final transcript. If it was for the
+         * same question with equal inputs, its answer so far is passed to {@code out}, the rest
+         * follows as it arrives, and this blocks until it is complete. Call once,
+         * on the thread that would otherwise send the question.
+         *
+         * @return The full answer, or null if the question has to be sent as usual.
+         * @throws Exception What the taken request failed with.
+         */
+        public String take(String question, I inputs, ChatCompletionStream.Listener out) throws Exception {
+            Speculation<I> candidate = close();
+            if (candidate == null) {
+                return null;
+            }
+            if (!candidate.question.equals(ResponseCache.normalize(question))
+                    || !Objects.equals(candidate.inputs, inputs)) {
+                candidate.discard(mismatched);
+                return null;
+            }
+            if (!candidate.adopt(out)) {
+                // Failed before we needed it; a fresh request gets its own retries
+                candidate.discard(failed);
+                return null;
+            }
+            hits.incrementAndGet();
+            headStartMs.addAndGet(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - candidate.startNanos));
+            try {
+                return candidate.result.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Drops the speculation, e.g. when nothing was said or the transcript failed.
+         */
+        public void cancel() {
+            Speculation<I> candidate = close();
+            if (candidate != null) {
+                candidate.discard(abandoned);
+            }
+        }
+
+        private synchronized Speculation<I> close() {
+            closed = true;
+            if (stableCheck != null) {
+                stableCheck.cancel(false);
+            }
+            Speculation<I> candidate = speculation;
+            speculation = null;
+            return candidate;
+        }
+    }
+
+    /**
+     * A speculative request. Holds the answer back until it is adopted, then forwards it.
+     */
+    private final class Speculation<I> implements ChatCompletionStream.Listener {
+        final String question; // normalized
+        final I inputs;
+        final CancellationToken token = new CancellationToken();
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        final long startNanos = System.nanoTime();
+
+        // Guarded by "this"
+        private final List<Runnable> held = new ArrayList<>();
+        private ChatCompletionStream.Listener out;
+        private long answerChars;
+
+        Speculation(String question, I inputs) {
+            this.question = question;
+            this.inputs = inputs;
+        }
+
+        @Override
+        public synchronized void onDelta(String text) {
+            answerChars += text.length();
+            if (out != null) {
+                out.onDelta(text);
+            } else {
+                held.add(() -> out.onDelta(text));
+            }
+        }
+
+        @Override
+        public synchronized void onSentence(String sentence) {
+            if (out != null) {
+                out.onSentence(sentence);
+            } else {
+                held.add(() -> out.onSentence(sentence));
+            }
+        }
+
+        /**
+         * Replays what has arrived to {@code out} and forwards the rest.
+         *
+         * @return False if the request had already failed.
+         */
+        synchronized boolean adopt(ChatCompletionStream.Listener out) {
+            if (result.isCompletedExceptionally()) {
+                return false;
+            }
+            this.out = out;
+            for (Runnable event : held) {
+                event.run();
+            }
+            held.clear();
+            return true;
+        }
+
+        void discard(AtomicLong reason) {
+            token.cancel();
+            reason.incrementAndGet();
+            synchronized (this) {
+                wastedAnswerChars.addAndGet(answerChars);
+            }
+        }
+    }
+}
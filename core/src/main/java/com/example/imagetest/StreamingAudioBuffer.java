@@ -0,0 +1,157 @@
+package com.example.imagetest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An in-memory audio buffer that one thread writes while another reads it.
+ * Reads past the written end block until more data arrives, so playback can
+ * begin while the audio is still downloading.
+ *
+ * Data is stored in fixed-size blocks, so growing never copies what is already there.
+ * Blocks can come from a {@link BufferPool}; {@link #recycle()} gives them back
+ * once the audio has been played.
+ */
+public class StreamingAudioBuffer extends OutputStream {
+
+    /** The block size, for pools passed to {@link #StreamingAudioBuffer(BufferPool)}. */
+    public static final int BLOCK_BYTES = 16 * 1024;
+
+    private final BufferPool pool;
+
+    // Guarded by "this"
+    private final List<byte[]> blocks = new ArrayList<>();
+    private long size = 0;
+    private boolean complete = false;
+    private IOException failure;
+    private boolean recycled = false;
+
+    public StreamingAudioBuffer() {
+        this(null);
+    }
+
+    /**
+     * @param pool Supplies blocks of {@link #BLOCK_BYTES}, or null to allocate them.
+     */
+    public StreamingAudioBuffer(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] data, int off, int len) throws IOException {
+        if (complete || failure != null) {
+            throw new IOException("Audio buffer is closed");
+        }
+        while (len > 0) {
+            int blockOffset = (int) (size % BLOCK_BYTES);
+            if (blockOffset == 0) {
+                blocks.add(pool != null ? pool.acquire() : new byte[BLOCK_BYTES]);
+            }
+            int n = Math.min(len, BLOCK_BYTES - blockOffset);
+            System.arraycopy(data, off, blocks.get(blocks.size() - 1), blockOffset, n);
+            size += n;
+            off += n;
+            len -= n;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Marks the audio as fully written; blocked readers see end of stream.
+     */
+    public synchronized void complete() {
+        complete = true;
+        notifyAll();
+    }
+
+    /**
+     * Fails the buffer; blocked and future readers get the exception.
+     */
+    public synchronized void fail(IOException e) {
+        if (!complete && failure == null) {
+            failure = e;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void close() {
+        complete();
+    }
+
+    /**
+     * Returns the blocks to the pool once nothing will read this buffer again.
+     * Fails the buffer if it is still being written, so the writer stops.
+     */
+    public synchronized void recycle() {
+        if (recycled) {
+            return;
+        }
+        fail(new IOException("Audio buffer was recycled"));
+        recycled = true;
+        if (pool != null) {
+            for (byte[] block : blocks) {
+                pool.release(block);
+            }
+        }
+        blocks.clear();
+        notifyAll();
+    }
+
+    /**
+     * Reads bytes at an absolute position, waiting until they are written.
+     *
+     * @return The number of bytes read, or -1 at the end of complete audio.
+     * @throws IOException If the buffer failed or the thread was interrupted.
+     */
+    public synchronized int readAt(long position, byte[] dst, int off, int len) throws IOException {
+        while (position >= size && !complete) {
+            if (failure != null) {
+                throw failure;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for audio", e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (recycled) {
+            throw new IOException("Audio buffer was recycled");
+        }
+        if (position >= size) {
+            return -1;
+        }
+        int n = (int) Math.min(len, size - position);
+        int copied = 0;
+        while (copied < n) {
+            long at = position + copied;
+            int blockOffset = (int) (at % BLOCK_BYTES);
+            int chunk = Math.min(n - copied, BLOCK_BYTES - blockOffset);
+            System.arraycopy(blocks.get((int) (at / BLOCK_BYTES)), blockOffset, dst, off + copied, chunk);
+            copied += chunk;
+        }
+        return n;
+    }
+
+    /**
+     * Returns the total size once complete, or -1 while audio is still arriving.
+     */
+    public synchronized long sizeIfComplete() {
+        return complete ? size : -1;
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+}
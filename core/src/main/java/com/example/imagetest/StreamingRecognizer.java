@@ -0,0 +1,77 @@
+package com.example.imagetest;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A speech recognizer that accepts PCM audio while the user is still speaking
+ * and reports interim transcripts as they become available.
+ *
+ * Audio is 16 kHz, 16-bit little-endian mono PCM, the same format the
+ * AudioRecord loop in MainActivity produces.
+ */
+public interface StreamingRecognizer {
+
+    /**
+     * Receives recognition results. Callbacks arrive on a background thread.
+     * After {@link #finish()} exactly one of {@link #onFinal} or {@link #onError} is called.
+     */
+    interface Listener {
+        /** An interim (not yet stable) transcript for the audio sent so far. */
+        void onPartial(String transcript);
+
+        /** The final transcript for the whole utterance. */
+        void onFinal(String transcript);
+
+        /** The stream failed; the caller should fall back to batch recognition. */
+        void onError(Exception e);
+    }
+
+    /** The batch request to fall back on when the stream has no final transcript. */
+    interface BatchRecognizer {
+        String recognize() throws Exception;
+    }
+
+    /**
+     * Takes the stream's final transcript if it arrives in time, otherwise makes
+     * the batch request.
+     *
+     * @param streamed The final transcript, failed if the stream did; null when not streaming.
+     * @param waitMs   How long to wait for it.
+     * @param batch    Recognizes the recorded audio instead.
+     * @return The transcript.
+     */
+    static String finalOrBatch(Future<String> streamed, long waitMs, BatchRecognizer batch) throws Exception {
+        if (streamed != null) {
+            try {
+                return streamed.get(waitMs, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                // The stream failed or is too slow to finish
+            }
+        }
+        return batch.recognize();
+    }
+
+    /**
+     * Opens the recognition stream. Must be called before any audio is sent.
+     */
+    void start(Listener listener);
+
+    /**
+     * Sends a chunk of PCM audio. Safe to call from the recorder thread;
+     * the bytes are copied before this method returns.
+     */
+    void sendAudio(byte[] pcm, int offset, int length);
+
+    /**
+     * Signals end of speech. The final transcript is delivered to the listener.
+     */
+    void finish();
+
+    /**
+     * Aborts the stream without delivering any further results.
+     */
+    void cancel();
+}
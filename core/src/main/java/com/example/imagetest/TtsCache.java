@@ -0,0 +1,229 @@
+package com.example.imagetest;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded, content-addressed disk cache for synthesized speech, so phrases
+ * we say often ("No speech recognized.", short repeated answers) play straight
+ * from storage instead of going back to the TTS service.
+ *
+ * Entries are named by a SHA-256 of everything that shapes the audio: the text,
+ * the voice and the audio config. They are kept in an {@link ArtifactStore},
+ * which indexes them in memory, writes each to a temporary file renamed into
+ * place on commit, and evicts the least recently used past its size and age
+ * limits; a hit marks the entry used.
+ *
+ * Thread-safe.
+ */
+public class TtsCache {
+
+    private static final int COPY_BUFFER_BYTES = 8 * 1024;
+
+    private final ArtifactStore store;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    /**
+     * @param store Holds the entries; used by nothing else.
+     */
+    public TtsCache(ArtifactStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Builds the cache key for a synthesis request. Pass every parameter that
+     * changes the audio, in a fixed order.
+     */
+    public static String key(String text, String... voiceAndAudioConfig) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : voiceAndAudioConfig) {
+                digest.update(part.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            digest.update(text.getBytes(StandardCharsets.UTF_8));
+            byte[] hash = digest.digest();
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    }
+
+    /**
+     * Copies a cached entry into {@code out}.
+     *
+     * @return True on a hit; false if the entry is not cached and nothing was written.
+     * @throws IOException If writing to {@code out} fails part way.
+     */
+    public boolean get(String key, OutputStream out) throws IOException {
+        if (!store.contains(key)) {
+            misses.incrementAndGet();
+            return false;
+        }
+
+        InputStream in;
+        try {
+            in = new FileInputStream(store.file(key));
+        } catch (IOException e) {
+            // Deleted behind our back (e.g. the system cleared the cache dir).
+            store.remove(key);
+            misses.incrementAndGet();
+            return false;
+        }
+        long size = 0;
+        try {
+            byte[] buffer = new byte[COPY_BUFFER_BYTES];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                size += read;
+            }
+        } finally {
+            in.close();
+        }
+        store.touch(key, System.currentTimeMillis());
+        hits.incrementAndGet();
+        bytesSaved.addAndGet(size);
+        return true;
+    }
+
+    /**
+     * Starts writing an entry. Everything written to the returned stream is also
+     * passed on to {@code downstream}, so audio can be cached while it plays.
+     * The entry only becomes visible once {@link Editor#commit()} is called.
+     */
+    public Editor edit(String key, OutputStream downstream) {
+        return new Editor(store.create(key), downstream);
+    }
+
+    /** How many lookups were served from the cache. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** How many lookups had to go to the network. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Audio bytes served from the cache instead of downloaded. */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /**
+     * A one-line summary of the counters, for logging.
+     */
+    public String statsSummary() {
+        long lookups = hits.get() + misses.get();
+        long hitRate = lookups == 0 ? 0 : hits.get() * 100 / lookups;
+        return "hits=" + hits.get()
+                + " misses=" + misses.get()
+                + " hitRate=" + hitRate + "%"
+                + " bytesSaved=" + bytesSaved.get()
+                + " " + store.statsSummary();
+    }
+
+    /**
+     * Writes one entry through to another stream. If the cache file cannot be
+     * written, caching is dropped quietly and the downstream keeps getting data.
+     */
+    public final class Editor extends OutputStream {
+        private final ArtifactStore.Pending pending;
+        private final OutputStream downstream;
+        private FileOutputStream file;
+        private long size = 0;
+        private boolean done = false;
+
+        private Editor(ArtifactStore.Pending pending, OutputStream downstream) {
+            this.pending = pending;
+            this.downstream = downstream;
+            try {
+                this.file = new FileOutputStream(pending.file());
+            } catch (IOException e) {
+                this.file = null;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int off, int len) throws IOException {
+            downstream.write(data, off, len);
+            if (file != null) {
+                try {
+                    file.write(data, off, len);
+                    size += len;
+                } catch (IOException e) {
+                    closeFile();
+                }
+            }
+        }
+
+        /**
+         * Publishes the entry. Call only after the complete audio was written.
+         */
+        public void commit() throws IOException {
+            if (done) {
+                return;
+            }
+            done = true;
+            if (file == null || size > store.getMaxBytes()) {
+                closeFile();
+                pending.abort();
+                return;
+            }
+            try {
+                // Make the data durable before the rename publishes it.
+                file.getFD().sync();
+                file.close();
+            } catch (IOException e) {
+                closeFile();
+                pending.abort();
+                return;
+            }
+            file = null;
+            pending.commit(System.currentTimeMillis());
+        }
+
+        /**
+         * Discards the entry, e.g. because synthesis failed part way.
+         */
+        public void abort() {
+            if (done) {
+                return;
+            }
+            done = true;
+            closeFile();
+            pending.abort();
+        }
+
+        private void closeFile() {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                }
+                file = null;
+            }
+        }
+    }
+}
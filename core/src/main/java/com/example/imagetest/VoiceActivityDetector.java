@@ -0,0 +1,283 @@
+package com.example.imagetest;
+
+/**
+ * Frame-based voice activity detection and endpointing for 16-bit mono PCM.
+ *
+ * Audio is cut into fixed frames. Each frame gets a log energy and a zero-crossing
+ * rate. A frame counts as speech when its energy clears an adaptive noise floor by
+ * a margin, or clears it by a smaller margin while crossing zero often (fricatives
+ * like "s" and "f" are quiet but noisy). The noise floor follows the background
+ * during silence, falling quickly and rising slowly, so steady noise such as a fan
+ * or traffic is learned instead of being mistaken for speech.
+ *
+ * Noise that gets louder by more than the speech margin would make every frame
+ * speech, and so never be learned that way. The floor is therefore also pulled
+ * up, slowly, towards the quietest frame of the last {@code MIN_WINDOW_MS}
+ * (minimum statistics): speech pauses between words, so that minimum is the
+ * background even while someone talks, and rises above the floor only when the
+ * background has.
+ *
+ * An utterance starts after {@code minSpeechMs} of speech frames, so clicks and
+ * bumps do not count. Gaps shorter than the hangover do not interrupt a run of
+ * speech. The utterance ends after {@code endSilenceMs} of non-speech, or after
+ * {@code noSpeechTimeoutMs} if nobody speaks at all, or after {@code maxUtteranceMs}
+ * in any case. The end event fires exactly once per {@link #reset()}.
+ *
+ * All times are measured in audio, from the first sample processed, so results
+ * are repeatable on recorded input. No allocation happens after construction.
+ * Not thread-safe; feed it from one thread.
+ */
+public class VoiceActivityDetector {
+
+    /** Receives detection events on the thread calling {@link #process}. */
+    public interface Listener {
+        /**
+         * Speech has started.
+         *
+         * @param speechStartMs Where the speech began, in stream time.
+         */
+        void onSpeechStart(long speechStartMs);
+
+        /**
+         * The utterance is over. Called exactly once per {@link #reset()}.
+         *
+         * @param speechEndMs Where the last speech frame ended, or -1 if no speech was heard.
+         * @param detectedMs  The stream time at which the end was decided.
+         */
+        void onEndOfUtterance(long speechEndMs, long detectedMs);
+    }
+
+    /** Tuning for the detector; the defaults suit close-talking speech at 16 kHz. */
+    public static class Config {
+        /** Length of one analysis frame. */
+        public int frameMs = 20;
+        /** Silence after speech before the utterance ends; this is the endpoint latency. */
+        public int endSilenceMs = 700;
+        /** Speech needed before an utterance is considered started. */
+        public int minSpeechMs = 120;
+        /** Gaps in speech shorter than this are bridged. */
+        public int hangoverMs = 200;
+        /** End anyway if no speech starts within this time; 0 waits forever. */
+        public int noSpeechTimeoutMs = 6000;
+        /** End anyway after this much audio, in case the noise never lets up; 0 for no limit. */
+        public int maxUtteranceMs = 30000;
+        /** Energy above the noise floor, in dB, for a frame to count as speech. */
+        public float speechMarginDb = 10f;
+        /** A smaller margin that counts only for frames with a high zero-crossing rate. */
+        public float fricativeMarginDb = 5f;
+        /** Zero crossings per sample above which a frame sounds like a fricative. */
+        public float fricativeZcr = 0.25f;
+        /** Floor for the noise estimate, in dB, so digital silence does not make every click speech. */
+        public float minNoiseDb = 30f;
+    }
+
+    private enum State { SILENCE, SPEECH, ENDED }
+
+    // How fast the floor tracks the background: quick to fall, slow to rise.
+    private static final float NOISE_FALL = 0.5f;
+    private static final float NOISE_RISE = 0.02f;
+    // Minimum statistics: the quietest frame over this window, kept as the minima of sub-windows
+    private static final int MIN_WINDOW_MS = 1500;
+    private static final int MIN_SUBWINDOWS = 5;
+    // How fast the floor rises towards that minimum when frames are not being learned from
+    private static final float NOISE_TRACK = 0.05f;
+
+    private final Config config;
+    private final Listener listener;
+    private final int frameSamples;
+    private final int frameMs;
+    private final short[] frame;
+    private final float[] subwindowMinDb = new float[MIN_SUBWINDOWS];
+    private final int subwindowFrames;
+
+    private int frameFill;
+    private int pendingByte = -1;
+    private long framesProcessed;
+
+    private State state;
+    private float noiseDb;
+    private boolean noiseInitialized;
+    private int speechRunFrames;
+    private long speechRunStartMs;
+    private long lastSpeechEndMs;
+    private float lastFrameEnergyDb;
+    private float currentMinDb = Float.MAX_VALUE;
+    private int subwindowFill;
+    private int subwindowIndex;
+    private int subwindowsFilled;
+
+    /**
+     * @param sampleRate Sample rate of the audio, in Hz.
+     * @param config     Tuning; the detector keeps a reference, so do not change it afterwards.
+     * @param listener   Receives speech start and end events.
+     */
+    public VoiceActivityDetector(int sampleRate, Config config, Listener listener) {
+        this.config = config;
+        this.listener = listener;
+        this.frameMs = config.frameMs;
+        this.frameSamples = sampleRate * config.frameMs / 1000;
+        this.frame = new short[frameSamples];
+        this.subwindowFrames = Math.max(1, MIN_WINDOW_MS / MIN_SUBWINDOWS / config.frameMs);
+        reset();
+    }
+
+    /**
+     * Starts a new utterance. The learned noise floor and recent minima are kept, since the room is the same.
+     */
+    public void reset() {
+        frameFill = 0;
+        pendingByte = -1;
+        framesProcessed = 0;
+        state = State.SILENCE;
+        speechRunFrames = 0;
+        speechRunStartMs = -1;
+        lastSpeechEndMs = -1;
+    }
+
+    /**
+     * Feeds little-endian 16-bit PCM. Chunks may be any length, including odd.
+     */
+    public void process(byte[] pcm, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+        if (pendingByte >= 0 && i < end) {
+            addSample((short) (pendingByte | (pcm[i++] << 8)));
+            pendingByte = -1;
+        }
+        for (; i + 1 < end; i += 2) {
+            addSample((short) ((pcm[i] & 0xff) | (pcm[i + 1] << 8)));
+        }
+        if (i < end) {
+            pendingByte = pcm[i] & 0xff;
+        }
+    }
+
+    public boolean isInSpeech() {
+        return state == State.SPEECH;
+    }
+
+    public boolean hasEnded() {
+        return state == State.ENDED;
+    }
+
+    /** The current noise floor estimate, in dB relative to one LSB. */
+    public float getNoiseFloorDb() {
+        return noiseDb;
+    }
+
+    /** The energy of the last frame, in dB relative to one LSB. */
+    public float getLastFrameEnergyDb() {
+        return lastFrameEnergyDb;
+    }
+
+    private void addSample(short sample) {
+        frame[frameFill++] = sample;
+        if (frameFill == frameSamples) {
+            frameFill = 0;
+            processFrame();
+        }
+    }
+
+    private void processFrame() {
+        long frameStartMs = framesProcessed * frameMs;
+        long frameEndMs = frameStartMs + frameMs;
+        framesProcessed++;
+        if (state == State.ENDED) {
+            return;
+        }
+
+        long sumSquares = 0;
+        int crossings = 0;
+        int previous = frame[0];
+        for (int i = 0; i < frameSamples; i++) {
+            int sample = frame[i];
+            sumSquares += (long) sample * sample;
+            if ((sample >= 0) != (previous >= 0)) {
+                crossings++;
+            }
+            previous = sample;
+        }
+        float energyDb = (float) (10 * Math.log10(1.0 + (double) sumSquares / frameSamples));
+        float zcr = (float) crossings / frameSamples;
+        lastFrameEnergyDb = energyDb;
+
+        if (!noiseInitialized) {
+            noiseDb = Math.max(energyDb, config.minNoiseDb);
+            noiseInitialized = true;
+        }
+
+        float windowMinDb = trackMinimum(energyDb);
+        float aboveNoise = energyDb - noiseDb;
+        boolean speech = aboveNoise >= config.speechMarginDb
+                || (aboveNoise >= config.fricativeMarginDb && zcr >= config.fricativeZcr);
+
+        boolean learned = false;
+        if (speech) {
+            if (speechRunFrames == 0) {
+                speechRunStartMs = frameStartMs;
+            }
+            speechRunFrames++;
+            lastSpeechEndMs = frameEndMs;
+        } else {
+            long gapMs = lastSpeechEndMs < 0 ? Long.MAX_VALUE : frameEndMs - lastSpeechEndMs;
+            if (gapMs > config.hangoverMs) {
+                // Past the hangover this is background; learn from it.
+                float rate = energyDb < noiseDb ? NOISE_FALL : NOISE_RISE;
+                noiseDb = Math.max(config.minNoiseDb, noiseDb + rate * (energyDb - noiseDb));
+                learned = true;
+                if (state == State.SILENCE) {
+                    speechRunFrames = 0; // a blip too short to be speech
+                }
+            }
+        }
+        if (!learned && windowMinDb > noiseDb) {
+            // Even the pauses are louder than the floor: the background has risen
+            noiseDb += NOISE_TRACK * (windowMinDb - noiseDb);
+        }
+
+        if (state == State.SILENCE) {
+            if (speechRunFrames * frameMs >= config.minSpeechMs) {
+                state = State.SPEECH;
+                listener.onSpeechStart(speechRunStartMs);
+            } else if (config.noSpeechTimeoutMs > 0 && frameEndMs >= config.noSpeechTimeoutMs) {
+                end(-1, frameEndMs);
+            }
+        } else if (state == State.SPEECH) {
+            if (!speech && frameEndMs - lastSpeechEndMs >= config.endSilenceMs) {
+                end(lastSpeechEndMs, frameEndMs);
+            } else if (config.maxUtteranceMs > 0 && frameEndMs >= config.maxUtteranceMs) {
+                end(lastSpeechEndMs, frameEndMs);
+            }
+        }
+    }
+
+    /**
+     * Adds a frame's energy to the minimum statistics.
+     *
+     * @return The lowest energy over the last {@code MIN_WINDOW_MS}, or
+     *         {@code -Float.MAX_VALUE} until that much audio has been heard.
+     */
+    private float trackMinimum(float energyDb) {
+        currentMinDb = Math.min(currentMinDb, energyDb);
+        if (++subwindowFill == subwindowFrames) {
+            subwindowMinDb[subwindowIndex] = currentMinDb;
+            subwindowIndex = (subwindowIndex + 1) % MIN_SUBWINDOWS;
+            subwindowsFilled = Math.min(MIN_SUBWINDOWS, subwindowsFilled + 1);
+            currentMinDb = Float.MAX_VALUE;
+            subwindowFill = 0;
+        }
+        if (subwindowsFilled < MIN_SUBWINDOWS) {
+            return -Float.MAX_VALUE;
+        }
+        float minDb = currentMinDb;
+        for (float subwindowMin : subwindowMinDb) {
+            minDb = Math.min(minDb, subwindowMin);
+        }
+        return minDb;
+    }
+
+    private void end(long speechEndMs, long detectedMs) {
+        state = State.ENDED;
+        listener.onEndOfUtterance(speechEndMs, detectedMs);
+    }
+}
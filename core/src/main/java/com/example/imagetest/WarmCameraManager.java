@@ -0,0 +1,223 @@
+package com.example.imagetest;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the camera open and previewing while the app is in the foreground, so a
+ * tap can take the newest preview frame at once instead of paying for camera
+ * bring-up, preview start and a shutter on every capture.
+ *
+ * The last few frames are held in a small ring. The camera is released after
+ * {@code idleTimeoutMs} without a capture, or when {@link #release()} is called
+ * on backgrounding. Opening is single-flight: however many taps arrive while the
+ * camera is starting, it is opened once and every waiting tap gets the first
+ * usable frame.
+ */
+public class WarmCameraManager {
+
+    // Auto-exposure needs a few frames to settle after the preview starts.
+    private static final int SETTLE_FRAMES = 5;
+
+    /** One captured preview frame; the caller owns {@code data}. */
+    public static final class Frame {
+        public final byte[] data;
+        public final int width;
+        public final int height;
+        public final long timestampNanos;
+
+        Frame(byte[] data, int width, int height, long timestampNanos) {
+            this.data = data;
+            this.width = width;
+            this.height = height;
+            this.timestampNanos = timestampNanos;
+        }
+    }
+
+    /** Receives a grabbed frame, on the camera or manager thread. */
+    public interface FrameListener {
+        void onFrame(Frame frame);
+
+        void onError(Exception e);
+    }
+
+    private enum State { CLOSED, OPENING, WARM }
+
+    private final FrameSource source;
+    private final ScheduledExecutorService executor;
+    private final int ringSize;
+    private final long idleTimeoutMs;
+
+    // Guarded by "this"
+    private State state = State.CLOSED;
+    private final ArrayDeque<Frame> ring = new ArrayDeque<>();
+    private final List<FrameListener> waiting = new ArrayList<>();
+    private int framesSinceOpen = 0;
+    private boolean releaseRequested = false;
+    private ScheduledFuture<?> idleRelease;
+    private int openCount = 0;
+
+    /**
+     * @param source        Where frames come from.
+     * @param executor      Runs camera opening and the idle timer.
+     * @param ringSize      How many recent frames to keep.
+     * @param idleTimeoutMs Release the camera after this long without a capture.
+     */
+    public WarmCameraManager(FrameSource source, ScheduledExecutorService executor, int ringSize, long idleTimeoutMs) {
+        this.source = source;
+        this.executor = executor;
+        this.ringSize = ringSize;
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * Starts the camera if it is not already running, e.g. when the activity resumes.
+     */
+    public synchronized void warmUp() {
+        releaseRequested = false;
+        if (state == State.CLOSED) {
+            state = State.OPENING;
+            framesSinceOpen = 0;
+            openCount++;
+            executor.execute(this::openSource);
+        }
+        scheduleIdleRelease();
+    }
+
+    /**
+     * Delivers the newest preview frame. If the camera is warm this happens
+     * immediately on the calling thread; otherwise the camera is started (once)
+     * and the listener gets the first settled frame.
+     */
+    public void grabLatestFrame(FrameListener listener) {
+        Frame newest = null;
+        synchronized (this) {
+            if (state == State.WARM && !ring.isEmpty()) {
+                Frame frame = ring.peekLast();
+                newest = new Frame(Arrays.copyOf(frame.data, frame.data.length),
+                        frame.width, frame.height, frame.timestampNanos);
+            } else {
+                waiting.add(listener);
+            }
+            warmUp();
+        }
+        if (newest != null) {
+            listener.onFrame(newest);
+        }
+    }
+
+    /**
+     * Releases the camera, e.g. when the activity goes to the background.
+     */
+    public synchronized void release() {
+        if (idleRelease != null) {
+            idleRelease.cancel(false);
+            idleRelease = null;
+        }
+        if (state == State.OPENING) {
+            // openSource() finishes the job once the camera is up.
+            releaseRequested = true;
+            return;
+        }
+        closeLocked();
+    }
+
+    /**
+     * Returns how many times the camera has been opened, to confirm sessions are reused.
+     */
+    public synchronized int getOpenCount() {
+        return openCount;
+    }
+
+    public synchronized boolean isWarm() {
+        return state == State.WARM;
+    }
+
+    private void openSource() {
+        try {
+            // Keep two buffers beyond the ring so the camera always has one to fill.
+            source.open(this::onFrame, ringSize + 2);
+        } catch (IOException e) {
+            List<FrameListener> failed;
+            synchronized (this) {
+                state = State.CLOSED;
+                failed = new ArrayList<>(waiting);
+                waiting.clear();
+            }
+            for (FrameListener listener : failed) {
+                listener.onError(e);
+            }
+            return;
+        }
+        List<FrameListener> abandoned;
+        synchronized (this) {
+            if (!releaseRequested) {
+                return;
+            }
+            releaseRequested = false;
+            closeLocked();
+            abandoned = new ArrayList<>(waiting);
+            waiting.clear();
+        }
+        for (FrameListener listener : abandoned) {
+            listener.onError(new IOException("Camera released before a frame was ready"));
+        }
+    }
+
+    private void onFrame(byte[] data, int width, int height, long timestampNanos) {
+        List<FrameListener> ready = null;
+        List<Frame> copies = null;
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                return;
+            }
+            if (++framesSinceOpen <= SETTLE_FRAMES) {
+                source.recycle(data);
+                return;
+            }
+            state = State.WARM;
+            ring.addLast(new Frame(data, width, height, timestampNanos));
+            if (ring.size() > ringSize) {
+                source.recycle(ring.removeFirst().data);
+            }
+            if (!waiting.isEmpty()) {
+                ready = new ArrayList<>(waiting);
+                waiting.clear();
+            }
+            if (ready != null) {
+                // Copy while we still own the buffer; each listener gets its own.
+                copies = new ArrayList<>(ready.size());
+                for (int i = 0; i < ready.size(); i++) {
+                    copies.add(new Frame(Arrays.copyOf(data, data.length), width, height, timestampNanos));
+                }
+            }
+        }
+        if (ready != null) {
+            for (int i = 0; i < ready.size(); i++) {
+                ready.get(i).onFrame(copies.get(i));
+            }
+        }
+    }
+
+    private void scheduleIdleRelease() {
+        if (idleRelease != null) {
+            idleRelease.cancel(false);
+        }
+        idleRelease = executor.schedule(this::release, idleTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void closeLocked() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        state = State.CLOSED;
+        ring.clear();
+        source.close();
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.imagetest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Writes PCM to a WAV file. The header is written last, once the length is known.
+ */
+public class WavEncoder implements PcmEncoder {
+
+    private static final int HEADER_BYTES = 44;
+
+    private final RandomAccessFile raf;
+    private final int sampleRate;
+    private long totalAudioLen = 0;
+
+    public WavEncoder(File file, int sampleRate) throws IOException {
+        this.sampleRate = sampleRate;
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        byte[] placeholder = new byte[HEADER_BYTES];
+        raf.write(placeholder);
+    }
+
+    @Override
+    public Codec getCodec() {
+        return Codec.LINEAR16;
+    }
+
+    @Override
+    public void write(byte[] pcm, int offset, int length) throws IOException {
+        raf.write(pcm, offset, length);
+        totalAudioLen += length;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        try {
+            long totalDataLen = totalAudioLen + 36;
+            int channels = 1;
+            int byteRate = sampleRate * channels * 16 / 8;
+            raf.seek(0);
+            writeWavHeader(raf, totalAudioLen, totalDataLen, sampleRate, channels, byteRate);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes the WAV file header to the given RandomAccessFile.
+     *
+     * @param raf           The RandomAccessFile (positioned at the start).
+     * @param totalAudioLen Total length of the audio data.
+     * @param totalDataLen  Total data length (audio + header).
+     * @param sampleRate    The sample rate (e.g., 16000).
+     * @param channels      Number of channels (e.g., 1 for mono).
+     * @param byteRate      Byte rate (sampleRate * channels * bitsPerSample/8).
+     * @throws IOException If an I/O error occurs.
+     */
+    private static void writeWavHeader(RandomAccessFile raf, long totalAudioLen, long totalDataLen, int sampleRate, int channels, int byteRate) throws IOException {
+        byte[] header = new byte[44];
+        header[0] = 'R';  // RIFF/WAVE header
+        header[1] = 'I';
+        header[2] = 'F';
+        header[3] = 'F';
+        header[4] = (byte) (totalDataLen & 0xff);
+        header[5] = (byte) ((totalDataLen >> 8) & 0xff);
+        header[6] = (byte) ((totalDataLen >> 16) & 0xff);
+        header[7] = (byte) ((totalDataLen >> 24) & 0xff);
+        header[8] = 'W';
+        header[9] = 'A';
+        header[10] = 'V';
+        header[11] = 'E';
+        header[12] = 'f'; // "fmt " chunk
+        header[13] = 'm';
+        header[14] = 't';
+        header[15] = ' ';
+        header[16] = 16;  // Subchunk1Size for PCM
+        header[17] = 0;
+        header[18] = 0;
+        header[19] = 0;
+        header[20] = 1;   // PCM format
+        header[21] = 0;
+        header[22] = (byte) channels;
+        header[23] = 0;
+        header[24] = (byte) (sampleRate & 0xff);
+        header[25] = (byte) ((sampleRate >> 8) & 0xff);
+        header[26] = (byte) ((sampleRate >> 16) & 0xff);
+        header[27] = (byte) ((sampleRate >> 24) & 0xff);
+        header[28] = (byte) (byteRate & 0xff);
+        header[29] = (byte) ((byteRate >> 8) & 0xff);
+        header[30] = (byte) ((byteRate >> 16) & 0xff);
+        header[31] = (byte) ((byteRate >> 24) & 0xff);
+        header[32] = (byte) (channels * 16 / 8);  // Block align
+        header[33] = 0;
+        header[34] = 16; // Bits per sample
+        header[35] = 0;
+        header[36] = 'd';
+        header[37] = 'a';
+        header[38] = 't';
+        header[39] = 'a';
+        header[40] = (byte) (totalAudioLen & 0xff);
+        header[41] = (byte) ((totalAudioLen >> 8) & 0xff);
+        header[42] = (byte) ((totalAudioLen >> 16) & 0xff);
+        header[43] = (byte) ((totalAudioLen >> 24) & 0xff);
+        raf.write(header, 0, 44);
+    }
+}
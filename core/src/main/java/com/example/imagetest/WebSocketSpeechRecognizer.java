@@ -0,0 +1,193 @@
+package com.example.imagetest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okio.ByteString;
+
+/**
+ * Streams PCM audio to a recognizer over a WebSocket and relays interim and
+ * final transcripts.
+ *
+ * The wire format mirrors Google's StreamingRecognize messages in JSON form:
+ * the first text frame carries {"streamingConfig": {...}}, audio follows as
+ * binary frames, and {"audioEnd": true} marks end of speech. The server answers
+ * with {"results": [{"alternatives": [{"transcript": "..."}], "isFinal": bool}]}
+ * frames and closes the socket once the last final result has been sent.
+ */
+public class WebSocketSpeechRecognizer implements StreamingRecognizer {
+
+    // How long to wait after end of speech for the server to close the stream.
+    private static final long FINAL_TIMEOUT_MS = 1500;
+
+    private static final ScheduledExecutorService timeoutScheduler =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "STT Final Timeout");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private final OkHttpClient client;
+    private final String url;
+    private final String languageCode;
+    private final int sampleRateHertz;
+
+    private WebSocket webSocket;
+    private Listener listener;
+
+    // Guarded by "this": finished segments so far and the latest interim text.
+    private final StringBuilder finalTranscript = new StringBuilder();
+    private String interimTranscript = "";
+
+    private final AtomicBoolean delivered = new AtomicBoolean(false);
+    private volatile boolean finishing = false;
+
+    public WebSocketSpeechRecognizer(OkHttpClient client, String url, String languageCode, int sampleRateHertz) {
+        this.client = client;
+        this.url = url;
+        this.languageCode = languageCode;
+        this.sampleRateHertz = sampleRateHertz;
+    }
+
+    @Override
+    public void start(Listener listener) {
+        this.listener = listener;
+        Request request = new Request.Builder().url(url).build();
+        webSocket = client.newWebSocket(request, new SocketListener());
+        try {
+            JSONObject config = new JSONObject();
+            config.put("encoding", "LINEAR16");
+            config.put("sampleRateHertz", sampleRateHertz);
+            config.put("languageCode", languageCode);
+
+            JSONObject streamingConfig = new JSONObject();
+            streamingConfig.put("config", config);
+            streamingConfig.put("interimResults", true);
+
+            JSONObject message = new JSONObject();
+            message.put("streamingConfig", streamingConfig);
+            webSocket.send(message.toString());
+        } catch (JSONException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void sendAudio(byte[] pcm, int offset, int length) {
+        if (webSocket != null && !delivered.get()) {
+            webSocket.send(ByteString.of(pcm, offset, length));
+        }
+    }
+
+    @Override
+    public void finish() {
+        if (webSocket == null || delivered.get()) {
+            return;
+        }
+        finishing = true;
+        webSocket.send("{\"audioEnd\":true}");
+        // If the server never closes the stream, settle for what we have.
+        timeoutScheduler.schedule(this::deliverFinal, FINAL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void cancel() {
+        delivered.set(true);
+        if (webSocket != null) {
+            webSocket.cancel();
+        }
+    }
+
+    private void handleResults(String text) throws JSONException {
+        JSONArray results = new JSONObject(text).optJSONArray("results");
+        if (results == null) {
+            return;
+        }
+        String partial = null;
+        synchronized (this) {
+            for (int i = 0; i < results.length(); i++) {
+                JSONObject result = results.getJSONObject(i);
+                JSONArray alternatives = result.optJSONArray("alternatives");
+                if (alternatives == null || alternatives.length() == 0) {
+                    continue;
+                }
+                String transcript = alternatives.getJSONObject(0).optString("transcript");
+                if (result.optBoolean("isFinal")) {
+                    finalTranscript.append(transcript);
+                    interimTranscript = "";
+                } else {
+                    interimTranscript = transcript;
+                }
+            }
+            partial = (finalTranscript + interimTranscript).trim();
+        }
+        if (!partial.isEmpty() && !delivered.get()) {
+            listener.onPartial(partial);
+        }
+    }
+
+    /**
+     * Delivers the best transcript available. Only the first call has any effect.
+     */
+    private void deliverFinal() {
+        String transcript;
+        synchronized (this) {
+            transcript = (finalTranscript + interimTranscript).trim();
+        }
+        if (!delivered.compareAndSet(false, true)) {
+            return;
+        }
+        webSocket.close(1000, null);
+        if (transcript.isEmpty()) {
+            listener.onError(new IOException("No speech recognized by streaming recognizer"));
+        } else {
+            listener.onFinal(transcript);
+        }
+    }
+
+    private void fail(Exception e) {
+        if (delivered.compareAndSet(false, true)) {
+            if (webSocket != null) {
+                webSocket.cancel();
+            }
+            listener.onError(e);
+        }
+    }
+
+    private class SocketListener extends WebSocketListener {
+        @Override
+        public void onMessage(WebSocket webSocket, String text) {
+            try {
+                handleResults(text);
+            } catch (JSONException e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void onClosing(WebSocket webSocket, int code, String reason) {
+            if (finishing) {
+                deliverFinal();
+            } else {
+                fail(new IOException("Recognizer closed the stream early: " + code + " " + reason));
+            }
+        }
+
+        @Override
+        public void onFailure(WebSocket webSocket, Throwable t, Response response) {
+            fail(t instanceof Exception ? (Exception) t : new IOException(t));
+        }
+    }
+}
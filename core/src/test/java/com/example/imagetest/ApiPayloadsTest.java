@@ -0,0 +1,74 @@
+package com.example.imagetest;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ApiPayloadsTest {
+
+    @Test
+    public void recognizeRequestCarriesThePlaceholderForTheAudio() throws JSONException {
+        JSONObject request = new JSONObject(ApiPayloads.speechRecognizeRequest("en-CA", "FLAC", 16000));
+
+        assertEquals("FLAC", request.getJSONObject("config").getString("encoding"));
+        assertEquals(16000, request.getJSONObject("config").getInt("sampleRateHertz"));
+        assertEquals(Base64JsonRequestBody.PLACEHOLDER, request.getJSONObject("audio").getString("content"));
+    }
+
+    @Test
+    public void parsesTheBestTranscript() throws JSONException {
+        assertEquals("what does this say", ApiPayloads.parseTranscript(Fixtures.sttResponse("what does this say")));
+    }
+
+    @Test
+    public void noResultsIsNoTranscript() throws JSONException {
+        assertNull(ApiPayloads.parseTranscript("{}"));
+        assertNull(ApiPayloads.parseTranscript("{\"results\": []}"));
+    }
+
+    @Test
+    public void userMessageAttachesTheImageWithItsDetail() throws JSONException {
+        JSONObject message = ApiPayloads.chatUserMessage(Fixtures.QUESTION, true, "low");
+
+        assertEquals("user", message.getString("role"));
+        assertEquals(Fixtures.QUESTION, message.getJSONArray("content").getJSONObject(0).getString("text"));
+        JSONObject imageUrl = message.getJSONArray("content").getJSONObject(1).getJSONObject("image_url");
+        assertTrue(imageUrl.getString("url").endsWith(Base64JsonRequestBody.PLACEHOLDER));
+        assertEquals("low", imageUrl.getString("detail"));
+    }
+
+    @Test
+    public void textOnlyMessageHasNoImage() throws JSONException {
+        JSONObject message = ApiPayloads.chatUserMessage(Fixtures.QUESTION, false, null);
+
+        assertEquals(1, message.getJSONArray("content").length());
+    }
+
+    @Test
+    public void streamedHeadAsksForAStream() throws JSONException {
+        assertTrue(ApiPayloads.chatRequestHead("gpt-4o", true).getBoolean("stream"));
+        assertFalse(ApiPayloads.chatRequestHead("gpt-4o", false).has("stream"));
+    }
+
+    @Test
+    public void parsesANonStreamedAnswer() throws JSONException {
+        assertEquals(Fixtures.ANSWER, ApiPayloads.parseChatContent(Fixtures.chatResponse(Fixtures.ANSWER)));
+    }
+
+    @Test
+    public void synthesisRequestLeavesTheRateToTheVoiceWhenZero() throws JSONException {
+        JSONObject withRate = new JSONObject(
+                ApiPayloads.speechSynthesisRequest("Hi", "en-US", "FEMALE", "LINEAR16", 24000));
+        JSONObject withoutRate = new JSONObject(
+                ApiPayloads.speechSynthesisRequest("Hi", "en-US", "FEMALE", "MP3", 0));
+
+        assertEquals(24000, withRate.getJSONObject("audioConfig").getInt("sampleRateHertz"));
+        assertFalse(withoutRate.getJSONObject("audioConfig").has("sampleRateHertz"));
+        assertEquals("Hi", withRate.getJSONObject("input").getString("text"));
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.imagetest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The store on a temporary directory, with a direct executor and a simulated
+ * clock, so loading and eviction have finished by the time each call returns.
+ */
+public class ArtifactStoreTest {
+
+    private static final Executor DIRECT = Runnable::run;
+    // A simulated clock, in the range of real file modification times
+    private static final long T0 = 1_700_000_000_000L;
+    private static final long MAX_AGE_MS = 60_000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void filesUnusedForTheMaximumAgeAreDeleted() throws IOException {
+        ArtifactStore store = new ArtifactStore(folder.getRoot(), 1000, MAX_AGE_MS, DIRECT);
+        commit(store, "old.jpg", 100, T0);
+        commit(store, "used.jpg", 100, T0);
+        commit(store, "new.jpg", 100, T0 + 30_000);
+        store.touch("used.jpg", T0 + 30_000);
+
+        store.trim(T0 + MAX_AGE_MS);
+        assertTrue("not older than the maximum yet", store.contains("old.jpg"));
+
+        store.trim(T0 + MAX_AGE_MS + 1);
+        assertFalse(store.contains("old.jpg"));
+        assertFalse(store.file("old.jpg").exists());
+        assertTrue(store.contains("used.jpg"));
+        assertTrue(store.contains("new.jpg"));
+        assertTrue(store.statsSummary(), store.statsSummary().contains("evictedForAge=1 evictedForSize=0"));
+    }
+
+    @Test
+    public void leastRecentlyUsedFilesGoFirstOnceTheStoreIsFull() throws IOException {
+        ArtifactStore store = new ArtifactStore(folder.getRoot(), 300, MAX_AGE_MS, DIRECT);
+        commit(store, "a.jpg", 100, T0 + 1);
+        commit(store, "b.jpg", 100, T0 + 2);
+        commit(store, "c.jpg", 100, T0 + 3);
+        store.touch("a.jpg", T0 + 4);
+
+        commit(store, "d.jpg", 100, T0 + 5);
+        assertFalse(store.contains("b.jpg"));
+        assertFalse(store.file("b.jpg").exists());
+        assertTrue(store.contains("a.jpg"));
+
+        commit(store, "e.jpg", 150, T0 + 6);
+        assertFalse(store.contains("c.jpg"));
+        assertFalse(store.contains("a.jpg"));
+        assertTrue(store.contains("d.jpg"));
+        assertTrue(store.contains("e.jpg"));
+        assertTrue(store.statsSummary(), store.statsSummary().startsWith("files=2 size=250 "));
+    }
+
+    @Test
+    public void commitReplacesTheFileOfTheSameName() throws IOException {
+        ArtifactStore store = new ArtifactStore(folder.getRoot(), 1000, MAX_AGE_MS, DIRECT);
+        commit(store, "answer.pcm", 400, T0);
+
+        File committed = commit(store, "answer.pcm", 150, T0 + 1);
+
+        assertEquals(store.file("answer.pcm"), committed);
+        assertArrayEquals(bytes(150), Files.readAllBytes(committed.toPath()));
+        assertEquals(T0 + 1, committed.lastModified());
+        assertTrue(store.statsSummary(), store.statsSummary().startsWith("files=1 size=150 "));
+        assertEquals("no temporary files left", 1, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void abortedAndOversizedWritesLeaveNothingBehind() throws IOException {
+        ArtifactStore store = new ArtifactStore(folder.getRoot(), 100, MAX_AGE_MS, DIRECT);
+        ArtifactStore.Pending aborted = store.create("aborted.jpg");
+        write(aborted.file(), 50);
+        aborted.abort();
+        try {
+            commit(store, "huge.jpg", 101, T0);
+            fail("expected a file larger than the store to be refused");
+        } catch (IOException expected) {
+        }
+
+        assertFalse(store.contains("huge.jpg"));
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void loadingDeletesLeftoverTemporaryFilesAndKeepsTheRest() throws IOException {
+        File directory = folder.getRoot();
+        write(new File(directory, "capture.jpg.3.tmp"), 80);
+        write(new File(directory, "kept.jpg"), 60);
+
+        ArtifactStore store = new ArtifactStore(directory, 1000, MAX_AGE_MS, DIRECT);
+
+        assertFalse(new File(directory, "capture.jpg.3.tmp").exists());
+        assertTrue(store.contains("kept.jpg"));
+        assertTrue(store.statsSummary(), store.statsSummary().startsWith("files=1 size=60 "));
+    }
+
+    @Test
+    public void loadingOrdersFilesByWhenTheyWereLastUsed() throws IOException {
+        File directory = folder.getRoot();
+        ArtifactStore before = new ArtifactStore(directory, 1000, MAX_AGE_MS, DIRECT);
+        commit(before, "first.jpg", 100, T0 + 1);
+        commit(before, "second.jpg", 100, T0 + 2);
+        before.touch("first.jpg", T0 + 3);
+
+        // After a restart, over a smaller limit: the file used longest ago goes first
+        ArtifactStore after = new ArtifactStore(directory, 150, MAX_AGE_MS, DIRECT);
+
+        assertTrue(after.contains("first.jpg"));
+        assertFalse(after.contains("second.jpg"));
+        assertFalse(new File(directory, "second.jpg").exists());
+    }
+
+    private static File commit(ArtifactStore store, String name, int size, long nowMs) throws IOException {
+        ArtifactStore.Pending pending = store.create(name);
+        write(pending.file(), size);
+        return pending.commit(nowMs);
+    }
+
+    private static void write(File file, int size) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(bytes(size));
+        }
+    }
+
+    /** Contents that differ with the length, so a replaced file can be told apart. */
+    private static byte[] bytes(int size) {
+        byte[] bytes = new byte[size];
+        byte[] label = ("size " + size).getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(label, 0, bytes, 0, Math.min(size, label.length));
+        return bytes;
+    }
+}
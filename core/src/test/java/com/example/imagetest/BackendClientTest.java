@@ -0,0 +1,188 @@
+package com.example.imagetest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The backend client against a local server that fails on demand, as TTS
+ * and chat do during an outage.
+ */
+public class BackendClientTest {
+
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long TIMEOUT_MS = 5000;
+    private static final byte[] AUDIO = {1, 2, 3, 4, 5, 6, 7, 8};
+
+    private final AtomicBoolean failing = new AtomicBoolean();
+    private MockWebServer server;
+    private BackendClient backend;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (failing.get()) {
+                    return new MockResponse().setResponseCode(503).setBody("overloaded");
+                }
+                if (request.getPath().startsWith("/tts")) {
+                    return new MockResponse().setBody(new Buffer().write(Fixtures.ttsResponse(AUDIO)));
+                }
+                return new MockResponse().setBody(new Buffer().write(Fixtures.chatStream(Fixtures.ANSWER)));
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (backend != null) {
+            backend.shutdown();
+        }
+        server.shutdown();
+    }
+
+    @Test
+    public void breakerOpensAfterConsecutiveFailuresAndSpeechFallsBack() throws IOException {
+        backend = backend(60_000);
+        failing.set(true);
+        for (int i = 0; i < FAILURE_THRESHOLD; i++) {
+            try {
+                synthesize();
+                fail("expected the 503 to surface");
+            } catch (BackendClient.HttpException e) {
+                assertEquals(503, e.code);
+            }
+        }
+
+        assertFalse(backend.isAvailable(HttpTransport.Endpoint.TTS));
+        assertTrue(backend.isAvailable(HttpTransport.Endpoint.CHAT));
+        // As the app chooses its voice: on device while the breaker is open
+        assertEquals("on device", speak());
+        try {
+            synthesize();
+            fail("expected the open breaker to reject the call");
+        } catch (CircuitBreaker.OpenException expected) {
+        }
+        assertEquals("rejected calls never reach the server", FAILURE_THRESHOLD, server.getRequestCount());
+    }
+
+    @Test
+    public void openBreakerFailsChatFast() throws Exception {
+        backend = backend(60_000);
+        failing.set(true);
+        for (int i = 0; i < FAILURE_THRESHOLD; i++) {
+            try {
+                chat();
+                fail("expected the 503 to surface");
+            } catch (BackendClient.HttpException expected) {
+            }
+        }
+
+        long startNanos = System.nanoTime();
+        try {
+            chat();
+            fail("expected the open breaker to reject the call");
+        } catch (CircuitBreaker.OpenException expected) {
+            // The caller answers that chat is unavailable instead of waiting out a timeout
+        }
+        assertTrue(System.nanoTime() - startNanos < 1_000_000_000L);
+        assertEquals(FAILURE_THRESHOLD, server.getRequestCount());
+    }
+
+    @Test
+    public void probeAfterTheOpenPeriodClosesTheBreaker() throws Exception {
+        backend = backend(100);
+        failing.set(true);
+        for (int i = 0; i < FAILURE_THRESHOLD; i++) {
+            try {
+                synthesize();
+                fail("expected the 503 to surface");
+            } catch (BackendClient.HttpException expected) {
+            }
+        }
+        assertEquals("on device", speak());
+
+        failing.set(false);
+        Thread.sleep(150);
+        assertTrue(backend.isAvailable(HttpTransport.Endpoint.TTS));
+        assertArrayEquals(AUDIO, synthesize());
+        assertEquals("cloud", speak());
+        assertTrue(backend.statsSummary(), backend.statsSummary().contains("TTS=closed opened=1 rejected=0"));
+    }
+
+    @Test
+    public void clientErrorsDoNotOpenTheBreaker() throws IOException {
+        backend = backend(60_000);
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setResponseCode(400).setBody("bad request");
+            }
+        });
+        for (int i = 0; i < FAILURE_THRESHOLD * 2; i++) {
+            try {
+                synthesize();
+                fail("expected the 400 to surface");
+            } catch (BackendClient.HttpException e) {
+                assertEquals(400, e.code);
+            }
+        }
+        assertTrue(backend.isAvailable(HttpTransport.Endpoint.TTS));
+    }
+
+    private BackendClient backend(long breakerOpenMs) {
+        BackendClient.Resilience resilience = new BackendClient.Resilience();
+        resilience.maxAttempts = 1; // one failure per call, so the count is exact
+        resilience.hedgeDefaultDelayMs = TIMEOUT_MS;
+        resilience.breakerFailureThreshold = FAILURE_THRESHOLD;
+        resilience.breakerOpenMs = breakerOpenMs;
+        return new BackendClient(new HttpTransport(new OkHttpClient.Builder()), new InteractionTracer(4),
+                server.url("/stt").toString(), server.url("/chat").toString(), "Bearer test",
+                server.url("/tts").toString(), resilience);
+    }
+
+    private byte[] synthesize() throws IOException {
+        ByteArrayOutputStream audio = new ByteArrayOutputStream();
+        backend.synthesize(new CancellationToken(), 1, TIMEOUT_MS,
+                ApiPayloads.speechSynthesisRequest("Hello.", "en-US", "FEMALE", "MP3", 0), audio);
+        return audio.toByteArray();
+    }
+
+    private String chat() throws Exception {
+        return backend.chat(new CancellationToken(), 1, TIMEOUT_MS, "{\"stream\": true}", null, true,
+                new ChatCompletionStream.Listener() {
+                    @Override
+                    public void onDelta(String text) {
+                    }
+
+                    @Override
+                    public void onSentence(String sentence) {
+                    }
+                });
+    }
+
+    /** The voice the app would answer with now. */
+    private String speak() {
+        return backend.isAvailable(HttpTransport.Endpoint.TTS) ? "cloud" : "on device";
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.imagetest;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class Base64DecoderTest {
+
+    private static final byte[] AUDIO = Fixtures.jpegLikeBytes(3000, 11);
+
+    @Test
+    public void decodesInEveryPieceSize() {
+        String text = Base64.getEncoder().encodeToString(AUDIO);
+        for (int piece = 1; piece <= 9; piece++) {
+            assertArrayEquals("pieces of " + piece, AUDIO, decode(text, piece));
+        }
+    }
+
+    @Test
+    public void undoesUnicodeEscapesAndSkipsTheWholeEscape() {
+        // As an HTML-safe JSON encoder writes them: '/', '+' and '=' as unicode escapes
+        String text = Base64.getEncoder().encodeToString(AUDIO)
+                .replace("/", "\\u002F").replace("+", "\\u002b").replace("=", "\\u003d");
+        for (int piece = 1; piece <= 7; piece++) {
+            assertArrayEquals("pieces of " + piece, AUDIO, decode(text, piece));
+        }
+    }
+
+    @Test
+    public void skipsEscapedSlashesAndLineBreaks() {
+        String text = Base64.getMimeEncoder().encodeToString(AUDIO)
+                .replace("/", "\\/").replace("\r\n", "\\r\\n");
+
+        assertArrayEquals(AUDIO, decode(text, 5));
+    }
+
+    @Test
+    public void escapedCharactersOutsideTheAlphabetCarryNoData() {
+        assertArrayEquals(new byte[]{'M', 'a', 'n'}, decode("TW\\u00e9Fu\\u2028", 3));
+    }
+
+    @Test
+    public void extractorDecodesAnEscapedAudioContentField() throws IOException {
+        String escaped = Base64.getEncoder().encodeToString(AUDIO).replace("=", "\\u003d");
+        Buffer response = new Buffer().writeUtf8("{\"audioContent\": \"" + escaped + "\"}");
+        ByteArrayOutputStream audio = new ByteArrayOutputStream();
+
+        assertEquals(AUDIO.length, AudioContentExtractor.extract(response, audio));
+        assertArrayEquals(AUDIO, audio.toByteArray());
+    }
+
+    private static byte[] decode(String text, int piece) {
+        byte[] src = text.getBytes(StandardCharsets.US_ASCII);
+        byte[] dst = new byte[Base64Decoder.maxDecodedLength(src.length)];
+        Base64Decoder decoder = new Base64Decoder();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int off = 0; off < src.length; off += piece) {
+            int n = decoder.decode(src, off, Math.min(piece, src.length - off), dst, 0);
+            out.write(dst, 0, n);
+        }
+        out.write(dst, 0, decoder.finish(dst, 0));
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.imagetest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The stream reader against a local server that sends the events a few bytes
+ * at a time, as a chat completion arrives over a slow link: events are split
+ * across reads and sentences across deltas.
+ */
+public class ChatCompletionStreamTest {
+
+    private final List<String> deltas = new ArrayList<>();
+    private final List<String> sentences = new ArrayList<>();
+    // How many deltas had arrived, and how long after the request, when each sentence was reported
+    private final List<Integer> deltasAtSentence = new ArrayList<>();
+    private final List<Long> millisAtSentence = new ArrayList<>();
+    private long startNanos;
+
+    private final ChatCompletionStream.Listener listener = new ChatCompletionStream.Listener() {
+        @Override
+        public void onDelta(String text) {
+            deltas.add(text);
+        }
+
+        @Override
+        public void onSentence(String sentence) {
+            sentences.add(sentence);
+            deltasAtSentence.add(deltas.size());
+            millisAtSentence.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        }
+    };
+
+    private MockWebServer server;
+    private OkHttpClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        client = new OkHttpClient();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+        server.shutdown();
+    }
+
+    @Test
+    public void eventsSplitAcrossReadsAreReassembled() throws Exception {
+        String answer = "Le café est à gauche. Ça coûte 3,50 €!";
+        // One byte at a time, so every event and every multi-byte character is split
+        server.enqueue(new MockResponse()
+                .setBody(new Buffer().write(Fixtures.chatStream(answer)))
+                .throttleBody(1, 0, TimeUnit.MILLISECONDS));
+
+        assertEquals(answer, read());
+        assertEquals(answer, String.join("", deltas));
+        assertEquals(Arrays.asList("Le café est à gauche.", "Ça coûte 3,50 €!"), sentences);
+    }
+
+    @Test
+    public void sentencesAreReportedAsSoonAsTheirBoundaryArrives() throws Exception {
+        Buffer body = events("It is a stop", " sign", ". The limit is 3.", "5 km away", ". Wait for the light?",
+                "\nThen cross", " quickly.", "");
+        body.writeUtf8("data: [DONE]\n\n");
+        // About 40 ms an event
+        server.enqueue(new MockResponse().setBody(body).throttleBody(50, 15, TimeUnit.MILLISECONDS));
+
+        String answer = read();
+        long endMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+
+        assertEquals("It is a stop sign. The limit is 3.5 km away. Wait for the light?\nThen cross quickly.", answer);
+        assertEquals(Arrays.asList("It is a stop sign.", "The limit is 3.5 km away.", "Wait for the light?",
+                "Then cross quickly."), sentences);
+        // A boundary is confirmed by the whitespace after it, which may come in the next delta;
+        // "3." followed by "5" is not one
+        assertEquals(Arrays.asList(3, 5, 6, 7), deltasAtSentence);
+        assertTrue("first sentence at " + millisAtSentence.get(0) + " ms of " + endMillis,
+                millisAtSentence.get(0) < endMillis - 100);
+    }
+
+    @Test
+    public void doneEndsTheStreamBeforeTheBodyDoes() throws Exception {
+        Buffer body = events("Turn left.", " Then right.");
+        body.writeUtf8("data: [DONE]\n\n");
+        // Anything after the end marker is not read, let alone parsed
+        body.writeUtf8("data: {\"choices\": [\n\n");
+        server.enqueue(new MockResponse().setBody(body).throttleBody(16, 5, TimeUnit.MILLISECONDS));
+
+        assertEquals("Turn left. Then right.", read());
+        assertEquals(Arrays.asList("Turn left.", "Then right."), sentences);
+    }
+
+    @Test
+    public void streamClosedWithoutDoneReportsTheLastSentence() throws Exception {
+        server.enqueue(new MockResponse()
+                .setBody(events("Turn left.", " Then", " right"))
+                .throttleBody(16, 5, TimeUnit.MILLISECONDS));
+
+        assertEquals("Turn left. Then right", read());
+        assertEquals(Arrays.asList("Turn left.", "Then right"), sentences);
+    }
+
+    @Test
+    public void otherFieldsAndEmptyDeltasAreSkipped() throws Exception {
+        Buffer body = new Buffer()
+                .writeUtf8(": keep-alive\n\n")
+                .writeUtf8("event: message\nid: 1\n")
+                .writeUtf8("data: {\"choices\":[{\"index\":0,\"delta\":{\"role\":\"assistant\"}}]}\n\n")
+                .writeUtf8("data:{\"choices\":[{\"index\":0,\"delta\":{\"content\":\"Go.\"}}]}\n\n")
+                .writeUtf8("data: {\"choices\":[{\"index\":0,\"delta\":{\"content\":null},\"finish_reason\":\"stop\"}]}\n\n")
+                .writeUtf8("data: {\"choices\":[],\"usage\":{\"total_tokens\":9}}\n\n")
+                .writeUtf8("data: [DONE]\n\n");
+        server.enqueue(new MockResponse().setBody(body).throttleBody(8, 1, TimeUnit.MILLISECONDS));
+
+        assertEquals("Go.", read());
+        assertEquals(Arrays.asList("Go."), deltas);
+        assertEquals(Arrays.asList("Go."), sentences);
+    }
+
+    @Test
+    public void connectionLostMidStreamIsAnErrorAfterTheSentencesSoFar() throws Exception {
+        Buffer body = events("It is a stop sign.", " Wait for the light.", " Then", " cross", " quickly", " now");
+        body.writeUtf8("data: [DONE]\n\n");
+        // Cut off halfway through the body
+        server.enqueue(new MockResponse().setBody(body)
+                .throttleBody(32, 5, TimeUnit.MILLISECONDS)
+                .setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY));
+
+        try {
+            read();
+            fail("expected the cut-off stream to fail");
+        } catch (IOException expected) {
+        }
+        assertEquals(Arrays.asList("It is a stop sign."), sentences);
+    }
+
+    private String read() throws IOException, JSONException {
+        startNanos = System.nanoTime();
+        Request request = new Request.Builder().url(server.url("/v1/chat/completions")).build();
+        try (Response response = client.newCall(request).execute()) {
+            return ChatCompletionStream.read(response.body().source(), listener);
+        }
+    }
+
+    /** One chat completion chunk event for each delta. */
+    private static Buffer events(String... contents) throws JSONException {
+        Buffer body = new Buffer();
+        for (String content : contents) {
+            JSONObject choice = new JSONObject()
+                    .put("index", 0)
+                    .put("delta", new JSONObject().put("content", content))
+                    .put("finish_reason", JSONObject.NULL);
+            JSONObject chunk = new JSONObject()
+                    .put("id", "chatcmpl-1")
+                    .put("object", "chat.completion.chunk")
+                    .put("choices", new JSONArray().put(choice));
+            body.writeUtf8("data: ").writeUtf8(chunk.toString()).writeUtf8("\n\n");
+        }
+        return body;
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.imagetest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Image costing and the history that fits next to a new message, at and just
+ * past the token budget.
+ */
+public class ConversationMemoryTest {
+
+    private static final int TURNS = 4;
+
+    @Test
+    public void imagesCostWhatTheApiCharges() {
+        assertEquals(85, ConversationMemory.imageTokens(512, 384, "low"));
+        assertEquals("low detail is flat whatever the size", 85, ConversationMemory.imageTokens(1024, 768, "low"));
+        assertEquals(255, ConversationMemory.imageTokens(512, 384, "high"));
+        assertEquals(765, ConversationMemory.imageTokens(768, 576, "high"));
+        assertEquals(765, ConversationMemory.imageTokens(1024, 768, "high"));
+        assertEquals(765, ConversationMemory.imageTokens(1024, 1024, "high"));
+        // Fit to 2048, then 768 on the short side: 768 x 1536, six tiles
+        assertEquals(1105, ConversationMemory.imageTokens(2048, 4096, "high"));
+        assertEquals("no hint is billed as high", 765, ConversationMemory.imageTokens(1024, 768, null));
+    }
+
+    @Test
+    public void historyThatFitsExactlyIsKept() throws JSONException {
+        int imageTokens = ConversationMemory.imageTokens(1024, 768, "high");
+        int budget = historyTokens() + newMessageTokens(imageTokens);
+        ConversationMemory memory = conversation(budget);
+
+        assertEquals(TURNS, historyTurnsSent(memory, imageTokens));
+    }
+
+    @Test
+    public void oneTokenOverTheBudgetDropsTheOldestTurn() throws JSONException {
+        int imageTokens = ConversationMemory.imageTokens(1024, 768, "high");
+        int budget = historyTokens() + newMessageTokens(imageTokens);
+        ConversationMemory memory = conversation(budget);
+
+        String request = memory.buildRequest(head(), message(), imageTokens + 1);
+
+        JSONArray messages = new JSONObject(request).getJSONArray("messages");
+        assertEquals(2 * (TURNS - 1) + 1, messages.length());
+        assertEquals("Question 1", messages.getJSONObject(0).getString("content"));
+        assertEquals("history is only left out of the request, not forgotten", TURNS, memory.getTurnCount());
+    }
+
+    @Test
+    public void highDetailImageLeavesRoomForLessHistoryThanLowDetail() throws JSONException {
+        int lowDetail = ConversationMemory.imageTokens(512, 384, "low");
+        int highDetail = ConversationMemory.imageTokens(512, 384, "high");
+        int budget = historyTokens() + newMessageTokens(lowDetail);
+        ConversationMemory memory = conversation(budget);
+
+        assertEquals(TURNS, historyTurnsSent(memory, lowDetail));
+        int sent = historyTurnsSent(memory, highDetail);
+        assertTrue(sent + " turns", sent > 0 && sent < TURNS);
+        // As much history as fits next to the image at its real cost, and no more
+        assertTrue(historyTokens(sent) + newMessageTokens(highDetail) <= budget);
+        assertTrue(historyTokens(sent + 1) + newMessageTokens(highDetail) > budget);
+    }
+
+    @Test
+    public void addingPastTheBudgetDropsTheOldestTurns() {
+        int oneTurn = historyTokens(1);
+        ConversationMemory memory = conversation(oneTurn * 2);
+
+        assertEquals(2, memory.getTurnCount());
+        assertEquals(historyTokens() - historyTokens(TURNS - 2), memory.getEstimatedTokens());
+    }
+
+    @Test
+    public void idleConversationStartsOver() {
+        ConversationMemory memory = new ConversationMemory(10_000, 20, 60_000);
+        memory.addTurn("What is this?", true, "A stop sign.", 1000);
+
+        assertTrue(memory.resetIfIdle(61_000));
+        assertFalse(memory.resetIfIdle(61_001));
+        assertEquals(0, memory.getEstimatedTokens());
+    }
+
+    /** A conversation of {@link #TURNS} turns of about the same size, under {@code maxTokens}. */
+    private static ConversationMemory conversation(int maxTokens) {
+        ConversationMemory memory = new ConversationMemory(maxTokens, 20, Long.MAX_VALUE);
+        for (int i = 0; i < TURNS; i++) {
+            memory.addTurn("Question " + i, false, answer(i), i);
+        }
+        return memory;
+    }
+
+    /** The tokens of the most recent {@code turns} turns of the conversation. */
+    private static int historyTokens(int turns) {
+        ConversationMemory all = conversation(Integer.MAX_VALUE);
+        ConversationMemory older = new ConversationMemory(Integer.MAX_VALUE, 20, Long.MAX_VALUE);
+        for (int i = 0; i < TURNS - turns; i++) {
+            older.addTurn("Question " + i, false, answer(i), i);
+        }
+        return all.getEstimatedTokens() - older.getEstimatedTokens();
+    }
+
+    /** About a hundred tokens, so a high-detail image displaces some turns but not all. */
+    private static String answer(int i) {
+        return "Answer " + i + ": it is a red octagonal sign on a grey post at the corner of the street."
+                + " It says stop in white capital letters, and below it a smaller white sign says all way."
+                + " Behind it there is a brick building with two windows and a blue door, and a bicycle"
+                + " leaning against the wall next to a green bin.";
+    }
+
+    private static int historyTokens() {
+        return historyTokens(TURNS);
+    }
+
+    /** What the new message costs, counted as buildRequest does. */
+    private static int newMessageTokens(int imageTokens) {
+        return ConversationMemory.estimateTokens(message().toString()) + 4 + imageTokens;
+    }
+
+    private static int historyTurnsSent(ConversationMemory memory, int imageTokens) throws JSONException {
+        String request = memory.buildRequest(head(), message(), imageTokens);
+        return (new JSONObject(request).getJSONArray("messages").length() - 1) / 2;
+    }
+
+    private static JSONObject head() {
+        try {
+            return ApiPayloads.chatRequestHead("gpt-4o", true);
+        } catch (JSONException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static JSONObject message() {
+        try {
+            return ApiPayloads.chatUserMessage("What does it say?", true, "high");
+        } catch (JSONException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
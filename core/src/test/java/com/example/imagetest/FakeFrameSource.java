@@ -0,0 +1,97 @@
+package com.example.imagetest;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A camera that opens at once and delivers frames only when the test calls
+ * {@link #deliver}, on the test's thread. Like the real one it fills only the
+ * buffers it has been given back, and drops frames when it has none.
+ */
+final class FakeFrameSource implements FrameSource {
+
+    static final int WIDTH = 64;
+    static final int HEIGHT = 48;
+
+    private final ArrayDeque<byte[]> free = new ArrayDeque<>();
+    private FrameSink sink;
+    private IOException openFailure;
+    private int opens = 0;
+    private int closes = 0;
+    private long frames = 0;
+
+    /** Makes the next open fail with {@code e}. */
+    void failNextOpen(IOException e) {
+        openFailure = e;
+    }
+
+    @Override
+    public synchronized void open(FrameSink sink, int bufferCount) throws IOException {
+        opens++;
+        if (openFailure != null) {
+            IOException e = openFailure;
+            openFailure = null;
+            throw e;
+        }
+        this.sink = sink;
+        for (int i = 0; i < bufferCount; i++) {
+            free.add(new byte[WIDTH * HEIGHT * 3 / 2]);
+        }
+    }
+
+    @Override
+    public synchronized void recycle(byte[] buffer) {
+        if (sink != null) {
+            free.add(buffer);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closes++;
+        sink = null;
+        free.clear();
+    }
+
+    /**
+     * Delivers up to {@code count} frames, each filled with the low byte of its
+     * number counting from 1 since the source was created.
+     *
+     * @return How many were delivered before the buffers ran out.
+     */
+    int deliver(int count) {
+        for (int i = 0; i < count; i++) {
+            FrameSink target;
+            byte[] buffer;
+            long number;
+            synchronized (this) {
+                if (sink == null || free.isEmpty()) {
+                    return i;
+                }
+                target = sink;
+                buffer = free.poll();
+                number = ++frames;
+            }
+            Arrays.fill(buffer, (byte) number);
+            target.onFrame(buffer, WIDTH, HEIGHT, number);
+        }
+        return count;
+    }
+
+    synchronized boolean isOpen() {
+        return sink != null;
+    }
+
+    synchronized int opens() {
+        return opens;
+    }
+
+    synchronized int closes() {
+        return closes;
+    }
+
+    synchronized int freeBuffers() {
+        return free.size();
+    }
+}
@@ -0,0 +1,231 @@
+package com.example.imagetest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Deterministic synthetic inputs for the tests and benchmarks, shaped like what the app
+ * sees on a device: 16 kHz speech over background noise, JPEG-sized payloads,
+ * and API responses as the services send them.
+ */
+final class Fixtures {
+
+    static final int SAMPLE_RATE = 16000;
+    static final int FRAME_BYTES = SAMPLE_RATE / 50 * 2; // 20 ms of 16-bit mono
+
+    private Fixtures() {
+    }
+
+    /**
+     * Little-endian 16-bit PCM: low background noise, a voiced utterance with
+     * syllable-rate amplitude changes from 0.5 s to {@code seconds - 1}, then noise again.
+     */
+    static byte[] speechPcm(double seconds, long seed) {
+        Random random = new Random(seed);
+        int samples = (int) (seconds * SAMPLE_RATE);
+        byte[] pcm = new byte[samples * 2];
+        double pitch = 140;
+        for (int i = 0; i < samples; i++) {
+            double t = (double) i / SAMPLE_RATE;
+            double value = random.nextGaussian() * 60; // about -55 dBFS of noise
+            if (t >= 0.5 && t < seconds - 1) {
+                double syllable = 0.5 + 0.5 * Math.sin(2 * Math.PI * 4 * t);
+                double voice = 0;
+                for (int harmonic = 1; harmonic <= 8; harmonic++) {
+                    voice += Math.sin(2 * Math.PI * pitch * harmonic * t) / harmonic;
+                }
+                value += voice * 3000 * syllable;
+            }
+            short sample = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        return pcm;
+    }
+
+    /**
+     * Bytes with the size and near-incompressible entropy of an upload-sized JPEG.
+     */
+    static byte[] jpegLikeBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        bytes[0] = (byte) 0xFF;
+        bytes[1] = (byte) 0xD8;
+        return bytes;
+    }
+
+    /**
+     * A 400x400 ARGB scene: soft gradients with a few bright and dark shapes, plus sensor noise.
+     */
+    static int[] scenePixels(int width, int height, long seed) {
+        Random random = new Random(seed);
+        int[] pixels = new int[width * height];
+        int[][] blobs = new int[6][];
+        for (int i = 0; i < blobs.length; i++) {
+            blobs[i] = new int[]{random.nextInt(width), random.nextInt(height),
+                    20 + random.nextInt(60), random.nextInt(200) - 100};
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int luma = 60 + 120 * x / width + 40 * y / height;
+                for (int[] blob : blobs) {
+                    int dx = x - blob[0];
+                    int dy = y - blob[1];
+                    if (dx * dx + dy * dy < blob[2] * blob[2]) {
+                        luma += blob[3];
+                    }
+                }
+                luma = Math.max(0, Math.min(255, luma + random.nextInt(9) - 4));
+                pixels[y * width + x] = 0xFF000000 | luma << 16 | luma << 8 | luma;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * A scene as {@link #scenePixels} with a light label of dark text-like strokes
+     * off to one side, where a question would be about.
+     */
+    static int[] labelledScenePixels(int width, int height, long seed) {
+        Random random = new Random(seed);
+        int[] pixels = scenePixels(width, height, seed);
+        int left = width * 5 / 8;
+        int top = height / 6;
+        int labelWidth = width / 4;
+        int labelHeight = height / 4;
+        int lineHeight = Math.max(4, labelHeight / 6);
+        int letterWidth = Math.max(2, lineHeight / 2);
+        // Letters are dark strokes along each line; about one in five is a space between words
+        boolean[] spaces = new boolean[labelWidth / letterWidth + 1];
+        for (int i = 0; i < spaces.length; i++) {
+            spaces[i] = random.nextInt(5) == 0;
+        }
+        for (int y = top; y < top + labelHeight; y++) {
+            int line = (y - top) % lineHeight;
+            boolean inLine = line > lineHeight / 4 && line < lineHeight * 3 / 4;
+            for (int x = left; x < left + labelWidth; x++) {
+                int letter = (x - left) / letterWidth;
+                boolean ink = inLine && !spaces[letter] && (x - left) % letterWidth < letterWidth / 2;
+                int luma = ink ? 40 : 230;
+                pixels[y * width + x] = 0xFF000000 | luma << 16 | luma << 8 | luma;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * A streamed chat completion for {@code answer}, a few characters per event, as server-sent events.
+     */
+    static byte[] chatStream(String answer) {
+        StringBuilder events = new StringBuilder();
+        for (int i = 0; i < answer.length(); i += 4) {
+            String piece = answer.substring(i, Math.min(answer.length(), i + 4))
+                    .replace("\\", "\\\\").replace("\"", "\\\"");
+            events.append("data: {\"id\":\"chatcmpl-1\",\"object\":\"chat.completion.chunk\",\"model\":\"gpt-4o\",")
+                    .append("\"choices\":[{\"index\":0,\"delta\":{\"content\":\"").append(piece)
+                    .append("\"},\"finish_reason\":null}]}\n\n");
+        }
+        events.append("data: [DONE]\n\n");
+        return events.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A non-streamed chat completion response.
+     */
+    static String chatResponse(String answer) {
+        return "{\"id\":\"chatcmpl-1\",\"object\":\"chat.completion\",\"model\":\"gpt-4o\",\"choices\":[{\"index\":0,"
+                + "\"message\":{\"role\":\"assistant\",\"content\":\"" + answer + "\"},\"finish_reason\":\"stop\"}],"
+                + "\"usage\":{\"prompt_tokens\":412,\"completion_tokens\":64,\"total_tokens\":476}}";
+    }
+
+    /**
+     * A Google TTS synthesize response carrying {@code audio}.
+     */
+    static byte[] ttsResponse(byte[] audio) {
+        return ("{\n  \"audioContent\": \"" + Base64.getEncoder().encodeToString(audio) + "\",\n"
+                + "  \"timepoints\": [],\n  \"audioConfig\": {\"audioEncoding\": \"MP3\"}\n}\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A Google STT recognize response.
+     */
+    static String sttResponse(String transcript) {
+        return "{\n  \"results\": [\n    {\n      \"alternatives\": [\n        {\n          \"transcript\": \""
+                + transcript + "\",\n          \"confidence\": 0.93\n        }\n      ],\n"
+                + "      \"resultEndTime\": \"3.200s\",\n      \"languageCode\": \"en-ca\"\n    }\n  ],\n"
+                + "  \"totalBilledTime\": \"4s\",\n  \"requestId\": \"1234567890\"\n}";
+    }
+
+    static final String ANSWER = "That's a stop sign mounted on a metal pole at a street corner. "
+            + "Behind it there's a red brick building with two windows, and a bicycle is leaning against the wall. "
+            + "The sign looks fairly new; the paint is bright and there's no visible rust. "
+            + "If you're crossing here, check for cars coming from your left first.";
+
+    static final String QUESTION = "What does this sign say and is it safe to cross?";
+
+    /** Discards everything written to it. */
+    static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    /**
+     * Reads the PCM samples of a 16 kHz 16-bit mono WAV file from the test resources.
+     */
+    static byte[] wavPcm(String resource) throws IOException {
+        byte[] wav;
+        try (InputStream in = Fixtures.class.getResourceAsStream("/" + resource)) {
+            if (in == null) {
+                throw new FileNotFoundException(resource);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int read; (read = in.read(buffer)) > 0; ) {
+                bytes.write(buffer, 0, read);
+            }
+            wav = bytes.toByteArray();
+        }
+        ByteBuffer header = ByteBuffer.wrap(wav).order(ByteOrder.LITTLE_ENDIAN);
+        if (wav.length < 12 || header.getInt(0) != 0x46464952 /* RIFF */ || header.getInt(8) != 0x45564157 /* WAVE */) {
+            throw new IOException(resource + " is not a WAV file");
+        }
+        int position = 12;
+        while (position + 8 <= wav.length) {
+            int chunkId = header.getInt(position);
+            int chunkSize = header.getInt(position + 4);
+            int body = position + 8;
+            if (chunkId == 0x20746d66 /* fmt */ && (header.getShort(body + 2) != 1
+                    || header.getInt(body + 4) != SAMPLE_RATE || header.getShort(body + 14) != 16)) {
+                throw new IOException(resource + " is not 16 kHz 16-bit mono");
+            }
+            if (chunkId == 0x61746164 /* data */) {
+                return Arrays.copyOfRange(wav, body, body + (Math.min(chunkSize, wav.length - body) & ~1));
+            }
+            position = body + chunkSize + (chunkSize & 1);
+        }
+        throw new IOException(resource + " has no data chunk");
+    }
+
+    static byte[] flac(byte[] pcm) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FlacEncoder encoder = new FlacEncoder(out, SAMPLE_RATE);
+        encoder.write(pcm, 0, pcm.length);
+        encoder.finish();
+        return out.toByteArray();
+    }
+}
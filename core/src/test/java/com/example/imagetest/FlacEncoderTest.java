@@ -0,0 +1,87 @@
+package com.example.imagetest;
+
+import org.jflac.FLACDecoder;
+import org.jflac.PCMProcessor;
+import org.jflac.metadata.StreamInfo;
+import org.jflac.util.ByteData;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streams from the encoder decoded with an independent FLAC decoder (jFLAC),
+ * which must give back the exact samples.
+ */
+public class FlacEncoderTest {
+
+    @Test
+    public void recordedSpeechRoundTrips() throws IOException {
+        for (String resource : new String[]{"vad/quiet_question.wav", "vad/noise_during_speech.wav",
+                "vad/noise_after_speech.wav"}) {
+            byte[] pcm = Fixtures.wavPcm(resource);
+            byte[] flac = Fixtures.flac(pcm);
+
+            assertArrayEquals(resource, pcm, decode(flac));
+            assertTrue(resource + ": " + flac.length + " of " + pcm.length + " bytes", flac.length < pcm.length);
+        }
+    }
+
+    @Test
+    public void audioWrittenInCaptureFramesRoundTrips() throws IOException {
+        // Not a whole number of blocks, in 20 ms frames with one split mid-sample
+        byte[] pcm = Fixtures.speechPcm(2.3, 7);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FlacEncoder encoder = new FlacEncoder(out, Fixtures.SAMPLE_RATE);
+        encoder.write(pcm, 0, 1);
+        for (int offset = 1; offset < pcm.length; offset += Fixtures.FRAME_BYTES) {
+            encoder.write(pcm, offset, Math.min(Fixtures.FRAME_BYTES, pcm.length - offset));
+        }
+        encoder.finish();
+
+        assertEquals(out.size(), encoder.getBytesWritten());
+        assertArrayEquals(pcm, decode(out.toByteArray()));
+    }
+
+    @Test
+    public void silenceAndFullScaleNoiseRoundTrip() throws IOException {
+        // A constant block, then blocks no predictor helps with, which are stored verbatim
+        byte[] pcm = new byte[Fixtures.SAMPLE_RATE * 2];
+        Random random = new Random(3);
+        for (int i = Fixtures.SAMPLE_RATE / 2; i < pcm.length; i++) {
+            pcm[i] = (byte) random.nextInt(256);
+        }
+        pcm[pcm.length - 2] = 0;
+        pcm[pcm.length - 1] = (byte) 0x80; // -32768
+
+        assertArrayEquals(pcm, decode(Fixtures.flac(pcm)));
+    }
+
+    /** Decodes a FLAC stream to little-endian 16-bit PCM, checking its STREAMINFO on the way. */
+    private static byte[] decode(byte[] flac) throws IOException {
+        ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+        FLACDecoder decoder = new FLACDecoder(new ByteArrayInputStream(flac));
+        decoder.addPCMProcessor(new PCMProcessor() {
+            @Override
+            public void processStreamInfo(StreamInfo info) {
+                assertEquals(Fixtures.SAMPLE_RATE, info.getSampleRate());
+                assertEquals(1, info.getChannels());
+                assertEquals(16, info.getBitsPerSample());
+            }
+
+            @Override
+            public void processPCM(ByteData data) {
+                pcm.write(data.getData(), 0, data.getLen());
+            }
+        });
+        decoder.decode();
+        assertEquals("frames that failed their CRC", 0, decoder.getBadFrames());
+        return pcm.toByteArray();
+    }
+}
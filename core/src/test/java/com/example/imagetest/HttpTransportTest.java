@@ -0,0 +1,137 @@
+package com.example.imagetest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The transport against a local HTTPS server with a certificate made for the
+ * test, standing in for a backend: the handshake and HTTP/2 negotiation are
+ * real, so the counters see what they would against the cloud.
+ */
+public class HttpTransportTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    private MockWebServer server;
+    private HttpTransport transport;
+
+    @Before
+    public void setUp() throws IOException {
+        String localhost = InetAddress.getByName("localhost").getCanonicalHostName();
+        HeldCertificate certificate = new HeldCertificate.Builder()
+                .addSubjectAlternativeName(localhost)
+                .build();
+        HandshakeCertificates serverCertificates = new HandshakeCertificates.Builder()
+                .heldCertificate(certificate)
+                .build();
+        HandshakeCertificates clientCertificates = new HandshakeCertificates.Builder()
+                .addTrustedCertificate(certificate.certificate())
+                .build();
+
+        server = new MockWebServer();
+        server.useHttps(serverCertificates.sslSocketFactory(), false);
+        server.start();
+        transport = new HttpTransport(new OkHttpClient.Builder()
+                .sslSocketFactory(clientCertificates.sslSocketFactory(), clientCertificates.trustManager()));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        OkHttpClient client = transport.client(HttpTransport.Endpoint.CHAT);
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+        server.shutdown();
+    }
+
+    @Test
+    public void everyEndpointSharesOneConnectionAndHandshake() throws IOException {
+        for (HttpTransport.Endpoint endpoint : HttpTransport.Endpoint.values()) {
+            server.enqueue(new MockResponse().setBody("ok"));
+            try (Response response = get(endpoint)) {
+                assertEquals(Protocol.HTTP_2, response.protocol());
+                assertNotNull(response.handshake());
+            }
+        }
+
+        assertEquals(3, transport.getCalls());
+        assertEquals(1, transport.getConnectionsOpened());
+        assertEquals(2, transport.getConnectionsReused());
+        assertEquals(1, transport.getHandshakes());
+        assertTrue(transport.getHandshakeNanos() > 0);
+        assertTrue(transport.statsSummary(),
+                transport.statsSummary().startsWith("calls=3 connectionsOpened=1 connectionsReused=2 handshakes=1 "));
+    }
+
+    @Test
+    public void warmUpOpensTheConnectionWithoutCountingAsACall() throws Exception {
+        server.enqueue(new MockResponse());
+        String origin = server.url("/").toString();
+        transport.warmUp(origin);
+        assertEquals("HEAD", server.takeRequest(TIMEOUT_MS, TimeUnit.MILLISECONDS).getMethod());
+        awaitConnections(1);
+
+        server.enqueue(new MockResponse().setBody("ok"));
+        get(HttpTransport.Endpoint.STT).close();
+        // Too soon after the last one to warm up again
+        transport.warmUp(origin);
+
+        assertEquals(2, server.getRequestCount());
+        assertEquals(1, transport.getCalls());
+        assertEquals(1, transport.getConnectionsOpened());
+        assertEquals("the real call found the warm connection", 1, transport.getConnectionsReused());
+        assertEquals(1, transport.getHandshakes());
+    }
+
+    @Test
+    public void failedConnectionIsNotCountedAsOpened() throws IOException {
+        Request request = new Request.Builder().url(server.url("/v1/chat/completions")).build();
+        server.shutdown();
+
+        try {
+            transport.client(HttpTransport.Endpoint.CHAT).newCall(request).execute().close();
+            fail("expected the connection to be refused");
+        } catch (IOException expected) {
+        }
+
+        assertEquals(1, transport.getCalls());
+        assertEquals(0, transport.getConnectionsOpened());
+        assertEquals(0, transport.getConnectionsReused());
+        assertEquals(0, transport.getHandshakes());
+    }
+
+    private Response get(HttpTransport.Endpoint endpoint) throws IOException {
+        Request request = new Request.Builder().url(server.url("/" + endpoint.name().toLowerCase(Locale.ROOT))).build();
+        return transport.client(endpoint).newCall(request).execute();
+    }
+
+    /** The warm-up finishes on a dispatcher thread; waits for its connection to be counted. */
+    private void awaitConnections(long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (transport.getConnectionsOpened() < expected) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError(transport.statsSummary());
+            }
+            Thread.sleep(5);
+        }
+    }
+}
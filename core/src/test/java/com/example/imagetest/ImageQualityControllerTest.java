@@ -0,0 +1,156 @@
+package com.example.imagetest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The controller fed the requests a simulated link would report, with no clock
+ * or network: each request's upload takes its body over the link rate, and the
+ * first token follows a fixed service time later.
+ */
+public class ImageQualityControllerTest {
+
+    private static final long TARGET_MS = 2000;
+    private static final long SERVICE_MS = 500;
+    // Enough requests for the averages to settle on a new link
+    private static final int SETTLE_REQUESTS = 20;
+
+    // Link rates, in bytes a millisecond
+    private static final double FAST = 1000;
+    private static final double SLOW = 30;
+    private static final double CONGESTED = 5;
+
+    @Test
+    public void tierFollowsTheLinkDownAndBackUp() {
+        ImageQualityController controller = new ImageQualityController(TARGET_MS, 1_000_000, SERVICE_MS);
+        requests(controller, FAST);
+        assertEquals(512, controller.choose(false).maxSize);
+        assertEquals(1024, controller.choose(true).maxSize);
+
+        List<Integer> degrading = requests(controller, SLOW);
+        degrading.addAll(requests(controller, CONGESTED));
+        assertNonIncreasing(degrading);
+        assertEquals(400, degrading.get(SETTLE_REQUESTS - 1).intValue());
+        assertEquals(256, controller.choose(false).maxSize);
+        assertEquals("text questions get no more than the link allows", 256, controller.choose(true).maxSize);
+
+        List<Integer> recovering = requests(controller, FAST);
+        assertNonDecreasing(recovering);
+        assertEquals(512, controller.choose(false).maxSize);
+        assertEquals(1024, controller.choose(true).maxSize);
+    }
+
+    @Test
+    public void smallestTierIsUsedEvenWhenItIsPredictedToMiss() {
+        ImageQualityController controller = new ImageQualityController(TARGET_MS, 1_000_000, SERVICE_MS);
+        requests(controller, CONGESTED);
+
+        ImageQualityController.Tier tier = controller.choose(false);
+
+        assertEquals(256, tier.maxSize);
+        assertTrue(controller.predictedMs(tier) > TARGET_MS);
+    }
+
+    @Test
+    public void timedOutRequestSaysNothingAboutTheService() {
+        ImageQualityController controller = new ImageQualityController(TARGET_MS, 1_000_000, SERVICE_MS);
+        requests(controller, SLOW);
+        ImageQualityController.Tier tier = controller.choose(false);
+        long before = controller.predictedMs(tier);
+
+        // Uploaded at the same rate, then cut off at the deadline with no answer
+        long bodyBytes = bodyBytes(tier);
+        long uploadNanos = Math.round(bodyBytes / SLOW * 1e6);
+        controller.onImageRequest(bodyBytes, uploadNanos, uploadNanos + 10_000_000_000L, false);
+
+        // Only the throughput estimate moves, and only as much as one more sample of the same link
+        assertEquals(before, controller.predictedMs(tier), 20);
+        assertTrue(controller.statsSummary(), controller.statsSummary().contains("timeouts=1 "));
+    }
+
+    @Test
+    public void largerJpegsThanExpectedLowerTheTier() {
+        ImageQualityController controller = new ImageQualityController(TARGET_MS, 30_000, SERVICE_MS);
+        ImageQualityController.Tier tier = controller.choose(false);
+        assertEquals(400, tier.maxSize);
+
+        // A busy scene encodes to far more than a typical one at this tier
+        for (int i = 0; i < SETTLE_REQUESTS; i++) {
+            controller.onEncoded(tier, 60 * 1024);
+        }
+
+        assertEquals(256, controller.choose(false).maxSize);
+    }
+
+    @Test
+    public void noTierIsLargerThanTheCaptureNeeds() {
+        ImageQualityController controller = new ImageQualityController(TARGET_MS, 1_000_000, SERVICE_MS);
+        requests(controller, FAST);
+
+        assertEquals(1024, controller.choose(true, 4032, 3024, Integer.MAX_VALUE).maxSize);
+        // A preview frame is sent as it is at the first tier that holds it, not enlarged to 1024
+        assertEquals(768, controller.choose(true, 640, 480, Integer.MAX_VALUE).maxSize);
+        assertEquals(400, controller.choose(false, 320, 240, Integer.MAX_VALUE).maxSize);
+    }
+
+    @Test
+    public void noTierCostsMoreTokensThanAllowed() {
+        ImageQualityController controller = new ImageQualityController(TARGET_MS, 1_000_000, SERVICE_MS);
+        requests(controller, FAST);
+
+        // 768 and up are sent at high detail, at 765 tokens for a 4:3 capture; 512 at low detail costs 85
+        assertEquals(1024, controller.choose(true, 4032, 3024, 765).maxSize);
+        assertEquals(512, controller.choose(true, 4032, 3024, 764).maxSize);
+        assertEquals("the smallest tier is sent whatever it costs",
+                256, controller.choose(true, 4032, 3024, 0).maxSize);
+    }
+
+    @Test
+    public void textQuestionsAreRecognized() {
+        assertTrue(ImageQualityController.readsText("What does this sign say?"));
+        assertTrue(ImageQualityController.readsText("Can you read the label"));
+        assertFalse(ImageQualityController.readsText("Is it safe to cross?"));
+        assertEquals("low", ImageQualityController.detailFor(512));
+        assertEquals("high", ImageQualityController.detailFor(768));
+    }
+
+    /**
+     * Sends {@link #SETTLE_REQUESTS} general questions over a link, each at the tier the controller chose.
+     *
+     * @return The size chosen for each.
+     */
+    private static List<Integer> requests(ImageQualityController controller, double bytesPerMs) {
+        List<Integer> sizes = new ArrayList<>();
+        for (int i = 0; i < SETTLE_REQUESTS; i++) {
+            ImageQualityController.Tier tier = controller.choose(false);
+            sizes.add(tier.maxSize);
+            long bodyBytes = bodyBytes(tier);
+            long uploadNanos = Math.round(bodyBytes / bytesPerMs * 1e6);
+            controller.onImageRequest(bodyBytes, uploadNanos, uploadNanos + SERVICE_MS * 1_000_000, true);
+        }
+        return sizes;
+    }
+
+    /** About what a camera scene encodes to at the tier, base64 and the rest of the request included. */
+    private static long bodyBytes(ImageQualityController.Tier tier) {
+        return tier.maxSize * (long) tier.maxSize / 5;
+    }
+
+    private static void assertNonIncreasing(List<Integer> sizes) {
+        for (int i = 1; i < sizes.size(); i++) {
+            assertTrue(sizes.toString(), sizes.get(i) <= sizes.get(i - 1));
+        }
+    }
+
+    private static void assertNonDecreasing(List<Integer> sizes) {
+        for (int i = 1; i < sizes.size(); i++) {
+            assertTrue(sizes.toString(), sizes.get(i) >= sizes.get(i - 1));
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.imagetest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A scheduled executor driven by the test: tasks run on the test's thread when
+ * it calls {@link #runDue()} or {@link #advance}, against a simulated clock.
+ * Only {@code execute} and the one-shot {@code schedule} of a Runnable are supported.
+ */
+final class ManualScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+
+    private final class Task implements ScheduledFuture<Object> {
+        final long atMs;
+        final long sequence;
+        final Runnable runnable;
+        boolean cancelled;
+        boolean done;
+
+        Task(long atMs, long sequence, Runnable runnable) {
+            this.atMs = atMs;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            synchronized (ManualScheduler.this) {
+                return unit.convert(atMs - nowMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            Task task = (Task) other;
+            return atMs != task.atMs ? Long.compare(atMs, task.atMs) : Long.compare(sequence, task.sequence);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (ManualScheduler.this) {
+                if (done || cancelled) {
+                    return false;
+                }
+                cancelled = true;
+                tasks.remove(this);
+                return true;
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            synchronized (ManualScheduler.this) {
+                return cancelled;
+            }
+        }
+
+        @Override
+        public boolean isDone() {
+            synchronized (ManualScheduler.this) {
+                return done || cancelled;
+            }
+        }
+
+        @Override
+        public Object get() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // Guarded by "this"
+    private final List<Task> tasks = new ArrayList<>();
+    private long nowMs = 0;
+    private long sequence = 0;
+    private boolean shutdown = false;
+
+    /** Runs the tasks that are due, including any they schedule for now. */
+    void runDue() {
+        while (true) {
+            Task next;
+            synchronized (this) {
+                if (tasks.isEmpty() || tasks.get(0).atMs > nowMs) {
+                    return;
+                }
+                next = tasks.remove(0);
+                next.done = true;
+            }
+            next.runnable.run();
+        }
+    }
+
+    /** Moves the clock forward, running tasks as they fall due. */
+    void advance(long ms) {
+        long targetMs;
+        synchronized (this) {
+            targetMs = nowMs + ms;
+        }
+        while (true) {
+            synchronized (this) {
+                if (tasks.isEmpty() || tasks.get(0).atMs > targetMs) {
+                    nowMs = targetMs;
+                    break;
+                }
+                nowMs = Math.max(nowMs, tasks.get(0).atMs);
+            }
+            runDue();
+        }
+        runDue();
+    }
+
+    synchronized int pending() {
+        return tasks.size();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        Task task = new Task(nowMs + unit.toMillis(delay), sequence++, command);
+        tasks.add(task);
+        Collections.sort(tasks);
+        return task;
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay,
+                                                     TimeUnit unit) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        shutdown = true;
+    }
+
+    @Override
+    public synchronized List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> dropped = new ArrayList<>();
+        for (Task task : tasks) {
+            dropped.add(task.runnable);
+        }
+        tasks.clear();
+        return dropped;
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated() {
+        return shutdown && tasks.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return isTerminated();
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.imagetest;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hashes of recaptured and unrelated scenes against the threshold the app
+ * matches scenes at. A scene is a lit backdrop with a few objects in front of
+ * it; a recapture of it has fresh sensor noise and may differ in exposure,
+ * framing, resolution or JPEG compression.
+ */
+public class PerceptualHashTest {
+
+    // As SCENE_MAX_DISTANCE in MainActivity
+    private static final int MAX_DISTANCE = 10;
+    private static final int WIDTH = 400;
+    private static final int HEIGHT = 300;
+    private static final int SCENES = 12;
+
+    @Test
+    public void recapturesOfTheSameSceneAreWithinTheThreshold() throws IOException {
+        for (int seed = 1; seed <= SCENES; seed++) {
+            long first = hash(scene(seed, 1, WIDTH, HEIGHT, 0, 0));
+            assertWithin(seed, "fresh noise", first, hash(scene(seed, 2, WIDTH, HEIGHT, 0, 0)));
+            assertWithin(seed, "brighter exposure", first, hash(scene(seed, 2, WIDTH, HEIGHT, 0, 25)));
+            assertWithin(seed, "darker exposure", first, hash(scene(seed, 2, WIDTH, HEIGHT, 0, -25)));
+            assertWithin(seed, "framing 2% to the side", first, hash(scene(seed, 2, WIDTH, HEIGHT, 8, 0)));
+            assertWithin(seed, "half resolution", first, hash(scene(seed, 2, WIDTH / 2, HEIGHT / 2, 0, 0)));
+            assertWithin(seed, "JPEG at quality 40", first, hash(jpegRoundTrip(scene(seed, 2, WIDTH, HEIGHT, 0, 0), 40)));
+        }
+    }
+
+    @Test
+    public void differentScenesAreBeyondTheThreshold() {
+        long[] hashes = new long[SCENES];
+        for (int seed = 1; seed <= SCENES; seed++) {
+            hashes[seed - 1] = hash(scene(seed, 1, WIDTH, HEIGHT, 0, 0));
+        }
+        for (int i = 0; i < SCENES; i++) {
+            for (int j = i + 1; j < SCENES; j++) {
+                int distance = PerceptualHash.distance(hashes[i], hashes[j]);
+                assertTrue("scenes " + (i + 1) + " and " + (j + 1) + " are " + distance + " apart",
+                        distance > MAX_DISTANCE);
+            }
+        }
+    }
+
+    @Test
+    public void indexFindsTheRecaptureAndNotAnotherScene() {
+        SceneIndex index = new SceneIndex(4, MAX_DISTANCE, 60_000);
+        SceneIndex.Scene desk = index.add(hash(scene(1, 1, WIDTH, HEIGHT, 0, 0)), new byte[]{1}, 0);
+        SceneIndex.Scene street = index.add(hash(scene(2, 1, WIDTH, HEIGHT, 0, 0)), new byte[]{2}, 0);
+
+        assertSame(desk, index.find(hash(scene(1, 3, WIDTH, HEIGHT, 4, 15)), 1000));
+        assertSame(street, index.find(hash(scene(2, 3, WIDTH / 2, HEIGHT / 2, 0, 0)), 1000));
+        assertNull(index.find(hash(scene(3, 1, WIDTH, HEIGHT, 0, 0)), 1000));
+        assertNull("forgotten once too old", index.find(hash(scene(1, 3, WIDTH, HEIGHT, 0, 0)), 70_000));
+    }
+
+    private static long hash(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        return PerceptualHash.dHash(image.getRGB(0, 0, width, height, null, 0, width), width, height);
+    }
+
+    private static void assertWithin(int seed, String change, long first, long recapture) {
+        int distance = PerceptualHash.distance(first, recapture);
+        assertTrue("scene " + seed + ", " + change + ": " + distance + " apart", distance <= MAX_DISTANCE);
+    }
+
+    /**
+     * A scene seen through a {@code width} x {@code height} sensor.
+     *
+     * @param seed      Which scene: the backdrop's lighting and the objects in it.
+     * @param noiseSeed The sensor noise of this capture.
+     * @param shift     How far the framing is moved right, in pixels of a 400 px wide frame.
+     * @param exposure  Luma added by a brighter or darker exposure.
+     */
+    private static BufferedImage scene(long seed, long noiseSeed, int width, int height, int shift, int exposure) {
+        Random random = new Random(seed);
+        int slopeX = random.nextInt(201) - 100;
+        int slopeY = random.nextInt(201) - 100;
+        int base = 70 + random.nextInt(60);
+        // x, y, width, height, luma against the backdrop
+        int[][] objects = new int[8][];
+        for (int i = 0; i < objects.length; i++) {
+            int objectWidth = WIDTH / 8 + random.nextInt(WIDTH * 3 / 8);
+            int objectHeight = HEIGHT / 8 + random.nextInt(HEIGHT * 3 / 8);
+            objects[i] = new int[]{random.nextInt(WIDTH - objectWidth), random.nextInt(HEIGHT - objectHeight),
+                    objectWidth, objectHeight, (random.nextBoolean() ? 1 : -1) * (40 + random.nextInt(60))};
+        }
+
+        Random noise = new Random(noiseSeed);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int sceneX = x * WIDTH / width + shift;
+                int sceneY = y * HEIGHT / height;
+                int luma = base + slopeX * sceneX / WIDTH + slopeY * sceneY / HEIGHT;
+                for (int[] object : objects) {
+                    if (sceneX >= object[0] && sceneX < object[0] + object[2]
+                            && sceneY >= object[1] && sceneY < object[1] + object[3]) {
+                        luma += object[4];
+                    }
+                }
+                luma = Math.max(0, Math.min(255, luma + exposure + noise.nextInt(9) - 4));
+                image.setRGB(x, y, luma << 16 | luma << 8 | luma);
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImage jpegRoundTrip(BufferedImage image, int quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality / 100f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+}
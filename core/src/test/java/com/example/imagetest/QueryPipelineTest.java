@@ -0,0 +1,253 @@
+package com.example.imagetest;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The pipeline driven with fake stages that block until the test lets them go.
+ */
+public class QueryPipelineTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    /** Everything the listener is told, as "id event detail". */
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+    private final List<String> history = new ArrayList<>();
+    private final Map<Long, FakeSpeech> speeches = new ConcurrentHashMap<>();
+    private QueryPipeline pipeline;
+
+    private static final class FakeSpeech implements QueryPipeline.Speech {
+        final List<String> spoken = new ArrayList<>();
+        boolean finished;
+        boolean cancelled;
+
+        @Override
+        public synchronized void enqueue(String text) {
+            spoken.add(text);
+        }
+
+        @Override
+        public synchronized void finish() {
+            finished = true;
+        }
+
+        @Override
+        public synchronized void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final QueryPipeline.Listener listener = new QueryPipeline.Listener() {
+        @Override
+        public void onStage(QueryPipeline.Query query, QueryPipeline.Stage stage) {
+            events.add(query.id + " stage " + stage);
+        }
+
+        @Override
+        public void onTranscript(QueryPipeline.Query query, String transcript) {
+            events.add(query.id + " transcript " + transcript);
+        }
+
+        @Override
+        public void onNoSpeech(QueryPipeline.Query query) {
+            events.add(query.id + " no speech");
+        }
+
+        @Override
+        public void onAnswerDelta(QueryPipeline.Query query, String text) {
+            events.add(query.id + " delta " + text);
+        }
+
+        @Override
+        public void onAnswer(QueryPipeline.Query query, String answer) {
+            events.add(query.id + " answer " + answer);
+        }
+
+        @Override
+        public void onError(QueryPipeline.Query query, QueryPipeline.Stage stage, Exception e) {
+            events.add(query.id + " error " + stage + " " + e.getMessage());
+        }
+    };
+
+    @After
+    public void tearDown() {
+        if (pipeline != null) {
+            pipeline.shutdown();
+        }
+    }
+
+    @Test
+    public void newQueryCancelsTheLiveOneAndItsSpeech() throws Exception {
+        pipeline = pipeline(1, 1, 4);
+        QueryPipeline.Query first = pipeline.begin();
+        CountDownLatch firstSentence = new CountDownLatch(1);
+        pipeline.ask(first, "What is this?", (query, question, out) -> {
+            out.onSentence("It is a sign.");
+            firstSentence.countDown();
+            // A slow answer stream, which fails once the cancelled call is aborted
+            awaitCancel(query);
+            query.token.throwIfCancelled();
+            return "It is a sign. It says stop.";
+        });
+        assertTrue(firstSentence.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        QueryPipeline.Query second = pipeline.begin();
+        assertTrue(first.isCancelled());
+        assertTrue("speech stops with its query", speeches.get(first.id).cancelled);
+        pipeline.ask(second, "And this?", (query, question, out) -> "A door.");
+
+        awaitEvent(second.id + " answer A door.");
+        // With one reason thread, the first answer has finished by now
+        for (String event : drain()) {
+            assertFalse(event, event.startsWith(first.id + " answer") || event.startsWith(first.id + " error"));
+        }
+    }
+
+    @Test
+    public void cancelledQueryGivesUpItsQueueSlot() throws Exception {
+        pipeline = pipeline(1, 1, 4);
+        CountDownLatch release = new CountDownLatch(1);
+        QueryPipeline.Query busy = new QueryPipeline.Query(100);
+        pipeline.ask(busy, "Hold on", (query, question, out) -> {
+            release.await();
+            return "Done.";
+        });
+        QueryPipeline.Query queued = pipeline.begin();
+        AtomicBoolean queuedRan = new AtomicBoolean();
+        pipeline.ask(queued, "Queued", (query, question, out) -> {
+            queuedRan.set(true);
+            return "Should not run.";
+        });
+
+        QueryPipeline.Query latest = pipeline.begin();
+        pipeline.ask(latest, "Latest", (query, question, out) -> "Latest.");
+        release.countDown();
+
+        awaitEvent(latest.id + " answer Latest.");
+        assertFalse(queuedRan.get());
+        for (String event : drain()) {
+            assertFalse(event, event.startsWith(queued.id + " "));
+        }
+    }
+
+    @Test
+    public void fullQueueRejectsTheQueryWithAnError() throws Exception {
+        pipeline = pipeline(1, 1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        QueryPipeline.Transcriber slow = query -> {
+            release.await();
+            return "";
+        };
+        QueryPipeline.Reasoner unused = (query, question, out) -> "";
+        QueryPipeline.Query running = new QueryPipeline.Query(1);
+        QueryPipeline.Query queued = new QueryPipeline.Query(2);
+        QueryPipeline.Query rejected = new QueryPipeline.Query(3);
+
+        pipeline.transcribe(running, slow, unused);
+        pipeline.transcribe(queued, slow, unused);
+        pipeline.transcribe(rejected, slow, unused);
+
+        // Rejected at once on the caller's thread, not left waiting behind the others
+        awaitEvent("3 error TRANSCRIBE Too busy to transcribe");
+        release.countDown();
+        awaitEvent("1 no speech");
+        awaitEvent("2 no speech");
+        for (String event : drain()) {
+            assertFalse(event, event.startsWith("3 ") && !event.contains("Too busy"));
+        }
+    }
+
+    @Test
+    public void answerWithNoSentencesIsSpokenWhole() throws Exception {
+        pipeline = pipeline(1, 1, 4);
+        QueryPipeline.Query query = pipeline.begin();
+        // As a cached answer arrives: all at once, with no sentences streamed
+        pipeline.ask(query, "What does it say?", (q, question, out) -> "It says stop. Wait for the light");
+
+        awaitEvent(query.id + " answer It says stop. Wait for the light");
+        FakeSpeech speech = speeches.get(query.id);
+        assertEquals(Arrays.asList("It says stop.", "Wait for the light"), speech.spoken);
+        assertTrue(speech.finished);
+        assertTrue(drain().contains(query.id + " stage " + QueryPipeline.Stage.SYNTHESIZE));
+    }
+
+    @Test
+    public void streamedSentencesAreNotSpokenAgain() throws Exception {
+        pipeline = pipeline(1, 1, 4);
+        QueryPipeline.Query query = pipeline.begin();
+        pipeline.ask(query, "What does it say?", (q, question, out) -> {
+            out.onDelta("It says stop. ");
+            out.onSentence("It says stop.");
+            out.onDelta("Wait.");
+            out.onSentence("Wait.");
+            return "It says stop. Wait.";
+        });
+
+        awaitEvent(query.id + " answer It says stop. Wait.");
+        assertEquals(Arrays.asList("It says stop.", "Wait."), speeches.get(query.id).spoken);
+    }
+
+    @Test
+    public void blankTranscriptIsNoSpeechAndIsNotAnswered() throws Exception {
+        pipeline = pipeline(1, 1, 4);
+        QueryPipeline.Query query = pipeline.begin();
+        AtomicBoolean asked = new AtomicBoolean();
+        pipeline.transcribe(query, q -> "  ", (q, question, out) -> {
+            asked.set(true);
+            return "";
+        });
+
+        awaitEvent(query.id + " no speech");
+        assertFalse(asked.get());
+    }
+
+    private QueryPipeline pipeline(int transcribeThreads, int reasonThreads, int queueCapacity) {
+        return new QueryPipeline(query -> {
+            FakeSpeech speech = new FakeSpeech();
+            speeches.put(query.id, speech);
+            return speech;
+        }, listener, transcribeThreads, reasonThreads, queueCapacity);
+    }
+
+    private static void awaitCancel(QueryPipeline.Query query) throws InterruptedException {
+        CountDownLatch cancelled = new CountDownLatch(1);
+        query.token.onCancel(cancelled::countDown);
+        cancelled.await();
+    }
+
+    /** Waits for an event, keeping everything before it in the history. */
+    private void awaitEvent(String expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            String event = events.poll(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            if (event == null) {
+                throw new AssertionError("No \"" + expected + "\" after " + history);
+            }
+            history.add(event);
+            if (event.equals(expected)) {
+                return;
+            }
+        }
+    }
+
+    /** Every event so far. */
+    private List<String> drain() {
+        events.drainTo(history);
+        return history;
+    }
+}
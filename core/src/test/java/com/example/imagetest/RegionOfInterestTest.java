@@ -0,0 +1,192 @@
+package com.example.imagetest;
+
+import org.junit.Test;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RegionOfInterestTest {
+
+    private static final int[] TIERS = {256, 512, 768};
+
+    @Test
+    public void closeUpWithinBudgetIsCompressedOnce() {
+        List<Integer> qualities = new ArrayList<>();
+        byte[] closeUp = RegionOfInterest.fitCloseUp(1000, 70, quality -> {
+            qualities.add(quality);
+            return new byte[1000];
+        });
+
+        assertEquals(1000, closeUp.length);
+        assertEquals(Arrays.asList(70), qualities);
+    }
+
+    @Test
+    public void closeUpOverBudgetIsCompressedAgainAtLowerQuality() {
+        List<Integer> qualities = new ArrayList<>();
+        byte[] closeUp = RegionOfInterest.fitCloseUp(1000, 70, quality -> {
+            qualities.add(quality);
+            return new byte[quality * 15]; // fits at 60 and below
+        });
+
+        assertEquals(900, closeUp.length);
+        assertEquals(Arrays.asList(70, 60), qualities);
+    }
+
+    @Test
+    public void closeUpThatNeverFitsFallsBackToTheWholeFrame() {
+        List<Integer> qualities = new ArrayList<>();
+        byte[] closeUp = RegionOfInterest.fitCloseUp(1000, 70, quality -> {
+            qualities.add(quality);
+            return new byte[2000];
+        });
+
+        assertNull(closeUp);
+        assertEquals(Arrays.asList(70, 60, 50), qualities);
+    }
+
+    @Test
+    public void qualityNeverStepsBelowOne() {
+        List<Integer> qualities = new ArrayList<>();
+        RegionOfInterest.fitCloseUp(10, 5, quality -> {
+            qualities.add(quality);
+            return new byte[20];
+        });
+
+        assertEquals(Arrays.asList(5), qualities);
+    }
+
+    @Test
+    public void payloadIsNeverLargerThanTheWholeFrameAtTheSameTier() throws IOException {
+        RegionOfInterest focus = new RegionOfInterest(RegionOfInterest.Mode.AUTO, 0.5f, true);
+        int[][] scenes = {
+                Fixtures.labelledScenePixels(1280, 960, 8),
+                Fixtures.scenePixels(1280, 960, 3),
+                Fixtures.labelledScenePixels(960, 1280, 21),
+        };
+        int[][] sizes = {{1280, 960}, {1280, 960}, {960, 1280}};
+        for (int i = 0; i < scenes.length; i++) {
+            BufferedImage capture = image(scenes[i], sizes[i][0], sizes[i][1]);
+            for (int maxSize : TIERS) {
+                BufferedImage whole = scale(capture, maxSize);
+                byte[] wholeJpeg = encode(whole, 70);
+                int[] wholePixels = whole.getRGB(0, 0, whole.getWidth(), whole.getHeight(), null, 0, whole.getWidth());
+                RegionOfInterest.Region region = focus.locate(wholePixels, whole.getWidth(), whole.getHeight());
+                BufferedImage tiled = tile(capture, whole, region, focus.layout(capture.getWidth(),
+                        capture.getHeight(), maxSize));
+
+                byte[] closeUp = RegionOfInterest.fitCloseUp(wholeJpeg.length, 70, quality -> encode(tiled, quality));
+                byte[] payload = closeUp != null ? closeUp : wholeJpeg;
+                assertTrue("scene " + i + " at " + maxSize + ": " + payload.length + " > " + wholeJpeg.length,
+                        payload.length <= wholeJpeg.length);
+            }
+        }
+    }
+
+    @Test
+    public void flatFrameFallsBackToTheCentre() {
+        RegionOfInterest focus = new RegionOfInterest(RegionOfInterest.Mode.AUTO, 0.5f, true);
+        int[] grey = new int[320 * 240];
+        Arrays.fill(grey, 0xff808080);
+
+        RegionOfInterest.Region region = focus.locate(grey, 320, 240);
+
+        assertArrayEquals(new float[]{0.25f, 0.25f}, new float[]{region.left, region.top}, 1e-6f);
+    }
+
+    @Test
+    public void layoutKeepsTheLongSideAtTheTier() {
+        RegionOfInterest focus = new RegionOfInterest(RegionOfInterest.Mode.CENTRE, 0.5f, true);
+
+        RegionOfInterest.Layout landscape = focus.layout(1280, 960, 512);
+        RegionOfInterest.Layout portrait = focus.layout(960, 1280, 512);
+
+        assertEquals(512, landscape.width);
+        assertEquals(384, landscape.cropWidth);
+        assertEquals(384, landscape.thumbnailLeft);
+        assertEquals(512, portrait.height);
+        assertEquals(384, portrait.thumbnailTop);
+    }
+
+    @Test
+    public void smallFramesRegionIsNotEnlarged() {
+        RegionOfInterest focus = new RegionOfInterest(RegionOfInterest.Mode.CENTRE, 0.5f, true);
+        RegionOfInterest.Region region = focus.locateAround(0.5f, 0.5f);
+
+        // The region is 320 pixels wide in a preview frame
+        RegionOfInterest.Layout preview = focus.layout(640, 480, region, 1024);
+        assertTrue(preview.cropWidth + " > 320", preview.cropWidth <= 320);
+        assertTrue(preview.width < 1024);
+        assertEquals(preview.cropWidth * 3 / 4, preview.cropHeight, 1);
+
+        // 2016 pixels in a full capture, so the tier's size is kept
+        RegionOfInterest.Layout capture = focus.layout(4032, 3024, region, 1024);
+        assertEquals(1024, capture.width);
+        assertEquals(focus.layout(4032, 3024, 1024).cropWidth, capture.cropWidth);
+    }
+
+    private static BufferedImage image(int[] pixels, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, width, height, pixels, 0, width);
+        return image;
+    }
+
+    private static BufferedImage scale(BufferedImage source, int maxSize) {
+        double scale = (double) maxSize / Math.max(source.getWidth(), source.getHeight());
+        BufferedImage scaled = new BufferedImage((int) Math.round(source.getWidth() * scale),
+                (int) Math.round(source.getHeight() * scale), BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(source, 0, 0, scaled.getWidth(), scaled.getHeight(), null);
+        graphics.dispose();
+        return scaled;
+    }
+
+    private static BufferedImage tile(BufferedImage capture, BufferedImage whole, RegionOfInterest.Region region,
+                                      RegionOfInterest.Layout layout) {
+        BufferedImage tiled = new BufferedImage(layout.width, layout.height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = tiled.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        int left = Math.round(region.left * capture.getWidth());
+        int top = Math.round(region.top * capture.getHeight());
+        graphics.drawImage(capture, 0, 0, layout.cropWidth, layout.cropHeight,
+                left, top, left + Math.round(region.width * capture.getWidth()),
+                top + Math.round(region.height * capture.getHeight()), null);
+        graphics.drawImage(whole, layout.thumbnailLeft, layout.thumbnailTop,
+                layout.thumbnailWidth, layout.thumbnailHeight, null);
+        graphics.dispose();
+        return tiled;
+    }
+
+    private static byte[] encode(BufferedImage image, int quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality / 100f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32 * 1024);
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+}
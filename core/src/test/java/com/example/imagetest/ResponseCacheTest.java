@@ -0,0 +1,131 @@
+package com.example.imagetest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The cache over a file in a temporary directory, with a direct executor so
+ * loading and saving have finished by the time each call returns.
+ */
+public class ResponseCacheTest {
+
+    private static final Executor DIRECT = Runnable::run;
+    private static final long TTL_MS = 10 * 60 * 1000L;
+    // As SCENE_MAX_DISTANCE in MainActivity
+    private static final int MAX_DISTANCE = 10;
+    private static final long DESK = 0x0f0f_3c3c_5a5a_ff00L;
+    private static final long STREET = ~DESK;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void normalizeDropsCaseDeterminersAndPunctuation() {
+        assertEquals("what does sign say", ResponseCache.normalize("What does this sign say?"));
+        assertEquals("what does sign say", ResponseCache.normalize("um, what does the sign say"));
+        assertEquals("whats on label", ResponseCache.normalize("What's on that label?"));
+    }
+
+    @Test
+    public void entryExpiresAfterItsTtl() throws IOException {
+        ResponseCache cache = open(8);
+        long now = System.currentTimeMillis();
+        cache.put("What does this sign say?", DESK, "It says stop.", now, 1500);
+
+        assertNotNull(cache.get("what does the sign say", DESK, now + TTL_MS));
+        assertNull(cache.get("what does the sign say", DESK, now + TTL_MS + 1));
+        assertTrue(cache.statsSummary(), cache.statsSummary().endsWith(" entries=0"));
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvictedAtCapacity() throws IOException {
+        ResponseCache cache = open(2);
+        long now = System.currentTimeMillis();
+        cache.put("What colour is it?", DESK, "Red.", now, 1000);
+        cache.put("Is it safe?", DESK, "Yes.", now, 1000);
+        assertNotNull(cache.get("What colour is it?", DESK, now));
+
+        cache.put("Where is the door?", DESK, "On the left.", now, 1000);
+
+        assertNotNull(cache.get("What colour is it?", DESK, now));
+        assertNull("used longest ago", cache.get("Is it safe?", DESK, now));
+        assertNotNull(cache.get("Where is the door?", DESK, now));
+    }
+
+    @Test
+    public void entriesReloadInANewInstanceOnTheSameFile() throws IOException {
+        long now = System.currentTimeMillis();
+        ResponseCache before = open(8);
+        before.put("What does this sign say?", DESK, "It says stop.", now, 1800);
+        before.put("Tell me a joke", null, "No.", now, 900);
+
+        ResponseCache after = open(8);
+
+        ResponseCache.Hit hit = after.get("What does that sign say", DESK ^ 0b111, now);
+        assertNotNull(hit);
+        assertEquals("It says stop.", hit.answer);
+        assertEquals(1800, hit.latencyMs);
+        assertEquals("No.", after.get("tell me a joke", null, now).answer);
+        assertNull("a text-only answer is not one about an image", after.get("tell me a joke", DESK, now));
+        assertEquals("no temporary file left", 1, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void truncatedOrCorruptFileIsIgnored() throws IOException {
+        File file = cacheFile();
+        long now = System.currentTimeMillis();
+        open(8).put("What does this sign say?", DESK, "It says stop.", now, 1800);
+        byte[] saved = Files.readAllBytes(file.toPath());
+
+        // Cut off part way through, as by a crash mid-write without the rename
+        Files.write(file.toPath(), Arrays.copyOf(saved, saved.length / 2));
+        ResponseCache truncated = open(8);
+        assertNull(truncated.get("What does this sign say?", DESK, now));
+
+        Files.write(file.toPath(), "{\"not\": \"an array\"}".getBytes(StandardCharsets.UTF_8));
+        ResponseCache corrupt = open(8);
+        assertNull(corrupt.get("What does this sign say?", DESK, now));
+
+        // And it still works, replacing the damaged file
+        corrupt.put("Is it safe?", null, "Yes.", now, 700);
+        assertEquals("Yes.", open(8).get("is it safe", null, now).answer);
+    }
+
+    @Test
+    public void questionsDifferingInADeterminerAboutDifferentScenesDoNotCollide() throws IOException {
+        ResponseCache cache = open(8);
+        long now = System.currentTimeMillis();
+        assertTrue(PerceptualHash.distance(DESK, STREET) > MAX_DISTANCE);
+        cache.put("What does this sign say?", DESK, "It says stop.", now, 1500);
+
+        assertNull(cache.get("What does that sign say?", STREET, now));
+
+        cache.put("What does that sign say?", STREET, "It says Main Street.", now, 1500);
+        assertEquals("It says stop.", cache.get("What does a sign say?", DESK, now).answer);
+        assertEquals("It says Main Street.", cache.get("What does the sign say?", STREET, now).answer);
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(3000, cache.getLatencySavedMs());
+    }
+
+    private ResponseCache open(int capacity) {
+        return new ResponseCache(cacheFile(), DIRECT, capacity, TTL_MS, MAX_DISTANCE);
+    }
+
+    private File cacheFile() {
+        return new File(folder.getRoot(), "responses.json");
+    }
+}
@@ -0,0 +1,230 @@
+package com.example.imagetest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Speculation in front of a local chat server, asked the way the app asks: an
+ * interim transcript is reported, then the final one is taken, and if nothing
+ * can be taken the question is sent as usual.
+ *
+ * The server answers the full question with {@link Fixtures#ANSWER} at once.
+ * Any other question gets the first event of {@link #PARTIAL_ANSWER} and then
+ * stalls, so its request is still in flight when it is thrown away.
+ */
+public class SpeculativeChatTest {
+
+    private static final long TIMEOUT_MS = 5000;
+    private static final long STABLE_MS = 50;
+    // Long enough for a test to finish, short enough for the server to shut down after
+    private static final long STALL_MS = 2000;
+    private static final String PARTIAL_QUESTION = "What does this sign say";
+    private static final String PARTIAL_ANSWER = "It says stop.";
+    private static final String IMAGE = "capture-1";
+
+    private MockWebServer server;
+    private BackendClient backend;
+    private SpeculativeChat speculativeChat;
+    // Every request's token, speculative or not, in the order they were sent
+    private final List<CancellationToken> sent = new CopyOnWriteArrayList<>();
+    // A permit for each answer that stalled after its first event, and for each that arrived whole
+    private final Semaphore stalled = new Semaphore(0);
+    private final Semaphore answered = new Semaphore(0);
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (request.getBody().clone().readUtf8().contains("safe to cross")) {
+                    return new MockResponse().setBody(new Buffer().write(Fixtures.chatStream(Fixtures.ANSWER)));
+                }
+                byte[] stream = Fixtures.chatStream(PARTIAL_ANSWER);
+                int firstEvent = new String(stream, StandardCharsets.UTF_8).indexOf("\n\n") + 2;
+                return new MockResponse().setBody(new Buffer().write(stream))
+                        .throttleBody(firstEvent, STALL_MS, TimeUnit.MILLISECONDS);
+            }
+        });
+        server.start();
+        backend = new BackendClient(new HttpTransport(new OkHttpClient.Builder()), new InteractionTracer(4),
+                server.url("/stt").toString(), server.url("/chat").toString(), "Bearer test",
+                server.url("/tts").toString());
+        speculativeChat = new SpeculativeChat(STABLE_MS, 2);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        speculativeChat.shutdown();
+        backend.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void matchingFinalTranscriptReusesTheRequestInFlight() throws Exception {
+        SpeculativeChat.Attempt<String> attempt = begin(speculativeChat);
+        attempt.onPartial(Fixtures.QUESTION);
+        assertNotNull("sent once the transcript held steady", server.takeRequest(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        StringBuffer heard = new StringBuffer();
+        // Differs only in what normalization drops
+        String answer = ask(attempt, "what does the sign say, and is it safe to cross", heard);
+
+        assertEquals(Fixtures.ANSWER, answer);
+        assertEquals("the held answer is replayed, then the rest follows", Fixtures.ANSWER, heard.toString());
+        assertEquals("no second request", 1, server.getRequestCount());
+        assertFalse(sent.get(0).isCancelled());
+        assertTrue(speculativeChat.statsSummary(),
+                speculativeChat.statsSummary().startsWith("speculated=1 hits=1 (100%) "));
+    }
+
+    @Test
+    public void differentFinalTranscriptCancelsAndResends() throws Exception {
+        SpeculativeChat.Attempt<String> attempt = begin(speculativeChat);
+        attempt.onPartial(PARTIAL_QUESTION);
+        assertTrue(stalled.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        StringBuffer heard = new StringBuffer();
+        String answer = ask(attempt, Fixtures.QUESTION, heard);
+
+        assertEquals(Fixtures.ANSWER, answer);
+        assertEquals("nothing of the guess's answer is passed on", Fixtures.ANSWER, heard.toString());
+        assertEquals(2, server.getRequestCount());
+        assertEquals(2, sent.size());
+        assertTrue("the guess is cancelled while still streaming", sent.get(0).isCancelled());
+        assertTrue(server.takeRequest().getBody().readUtf8().contains(PARTIAL_QUESTION));
+        assertTrue(server.takeRequest().getBody().readUtf8().contains("safe to cross"));
+        assertTrue(speculativeChat.statsSummary(), speculativeChat.statsSummary().endsWith(
+                " wasted=1 (mismatched=1 superseded=0 failed=0 abandoned=0) wastedAnswerChars=4"));
+    }
+
+    @Test
+    public void finalTranscriptBeforeTheStabilityWindowSendsNothingSpeculatively() throws Exception {
+        SpeculativeChat slow = new SpeculativeChat(TIMEOUT_MS, 2);
+        try {
+            SpeculativeChat.Attempt<String> attempt = begin(slow);
+            attempt.onPartial(Fixtures.QUESTION);
+
+            assertNull(attempt.take(Fixtures.QUESTION, IMAGE, new Collector(new StringBuffer())));
+            assertEquals(0, server.getRequestCount());
+            assertTrue(sent.isEmpty());
+            assertTrue(slow.statsSummary(), slow.statsSummary().startsWith("speculated=0 hits=0 (0%) "));
+        } finally {
+            slow.shutdown();
+        }
+    }
+
+    @Test
+    public void countersAddUpAcrossQueries() throws Exception {
+        // Taken
+        SpeculativeChat.Attempt<String> hit = begin(speculativeChat);
+        hit.onPartial(Fixtures.QUESTION);
+        server.takeRequest(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        ask(hit, Fixtures.QUESTION, new StringBuffer());
+
+        // The image changed after the guess was sent
+        SpeculativeChat.Attempt<String> otherImage = begin(speculativeChat);
+        otherImage.onPartial(Fixtures.QUESTION);
+        assertTrue(answered.tryAcquire(2, TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertNull(otherImage.take(Fixtures.QUESTION, "capture-2", new Collector(new StringBuffer())));
+
+        // The guess is replaced by a longer one as the user keeps talking, then nothing is recognized
+        SpeculativeChat.Attempt<String> superseded = begin(speculativeChat);
+        superseded.onPartial(PARTIAL_QUESTION);
+        assertTrue(stalled.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        superseded.onPartial(Fixtures.QUESTION);
+        assertTrue(answered.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        superseded.cancel();
+
+        assertEquals(4, server.getRequestCount());
+        assertTrue(speculativeChat.statsSummary(),
+                speculativeChat.statsSummary().startsWith("speculated=4 hits=1 (25%) "));
+        assertTrue(speculativeChat.statsSummary(), speculativeChat.statsSummary().endsWith(
+                " wasted=3 (mismatched=1 superseded=1 failed=0 abandoned=1) wastedAnswerChars="
+                        + (Fixtures.ANSWER.length() * 2 + 4)));
+    }
+
+    private SpeculativeChat.Attempt<String> begin(SpeculativeChat chat) {
+        return chat.begin(new CancellationToken(), () -> IMAGE, this::fetch);
+    }
+
+    /** As the app answers a question: the speculative answer if it can be taken, else a new request. */
+    private String ask(SpeculativeChat.Attempt<String> attempt, String question, StringBuffer heard) throws Exception {
+        Collector out = new Collector(heard);
+        String answer = attempt.take(question, IMAGE, out);
+        if (answer == null) {
+            answer = fetch(new CancellationToken(), 1, question, IMAGE, out);
+        }
+        return answer;
+    }
+
+    private String fetch(CancellationToken token, long traceId, String question, String image,
+                         ChatCompletionStream.Listener out) throws Exception {
+        sent.add(token);
+        String answer = backend.chat(token, traceId, TIMEOUT_MS, request(question), null, true,
+                new ChatCompletionStream.Listener() {
+                    @Override
+                    public void onDelta(String text) {
+                        out.onDelta(text);
+                        if (PARTIAL_ANSWER.startsWith(text)) {
+                            stalled.release();
+                        }
+                    }
+
+                    @Override
+                    public void onSentence(String sentence) {
+                        out.onSentence(sentence);
+                    }
+                });
+        answered.release();
+        return answer;
+    }
+
+    private static String request(String question) throws JSONException {
+        JSONObject request = ApiPayloads.chatRequestHead("gpt-4o", true);
+        request.put("messages", new JSONArray().put(ApiPayloads.chatUserMessage(question, false, null)));
+        return request.toString();
+    }
+
+    /** What the user would hear. */
+    private static final class Collector implements ChatCompletionStream.Listener {
+        private final StringBuffer heard;
+
+        Collector(StringBuffer heard) {
+            this.heard = heard;
+        }
+
+        @Override
+        public void onDelta(String text) {
+            heard.append(text);
+        }
+
+        @Override
+        public void onSentence(String sentence) {
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.imagetest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The cache on a temporary directory with a direct executor, as the app opens
+ * it at startup.
+ */
+public class TtsCacheTest {
+
+    private static final Executor DIRECT = Runnable::run;
+    private static final long MAX_BYTES = 1024 * 1024;
+    private static final long MAX_AGE_MS = 24 * 60 * 60 * 1000L;
+    private static final String VOICE = "en-US-Neural2-C";
+    private static final String ENCODING = "LINEAR16";
+    private static final String RATE = "24000";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void keyCoversTheTextVoiceAndAudioConfig() {
+        String key = TtsCache.key("It is a stop sign.", VOICE, ENCODING, RATE);
+
+        assertEquals(64, key.length());
+        assertTrue(key, key.matches("[0-9a-f]+"));
+        assertEquals(key, TtsCache.key("It is a stop sign.", VOICE, ENCODING, RATE));
+        assertNotEquals(key, TtsCache.key("It is a stop sign!", VOICE, ENCODING, RATE));
+        assertNotEquals(key, TtsCache.key("It is a stop sign.", "en-US-Neural2-F", ENCODING, RATE));
+        assertNotEquals(key, TtsCache.key("It is a stop sign.", VOICE, ENCODING, "16000"));
+        // Parts are delimited, so moving a boundary changes the key
+        assertNotEquals(TtsCache.key("text", "ab", "c"), TtsCache.key("text", "a", "bc"));
+    }
+
+    @Test
+    public void differentVoiceOrAudioConfigMisses() throws IOException {
+        TtsCache cache = open();
+        put(cache, TtsCache.key("Stop.", VOICE, ENCODING, RATE), audio(2000));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertFalse(cache.get(TtsCache.key("Stop.", "en-GB-Neural2-A", ENCODING, RATE), out));
+        assertFalse(cache.get(TtsCache.key("Stop.", VOICE, "OGG_OPUS", RATE), out));
+        assertEquals("nothing written on a miss", 0, out.size());
+        assertTrue(cache.get(TtsCache.key("Stop.", VOICE, ENCODING, RATE), out));
+        assertEquals(2000, out.size());
+    }
+
+    @Test
+    public void sameTextHitsAfterReopening() throws IOException {
+        byte[] audio = audio(5000);
+        String key = TtsCache.key("No speech recognized.", VOICE, ENCODING, RATE);
+        put(open(), key, audio);
+
+        // As at the next app start: a new store over the same directory
+        TtsCache reopened = open();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertTrue(reopened.get(key, out));
+        assertArrayEquals(audio, out.toByteArray());
+    }
+
+    @Test
+    public void countersAddUp() throws IOException {
+        TtsCache cache = open();
+        String stop = TtsCache.key("Stop.", VOICE, ENCODING, RATE);
+        String go = TtsCache.key("Go.", VOICE, ENCODING, RATE);
+        put(cache, stop, audio(3000));
+        put(cache, go, audio(1000));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(cache.get(stop, out));
+        assertTrue(cache.get(stop, out));
+        assertTrue(cache.get(go, out));
+        assertFalse(cache.get(TtsCache.key("Wait.", VOICE, ENCODING, RATE), out));
+
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(7000, cache.getBytesSaved());
+        assertEquals(out.size(), cache.getBytesSaved());
+        assertTrue(cache.statsSummary(),
+                cache.statsSummary().startsWith("hits=3 misses=1 hitRate=75% bytesSaved=7000 files=2 size=4000 "));
+    }
+
+    @Test
+    public void editorPassesAudioOnAndOnlyCommittedEntriesAreCached() throws IOException {
+        TtsCache cache = open();
+        String key = TtsCache.key("Turn left.", VOICE, ENCODING, RATE);
+        ByteArrayOutputStream playing = new ByteArrayOutputStream();
+
+        TtsCache.Editor editor = cache.edit(key, playing);
+        editor.write(audio(800), 0, 800);
+        assertFalse("not visible before commit", cache.get(key, new ByteArrayOutputStream()));
+        // Synthesis failed part way
+        editor.abort();
+
+        assertEquals("the audio still played", 800, playing.size());
+        assertFalse(cache.get(key, new ByteArrayOutputStream()));
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void entryDeletedBehindTheCachesBackIsAMiss() throws IOException {
+        TtsCache cache = open();
+        String key = TtsCache.key("Stop.", VOICE, ENCODING, RATE);
+        put(cache, key, audio(100));
+        // As when the system clears the app's cache directory
+        assertTrue(new File(folder.getRoot(), key).delete());
+
+        assertFalse(cache.get(key, new ByteArrayOutputStream()));
+        assertEquals(1, cache.getMisses());
+        assertTrue(cache.statsSummary(), cache.statsSummary().contains("files=0 "));
+    }
+
+    private TtsCache open() {
+        return new TtsCache(new ArtifactStore(folder.getRoot(), MAX_BYTES, MAX_AGE_MS, DIRECT));
+    }
+
+    private static void put(TtsCache cache, String key, byte[] audio) throws IOException {
+        TtsCache.Editor editor = cache.edit(key, new ByteArrayOutputStream());
+        editor.write(audio, 0, audio.length);
+        editor.commit();
+    }
+
+    private static byte[] audio(int length) {
+        return Fixtures.jpegLikeBytes(length, length);
+    }
+}
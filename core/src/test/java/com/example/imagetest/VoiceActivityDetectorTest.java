@@ -0,0 +1,130 @@
+package com.example.imagetest;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Endpointing on recorded-style fixtures, 16 kHz mono WAV under src/test/resources/vad:
+ *
+ * <ul>
+ *   <li>quiet_question: room tone, speech from 0.6 s to 2.9 s with a 0.4 s pause in it.</li>
+ *   <li>noise_during_speech: speech from 0.6 s to 3.6 s; at 1.5 s a rumble about 22 dB
+ *       louder than the room starts and keeps going.</li>
+ *   <li>noise_after_speech: speech from 0.6 s to 2.4 s; the same rumble starts at 2.6 s.</li>
+ * </ul>
+ */
+public class VoiceActivityDetectorTest {
+
+    private static final long TOLERANCE_MS = 100;
+
+    /** What the detector reported for one fixture. */
+    private static final class Result implements VoiceActivityDetector.Listener {
+        long speechStartMs = -1;
+        long speechEndMs = -1;
+        long detectedMs = -1;
+        int ends;
+
+        @Override
+        public void onSpeechStart(long speechStartMs) {
+            this.speechStartMs = speechStartMs;
+        }
+
+        @Override
+        public void onEndOfUtterance(long speechEndMs, long detectedMs) {
+            this.speechEndMs = speechEndMs;
+            this.detectedMs = detectedMs;
+            ends++;
+        }
+    }
+
+    @Test
+    public void quietQuestionIsFoundAndEndsAfterTheEndSilence() throws IOException {
+        VoiceActivityDetector.Config config = new VoiceActivityDetector.Config();
+        Result result = run("vad/quiet_question.wav", config);
+
+        assertNear("speech start", 600, result.speechStartMs);
+        assertNear("speech end", 2900, result.speechEndMs);
+        assertNear("endpoint latency", config.endSilenceMs, result.detectedMs - 2900);
+    }
+
+    @Test
+    public void noiseRisingDuringSpeechDoesNotHoldTheUtteranceOpen() throws IOException {
+        VoiceActivityDetector.Config config = new VoiceActivityDetector.Config();
+        Result result = run("vad/noise_during_speech.wav", config);
+
+        assertNear("speech start", 600, result.speechStartMs);
+        assertNear("speech end", 3600, result.speechEndMs);
+        long latencyMs = result.detectedMs - 3600;
+        assertTrue("endpoint latency " + latencyMs + "ms", latencyMs <= config.endSilenceMs + 300);
+    }
+
+    @Test
+    public void noiseStepAfterSpeechIsLearnedWithinSeconds() throws IOException {
+        VoiceActivityDetector.Config config = new VoiceActivityDetector.Config();
+        Result result = run("vad/noise_after_speech.wav", config);
+
+        assertNear("speech start", 600, result.speechStartMs);
+        assertEquals(1, result.ends);
+        long latencyMs = result.detectedMs - 2400;
+        // Until the floor catches up the rumble sounds like speech; it must not run to maxUtteranceMs
+        assertTrue("endpoint latency " + latencyMs + "ms", latencyMs <= 3500);
+        assertTrue(result.detectedMs < config.maxUtteranceMs);
+    }
+
+    @Test
+    public void floorLearnedDuringTheUtteranceCarriesOverToTheNext() throws IOException {
+        VoiceActivityDetector.Config config = new VoiceActivityDetector.Config();
+        Result result = new Result();
+        VoiceActivityDetector vad = new VoiceActivityDetector(Fixtures.SAMPLE_RATE, config, result);
+        byte[] pcm = Fixtures.wavPcm("vad/noise_after_speech.wav");
+        vad.process(pcm, 0, pcm.length);
+        assertEquals(1, result.ends);
+
+        // The rumble alone, after a reset, is background rather than a new utterance
+        vad.reset();
+        result.speechStartMs = -1;
+        int rumbleFrom = 5000 * Fixtures.SAMPLE_RATE / 1000 * 2;
+        vad.process(pcm, rumbleFrom, pcm.length - rumbleFrom);
+
+        assertEquals(-1, result.speechStartMs);
+        assertFalse(vad.isInSpeech());
+    }
+
+    @Test
+    public void steadyNoiseWithoutSpeechTimesOut() throws IOException {
+        VoiceActivityDetector.Config config = new VoiceActivityDetector.Config();
+        config.noSpeechTimeoutMs = 1000;
+        Result result = new Result();
+        VoiceActivityDetector vad = new VoiceActivityDetector(Fixtures.SAMPLE_RATE, config, result);
+        byte[] pcm = Fixtures.wavPcm("vad/quiet_question.wav");
+        vad.process(pcm, 0, 500 * Fixtures.SAMPLE_RATE / 1000 * 2);
+        // Room tone only: repeat the first half second
+        vad.process(pcm, 0, 500 * Fixtures.SAMPLE_RATE / 1000 * 2);
+
+        assertEquals(-1, result.speechStartMs);
+        assertEquals(-1, result.speechEndMs);
+        assertEquals(1000, result.detectedMs);
+    }
+
+    private static Result run(String resource, VoiceActivityDetector.Config config) throws IOException {
+        Result result = new Result();
+        VoiceActivityDetector vad = new VoiceActivityDetector(Fixtures.SAMPLE_RATE, config, result);
+        byte[] pcm = Fixtures.wavPcm(resource);
+        // In capture-sized chunks, an odd length to split samples
+        for (int offset = 0; offset < pcm.length && !vad.hasEnded(); offset += 1001) {
+            vad.process(pcm, offset, Math.min(1001, pcm.length - offset));
+        }
+        assertEquals(resource + " ended", 1, result.ends);
+        return result;
+    }
+
+    private static void assertNear(String what, long expectedMs, long actualMs) {
+        assertTrue(what + ": expected " + expectedMs + "ms, got " + actualMs + "ms",
+                Math.abs(actualMs - expectedMs) <= TOLERANCE_MS);
+    }
+}
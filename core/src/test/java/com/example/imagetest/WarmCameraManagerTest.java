@@ -0,0 +1,215 @@
+package com.example.imagetest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WarmCameraManagerTest {
+
+    private static final int RING_SIZE = 3;
+    private static final long IDLE_TIMEOUT_MS = 10_000;
+    // Frames the manager drops while auto-exposure settles
+    private static final int SETTLE_FRAMES = 5;
+
+    /** Collects what one tap got. */
+    private static final class Tap implements WarmCameraManager.FrameListener {
+        final List<WarmCameraManager.Frame> frames = new ArrayList<>();
+        final List<Exception> errors = new ArrayList<>();
+
+        @Override
+        public synchronized void onFrame(WarmCameraManager.Frame frame) {
+            frames.add(frame);
+        }
+
+        @Override
+        public synchronized void onError(Exception e) {
+            errors.add(e);
+        }
+    }
+
+    private FakeFrameSource source;
+    private ManualScheduler scheduler;
+    private WarmCameraManager manager;
+
+    @Before
+    public void setUp() {
+        source = new FakeFrameSource();
+        scheduler = new ManualScheduler();
+        manager = new WarmCameraManager(source, scheduler, RING_SIZE, IDLE_TIMEOUT_MS);
+    }
+
+    @Test
+    public void tapsWhileOpeningShareOneOpenAndTheFirstSettledFrame() {
+        Tap first = new Tap();
+        Tap second = new Tap();
+        Tap third = new Tap();
+        manager.grabLatestFrame(first);
+        manager.grabLatestFrame(second);
+        scheduler.runDue(); // the camera opens
+        manager.grabLatestFrame(third);
+
+        source.deliver(SETTLE_FRAMES);
+        assertTrue(first.frames.isEmpty());
+
+        source.deliver(1);
+        assertEquals(1, source.opens());
+        assertEquals(1, manager.getOpenCount());
+        for (Tap tap : new Tap[]{first, second, third}) {
+            assertEquals(1, tap.frames.size());
+            assertEquals(SETTLE_FRAMES + 1, tap.frames.get(0).timestampNanos);
+            assertEquals(SETTLE_FRAMES + 1, tap.frames.get(0).data[0]);
+        }
+        assertNotSame("each tap owns its copy", first.frames.get(0).data, second.frames.get(0).data);
+        assertTrue(manager.isWarm());
+    }
+
+    @Test
+    public void tapsFromManyThreadsOpenTheCameraOnce() throws InterruptedException {
+        int threads = 8;
+        List<Tap> taps = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch tapped = new CountDownLatch(threads);
+        ExecutorService callers = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            Tap tap = new Tap();
+            taps.add(tap);
+            callers.execute(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                manager.grabLatestFrame(tap);
+                tapped.countDown();
+            });
+        }
+        start.countDown();
+        assertTrue(tapped.await(5, TimeUnit.SECONDS));
+        callers.shutdown();
+
+        scheduler.runDue();
+        source.deliver(SETTLE_FRAMES + 1);
+
+        assertEquals(1, source.opens());
+        for (Tap tap : taps) {
+            assertEquals(1, tap.frames.size());
+        }
+    }
+
+    @Test
+    public void warmCameraHandsOverTheNewestFrameAtOnce() {
+        manager.warmUp();
+        scheduler.runDue();
+        source.deliver(SETTLE_FRAMES + 4);
+
+        Tap tap = new Tap();
+        manager.grabLatestFrame(tap);
+
+        assertEquals(1, tap.frames.size());
+        assertEquals(SETTLE_FRAMES + 4, tap.frames.get(0).timestampNanos);
+        assertEquals("no second open for a warm camera", 1, source.opens());
+    }
+
+    @Test
+    public void ringReturnsOlderBuffersToTheCamera() {
+        manager.warmUp();
+        scheduler.runDue();
+
+        // With RING_SIZE + 2 buffers the camera never runs dry, however many frames arrive
+        assertEquals(100, source.deliver(100));
+        assertEquals(2, source.freeBuffers());
+    }
+
+    @Test
+    public void cameraIsReleasedAfterTheIdleTimeout() {
+        manager.warmUp();
+        scheduler.runDue();
+        source.deliver(SETTLE_FRAMES + 1);
+
+        scheduler.advance(IDLE_TIMEOUT_MS - 1);
+        assertTrue(source.isOpen());
+
+        scheduler.advance(1);
+        assertFalse(source.isOpen());
+        assertFalse(manager.isWarm());
+        assertEquals(1, source.closes());
+    }
+
+    @Test
+    public void eachTapPostponesTheIdleRelease() {
+        manager.warmUp();
+        scheduler.runDue();
+        source.deliver(SETTLE_FRAMES + 1);
+
+        scheduler.advance(IDLE_TIMEOUT_MS - 1000);
+        manager.grabLatestFrame(new Tap());
+        scheduler.advance(IDLE_TIMEOUT_MS - 1000);
+        assertTrue(source.isOpen());
+        assertEquals("superseded timers are cancelled", 1, scheduler.pending());
+
+        scheduler.advance(1000);
+        assertFalse(source.isOpen());
+    }
+
+    @Test
+    public void tapAfterIdleReleaseOpensAgain() {
+        manager.warmUp();
+        scheduler.runDue();
+        source.deliver(SETTLE_FRAMES + 1);
+        scheduler.advance(IDLE_TIMEOUT_MS);
+
+        Tap tap = new Tap();
+        manager.grabLatestFrame(tap);
+        scheduler.runDue();
+        source.deliver(SETTLE_FRAMES + 1);
+
+        assertEquals(2, source.opens());
+        assertEquals(1, tap.frames.size());
+    }
+
+    @Test
+    public void releaseWhileOpeningClosesOnceOpenAndFailsTheWaitingTaps() {
+        Tap tap = new Tap();
+        manager.grabLatestFrame(tap);
+        manager.release();
+        scheduler.runDue();
+
+        assertEquals(1, source.opens());
+        assertFalse(source.isOpen());
+        assertEquals(1, tap.errors.size());
+        assertTrue(tap.frames.isEmpty());
+    }
+
+    @Test
+    public void openFailureIsReportedAndTheNextTapRetries() {
+        IOException failure = new IOException("Camera unavailable");
+        source.failNextOpen(failure);
+        Tap failed = new Tap();
+        manager.grabLatestFrame(failed);
+        scheduler.runDue();
+
+        assertEquals(1, failed.errors.size());
+        assertSame(failure, failed.errors.get(0));
+
+        Tap retry = new Tap();
+        manager.grabLatestFrame(retry);
+        scheduler.runDue();
+        source.deliver(SETTLE_FRAMES + 1);
+
+        assertEquals(2, source.opens());
+        assertEquals(1, retry.frames.size());
+    }
+}
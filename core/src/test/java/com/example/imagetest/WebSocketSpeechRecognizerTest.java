@@ -0,0 +1,314 @@
+package com.example.imagetest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.ByteString;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The recognizer against a local WebSocket server that answers the audio with
+ * a script of results, as the streaming recognizer would.
+ */
+public class WebSocketSpeechRecognizerTest {
+
+    private static final long TIMEOUT_MS = 5000;
+    private static final int CHUNK_BYTES = Fixtures.FRAME_BYTES * 5; // 100 ms
+
+    /** What the recognizer's listener is told, as "partial text", "final text" or "error message". */
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+    /** The final transcript, as the app waits for it before falling back to a batch request. */
+    private final CompletableFuture<String> finalTranscript = new CompletableFuture<>();
+    private final StreamingRecognizer.Listener listener = new StreamingRecognizer.Listener() {
+        @Override
+        public void onPartial(String transcript) {
+            events.add("partial " + transcript);
+        }
+
+        @Override
+        public void onFinal(String transcript) {
+            events.add("final " + transcript);
+            finalTranscript.complete(transcript);
+        }
+
+        @Override
+        public void onError(Exception e) {
+            events.add("error " + e.getMessage());
+            finalTranscript.completeExceptionally(e);
+        }
+    };
+
+    private MockWebServer server;
+    private OkHttpClient client;
+
+    /**
+     * The server side of one stream: answers each audio chunk with the next
+     * scripted result, and {"audioEnd": true} with the rest.
+     */
+    private static class ScriptedServer extends WebSocketListener {
+        final List<String> results;
+        final List<String> textFrames = new ArrayList<>();
+        int audioBytes;
+        int chunks;
+
+        ScriptedServer(String... results) {
+            this.results = new ArrayList<>(Arrays.asList(results));
+        }
+
+        @Override
+        public synchronized void onMessage(WebSocket webSocket, String text) {
+            textFrames.add(text);
+            if (text.contains("audioEnd")) {
+                while (!results.isEmpty()) {
+                    webSocket.send(results.remove(0));
+                }
+                webSocket.close(1000, null);
+            }
+        }
+
+        @Override
+        public synchronized void onMessage(WebSocket webSocket, ByteString bytes) {
+            audioBytes += bytes.size();
+            chunks++;
+            onAudio(webSocket);
+        }
+
+        /** Sends the next result, if any, while audio is still arriving. */
+        void onAudio(WebSocket webSocket) {
+            if (results.size() > 1) {
+                webSocket.send(results.remove(0));
+            }
+        }
+
+        @Override
+        public void onClosing(WebSocket webSocket, int code, String reason) {
+            webSocket.close(1000, null);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        client = new OkHttpClient();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.dispatcher().executorService().shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void interimResultsArePartialsAndFinalsAreJoined() throws Exception {
+        ScriptedServer script = new ScriptedServer(
+                interim("what does"),
+                interim("what does this"),
+                result("What does this say?", true),
+                interim(" is it"),
+                result(" Is it safe?", true));
+        server.enqueue(new MockResponse().withWebSocketUpgrade(script));
+        WebSocketSpeechRecognizer recognizer = recognizer();
+
+        recognizer.start(listener);
+        byte[] pcm = Fixtures.speechPcm(0.5, 1);
+        for (int offset = 0; offset < pcm.length; offset += CHUNK_BYTES) {
+            recognizer.sendAudio(pcm, offset, Math.min(CHUNK_BYTES, pcm.length - offset));
+        }
+        awaitEvent("partial What does this say? is it");
+        recognizer.finish();
+
+        awaitEvent("final What does this say? Is it safe?");
+        assertEquals(5, script.chunks);
+        assertEquals(pcm.length, script.audioBytes);
+        JSONObject config = new JSONObject(script.textFrames.get(0)).getJSONObject("streamingConfig");
+        assertEquals(Fixtures.SAMPLE_RATE, config.getJSONObject("config").getInt("sampleRateHertz"));
+        assertTrue(config.getBoolean("interimResults"));
+        assertNoMoreEvents();
+    }
+
+    @Test
+    public void partialsReportTheFinishedTextSoFar() throws Exception {
+        ScriptedServer script = new ScriptedServer(
+                interim("what"),
+                result("What is this?", true),
+                interim(" and"),
+                result(" And that?", true));
+        server.enqueue(new MockResponse().withWebSocketUpgrade(script));
+        WebSocketSpeechRecognizer recognizer = recognizer();
+
+        recognizer.start(listener);
+        byte[] pcm = Fixtures.speechPcm(0.3, 2);
+        for (int offset = 0; offset < pcm.length; offset += CHUNK_BYTES) {
+            recognizer.sendAudio(pcm, offset, Math.min(CHUNK_BYTES, pcm.length - offset));
+        }
+
+        assertEquals("partial what", next());
+        assertEquals("partial What is this?", next());
+        assertEquals("partial What is this? and", next());
+        recognizer.finish();
+        assertEquals("partial What is this? And that?", next());
+        assertEquals("final What is this? And that?", next());
+    }
+
+    @Test
+    public void connectionLostPartwayIsOneErrorAndFallsBackToBatch() throws Exception {
+        ScriptedServer script = new ScriptedServer(interim("what does"), interim("what does this"));
+        server.enqueue(new MockResponse().withWebSocketUpgrade(script));
+        WebSocketSpeechRecognizer recognizer = recognizer();
+
+        recognizer.start(listener);
+        byte[] pcm = Fixtures.speechPcm(0.5, 3);
+        recognizer.sendAudio(pcm, 0, CHUNK_BYTES);
+        assertEquals("partial what does", next());
+        // The recognizer's connection drops mid-utterance
+        server.shutdown();
+        for (int offset = CHUNK_BYTES; offset < pcm.length; offset += CHUNK_BYTES) {
+            recognizer.sendAudio(pcm, offset, Math.min(CHUNK_BYTES, pcm.length - offset));
+        }
+
+        assertTrue(next().startsWith("error "));
+        // Audio and the end of speech after the failure go nowhere and report nothing
+        recognizer.sendAudio(pcm, 0, CHUNK_BYTES);
+        recognizer.finish();
+        assertNoMoreEvents();
+
+        AtomicInteger batchRequests = new AtomicInteger();
+        String transcript = StreamingRecognizer.finalOrBatch(finalTranscript, TIMEOUT_MS, () -> {
+            batchRequests.incrementAndGet();
+            return "What does this say?";
+        });
+        assertEquals("What does this say?", transcript);
+        assertEquals(1, batchRequests.get());
+    }
+
+    @Test
+    public void finalTranscriptIsUsedWithoutTheBatchRequest() throws Exception {
+        server.enqueue(new MockResponse().withWebSocketUpgrade(new ScriptedServer(result("Is it safe?", true))));
+        WebSocketSpeechRecognizer recognizer = recognizer();
+
+        recognizer.start(listener);
+        recognizer.sendAudio(Fixtures.speechPcm(0.1, 6), 0, CHUNK_BYTES);
+        recognizer.finish();
+
+        String transcript = StreamingRecognizer.finalOrBatch(finalTranscript, TIMEOUT_MS, () -> {
+            throw new AssertionError("batch request made");
+        });
+        assertEquals("Is it safe?", transcript);
+    }
+
+    @Test
+    public void streamClosedBeforeTheEndOfSpeechIsAnError() throws Exception {
+        ScriptedServer script = new ScriptedServer(interim("what"), interim("what does")) {
+            @Override
+            void onAudio(WebSocket webSocket) {
+                webSocket.send(results.remove(0));
+                webSocket.close(1011, "Internal error");
+            }
+        };
+        server.enqueue(new MockResponse().withWebSocketUpgrade(script));
+        WebSocketSpeechRecognizer recognizer = recognizer();
+
+        recognizer.start(listener);
+        recognizer.sendAudio(Fixtures.speechPcm(0.1, 4), 0, CHUNK_BYTES);
+
+        assertEquals("partial what", next());
+        assertEquals("error Recognizer closed the stream early: 1011 Internal error", next());
+        assertNoMoreEvents();
+    }
+
+    @Test
+    public void serverThatNeverClosesGetsTheBestTranscriptAfterTheTimeout() throws Exception {
+        ScriptedServer script = new ScriptedServer(interim("what does"), interim("what does this say")) {
+            @Override
+            public synchronized void onMessage(WebSocket webSocket, String text) {
+                textFrames.add(text); // and never answers the end of speech
+            }
+
+            @Override
+            void onAudio(WebSocket webSocket) {
+                if (!results.isEmpty()) {
+                    webSocket.send(results.remove(0));
+                }
+            }
+        };
+        server.enqueue(new MockResponse().withWebSocketUpgrade(script));
+        WebSocketSpeechRecognizer recognizer = recognizer();
+
+        recognizer.start(listener);
+        byte[] pcm = Fixtures.speechPcm(0.2, 5);
+        recognizer.sendAudio(pcm, 0, CHUNK_BYTES);
+        recognizer.sendAudio(pcm, CHUNK_BYTES, CHUNK_BYTES);
+        awaitEvent("partial what does this say");
+        long finishedAt = System.nanoTime();
+        recognizer.finish();
+
+        awaitEvent("final what does this say");
+        assertTrue(System.nanoTime() - finishedAt >= TimeUnit.MILLISECONDS.toNanos(1400));
+    }
+
+    private WebSocketSpeechRecognizer recognizer() {
+        return new WebSocketSpeechRecognizer(client, server.url("/v1/speech:streamingRecognize").toString(),
+                "en-CA", Fixtures.SAMPLE_RATE);
+    }
+
+    private static String interim(String transcript) throws JSONException {
+        return result(transcript, false);
+    }
+
+    private static String result(String transcript, boolean isFinal) throws JSONException {
+        JSONObject alternative = new JSONObject().put("transcript", transcript);
+        JSONObject result = new JSONObject()
+                .put("alternatives", new JSONArray().put(alternative))
+                .put("isFinal", isFinal);
+        return new JSONObject().put("results", new JSONArray().put(result)).toString();
+    }
+
+    private String next() throws InterruptedException {
+        String event = events.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        if (event == null) {
+            throw new AssertionError("No event within " + TIMEOUT_MS + "ms");
+        }
+        return event;
+    }
+
+    private void awaitEvent(String expected) throws InterruptedException {
+        List<String> seen = new ArrayList<>();
+        while (true) {
+            String event = events.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (event == null) {
+                throw new AssertionError("No \"" + expected + "\" after " + seen);
+            }
+            if (event.equals(expected)) {
+                return;
+            }
+            seen.add(event);
+        }
+    }
+
+    private void assertNoMoreEvents() throws InterruptedException {
+        assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.imagetest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how each simulated query ended and samples the JVM's heap and threads
+ * while the load runs, then formats the lot with the tracer's per-stage percentiles.
+ *
+ * Thread-safe.
+ */
+final class LoadReport {
+
+    /** How a query ended. */
+    enum Outcome {
+        /** Its whole answer was synthesized. */
+        ANSWERED,
+        NO_SPEECH,
+        /** A later tap replaced it. */
+        CANCELLED,
+        FAILED,
+        /** Still unanswered when the session gave up waiting. */
+        TIMED_OUT
+    }
+
+    private static final long SAMPLE_INTERVAL_MS = 50;
+    // The stand-in servers run in this JVM; their threads aren't the app's
+    private static final String SERVER_THREAD_PREFIX = "MockWebServer";
+
+    private final Map<Outcome, AtomicLong> outcomes = new EnumMap<>(Outcome.class);
+    private final Map<QueryPipeline.Stage, AtomicLong> failures = new EnumMap<>(QueryPipeline.Stage.class);
+    private final AtomicLong sessions = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(
+            r -> new Thread(r, "Load Sampler"));
+
+    // Written by the sampler thread only
+    private volatile long peakHeapBytes;
+    private volatile int peakThreads;
+    private volatile int peakClientThreads;
+    private volatile int peakServerThreads;
+
+    private long startNanos;
+    private long elapsedNanos;
+
+    LoadReport() {
+        for (Outcome outcome : Outcome.values()) {
+            outcomes.put(outcome, new AtomicLong());
+        }
+        for (QueryPipeline.Stage stage : QueryPipeline.Stage.values()) {
+            failures.put(stage, new AtomicLong());
+        }
+    }
+
+    /**
+     * Starts the clock and the heap and thread sampling.
+     */
+    void start() {
+        System.gc(); // so the high-water mark reflects the load, not what came before
+        startNanos = System.nanoTime();
+        sampler.scheduleAtFixedRate(this::sample, 0, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() throws InterruptedException {
+        elapsedNanos = System.nanoTime() - startNanos;
+        sampler.shutdown();
+        sampler.awaitTermination(1, TimeUnit.SECONDS);
+        sample();
+    }
+
+    void count(Outcome outcome) {
+        outcomes.get(outcome).incrementAndGet();
+    }
+
+    void failed(QueryPipeline.Stage stage) {
+        failures.get(stage).incrementAndGet();
+        count(Outcome.FAILED);
+    }
+
+    /** A query was answered or spoken by a fallback because its backend's circuit was open. */
+    void fellBack() {
+        fallbacks.incrementAndGet();
+    }
+
+    void sessionDone() {
+        sessions.incrementAndGet();
+    }
+
+    /**
+     * The full report, several lines.
+     */
+    String format(InteractionTracer tracer, HttpTransport transport, BackendClient client,
+                  SpeculativeChat speculativeChat, ImageQualityController imageQuality, StandInBackends backends) {
+        double seconds = elapsedNanos / 1e9;
+        long queries = 0;
+        for (AtomicLong count : outcomes.values()) {
+            queries += count.get();
+        }
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "sessions=%d queries=%d in %.1fs: %.2f sessions/s, %.2f queries/s, %.2f answers/s%n",
+                sessions.get(), queries, seconds, sessions.get() / seconds, queries / seconds,
+                outcomes.get(Outcome.ANSWERED).get() / seconds));
+        report.append("outcomes:");
+        for (Map.Entry<Outcome, AtomicLong> entry : outcomes.entrySet()) {
+            report.append(' ').append(entry.getKey().name().toLowerCase(Locale.ROOT)).append('=').append(entry.getValue().get());
+        }
+        report.append(" (fallbacks=").append(fallbacks.get()).append(')');
+        report.append("\nfailures by stage:");
+        for (Map.Entry<QueryPipeline.Stage, AtomicLong> entry : failures.entrySet()) {
+            if (entry.getValue().get() > 0) {
+                report.append(' ').append(entry.getKey().name().toLowerCase(Locale.ROOT)).append('=').append(entry.getValue().get());
+            }
+        }
+        report.append('\n').append(tracer.report());
+        report.append(String.format(Locale.ROOT, "heap high-water=%.1fMiB threads peak=%d (client %d, stand-in servers %d)%n",
+                peakHeapBytes / (1024.0 * 1024.0), peakThreads, peakClientThreads, peakServerThreads));
+        report.append("transport: ").append(transport.statsSummary()).append('\n');
+        report.append("resilience: ").append(client.statsSummary()).append('\n');
+        report.append("speculation: ").append(speculativeChat.statsSummary()).append('\n');
+        report.append("image quality: ").append(imageQuality.statsSummary()).append('\n');
+        report.append("backends: ").append(backends.statsSummary()).append('\n');
+        return report.toString();
+    }
+
+    private void sample() {
+        long heap = memory.getHeapMemoryUsage().getUsed();
+        if (heap > peakHeapBytes) {
+            peakHeapBytes = heap;
+        }
+        int total = 0;
+        int client = 0;
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds(), 0)) {
+            if (info == null) {
+                continue; // exited since the IDs were taken
+            }
+            total++;
+            if (!info.getThreadName().startsWith(SERVER_THREAD_PREFIX)) {
+                client++;
+            }
+        }
+        if (total > peakThreads) {
+            peakThreads = total;
+        }
+        if (client > peakClientThreads) {
+            peakClientThreads = client;
+        }
+        if (total - client > peakServerThreads) {
+            peakServerThreads = total - client;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.imagetest;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * A captured image scaled and compressed for upload, standing in for the
+ * app's ImagePayloadBuilder: the long side is scaled down to the requested
+ * size, never up, and the result encoded once at the requested JPEG quality. With a
+ * {@link RegionOfInterest}, the close-up of its region from the captured
+ * image is tiled with that scaled frame as a thumbnail instead, unless it
+ * comes out larger than the scaled frame even at a lower quality.
+ */
+final class PreparedUpload {
+
+    final byte[] jpeg;
+    /** The size of {@link #jpeg}, in pixels. */
+    final int width;
+    final int height;
+    /** The long side of {@link #jpeg}, in pixels. */
+    final int longSide;
+    /** The long side it was prepared to fit; more than {@link #longSide} if the capture was smaller. */
+    final int maxSize;
+    /** The captured JPEG, to prepare again at another size. */
+    final byte[] source;
+    /** The size of {@link #source}, in pixels. */
+    final int sourceWidth;
+    final int sourceHeight;
+    /** How {@link #jpeg} is tiled, or null if it is the whole frame. */
+    final RegionOfInterest.Layout layout;
+
+    private PreparedUpload(byte[] jpeg, int width, int height, int maxSize, byte[] source, BufferedImage captured,
+                           RegionOfInterest.Layout layout) {
+        this.jpeg = jpeg;
+        this.width = width;
+        this.height = height;
+        this.longSide = Math.max(width, height);
+        this.maxSize = maxSize;
+        this.source = source;
+        this.sourceWidth = captured.getWidth();
+        this.sourceHeight = captured.getHeight();
+        this.layout = layout;
+    }
+
+    /**
+     * @param quality JPEG quality, 0 to 100.
+     * @param focus   Picks the part of the capture to send close up, or null to send the whole frame.
+     */
+    static PreparedUpload prepare(byte[] source, int maxSize, int quality, RegionOfInterest focus)
+            throws IOException {
+        BufferedImage captured = ImageIO.read(new ByteArrayInputStream(source));
+        if (captured == null) {
+            throw new IOException("could not decode the captured image");
+        }
+        double scale = Math.min(1, (double) maxSize / Math.max(captured.getWidth(), captured.getHeight()));
+        int width = (int) Math.round(captured.getWidth() * scale);
+        int height = (int) Math.round(captured.getHeight() * scale);
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(captured, 0, 0, width, height, null);
+        graphics.dispose();
+        byte[] whole = encode(scaled, quality);
+        if (focus == null) {
+            return new PreparedUpload(whole, width, height, maxSize, source, captured, null);
+        }
+
+        RegionOfInterest.Region region = focus.locate(
+                scaled.getRGB(0, 0, width, height, null, 0, width), width, height);
+        RegionOfInterest.Layout layout = focus.layout(captured.getWidth(), captured.getHeight(), region,
+                Math.max(width, height));
+        BufferedImage tiled = new BufferedImage(layout.width, layout.height, BufferedImage.TYPE_INT_RGB);
+        graphics = tiled.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.setColor(Color.GRAY);
+        graphics.fillRect(0, 0, layout.width, layout.height);
+        int left = Math.round(region.left * captured.getWidth());
+        int top = Math.round(region.top * captured.getHeight());
+        graphics.drawImage(captured, 0, 0, layout.cropWidth, layout.cropHeight,
+                left, top, left + Math.round(region.width * captured.getWidth()),
+                top + Math.round(region.height * captured.getHeight()), null);
+        if (layout.thumbnailWidth > 0) {
+            graphics.drawImage(scaled, layout.thumbnailLeft, layout.thumbnailTop,
+                    layout.thumbnailWidth, layout.thumbnailHeight, null);
+        }
+        graphics.dispose();
+        byte[] closeUp = RegionOfInterest.fitCloseUp(whole.length, quality, q -> encode(tiled, q));
+        if (closeUp == null) {
+            return new PreparedUpload(whole, width, height, maxSize, source, captured, null);
+        }
+        return new PreparedUpload(closeUp, layout.width, layout.height, maxSize, source, captured, layout);
+    }
+
+    private static byte[] encode(BufferedImage image, int quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality / 100f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32 * 1024);
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+}
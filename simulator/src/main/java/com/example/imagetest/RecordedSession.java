@@ -0,0 +1,221 @@
+package com.example.imagetest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A recorded session to replay: the taps a user made, each with the audio
+ * recorded after it and the camera frame it captured.
+ *
+ * A session directory holds a {@code session.json} next to its fixtures:
+ * <pre>
+ * {"turns": [
+ *   {"tapMs": 0,     "audio": "turn1.wav", "image": "turn1.jpg", "transcript": "what is this"},
+ *   {"tapMs": 12000, "audio": "turn2.wav"}
+ * ]}
+ * </pre>
+ * {@code tapMs} is the time of the tap from the start of the session. The
+ * audio must be 16 kHz 16-bit mono WAV, as the app records it; a turn without
+ * an image is a text-only follow-up. The transcript, if given, is what a
+ * streaming recognizer hears (see {@link ScriptedRecognizer}).
+ */
+final class RecordedSession {
+
+    static final int SAMPLE_RATE = 16000;
+
+    /** One tap and what was recorded after it. */
+    static final class Turn {
+        final long tapMs;
+        /** 16 kHz 16-bit little-endian mono PCM. */
+        final byte[] pcm;
+        /** The captured JPEG, or null for a text-only follow-up. */
+        final byte[] jpeg;
+        /** What was said, or null if not known. */
+        final String transcript;
+
+        Turn(long tapMs, byte[] pcm, byte[] jpeg, String transcript) {
+            this.tapMs = tapMs;
+            this.pcm = pcm;
+            this.jpeg = jpeg;
+            this.transcript = transcript;
+        }
+    }
+
+    final String name;
+    final List<Turn> turns;
+
+    private RecordedSession(String name, List<Turn> turns) {
+        this.name = name;
+        this.turns = Collections.unmodifiableList(turns);
+    }
+
+    /**
+     * Loads the session in {@code dir}, or every session in its subdirectories
+     * if it has no session.json of its own.
+     */
+    static List<RecordedSession> loadAll(File dir) throws IOException {
+        List<RecordedSession> sessions = new ArrayList<>();
+        if (new File(dir, "session.json").isFile()) {
+            sessions.add(load(dir));
+            return sessions;
+        }
+        File[] children = dir.listFiles(File::isDirectory);
+        if (children != null) {
+            Arrays.sort(children);
+            for (File child : children) {
+                if (new File(child, "session.json").isFile()) {
+                    sessions.add(load(child));
+                }
+            }
+        }
+        if (sessions.isEmpty()) {
+            throw new IOException("No session.json in " + dir + " or its subdirectories");
+        }
+        return sessions;
+    }
+
+    static RecordedSession load(File dir) throws IOException {
+        String json = new String(Files.readAllBytes(new File(dir, "session.json").toPath()), StandardCharsets.UTF_8);
+        List<Turn> turns = new ArrayList<>();
+        try {
+            JSONArray turnArray = new JSONObject(json).getJSONArray("turns");
+            for (int i = 0; i < turnArray.length(); i++) {
+                JSONObject turn = turnArray.getJSONObject(i);
+                String image = turn.optString("image", null);
+                turns.add(new Turn(
+                        turn.getLong("tapMs"),
+                        readWav(new File(dir, turn.getString("audio"))),
+                        image != null ? Files.readAllBytes(new File(dir, image).toPath()) : null,
+                        turn.optString("transcript", null)));
+            }
+        } catch (JSONException e) {
+            throw new IOException("Bad session.json in " + dir + ": " + e.getMessage(), e);
+        }
+        return new RecordedSession(dir.getName(), turns);
+    }
+
+    /**
+     * A generated session for when no recordings are given: a question about
+     * a scene, a text-only follow-up, then a question about a second scene.
+     */
+    static RecordedSession synthetic(long seed) throws IOException {
+        List<Turn> turns = new ArrayList<>();
+        turns.add(new Turn(0, speechPcm(3.5, seed), sceneJpeg(1280, 960, seed), null));
+        turns.add(new Turn(9_000, speechPcm(2.5, seed + 1), null, null));
+        turns.add(new Turn(18_000, speechPcm(4, seed + 2), sceneJpeg(1280, 960, seed + 2), null));
+        return new RecordedSession("synthetic-" + seed, turns);
+    }
+
+    /**
+     * Reads the PCM samples of a 16 kHz 16-bit mono WAV file.
+     */
+    static byte[] readWav(File file) throws IOException {
+        ByteBuffer wav = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        if (wav.remaining() < 12 || wav.getInt(0) != 0x46464952 /* RIFF */ || wav.getInt(8) != 0x45564157 /* WAVE */) {
+            throw new IOException(file + " is not a WAV file");
+        }
+        int position = 12;
+        boolean formatChecked = false;
+        while (position + 8 <= wav.limit()) {
+            int chunkId = wav.getInt(position);
+            int chunkSize = wav.getInt(position + 4);
+            int body = position + 8;
+            if (chunkId == 0x20746d66 /* "fmt " */) {
+                int format = wav.getShort(body) & 0xFFFF;
+                int channels = wav.getShort(body + 2);
+                int sampleRate = wav.getInt(body + 4);
+                int bitsPerSample = wav.getShort(body + 14);
+                if (format != 1 || channels != 1 || sampleRate != SAMPLE_RATE || bitsPerSample != 16) {
+                    throw new IOException(file + " must be 16 kHz 16-bit mono PCM, was format " + format + ", "
+                            + channels + " channels, " + sampleRate + " Hz, " + bitsPerSample + " bits");
+                }
+                formatChecked = true;
+            } else if (chunkId == 0x61746164 /* data */) {
+                if (!formatChecked) {
+                    throw new IOException(file + " has no fmt chunk before its data");
+                }
+                int length = Math.min(chunkSize, wav.limit() - body) & ~1;
+                byte[] pcm = new byte[length];
+                wav.position(body);
+                wav.get(pcm);
+                return pcm;
+            }
+            position = body + chunkSize + (chunkSize & 1);
+        }
+        throw new IOException(file + " has no data chunk");
+    }
+
+    /**
+     * Background noise, a voiced utterance from 0.5 s to {@code seconds - 1}, then
+     * a second of noise so the VAD can find the end.
+     */
+    private static byte[] speechPcm(double seconds, long seed) {
+        Random random = new Random(seed);
+        int samples = (int) (seconds * SAMPLE_RATE);
+        byte[] pcm = new byte[samples * 2];
+        double pitch = 120 + random.nextInt(80);
+        for (int i = 0; i < samples; i++) {
+            double t = (double) i / SAMPLE_RATE;
+            double value = random.nextGaussian() * 60;
+            if (t >= 0.5 && t < seconds - 1) {
+                double syllable = 0.5 + 0.5 * Math.sin(2 * Math.PI * 4 * t);
+                double voice = 0;
+                for (int harmonic = 1; harmonic <= 8; harmonic++) {
+                    voice += Math.sin(2 * Math.PI * pitch * harmonic * t) / harmonic;
+                }
+                value += voice * 3000 * syllable;
+            }
+            short sample = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        return pcm;
+    }
+
+    /**
+     * A camera-sized JPEG of gradients, shapes and sensor noise.
+     */
+    private static byte[] sceneJpeg(int width, int height, long seed) throws IOException {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[][] blobs = new int[8][];
+        for (int i = 0; i < blobs.length; i++) {
+            blobs[i] = new int[]{random.nextInt(width), random.nextInt(height),
+                    20 + random.nextInt(80), random.nextInt(0xFFFFFF)};
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int luma = 60 + 120 * x / width + 40 * y / height + random.nextInt(9) - 4;
+                int rgb = luma << 16 | luma << 8 | luma;
+                for (int[] blob : blobs) {
+                    int dx = x - blob[0];
+                    int dy = y - blob[1];
+                    if (dx * dx + dy * dy < blob[2] * blob[2]) {
+                        rgb = blob[3];
+                    }
+                }
+                image.setRGB(x, y, rgb);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+}
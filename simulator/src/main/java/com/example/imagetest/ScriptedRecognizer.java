@@ -0,0 +1,112 @@
+package com.example.imagetest;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A streaming recognizer that plays back a known transcript: interim
+ * transcripts grow a word at a time as audio arrives, and the final one
+ * follows {@code finish()} after a delay, the way a streaming STT service
+ * behaves.
+ *
+ * Words are spread over all but the last second of the recording, where the
+ * speaker has stopped and the VAD is waiting out the silence. Some finals can
+ * be made to differ from the last interim transcript, as when a recognizer
+ * catches a trailing word late, so a guess made from the interim one misses.
+ */
+final class ScriptedRecognizer implements StreamingRecognizer {
+
+    /** A word the revised final transcript adds. */
+    static final String LATE_WORD = "now";
+
+    /** How scripted recognizers behave; one is shared by all sessions. */
+    static final class Behaviour {
+        final long finalDelayMs;
+        final double revisionRate;
+        // Callbacks arrive on a background thread, as from a real recognizer
+        private final ScheduledExecutorService callbacks = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Scripted Recognizer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        /**
+         * @param finalDelayMs From the end of the audio to the final transcript.
+         * @param revisionRate Share of finals that differ from the last interim transcript, 0 to 1.
+         */
+        Behaviour(long finalDelayMs, double revisionRate) {
+            this.finalDelayMs = finalDelayMs;
+            this.revisionRate = revisionRate;
+        }
+
+        /**
+         * A recognizer for one recording of {@code transcript}.
+         */
+        ScriptedRecognizer recognizer(String transcript, int recordingBytes) {
+            return new ScriptedRecognizer(this, transcript, recordingBytes,
+                    ThreadLocalRandom.current().nextDouble() < revisionRate);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "final after %dms, %.1f%% revised", finalDelayMs, revisionRate * 100);
+        }
+    }
+
+    private final Behaviour behaviour;
+    private final String[] words;
+    private final String finalTranscript;
+    private final long speechBytes;
+
+    private Listener listener;
+    private long received; // recorder thread only
+    private int wordsSent; // recorder thread only
+    private volatile boolean cancelled;
+
+    private ScriptedRecognizer(Behaviour behaviour, String transcript, int recordingBytes, boolean revised) {
+        this.behaviour = behaviour;
+        this.words = transcript.split(" ");
+        // "What is that?" becomes "What is that now?"
+        this.finalTranscript = revised ? transcript.replaceFirst("(\\p{Punct}*)$", " " + LATE_WORD + "$1") : transcript;
+        int trailingSilenceBytes = RecordedSession.SAMPLE_RATE * 2;
+        this.speechBytes = Math.max(recordingBytes / 2, recordingBytes - trailingSilenceBytes);
+    }
+
+    @Override
+    public void start(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void sendAudio(byte[] pcm, int offset, int length) {
+        received += length;
+        int heard = (int) Math.min(words.length, words.length * received / speechBytes);
+        if (heard > wordsSent) {
+            wordsSent = heard;
+            String partial = String.join(" ", Arrays.copyOf(words, heard));
+            behaviour.callbacks.execute(() -> {
+                if (!cancelled) {
+                    listener.onPartial(partial);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void finish() {
+        behaviour.callbacks.schedule(() -> {
+            if (!cancelled) {
+                listener.onFinal(finalTranscript);
+            }
+        }, behaviour.finalDelayMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+    }
+}
@@ -0,0 +1,180 @@
+package com.example.imagetest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+
+/**
+ * Headless load harness: replays recorded sessions through the app's request
+ * building and response handling against local stand-in backends, and reports
+ * throughput, per-stage latency percentiles, the heap high-water mark and
+ * thread counts.
+ *
+ * <pre>
+ * ./gradlew :simulator:run --args="--concurrency 16 --rounds 3 --sessions path/to/sessions"
+ * </pre>
+ * Options (all optional):
+ * <ul>
+ *   <li>{@code --sessions DIR}: a session directory, or a directory of them (see {@link RecordedSession}).
+ *       Without it, generated sessions are used.</li>
+ *   <li>{@code --concurrency N}: sessions running at once (default 8).</li>
+ *   <li>{@code --rounds N}: times each concurrent slot replays a session (default 1).</li>
+ *   <li>{@code --time-scale X}: 1 replays taps and audio in real time, 0 as fast as possible (default 1).</li>
+ *   <li>{@code --stt-ms}, {@code --chat-ms}, {@code --tts-ms}: backend latency (defaults 300, 500, 250).</li>
+ *   <li>{@code --jitter-ms MS}: latency jitter either way, for every backend (default 100).</li>
+ *   <li>{@code --token-ms MS}: time between streamed chat tokens (default 20).</li>
+ *   <li>{@code --error-rate P}: share of requests each backend fails, 0 to 1 (default 0).</li>
+ *   <li>{@code --slow-rate P}, {@code --slow-ms MS}: share of responses delayed by a further
+ *       {@code slow-ms}, the latency tail (defaults 0 and 3000).</li>
+ *   <li>{@code --budget-ms MS}: end of question to first audio, which sets each stage's deadline (default 6000).</li>
+ *   <li>{@code --max-attempts N}: attempts per call, retries included (default 3).</li>
+ *   <li>{@code --hedging on|off}: resend slow STT and TTS requests (default on).</li>
+ *   <li>{@code --streaming on|off}: transcribe with a {@link ScriptedRecognizer} instead of
+ *       batch STT requests (default off).</li>
+ *   <li>{@code --final-ms MS}: from the end of the audio to the streamed final transcript (default 150).</li>
+ *   <li>{@code --revision-rate P}: share of streamed finals that differ from the last interim
+ *       transcript, 0 to 1 (default 0.1).</li>
+ *   <li>{@code --speculation on|off}: send the chat request once the interim transcript is
+ *       steady, when streaming (default on).</li>
+ *   <li>{@code --stable-ms MS}: how long the interim transcript must hold first (default 500).</li>
+ *   <li>{@code --uplink-kbps A,B,...}: upload speed in kilobits a second, changing every
+ *       {@code uplink-step-s}; 0 is unlimited (default 0).</li>
+ *   <li>{@code --uplink-step-s S}: how long each uplink speed lasts (default 20).</li>
+ *   <li>{@code --image-target-ms MS}: the first-token latency images are sized for (default 1500).</li>
+ *   <li>{@code --focus auto|centre|off}: how the close-up sent with each image is placed, or off to
+ *       send whole frames (default auto).</li>
+ * </ul>
+ */
+public final class SessionSimulator {
+
+    private SessionSimulator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "8"));
+        int rounds = Integer.parseInt(options.getOrDefault("rounds", "1"));
+        double timeScale = Double.parseDouble(options.getOrDefault("time-scale", "1"));
+        long jitterMs = Long.parseLong(options.getOrDefault("jitter-ms", "100"));
+        double errorRate = Double.parseDouble(options.getOrDefault("error-rate", "0"));
+        long tokenIntervalMs = Long.parseLong(options.getOrDefault("token-ms", "20"));
+        double slowRate = Double.parseDouble(options.getOrDefault("slow-rate", "0"));
+        long slowMs = Long.parseLong(options.getOrDefault("slow-ms", "3000"));
+        // The app's stage deadlines, within the overall budget
+        LatencyBudget latencyBudget = new LatencyBudget(
+                Long.parseLong(options.getOrDefault("budget-ms", "6000")), 3000, 4000, 2500, 1000);
+
+        BackendClient.Resilience resilience = new BackendClient.Resilience();
+        resilience.maxAttempts = Integer.parseInt(options.getOrDefault("max-attempts", "3"));
+        if ("off".equals(options.get("hedging"))) {
+            resilience.hedgeDefaultDelayMs = Long.MAX_VALUE;
+            resilience.hedgeMinDelayMs = Long.MAX_VALUE;
+        }
+
+        ScriptedRecognizer.Behaviour streaming = "on".equals(options.get("streaming"))
+                ? new ScriptedRecognizer.Behaviour(Long.parseLong(options.getOrDefault("final-ms", "150")),
+                        Double.parseDouble(options.getOrDefault("revision-rate", "0.1")))
+                : null;
+        SpeculativeChat speculativeChat = new SpeculativeChat(
+                Long.parseLong(options.getOrDefault("stable-ms", "500")),
+                "off".equals(options.get("speculation")) ? 0 : 2);
+
+        ImageQualityController imageQuality = new ImageQualityController(
+                Long.parseLong(options.getOrDefault("image-target-ms", "1500")), 100 * 1024, 800);
+        String focus = options.getOrDefault("focus", "auto");
+        RegionOfInterest imageFocus = "off".equals(focus) ? null : new RegionOfInterest(
+                "centre".equals(focus) ? RegionOfInterest.Mode.CENTRE : RegionOfInterest.Mode.AUTO, 0.5f, true);
+        String[] rates = options.getOrDefault("uplink-kbps", "0").split(",");
+        long[] uplinkKbps = new long[rates.length];
+        for (int i = 0; i < rates.length; i++) {
+            uplinkKbps[i] = Long.parseLong(rates[i].trim());
+        }
+        StandInBackends.Uplink uplink = new StandInBackends.Uplink(uplinkKbps,
+                TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("uplink-step-s", "20"))));
+
+        Map<HttpTransport.Endpoint, StandInBackends.Behaviour> behaviours = new EnumMap<>(HttpTransport.Endpoint.class);
+        behaviours.put(HttpTransport.Endpoint.STT, new StandInBackends.Behaviour(
+                Long.parseLong(options.getOrDefault("stt-ms", "300")), jitterMs, errorRate, slowRate, slowMs));
+        behaviours.put(HttpTransport.Endpoint.CHAT, new StandInBackends.Behaviour(
+                Long.parseLong(options.getOrDefault("chat-ms", "500")), jitterMs, errorRate, slowRate, slowMs));
+        behaviours.put(HttpTransport.Endpoint.TTS, new StandInBackends.Behaviour(
+                Long.parseLong(options.getOrDefault("tts-ms", "250")), jitterMs, errorRate, slowRate, slowMs));
+
+        List<RecordedSession> recordings;
+        if (options.containsKey("sessions")) {
+            recordings = RecordedSession.loadAll(new File(options.get("sessions")));
+        } else {
+            recordings = new ArrayList<>();
+            for (int i = 0; i < Math.min(concurrency, 4); i++) {
+                recordings.add(RecordedSession.synthetic(i + 1));
+            }
+        }
+
+        System.out.println("Replaying " + recordings.size() + " session(s), " + concurrency + " at a time, "
+                + rounds + " round(s), time scale " + timeScale);
+        System.out.println("Backends: " + behaviours + ", " + tokenIntervalMs + "ms/token, uplink " + uplink);
+        System.out.println("Image focus: " + focus);
+        System.out.println("Recognizer: " + (streaming != null ? "streaming, " + streaming : "batch"));
+
+        try (StandInBackends backends = new StandInBackends(behaviours, tokenIntervalMs, uplink)) {
+            backends.start();
+            // One transport for all sessions, as one pool per device would hide connection limits
+            // Every device talks to the same host here, so lift OkHttp's per-host limit on async calls
+            Dispatcher dispatcher = new Dispatcher();
+            dispatcher.setMaxRequests(concurrency * 16);
+            dispatcher.setMaxRequestsPerHost(concurrency * 16);
+            HttpTransport transport = new HttpTransport(new OkHttpClient.Builder().dispatcher(dispatcher));
+            InteractionTracer tracer = new InteractionTracer(concurrency * 4);
+            BackendClient backend = new BackendClient(transport, tracer,
+                    backends.url(HttpTransport.Endpoint.STT),
+                    backends.url(HttpTransport.Endpoint.CHAT), "Bearer simulated",
+                    backends.url(HttpTransport.Endpoint.TTS), resilience);
+            backend.setUploadListener(imageQuality);
+            AtomicLong traceIds = new AtomicLong();
+            LoadReport report = new LoadReport();
+
+            ExecutorService devices = Executors.newFixedThreadPool(concurrency, r -> new Thread(r, "Simulated Device"));
+            report.start();
+            for (int round = 0; round < rounds; round++) {
+                for (int slot = 0; slot < concurrency; slot++) {
+                    RecordedSession recording = recordings.get((round * concurrency + slot) % recordings.size());
+                    devices.execute(new SimulatedSession(
+                            recording, backend, tracer, traceIds, latencyBudget, streaming, speculativeChat,
+                            imageQuality, imageFocus, timeScale, report));
+                }
+            }
+            devices.shutdown();
+            devices.awaitTermination(1, TimeUnit.DAYS);
+            report.stop();
+
+            System.out.print(report.format(tracer, transport, backend, speculativeChat, imageQuality, backends));
+            backend.shutdown();
+        }
+        // OkHttp's pool and dispatcher threads would otherwise keep the JVM up for minutes
+        System.exit(0);
+    }
+
+    /**
+     * Parses "--name value" pairs.
+     */
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Expected --name value, got " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+}
@@ -0,0 +1,504 @@
+package com.example.imagetest;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One headless device replaying a recorded session: each tap begins a query
+ * on its own {@link QueryPipeline}, the recording is fed through the VAD and
+ * FLAC encoder at its real pace, and the query is transcribed, answered and
+ * synthesized with the same request and response code the app uses. With a
+ * scripted streaming recognizer, its interim transcripts drive speculative
+ * chat requests as the app's recognizer does.
+ *
+ * What the app does on the device is stood in for: the fixture image is the
+ * captured frame (the camera counts as warm) and is scaled and compressed
+ * with ImageIO at the size the {@link ImageQualityController} picks, and
+ * synthesized audio is discarded rather than played, so PLAY starts with the
+ * first synthesized segment.
+ */
+final class SimulatedSession implements Runnable {
+
+    private static final int SAMPLE_RATE = RecordedSession.SAMPLE_RATE;
+    private static final int FRAME_BYTES = SAMPLE_RATE / 50 * 2; // 20 ms of 16-bit mono
+    private static final int VAD_END_SILENCE_MS = 700;
+    private static final String LANGUAGE_CODE = "en-CA";
+    private static final String CHAT_MODEL = "gpt-4o";
+    private static final String TTS_SSML_GENDER = "FEMALE";
+    private static final String TTS_AUDIO_ENCODING = "LINEAR16";
+    private static final int TTS_SAMPLE_RATE = 24000;
+    private static final int CONVERSATION_MAX_TOKENS = 3000;
+    // An image may take up to half of that; the rest is for the question and the history
+    private static final int IMAGE_MAX_TOKENS = CONVERSATION_MAX_TOKENS / 2;
+    private static final int CONVERSATION_MAX_TURNS = 20;
+    private static final long CONVERSATION_IDLE_RESET_MS = 10 * 60_000;
+    private static final int PIPELINE_STAGE_THREADS = 2;
+    private static final int PIPELINE_QUEUE_CAPACITY = 2;
+    private static final long STREAMING_FINAL_WAIT_MS = 3000;
+    // How long the last query of a session may take before we stop waiting for it
+    private static final long ANSWER_TIMEOUT_MS = 120_000;
+    private static final String CHAT_UNAVAILABLE_ANSWER =
+            "Sorry, I can't reach the assistant right now. Please try again in a moment.";
+
+    /** A query in progress, and how it ended. */
+    private final class Turn {
+        final QueryPipeline.Query query;
+        final long traceId;
+        final CompletableFuture<LoadReport.Outcome> done = new CompletableFuture<>();
+        // Started when the recording stops
+        volatile LatencyBudget.Clock budget;
+
+        Turn(QueryPipeline.Query query, long traceId) {
+            this.query = query;
+            this.traceId = traceId;
+        }
+
+        /** Records the outcome, unless the query already had one. */
+        synchronized void finish(LoadReport.Outcome outcome) {
+            if (!done.isDone()) {
+                report.count(outcome); // before completing, so the report sees it once the session ends
+                done.complete(outcome);
+            }
+        }
+
+        /** Records a failure in {@code stage}, unless the query already had an outcome. */
+        synchronized void fail(QueryPipeline.Stage stage) {
+            if (!done.isDone()) {
+                report.failed(stage);
+                done.complete(LoadReport.Outcome.FAILED);
+            }
+        }
+    }
+
+    private final RecordedSession recording;
+    private final BackendClient backend;
+    private final InteractionTracer tracer;
+    private final AtomicLong traceIds;
+    private final LatencyBudget latencyBudget;
+    private final ScriptedRecognizer.Behaviour streaming;
+    private final SpeculativeChat speculativeChat;
+    private final ImageQualityController imageQuality;
+    private final RegionOfInterest imageFocus;
+    private final double timeScale;
+    private final LoadReport report;
+
+    private final QueryPipeline pipeline;
+    // Synthesizes each answer's segments in order, like the app's TTS pipeline
+    private final ExecutorService speechExecutor;
+    // Prepares captures for upload while the question is recorded, like the app's image thread
+    private final ExecutorService imageExecutor;
+    private final ConversationMemory conversation = new ConversationMemory(
+            CONVERSATION_MAX_TOKENS, CONVERSATION_MAX_TURNS, CONVERSATION_IDLE_RESET_MS);
+    private final Map<Long, Turn> turns = new ConcurrentHashMap<>(); // by query ID
+
+    /**
+     * @param traceIds      Source of trace IDs, shared by all sessions on the tracer.
+     * @param latencyBudget   Deadlines for each query's network stages.
+     * @param streaming       The streaming recognizer's behaviour, or null to transcribe with batch requests.
+     * @param speculativeChat Answers steady interim transcripts early; shared by all sessions.
+     * @param imageQuality    Sizes uploaded images; shared by all sessions, whose links behave alike.
+     * @param imageFocus      Picks the part of each capture to send close up, or null to send whole frames.
+     * @param timeScale       Multiplies tap times and audio pacing; 1 is real time, 0 replays as fast as possible.
+     */
+    SimulatedSession(RecordedSession recording, BackendClient backend, InteractionTracer tracer,
+                     AtomicLong traceIds, LatencyBudget latencyBudget, ScriptedRecognizer.Behaviour streaming,
+                     SpeculativeChat speculativeChat, ImageQualityController imageQuality,
+                     RegionOfInterest imageFocus, double timeScale, LoadReport report) {
+        this.recording = recording;
+        this.backend = backend;
+        this.tracer = tracer;
+        this.traceIds = traceIds;
+        this.latencyBudget = latencyBudget;
+        this.streaming = streaming;
+        this.speculativeChat = speculativeChat;
+        this.imageQuality = imageQuality;
+        this.imageFocus = imageFocus;
+        this.timeScale = timeScale;
+        this.report = report;
+        pipeline = new QueryPipeline(this::startSpeech, new Outcomes(),
+                PIPELINE_STAGE_THREADS, PIPELINE_STAGE_THREADS, PIPELINE_QUEUE_CAPACITY);
+        speechExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "Simulated TTS"));
+        imageExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "Simulated Image Prep"));
+    }
+
+    @Override
+    public void run() {
+        long startNanos = System.nanoTime();
+        Turn last = null;
+        try {
+            for (RecordedSession.Turn turn : recording.turns) {
+                sleepUntil(startNanos, turn.tapMs);
+                last = play(turn);
+            }
+            if (last != null) {
+                last.done.get(ANSWER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+        } catch (TimeoutException e) {
+            last.finish(LoadReport.Outcome.TIMED_OUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new AssertionError(e); // never completed exceptionally
+        } finally {
+            pipeline.cancel();
+            pipeline.shutdown();
+            speechExecutor.shutdownNow();
+            imageExecutor.shutdownNow();
+            report.sessionDone();
+        }
+    }
+
+    /**
+     * Taps: begins a query, which cancels the last one, and records the turn's audio.
+     */
+    private Turn play(RecordedSession.Turn recorded) throws InterruptedException {
+        QueryPipeline.Query query = pipeline.begin();
+        Turn turn = new Turn(query, traceIds.incrementAndGet());
+        turns.put(query.id, turn);
+        query.token.onCancel(() -> turn.finish(LoadReport.Outcome.CANCELLED));
+        tracer.begin(turn.traceId);
+
+        Future<PreparedUpload> image = null;
+        if (recorded.jpeg != null) {
+            tracer.mark(turn.traceId, InteractionTracer.Mark.CAPTURE_REQUEST);
+            tracer.mark(turn.traceId, InteractionTracer.Mark.FRAME_CAPTURED);
+            // Sized for a general question, as the app does at capture time
+            image = imageExecutor.submit(() -> prepare(recorded.jpeg, imageQuality.choose(false)));
+        }
+        final Future<PreparedUpload> pendingImage = image;
+
+        pipeline.enter(query, QueryPipeline.Stage.RECORD);
+        SpeculativeChat.Attempt<Future<PreparedUpload>> speculative = speculativeChat.begin(query.token,
+                () -> pendingImage, (token, traceId, question, inputs, out) -> requestAnswer(token, traceId,
+                        latencyBudget.stageMs(HttpTransport.Endpoint.CHAT), question, awaitImage(inputs), out));
+        CompletableFuture<String> streamed = null;
+        ScriptedRecognizer recognizer = null;
+        if (streaming != null) {
+            String transcript = recorded.transcript != null ? recorded.transcript
+                    : StandInBackends.QUESTIONS[ThreadLocalRandom.current().nextInt(StandInBackends.QUESTIONS.length)];
+            recognizer = streaming.recognizer(transcript, recorded.pcm.length);
+            streamed = listen(recognizer, query, speculative);
+        }
+
+        tracer.mark(turn.traceId, InteractionTracer.Mark.RECORD_START);
+        byte[] flac;
+        try {
+            flac = record(turn, recorded.pcm, recognizer);
+        } catch (IOException e) {
+            speculative.cancel();
+            turn.fail(QueryPipeline.Stage.RECORD);
+            return turn;
+        }
+        tracer.mark(turn.traceId, InteractionTracer.Mark.RECORD_STOP);
+        turn.budget = latencyBudget.start();
+
+        CompletableFuture<String> finalTranscript = streamed;
+        pipeline.transcribe(query,
+                q -> transcribe(turn, flac, finalTranscript, speculative),
+                (q, question, out) -> answer(turn, question, pendingImage, speculative, out));
+        return turn;
+    }
+
+    /**
+     * Starts the recognizer, passing its interim transcripts to {@code speculative}.
+     *
+     * @return The final transcript.
+     */
+    private CompletableFuture<String> listen(ScriptedRecognizer recognizer, QueryPipeline.Query query,
+                                             SpeculativeChat.Attempt<Future<PreparedUpload>> speculative) {
+        CompletableFuture<String> transcript = new CompletableFuture<>();
+        query.token.onCancel(() -> {
+            recognizer.cancel();
+            transcript.cancel(true);
+        });
+        recognizer.start(new StreamingRecognizer.Listener() {
+            @Override
+            public void onPartial(String partial) {
+                speculative.onPartial(partial);
+            }
+
+            @Override
+            public void onFinal(String result) {
+                transcript.complete(result);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                transcript.completeExceptionally(e);
+            }
+        });
+        return transcript;
+    }
+
+    /**
+     * Feeds the recording through the VAD and FLAC encoder 20 ms at a time, at
+     * the pace the microphone would deliver it, until the VAD ends the utterance.
+     *
+     * @param recognizer Also hears the audio, or null when not streaming.
+     * @return The FLAC-encoded audio up to the endpoint.
+     */
+    private byte[] record(Turn turn, byte[] pcm, ScriptedRecognizer recognizer)
+            throws IOException, InterruptedException {
+        ByteArrayOutputStream flac = new ByteArrayOutputStream(pcm.length / 2);
+        PcmEncoder encoder = new FlacEncoder(flac, SAMPLE_RATE);
+
+        VoiceActivityDetector.Config config = new VoiceActivityDetector.Config();
+        config.endSilenceMs = VAD_END_SILENCE_MS;
+        VoiceActivityDetector vad = new VoiceActivityDetector(SAMPLE_RATE, config, new VoiceActivityDetector.Listener() {
+            @Override
+            public void onSpeechStart(long speechStartMs) {
+            }
+
+            @Override
+            public void onEndOfUtterance(long speechEndMs, long detectedMs) {
+                if (speechEndMs >= 0) {
+                    tracer.record(turn.traceId, InteractionTracer.Span.VAD_ENDPOINT, (detectedMs - speechEndMs) * 1000);
+                }
+            }
+        });
+
+        long startNanos = System.nanoTime();
+        for (int offset = 0; offset < pcm.length && !vad.hasEnded(); offset += FRAME_BYTES) {
+            int length = Math.min(FRAME_BYTES, pcm.length - offset);
+            sleepUntil(startNanos, (offset + length) * 1000L / (SAMPLE_RATE * 2));
+            encoder.write(pcm, offset, length);
+            if (recognizer != null) {
+                recognizer.sendAudio(pcm, offset, length);
+            }
+            vad.process(pcm, offset, length);
+        }
+        encoder.finish();
+        if (recognizer != null) {
+            recognizer.finish();
+        }
+        return flac.toByteArray();
+    }
+
+    /**
+     * Takes the streamed final transcript if it arrives in time, otherwise sends
+     * a batch request, as the app does.
+     */
+    private String transcribe(Turn turn, byte[] flac, CompletableFuture<String> streamed,
+                              SpeculativeChat.Attempt<Future<PreparedUpload>> speculative) throws Exception {
+        tracer.mark(turn.traceId, InteractionTracer.Mark.STT_REQUEST);
+        String transcript;
+        try {
+            transcript = StreamingRecognizer.finalOrBatch(streamed, STREAMING_FINAL_WAIT_MS, () -> {
+                String requestJson = ApiPayloads.speechRecognizeRequest(
+                        LANGUAGE_CODE, PcmEncoder.Codec.FLAC.name(), SAMPLE_RATE);
+                return backend.recognize(turn.query.token, turn.budget.timeoutMs(HttpTransport.Endpoint.STT),
+                        Base64JsonRequestBody.ofBytes(requestJson, flac));
+            });
+        } catch (Exception e) {
+            speculative.cancel();
+            throw e;
+        }
+        if (transcript == null || transcript.trim().isEmpty()) {
+            speculative.cancel();
+        }
+        tracer.mark(turn.traceId, InteractionTracer.Mark.STT_RESPONSE);
+        return transcript;
+    }
+
+    /**
+     * Asks the question with the conversation so far, as the app does on a
+     * response cache miss, using the speculative answer if it was for the same
+     * question, and falls back as the app does while chat is failing.
+     */
+    private String answer(Turn turn, String question, Future<PreparedUpload> pendingImage,
+                          SpeculativeChat.Attempt<Future<PreparedUpload>> speculative,
+                          ChatCompletionStream.Listener out) throws Exception {
+        conversation.resetIfIdle(nowMs());
+        String answer;
+        try {
+            answer = speculative.take(question, pendingImage, out);
+            if (answer == null) {
+                answer = requestAnswer(turn.query.token, turn.traceId,
+                        turn.budget.timeoutMs(HttpTransport.Endpoint.CHAT), question, awaitImage(pendingImage), out);
+            }
+        } catch (CircuitBreaker.OpenException e) {
+            report.fellBack();
+            out.onDelta(CHAT_UNAVAILABLE_ANSWER);
+            return CHAT_UNAVAILABLE_ANSWER;
+        }
+        conversation.addTurn(question, pendingImage != null, answer, nowMs());
+        return answer;
+    }
+
+    /**
+     * Sends the chat request, with the image refitted to the question as the
+     * app does; remembers nothing, so it can also answer a guess.
+     *
+     * @param captured The image prepared at capture time, or null for a text-only question.
+     */
+    private String requestAnswer(CancellationToken token, long traceId, long timeoutMs, String question,
+                                 PreparedUpload captured, ChatCompletionStream.Listener out)
+            throws IOException, JSONException {
+        PreparedUpload image = captured;
+        if (captured != null) {
+            ImageQualityController.Tier tier = imageQuality.choose(ImageQualityController.readsText(question),
+                    captured.sourceWidth, captured.sourceHeight, IMAGE_MAX_TOKENS);
+            if (tier.maxSize != captured.maxSize) {
+                image = prepare(captured.source, tier);
+                imageQuality.onReworked();
+            }
+        }
+        boolean withImage = image != null;
+        String text = withImage && image.layout != null ? question + "\n\n" + image.layout.describe() : question;
+        String detail = withImage ? ImageQualityController.detailFor(image.longSide) : null;
+        JSONObject messageObject = ApiPayloads.chatUserMessage(text, withImage, detail);
+        int imageTokens = withImage ? ConversationMemory.imageTokens(image.width, image.height, detail) : 0;
+        String requestJson = conversation.buildRequest(
+                ApiPayloads.chatRequestHead(CHAT_MODEL, true), messageObject, imageTokens);
+        return backend.chat(token, traceId, timeoutMs, requestJson, withImage ? image.jpeg : null, true, out);
+    }
+
+    private PreparedUpload prepare(byte[] source, ImageQualityController.Tier tier) throws IOException {
+        PreparedUpload upload = PreparedUpload.prepare(source, tier.maxSize, tier.quality, imageFocus);
+        imageQuality.onEncoded(tier, upload.jpeg.length);
+        return upload;
+    }
+
+    /**
+     * Waits for the image prepared at capture time.
+     *
+     * @return The prepared image, or null for a text-only question.
+     */
+    private static PreparedUpload awaitImage(Future<PreparedUpload> pendingImage) throws Exception {
+        if (pendingImage == null) {
+            return null;
+        }
+        try {
+            return pendingImage.get();
+        } catch (ExecutionException e) {
+            throw new IOException("could not prepare the image", e.getCause());
+        }
+    }
+
+    private QueryPipeline.Speech startSpeech(QueryPipeline.Query query) {
+        Turn turn = turns.get(query.id);
+        tracer.mark(turn.traceId, InteractionTracer.Mark.TTS_REQUEST);
+        // The app speaks on device while Google TTS is failing; that starts at once
+        boolean onDevice = !backend.isAvailable(HttpTransport.Endpoint.TTS);
+        if (onDevice) {
+            report.fellBack();
+        }
+        return new SimulatedSpeech(turn, onDevice);
+    }
+
+    /**
+     * Synthesizes an answer's segments one after another and throws the audio away.
+     */
+    private final class SimulatedSpeech implements QueryPipeline.Speech {
+        private final Turn turn;
+        private final boolean onDevice;
+        private volatile boolean cancelled;
+        private boolean started; // speech thread only
+
+        SimulatedSpeech(Turn turn, boolean onDevice) {
+            this.turn = turn;
+            this.onDevice = onDevice;
+        }
+
+        @Override
+        public void enqueue(String text) {
+            speechExecutor.execute(() -> {
+                if (cancelled) {
+                    return;
+                }
+                try {
+                    if (!onDevice) {
+                        String requestJson = ApiPayloads.speechSynthesisRequest(
+                                text, LANGUAGE_CODE, TTS_SSML_GENDER, TTS_AUDIO_ENCODING, TTS_SAMPLE_RATE);
+                        // Only the first segment is on the critical path, as in the app
+                        backend.synthesize(turn.query.token, turn.traceId, started
+                                        ? latencyBudget.stageMs(HttpTransport.Endpoint.TTS)
+                                        : turn.budget.timeoutMs(HttpTransport.Endpoint.TTS),
+                                requestJson, OutputStream.nullOutputStream());
+                    }
+                } catch (IOException | JSONException e) {
+                    if (!cancelled) {
+                        cancelled = true;
+                        turn.fail(QueryPipeline.Stage.SYNTHESIZE);
+                    }
+                    return;
+                }
+                if (!started) {
+                    started = true;
+                    tracer.mark(turn.traceId, InteractionTracer.Mark.PLAYBACK_START);
+                    pipeline.enter(turn.query, QueryPipeline.Stage.PLAY);
+                }
+            });
+        }
+
+        @Override
+        public void finish() {
+            speechExecutor.execute(() -> {
+                if (!cancelled) {
+                    turn.finish(LoadReport.Outcome.ANSWERED);
+                }
+            });
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    /** Records how each query ended; nothing is displayed. */
+    private final class Outcomes implements QueryPipeline.Listener {
+        @Override
+        public void onStage(QueryPipeline.Query query, QueryPipeline.Stage stage) {
+        }
+
+        @Override
+        public void onTranscript(QueryPipeline.Query query, String transcript) {
+        }
+
+        @Override
+        public void onNoSpeech(QueryPipeline.Query query) {
+            turns.get(query.id).finish(LoadReport.Outcome.NO_SPEECH);
+        }
+
+        @Override
+        public void onAnswerDelta(QueryPipeline.Query query, String text) {
+        }
+
+        @Override
+        public void onAnswer(QueryPipeline.Query query, String answer) {
+        }
+
+        @Override
+        public void onError(QueryPipeline.Query query, QueryPipeline.Stage stage, Exception e) {
+            turns.get(query.id).fail(stage);
+        }
+    }
+
+    private void sleepUntil(long startNanos, long offsetMs) throws InterruptedException {
+        long wakeNanos = startNanos + (long) (offsetMs * timeScale * 1_000_000);
+        long remainingNanos = wakeNanos - System.nanoTime();
+        if (remainingNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(remainingNanos);
+        }
+    }
+
+    private static long nowMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
@@ -0,0 +1,289 @@
+package com.example.imagetest;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * Local stand-ins for Google STT, the chat completions API and Google TTS,
+ * answering in the services' own response formats. Each backend waits a
+ * configurable latency plus or minus jitter before responding, holds back a
+ * share of responses for longer to make a latency tail, and fails a
+ * configurable share of requests with a 503. Chat answers are streamed as
+ * server-sent events at a steady token rate, after headers sent as soon as
+ * the request is in, as the real service does. An {@link Uplink} trace can
+ * slow the reading of every request body to a link speed that changes over time.
+ *
+ * All three run on one local HTTP server, under {@link #url(HttpTransport.Endpoint)}.
+ */
+final class StandInBackends implements Closeable {
+
+    /** How one backend behaves. */
+    static final class Behaviour {
+        /** Time to the response headers, or to the first token for chat. */
+        final long latencyMs;
+        /** The latency varies uniformly by up to this much either way. */
+        final long jitterMs;
+        /** Share of requests, 0 to 1, that fail with a 503. */
+        final double errorRate;
+        /** Share of requests, 0 to 1, that take {@link #slowMs} longer: the latency tail. */
+        final double slowRate;
+        final long slowMs;
+
+        Behaviour(long latencyMs, long jitterMs, double errorRate, double slowRate, long slowMs) {
+            this.latencyMs = latencyMs;
+            this.jitterMs = jitterMs;
+            this.errorRate = errorRate;
+            this.slowRate = slowRate;
+            this.slowMs = slowMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d+-%dms errors=%.1f%% slow=%.1f%%(+%dms)",
+                    latencyMs, jitterMs, errorRate * 100, slowRate * 100, slowMs);
+        }
+    }
+
+    /**
+     * The client's upload speed over time: each step's rate holds for
+     * {@code stepMs}, starting when the servers start, and the last one holds from then on.
+     */
+    static final class Uplink {
+        // Request bodies are read in slices of this length, paced to the rate
+        private static final long SLICE_MS = 50;
+
+        private final long[] kbps;
+        private final long stepMs;
+        private long startNanos;
+
+        /**
+         * @param kbps   The rate for each step in kilobits a second; 0 is unlimited.
+         * @param stepMs How long each step lasts.
+         */
+        Uplink(long[] kbps, long stepMs) {
+            this.kbps = kbps;
+            this.stepMs = stepMs;
+        }
+
+        void start() {
+            startNanos = System.nanoTime();
+        }
+
+        long kbpsNow() {
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            return kbps[(int) Math.min(kbps.length - 1, elapsedMs / Math.max(1, stepMs))];
+        }
+
+        /** How the next request body is read. */
+        MockResponse reading() {
+            long rate = kbpsNow();
+            MockResponse response = new MockResponse();
+            return rate > 0 ? response.throttleBody(Math.max(1, rate * 1000 / 8 * SLICE_MS / 1000), SLICE_MS,
+                    TimeUnit.MILLISECONDS) : response;
+        }
+
+        @Override
+        public String toString() {
+            return kbps.length == 1 && kbps[0] == 0 ? "unlimited"
+                    : Arrays.toString(kbps) + "kbps, " + stepMs / 1000 + "s each";
+        }
+    }
+
+    static final String[] QUESTIONS = {
+            "What am I looking at?",
+            "What does this sign say?",
+            "Is there anything in my way?",
+            "What colour is that car?",
+    };
+
+    private static final String ANSWER = "That's a stop sign mounted on a metal pole at a street corner. "
+            + "Behind it there's a red brick building with two windows, and a bicycle is leaning against the wall. "
+            + "The sign looks fairly new; the paint is bright and there's no visible rust. "
+            + "If you're crossing here, check for cars coming from your left first.";
+
+    private static final int CHARS_PER_TOKEN = 4;
+    // Speech runs at about 15 characters a second; MP3 at about 32 kbps
+    private static final int SPOKEN_CHARS_PER_SECOND = 15;
+    private static final int MP3_BYTES_PER_SECOND = 4000;
+    private static final int DEFAULT_SAMPLE_RATE = 24000;
+    private static final int WAV_HEADER_BYTES = 44;
+
+    private final MockWebServer server = new MockWebServer();
+    private final Map<HttpTransport.Endpoint, Behaviour> behaviours;
+    private final long tokenIntervalMs;
+    private final Uplink uplink;
+    private final Map<HttpTransport.Endpoint, AtomicLong> requests = new EnumMap<>(HttpTransport.Endpoint.class);
+    private final Map<HttpTransport.Endpoint, AtomicLong> injectedErrors = new EnumMap<>(HttpTransport.Endpoint.class);
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    /**
+     * @param behaviours      How each backend responds.
+     * @param tokenIntervalMs Time between streamed chat tokens.
+     * @param uplink          How fast request bodies arrive.
+     */
+    StandInBackends(Map<HttpTransport.Endpoint, Behaviour> behaviours, long tokenIntervalMs, Uplink uplink) {
+        this.behaviours = new EnumMap<>(behaviours);
+        this.tokenIntervalMs = tokenIntervalMs;
+        this.uplink = uplink;
+        for (HttpTransport.Endpoint endpoint : HttpTransport.Endpoint.values()) {
+            requests.put(endpoint, new AtomicLong());
+            injectedErrors.put(endpoint, new AtomicLong());
+        }
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return respond(request);
+            }
+
+            @Override
+            public MockResponse peek() {
+                // Read before the request is known, so the uplink applies to every body
+                return uplink.reading();
+            }
+        });
+    }
+
+    void start() throws IOException {
+        uplink.start();
+        server.start();
+    }
+
+    String url(HttpTransport.Endpoint endpoint) {
+        return server.url("/" + endpoint.name().toLowerCase(Locale.ROOT)).toString();
+    }
+
+    /**
+     * Requests served and errors injected per backend, and the bytes uploaded, on one line.
+     */
+    String statsSummary() {
+        StringBuilder summary = new StringBuilder();
+        for (HttpTransport.Endpoint endpoint : HttpTransport.Endpoint.values()) {
+            summary.append(endpoint.name().toLowerCase(Locale.ROOT)).append('=').append(requests.get(endpoint).get())
+                    .append(" (").append(injectedErrors.get(endpoint).get()).append(" failed) ");
+        }
+        return summary.append("uploaded=").append(bytesReceived.get() / 1024).append("KiB").toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.shutdown();
+    }
+
+    private MockResponse respond(RecordedRequest request) {
+        HttpTransport.Endpoint endpoint = endpointOf(request.getPath());
+        if (endpoint == null) {
+            return new MockResponse().setResponseCode(404);
+        }
+        requests.get(endpoint).incrementAndGet();
+        bytesReceived.addAndGet(request.getBodySize());
+
+        Behaviour behaviour = behaviours.get(endpoint);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long delayMs = Math.max(0, behaviour.latencyMs
+                + (behaviour.jitterMs > 0 ? random.nextLong(-behaviour.jitterMs, behaviour.jitterMs + 1) : 0)
+                + (random.nextDouble() < behaviour.slowRate ? behaviour.slowMs : 0));
+        if (random.nextDouble() < behaviour.errorRate) {
+            injectedErrors.get(endpoint).incrementAndGet();
+            return new MockResponse()
+                    .setResponseCode(503)
+                    .setHeadersDelay(delayMs, TimeUnit.MILLISECONDS)
+                    .setBody("{\"error\": {\"code\": 503, \"message\": \"Injected failure\"}}");
+        }
+
+        MockResponse response = new MockResponse();
+        if (endpoint != HttpTransport.Endpoint.CHAT) {
+            response.setHeadersDelay(delayMs, TimeUnit.MILLISECONDS);
+        }
+        switch (endpoint) {
+            case STT:
+                return response
+                        .setHeader("Content-Type", "application/json; charset=utf-8")
+                        .setBody(sttResponse(QUESTIONS[random.nextInt(QUESTIONS.length)]));
+            case CHAT:
+                String events = chatStream(ANSWER);
+                return response
+                        .setHeader("Content-Type", "text/event-stream")
+                        .setBodyDelay(delayMs, TimeUnit.MILLISECONDS)
+                        .setBody(events)
+                        .throttleBody(events.length() / Math.max(1, ANSWER.length() / CHARS_PER_TOKEN),
+                                tokenIntervalMs, TimeUnit.MILLISECONDS);
+            case TTS:
+                return response
+                        .setHeader("Content-Type", "application/json; charset=utf-8")
+                        .setBody(ttsResponse(request));
+            default:
+                throw new AssertionError(endpoint);
+        }
+    }
+
+    private static HttpTransport.Endpoint endpointOf(String path) {
+        for (HttpTransport.Endpoint endpoint : HttpTransport.Endpoint.values()) {
+            if (path != null && path.startsWith("/" + endpoint.name().toLowerCase(Locale.ROOT))) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    private static String sttResponse(String transcript) {
+        return "{\n  \"results\": [\n    {\n      \"alternatives\": [\n        {\n          \"transcript\": \""
+                + transcript + "\",\n          \"confidence\": 0.93\n        }\n      ],\n"
+                + "      \"languageCode\": \"en-ca\"\n    }\n  ]\n}";
+    }
+
+    /** The answer as server-sent events, one token's worth of characters each. */
+    private static String chatStream(String answer) {
+        StringBuilder events = new StringBuilder();
+        for (int i = 0; i < answer.length(); i += CHARS_PER_TOKEN) {
+            String piece = answer.substring(i, Math.min(answer.length(), i + CHARS_PER_TOKEN))
+                    .replace("\\", "\\\\").replace("\"", "\\\"");
+            events.append("data: {\"id\":\"chatcmpl-sim\",\"object\":\"chat.completion.chunk\",\"model\":\"gpt-4o\",")
+                    .append("\"choices\":[{\"index\":0,\"delta\":{\"content\":\"").append(piece)
+                    .append("\"},\"finish_reason\":null}]}\n\n");
+        }
+        return events.append("data: [DONE]\n\n").toString();
+    }
+
+    /**
+     * Random audio of about the length speaking the request's text would take,
+     * sized for the encoding and sample rate it asks for.
+     */
+    private static String ttsResponse(RecordedRequest request) {
+        String text = "";
+        String encoding = "MP3";
+        int sampleRate = DEFAULT_SAMPLE_RATE;
+        try {
+            JSONObject json = new JSONObject(request.getBody().readUtf8());
+            text = json.getJSONObject("input").getString("text");
+            JSONObject audioConfig = json.getJSONObject("audioConfig");
+            encoding = audioConfig.optString("audioEncoding", encoding);
+            sampleRate = audioConfig.optInt("sampleRateHertz", sampleRate);
+        } catch (JSONException e) {
+            // Answer with a short clip, as for empty text
+        }
+        long spokenMs = 1000L * Math.max(1, text.length()) / SPOKEN_CHARS_PER_SECOND;
+        int bytes = "LINEAR16".equals(encoding)
+                ? WAV_HEADER_BYTES + (int) (spokenMs * sampleRate / 1000) * 2
+                : (int) (spokenMs * MP3_BYTES_PER_SECOND / 1000);
+        byte[] audio = new byte[bytes];
+        ThreadLocalRandom.current().nextBytes(audio);
+        return "{\n  \"audioContent\": \"" + Base64.getEncoder().encodeToString(audio) + "\",\n"
+                + "  \"audioConfig\": {\"audioEncoding\": \"" + encoding + "\"}\n}\n";
+    }
+}